@@ -0,0 +1,62 @@
+package doip.tester.toolkit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipUdpEntityStatusResponse;
+import doip.tester.toolkit.CheckResult;
+import doip.tester.toolkit.EventChecker;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+
+/**
+ * Measures the cost of EventChecker.checkEvent for the expected event,
+ * a wrong event and a missing event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EventCheckerBenchmark {
+
+	private DoipEvent diagnosticMessageEvent;
+
+	private DoipEvent entityStatusResponseEvent;
+
+	@Setup
+	public void setUp() {
+		diagnosticMessageEvent = new DoipEventTcpDiagnosticMessage(System.nanoTime(),
+				new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x50, 0x01}));
+		entityStatusResponseEvent = new DoipEventUdpEntityStatusResponse(System.nanoTime(),
+				new DoipUdpEntityStatusResponse(0, 8, 1, 0x1000000));
+	}
+
+	@Benchmark
+	public CheckResult expectedEvent() {
+		return EventChecker.checkEvent(diagnosticMessageEvent, DoipEventTcpDiagnosticMessage.class);
+	}
+
+	@Benchmark
+	public CheckResult wrongEvent() {
+		return EventChecker.checkEvent(entityStatusResponseEvent, DoipEventTcpDiagnosticMessage.class);
+	}
+
+	@Benchmark
+	public CheckResult missingEvent() {
+		return EventChecker.checkEvent(null, DoipEventUdpEntityStatusResponse.class);
+	}
+}
@@ -0,0 +1,57 @@
+package doip.tester.toolkit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import doip.library.message.DoipTcpAliveCheckRequest;
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.tester.toolkit.DoipTcpConnectionWithEventCollection;
+
+/**
+ * Measures how many events per second can be recorded by the callback
+ * functions of DoipTcpConnectionWithEventCollection. The connection will
+ * not be started, the callbacks will be called directly like the receiver
+ * thread would do it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EventRecordingBenchmark {
+
+	private DoipTcpConnectionWithEventCollection conn;
+
+	private DoipTcpDiagnosticMessage diagnosticMessage;
+
+	private DoipTcpAliveCheckRequest aliveCheckRequest;
+
+	@Setup
+	public void setUp() {
+		conn = new DoipTcpConnectionWithEventCollection("TCP-BENCH", 64);
+		diagnosticMessage = new DoipTcpDiagnosticMessage(0x1001, 0x0E00,
+				new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4});
+		aliveCheckRequest = new DoipTcpAliveCheckRequest();
+	}
+
+	@Benchmark
+	public void recordDiagnosticMessage() {
+		conn.onDoipTcpDiagnosticMessage(conn, diagnosticMessage);
+	}
+
+	@Benchmark
+	public void recordAliveCheckRequest() {
+		conn.onDoipTcpAliveCheckRequest(conn, aliveCheckRequest);
+	}
+}
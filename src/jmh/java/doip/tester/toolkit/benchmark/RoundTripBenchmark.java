@@ -0,0 +1,68 @@
+package doip.tester.toolkit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.TesterTcpConnection;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.exception.DiagnosticServiceExecutionFailed;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+
+/**
+ * Measures the round trip of a diagnostic service over loopback between
+ * TesterTcpConnection and DoipServer4UnitTest. The time contains sending
+ * the request, receiving the positive acknowledge and receiving the
+ * response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RoundTripBenchmark {
+
+	private static final byte[] REQUEST = new byte[] {0x10, 0x01};
+
+	private DoipServer4UnitTest gateway;
+
+	private TestSetup testSetup;
+
+	private TesterTcpConnection conn;
+
+	@Setup
+	public void setUp() throws Exception {
+		gateway = new DoipServer4UnitTest();
+		gateway.start();
+		testSetup = new TestSetup();
+		testSetup.initialize();
+		conn = testSetup.createTesterTcpConnection();
+		conn.performRoutingActivation(testSetup.getConfig().getTesterAddress(), 0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (conn != null) {
+			testSetup.removeDoipTcpConnectionTest(conn);
+		}
+		testSetup.uninitialize();
+		gateway.stop();
+	}
+
+	@Benchmark
+	public DoipEventTcpDiagnosticMessage diagnosticServiceRoundTrip() throws DiagnosticServiceExecutionFailed {
+		return conn.executeDiagnosticServicePosAck(REQUEST);
+	}
+}
@@ -0,0 +1,296 @@
+package doip.tester.toolkit.benchmark;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import doip.library.message.DoipTcpAliveCheckResponse;
+import doip.library.util.Helper;
+import doip.tester.toolkit.TesterThreadFactory;
+import doip.tester.toolkit.TesterThreadFactory.ThreadMode;
+
+/**
+ * Compares blocking socket receivers on platform threads and on virtual
+ * threads. For every connection there is one receiver thread which reads
+ * DoIP messages with a blocking InputStream, the same way the receiver
+ * threads of the DoIP library do. A local echo server sends every message
+ * back. The benchmark sends one message on every connection and waits
+ * until all receiver threads have received the echo, so the measured time
+ * is dominated by the wake-ups and context switches of the receivers.
+ * <p>
+ * Heap usage, resident set size and the number of live platform threads
+ * after all connections have been established will be logged in the
+ * setup. The benchmark with 10000 connections requires a limit for open
+ * files of at least 20100 (see "ulimit -n"). Virtual threads require
+ * JDK 21, on older JDKs both modes use platform threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+public class ThreadModeBenchmark {
+
+	private static Logger logger = LogManager.getLogger(ThreadModeBenchmark.class);
+
+	@Param({"1000", "10000"})
+	int connections;
+
+	@Param({"PLATFORM", "VIRTUAL"})
+	ThreadMode threadMode;
+
+	private final byte[] message = new DoipTcpAliveCheckResponse(0x0E00).getMessage();
+
+	private EchoServer server;
+
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	private final List<OutputStream> outputs = new ArrayList<OutputStream>();
+
+	private final List<Thread> receivers = new ArrayList<Thread>();
+
+	/**
+	 * Number of connections which have not yet received the echo
+	 */
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	private volatile Thread waiter;
+
+	private volatile boolean running;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		server = new EchoServer();
+		server.start();
+		running = true;
+
+		long heapBefore = usedHeap();
+		TesterThreadFactory factory = new TesterThreadFactory("RECV", threadMode, true);
+		for (int i = 0; i < connections; i++) {
+			Socket socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(server.getAddress(), 10000);
+			sockets.add(socket);
+			outputs.add(socket.getOutputStream());
+			DataInputStream input = new DataInputStream(socket.getInputStream());
+			Thread thread = factory.newThread(() -> receive(input));
+			receivers.add(thread);
+			thread.start();
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		logger.info("Thread mode:        " + factory.getMode());
+		logger.info("Connections:        " + connections);
+		logger.info("Heap (receivers):   " + (usedHeap() - heapBefore) / 1024 + " kB");
+		logger.info("Resident set size:  " + residentSetSize());
+		logger.info("Platform threads:   " + threads.getThreadCount());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		running = false;
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		for (Thread thread : receivers) {
+			thread.join();
+		}
+		server.stop();
+		sockets.clear();
+		outputs.clear();
+		receivers.clear();
+	}
+
+	/**
+	 * Sends one message on every connection and waits until the
+	 * echo has been received on every connection.
+	 */
+	@Benchmark
+	public int roundTripAllConnections() throws IOException {
+		waiter = Thread.currentThread();
+		outstanding.set(connections);
+		for (OutputStream output : outputs) {
+			output.write(message);
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (outstanding.get() > 0) {
+			if (System.nanoTime() - deadline > 0) {
+				throw new IllegalStateException(outstanding.get() + " echoes have not been received");
+			}
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+		}
+		return connections;
+	}
+
+	private void receive(DataInputStream input) {
+		byte[] buffer = new byte[message.length];
+		try {
+			while (running) {
+				input.readFully(buffer);
+				if (outstanding.decrementAndGet() == 0) {
+					LockSupport.unpark(waiter);
+				}
+			}
+		} catch (IOException e) {
+			// Socket has been closed in tear down
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		Thread.sleep(100);
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Returns the resident set size of the process on Linux,
+	 * otherwise "n/a".
+	 */
+	private static String residentSetSize() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return line.substring(6).trim();
+				}
+			}
+		} catch (IOException e) {
+			// Not available on this platform
+		}
+		return "n/a";
+	}
+
+	/**
+	 * Simple echo server with one selector thread, so the server side does
+	 * not influence the number of threads which will be compared.
+	 */
+	static class EchoServer implements Runnable {
+
+		private final Selector selector;
+
+		private final ServerSocketChannel serverChannel;
+
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+		private volatile boolean running = true;
+
+		private Thread thread;
+
+		EchoServer() throws IOException {
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress("127.0.0.1", 0), 20000);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		InetSocketAddress getAddress() throws IOException {
+			return (InetSocketAddress) serverChannel.getLocalAddress();
+		}
+
+		void start() {
+			thread = new Thread(this, "ECHO-SERVER");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() throws IOException, InterruptedException {
+			running = false;
+			selector.wakeup();
+			thread.join();
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							SocketChannel channel = serverChannel.accept();
+							if (channel != null) {
+								channel.configureBlocking(false);
+								channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+								channel.register(selector, SelectionKey.OP_READ);
+							}
+						} else if (key.isReadable()) {
+							echo(key);
+						}
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Unexpected " + e.getClass().getName() + " in echo server");
+				logger.error(Helper.getExceptionAsString(e));
+			}
+		}
+
+		private void echo(SelectionKey key) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			try {
+				buffer.clear();
+				if (channel.read(buffer) < 0) {
+					key.cancel();
+					channel.close();
+					return;
+				}
+				buffer.flip();
+				// Messages are small, so a write will not be partial
+				// as long as the receiver keeps reading.
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			} catch (IOException e) {
+				key.cancel();
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					// Ignore
+				}
+			}
+		}
+	}
+}
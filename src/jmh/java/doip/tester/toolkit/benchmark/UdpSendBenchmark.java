@@ -0,0 +1,71 @@
+package doip.tester.toolkit.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.TesterUdpCommModule;
+
+/**
+ * Measures sending of UDP requests by TesterUdpCommModule to the target
+ * address of the test configuration. No gateway is needed, the datagrams
+ * will be dropped if nobody receives them. Run with "-prof gc" to see
+ * that no garbage will be created per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UdpSendBenchmark {
+
+	private static final byte[] EID = new byte[] {0x00, 0x1A, 0x2B, 0x3C, 0x4D, 0x5E};
+
+	private TestSetup testSetup;
+
+	private TesterUdpCommModule udp;
+
+	private InetAddress target;
+
+	@Setup
+	public void setUp() throws Exception {
+		testSetup = new TestSetup();
+		testSetup.initialize();
+		udp = testSetup.getTesterUdpCommModule();
+		target = testSetup.getConfig().getTargetAddress();
+	}
+
+	@TearDown
+	public void tearDown() {
+		testSetup.uninitialize();
+	}
+
+	@Benchmark
+	public void vehicleIdentRequest() throws IOException {
+		udp.sendDoipUdpVehicleIdentRequest(target);
+	}
+
+	@Benchmark
+	public void vehicleIdentRequestWithEid() throws IOException {
+		udp.sendDoipUdpVehicleIdentRequestWithEid(EID, target);
+	}
+
+	@Benchmark
+	public void entityStatusRequest() throws IOException {
+		udp.sendDoipUdpEntityStatusRequest(target);
+	}
+}
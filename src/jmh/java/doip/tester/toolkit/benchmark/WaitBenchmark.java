@@ -0,0 +1,133 @@
+package doip.tester.toolkit.benchmark;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import doip.tester.toolkit.EventCursor;
+import doip.tester.toolkit.EventQueue;
+import doip.tester.toolkit.Wait;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+
+/**
+ * Measures the wake-up latency of a thread which is waiting for events.
+ * An echo thread waits for a request event and answers it with a response
+ * event, the benchmark thread waits for the response. The measured time
+ * is the round trip, that means it contains two wake-ups.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WaitBenchmark {
+
+	private static final DoipEvent EVENT = new DoipEventConnectionClosed(0);
+
+	/**
+	 * Round trip with the event queue, waiting threads will be parked
+	 */
+	@State(Scope.Benchmark)
+	public static class EventQueueState {
+
+		EventQueue requests;
+		EventQueue responses;
+		EventCursor responseCursor;
+		Thread echoThread;
+
+		@Setup
+		public void setUp() {
+			requests = new EventQueue();
+			responses = new EventQueue();
+			responseCursor = responses.createCursor();
+			EventCursor requestCursor = requests.createCursor();
+			echoThread = new Thread(() -> {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						DoipEvent event = requestCursor.next(1000);
+						if (event != null) {
+							responses.add(event);
+						}
+					}
+				} catch (InterruptedException e) {
+					// Benchmark has been finished
+				}
+			}, "ECHO");
+			echoThread.start();
+		}
+
+		@TearDown
+		public void tearDown() throws InterruptedException {
+			echoThread.interrupt();
+			echoThread.join();
+		}
+	}
+
+	/**
+	 * Round trip with lists which will be polled by Wait.waitForEvents
+	 */
+	@State(Scope.Benchmark)
+	public static class PollingState {
+
+		List<DoipEvent> requests;
+		List<DoipEvent> responses;
+		int count;
+		Thread echoThread;
+
+		@Setup
+		@SuppressWarnings("deprecation")
+		public void setUp() {
+			requests = new Vector<DoipEvent>();
+			responses = new Vector<DoipEvent>();
+			count = 0;
+			echoThread = new Thread(() -> {
+				try {
+					int expected = 1;
+					while (!Thread.currentThread().isInterrupted()) {
+						DoipEvent event = Wait.waitForEvents(requests, expected, 1000);
+						if (event != null) {
+							responses.add(event);
+							expected++;
+						}
+					}
+				} catch (InterruptedException e) {
+					// Benchmark has been finished
+				}
+			}, "ECHO");
+			echoThread.start();
+		}
+
+		@TearDown
+		public void tearDown() throws InterruptedException {
+			echoThread.interrupt();
+			echoThread.join();
+		}
+	}
+
+	@Benchmark
+	public DoipEvent eventQueueRoundTrip(EventQueueState state) throws InterruptedException {
+		state.requests.add(EVENT);
+		return state.responseCursor.next(1000);
+	}
+
+	@Benchmark
+	@SuppressWarnings("deprecation")
+	public DoipEvent pollingRoundTrip(PollingState state) throws InterruptedException {
+		state.requests.add(EVENT);
+		state.count++;
+		return Wait.waitForEvents(state.responses, state.count, 1000);
+	}
+}
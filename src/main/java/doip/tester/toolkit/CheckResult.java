@@ -12,9 +12,9 @@ public class CheckResult {
 	public static final int SOCKET_NOT_CLOSED = 7;
 	// public static final int UNKOWN_EVENT_CLASS = 8;
 	
-	private int code = 0;
+	private final int code;
 	
-	private String text = null;
+	private final String text;
 	
 	public CheckResult(int code, String text) {
 		this.code = code;
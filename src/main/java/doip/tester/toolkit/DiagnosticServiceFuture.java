@@ -0,0 +1,132 @@
+package doip.tester.toolkit;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+
+/**
+ * Result of a diagnostic service which has been sent asynchronously by
+ * {@link TesterTcpConnection#executeDiagnosticServiceAsync(int, byte[])}.
+ * The future itself will be completed when the response has been received.
+ * The future returned by {@link #getPosAck()} will be completed when the
+ * positive acknowledge has been received.
+ * <p>
+ * If the service fails (no positive acknowledge, negative acknowledge,
+ * no response or connection closed) both futures will be completed
+ * exceptionally with a
+ * {@link doip.tester.toolkit.exception.DiagnosticServiceExecutionFailed}.
+ * <p>
+ * The futures will be completed by the receiver thread of the connection.
+ * Long running actions should therefore be added with the asynchronous
+ * variants of the completion stage methods.
+ */
+public class DiagnosticServiceFuture extends CompletableFuture<DoipEventTcpDiagnosticMessage> {
+
+	private final CompletableFuture<DoipEventTcpDiagnosticMessagePosAck> posAck =
+			new CompletableFuture<DoipEventTcpDiagnosticMessagePosAck>();
+
+	private final int sourceAddress;
+
+	private final int targetAddress;
+
+	private final byte[] request;
+
+	/**
+	 * Will be incremented when the timeout for the response has been
+	 * restarted (for example after a 'response pending'), so a timeout
+	 * which is already running when it will be cancelled can detect that
+	 * it is obsolete.
+	 */
+	private volatile int timeoutGeneration = 0;
+
+	/**
+	 * Timeout which is currently scheduled, null if there is none
+	 */
+	private ScheduledFuture<?> timeout = null;
+
+	private final Object timeoutLock = new Object();
+
+	public DiagnosticServiceFuture(int sourceAddress, int targetAddress, byte[] request) {
+		this.sourceAddress = sourceAddress;
+		this.targetAddress = targetAddress;
+		this.request = request;
+	}
+
+	/**
+	 * Returns the future which will be completed when the positive
+	 * acknowledge for the request has been received.
+	 */
+	public CompletableFuture<DoipEventTcpDiagnosticMessagePosAck> getPosAck() {
+		return posAck;
+	}
+
+	public int getSourceAddress() {
+		return sourceAddress;
+	}
+
+	public int getTargetAddress() {
+		return targetAddress;
+	}
+
+	public byte[] getRequest() {
+		return request;
+	}
+
+	/**
+	 * Returns the UDS service identifier of the request.
+	 */
+	public int getServiceId() {
+		return request[0] & 0xFF;
+	}
+
+	/**
+	 * Completes the future and the positive acknowledge exceptionally.
+	 */
+	@Override
+	public boolean completeExceptionally(Throwable ex) {
+		posAck.completeExceptionally(ex);
+		return super.completeExceptionally(ex);
+	}
+
+	int getTimeoutGeneration() {
+		return timeoutGeneration;
+	}
+
+	int restartTimeout() {
+		return ++timeoutGeneration;
+	}
+
+	/**
+	 * Sets the timeout which has been scheduled for this service and
+	 * cancels the previous one. If the service has already been completed
+	 * the new timeout will be cancelled.
+	 */
+	void setTimeout(ScheduledFuture<?> timeout) {
+		synchronized (timeoutLock) {
+			if (this.timeout != null) {
+				this.timeout.cancel(false);
+			}
+			if (isDone()) {
+				timeout.cancel(false);
+				this.timeout = null;
+			} else {
+				this.timeout = timeout;
+			}
+		}
+	}
+
+	/**
+	 * Cancels the timeout, will be called when the service has been
+	 * completed.
+	 */
+	void cancelTimeout() {
+		synchronized (timeoutLock) {
+			if (timeout != null) {
+				timeout.cancel(false);
+				timeout = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package doip.tester.toolkit;
+
+import java.nio.ByteBuffer;
+
+import doip.library.message.DoipMessage;
+import doip.library.message.DoipTcpAliveCheckRequest;
+import doip.library.message.DoipTcpAliveCheckResponse;
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessageNegAck;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.library.message.DoipTcpHeaderNegAck;
+import doip.library.message.DoipTcpMessage;
+import doip.library.message.DoipTcpRoutingActivationRequest;
+import doip.library.message.DoipTcpRoutingActivationResponse;
+import doip.library.message.DoipUdpDiagnosticPowerModeRequest;
+import doip.library.message.DoipUdpDiagnosticPowerModeResponse;
+import doip.library.message.DoipUdpEntityStatusRequest;
+import doip.library.message.DoipUdpEntityStatusResponse;
+import doip.library.message.DoipUdpHeaderNegAck;
+import doip.library.message.DoipUdpMessage;
+import doip.library.message.DoipUdpVehicleAnnouncementMessage;
+import doip.library.message.DoipUdpVehicleIdentRequest;
+import doip.library.message.DoipUdpVehicleIdentRequestWithEid;
+import doip.library.message.DoipUdpVehicleIdentRequestWithVin;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventTcpAliveCheckRequest;
+import doip.tester.toolkit.event.DoipEventTcpAliveCheckResponse;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessageNegAck;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+import doip.tester.toolkit.event.DoipEventTcpHeaderNegAck;
+import doip.tester.toolkit.event.DoipEventTcpRoutingActivationRequest;
+import doip.tester.toolkit.event.DoipEventTcpRoutingActivationResponse;
+import doip.tester.toolkit.event.DoipEventUdpDiagnosticPowerModeRequest;
+import doip.tester.toolkit.event.DoipEventUdpDiagnosticPowerModeResponse;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusRequest;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+import doip.tester.toolkit.event.DoipEventUdpHeaderNegAck;
+import doip.tester.toolkit.event.DoipEventUdpVehicleAnnouncementMessage;
+import doip.tester.toolkit.event.DoipEventUdpVehicleIdentRequest;
+import doip.tester.toolkit.event.DoipEventUdpVehicleIdentRequestWithEid;
+import doip.tester.toolkit.event.DoipEventUdpVehicleIdentRequestWithVin;
+
+/**
+ * Decodes DoIP messages from raw bytes into the message classes of the
+ * DoIP library. It will be used by components which do not receive their
+ * messages through the receiver threads of the DoIP library, for example
+ * the NIO based load generator.
+ * <p>
+ * All functions expect a buffer which contains exactly the payload of one
+ * message (without the generic DoIP header). Byte order is big endian
+ * as defined in ISO 13400-2.
+ */
+public class DoipMessageDecoder {
+
+	/** Length of the generic DoIP header */
+	public static final int HEADER_LENGTH = 8;
+
+	public static final int TYPE_HEADER_NEG_ACK = 0x0000;
+	public static final int TYPE_VEHICLE_IDENT_REQUEST = 0x0001;
+	public static final int TYPE_VEHICLE_IDENT_REQUEST_WITH_EID = 0x0002;
+	public static final int TYPE_VEHICLE_IDENT_REQUEST_WITH_VIN = 0x0003;
+	public static final int TYPE_VEHICLE_ANNOUNCEMENT_MESSAGE = 0x0004;
+	public static final int TYPE_ROUTING_ACTIVATION_REQUEST = 0x0005;
+	public static final int TYPE_ROUTING_ACTIVATION_RESPONSE = 0x0006;
+	public static final int TYPE_ALIVE_CHECK_REQUEST = 0x0007;
+	public static final int TYPE_ALIVE_CHECK_RESPONSE = 0x0008;
+	public static final int TYPE_ENTITY_STATUS_REQUEST = 0x4001;
+	public static final int TYPE_ENTITY_STATUS_RESPONSE = 0x4002;
+	public static final int TYPE_DIAGNOSTIC_POWER_MODE_REQUEST = 0x4003;
+	public static final int TYPE_DIAGNOSTIC_POWER_MODE_RESPONSE = 0x4004;
+	public static final int TYPE_DIAGNOSTIC_MESSAGE = 0x8001;
+	public static final int TYPE_DIAGNOSTIC_MESSAGE_POS_ACK = 0x8002;
+	public static final int TYPE_DIAGNOSTIC_MESSAGE_NEG_ACK = 0x8003;
+
+	/**
+	 * Returns the payload type from a generic DoIP header which starts
+	 * at the given position of the buffer.
+	 */
+	public static int getPayloadType(ByteBuffer buffer, int offset) {
+		return buffer.getShort(offset + 2) & 0xFFFF;
+	}
+
+	/**
+	 * Returns the payload length from a generic DoIP header which starts
+	 * at the given position of the buffer.
+	 */
+	public static long getPayloadLength(ByteBuffer buffer, int offset) {
+		return buffer.getInt(offset + 4) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Returns true if the protocol version and the inverse protocol version
+	 * of a generic DoIP header which starts at the given position match.
+	 */
+	public static boolean isValidHeader(ByteBuffer buffer, int offset) {
+		int version = buffer.get(offset) & 0xFF;
+		int inverse = buffer.get(offset + 1) & 0xFF;
+		return (version ^ 0xFF) == inverse;
+	}
+
+	/**
+	 * Returns true if the payload type belongs to a message which can be
+	 * received on a DoIP TCP connection.
+	 */
+	public static boolean isTcpPayloadType(int payloadType) {
+		switch (payloadType) {
+		case TYPE_HEADER_NEG_ACK:
+		case TYPE_ROUTING_ACTIVATION_REQUEST:
+		case TYPE_ROUTING_ACTIVATION_RESPONSE:
+		case TYPE_ALIVE_CHECK_REQUEST:
+		case TYPE_ALIVE_CHECK_RESPONSE:
+		case TYPE_DIAGNOSTIC_MESSAGE:
+		case TYPE_DIAGNOSTIC_MESSAGE_POS_ACK:
+		case TYPE_DIAGNOSTIC_MESSAGE_NEG_ACK:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns true if the payload type belongs to a message which can be
+	 * received on the DoIP UDP port.
+	 */
+	public static boolean isUdpPayloadType(int payloadType) {
+		switch (payloadType) {
+		case TYPE_HEADER_NEG_ACK:
+		case TYPE_VEHICLE_IDENT_REQUEST:
+		case TYPE_VEHICLE_IDENT_REQUEST_WITH_EID:
+		case TYPE_VEHICLE_IDENT_REQUEST_WITH_VIN:
+		case TYPE_VEHICLE_ANNOUNCEMENT_MESSAGE:
+		case TYPE_ENTITY_STATUS_REQUEST:
+		case TYPE_ENTITY_STATUS_RESPONSE:
+		case TYPE_DIAGNOSTIC_POWER_MODE_REQUEST:
+		case TYPE_DIAGNOSTIC_POWER_MODE_RESPONSE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Decodes the payload of a DoIP TCP message.
+	 *
+	 * @param payloadType The payload type from the generic header
+	 * @param payload Buffer which contains the payload from its position
+	 *                to its limit. The position will be moved to the limit.
+	 * @return The message or null if the payload type is unknown or the
+	 *         payload is too short
+	 */
+	public static DoipTcpMessage decodeTcpMessage(int payloadType, ByteBuffer payload) {
+		int length = payload.remaining();
+		switch (payloadType) {
+		case TYPE_DIAGNOSTIC_MESSAGE:
+			if (length < 4) {
+				return null;
+			}
+			return new DoipTcpDiagnosticMessage(getAddress(payload), getAddress(payload), getRemaining(payload));
+		case TYPE_DIAGNOSTIC_MESSAGE_POS_ACK:
+			if (length < 5) {
+				return null;
+			}
+			return new DoipTcpDiagnosticMessagePosAck(getAddress(payload), getAddress(payload),
+					payload.get() & 0xFF, getRemaining(payload));
+		case TYPE_DIAGNOSTIC_MESSAGE_NEG_ACK:
+			if (length < 5) {
+				return null;
+			}
+			return new DoipTcpDiagnosticMessageNegAck(getAddress(payload), getAddress(payload),
+					payload.get() & 0xFF, getRemaining(payload));
+		case TYPE_ROUTING_ACTIVATION_REQUEST:
+			if (length < 7) {
+				return null;
+			}
+			int sourceAddress = getAddress(payload);
+			int activationType = payload.get() & 0xFF;
+			payload.getInt(); // reserved
+			return new DoipTcpRoutingActivationRequest(sourceAddress, activationType, getOemData(payload));
+		case TYPE_ROUTING_ACTIVATION_RESPONSE:
+			if (length < 9) {
+				return null;
+			}
+			int testerAddress = getAddress(payload);
+			int entityAddress = getAddress(payload);
+			int responseCode = payload.get() & 0xFF;
+			payload.getInt(); // reserved
+			return new DoipTcpRoutingActivationResponse(testerAddress, entityAddress, responseCode, getOemData(payload));
+		case TYPE_ALIVE_CHECK_REQUEST:
+			payload.position(payload.limit());
+			return new DoipTcpAliveCheckRequest();
+		case TYPE_ALIVE_CHECK_RESPONSE:
+			if (length < 2) {
+				return null;
+			}
+			return new DoipTcpAliveCheckResponse(getAddress(payload));
+		case TYPE_HEADER_NEG_ACK:
+			if (length < 1) {
+				return null;
+			}
+			return new DoipTcpHeaderNegAck(payload.get() & 0xFF);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes the payload of a DoIP UDP message.
+	 *
+	 * @param payloadType The payload type from the generic header
+	 * @param payload Buffer which contains the payload from its position
+	 *                to its limit. The position will be moved to the limit.
+	 * @return The message or null if the payload type is unknown or the
+	 *         payload is too short
+	 */
+	public static DoipUdpMessage decodeUdpMessage(int payloadType, ByteBuffer payload) {
+		int length = payload.remaining();
+		switch (payloadType) {
+		case TYPE_VEHICLE_IDENT_REQUEST:
+			return new DoipUdpVehicleIdentRequest();
+		case TYPE_VEHICLE_IDENT_REQUEST_WITH_EID:
+			if (length < 6) {
+				return null;
+			}
+			return new DoipUdpVehicleIdentRequestWithEid(getBytes(payload, 6));
+		case TYPE_VEHICLE_IDENT_REQUEST_WITH_VIN:
+			if (length < 17) {
+				return null;
+			}
+			return new DoipUdpVehicleIdentRequestWithVin(getBytes(payload, 17));
+		case TYPE_VEHICLE_ANNOUNCEMENT_MESSAGE:
+			if (length < 32) {
+				return null;
+			}
+			byte[] vin = getBytes(payload, 17);
+			int logicalAddress = getAddress(payload);
+			byte[] eid = getBytes(payload, 6);
+			byte[] gid = getBytes(payload, 6);
+			int furtherAction = payload.get() & 0xFF;
+			int syncStatus = payload.hasRemaining() ? payload.get() & 0xFF : -1;
+			return new DoipUdpVehicleAnnouncementMessage(vin, logicalAddress, eid, gid, furtherAction, syncStatus);
+		case TYPE_ENTITY_STATUS_REQUEST:
+			return new DoipUdpEntityStatusRequest();
+		case TYPE_ENTITY_STATUS_RESPONSE:
+			if (length < 3) {
+				return null;
+			}
+			int nodeType = payload.get() & 0xFF;
+			int maxSockets = payload.get() & 0xFF;
+			int currentSockets = payload.get() & 0xFF;
+			long maxDataSize = payload.remaining() >= 4 ? payload.getInt() & 0xFFFFFFFFL : -1;
+			return new DoipUdpEntityStatusResponse(nodeType, maxSockets, currentSockets, maxDataSize);
+		case TYPE_DIAGNOSTIC_POWER_MODE_REQUEST:
+			return new DoipUdpDiagnosticPowerModeRequest();
+		case TYPE_DIAGNOSTIC_POWER_MODE_RESPONSE:
+			if (length < 1) {
+				return null;
+			}
+			return new DoipUdpDiagnosticPowerModeResponse(payload.get() & 0xFF);
+		case TYPE_HEADER_NEG_ACK:
+			if (length < 1) {
+				return null;
+			}
+			return new DoipUdpHeaderNegAck(payload.get() & 0xFF);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the event which belongs to the given message. These are the
+	 * same events which will be created by the event collection classes.
+	 *
+	 * @param timestamp Timestamp of the event (System.nanoTime())
+	 * @param message The received message
+	 * @return The event or null if the class of the message is unknown
+	 */
+	public static DoipEvent createEvent(long timestamp, DoipMessage message) {
+		if (message instanceof DoipTcpDiagnosticMessage) {
+			return new DoipEventTcpDiagnosticMessage(timestamp, (DoipTcpDiagnosticMessage) message);
+		} else if (message instanceof DoipTcpDiagnosticMessagePosAck) {
+			return new DoipEventTcpDiagnosticMessagePosAck(timestamp, (DoipTcpDiagnosticMessagePosAck) message);
+		} else if (message instanceof DoipTcpDiagnosticMessageNegAck) {
+			return new DoipEventTcpDiagnosticMessageNegAck(timestamp, (DoipTcpDiagnosticMessageNegAck) message);
+		} else if (message instanceof DoipTcpRoutingActivationRequest) {
+			return new DoipEventTcpRoutingActivationRequest(timestamp, (DoipTcpRoutingActivationRequest) message);
+		} else if (message instanceof DoipTcpRoutingActivationResponse) {
+			return new DoipEventTcpRoutingActivationResponse(timestamp, (DoipTcpRoutingActivationResponse) message);
+		} else if (message instanceof DoipTcpAliveCheckRequest) {
+			return new DoipEventTcpAliveCheckRequest(timestamp, (DoipTcpAliveCheckRequest) message);
+		} else if (message instanceof DoipTcpAliveCheckResponse) {
+			return new DoipEventTcpAliveCheckResponse(timestamp, (DoipTcpAliveCheckResponse) message);
+		} else if (message instanceof DoipTcpHeaderNegAck) {
+			return new DoipEventTcpHeaderNegAck(timestamp, (DoipTcpHeaderNegAck) message);
+		} else if (message instanceof DoipUdpVehicleIdentRequest) {
+			return new DoipEventUdpVehicleIdentRequest(timestamp, (DoipUdpVehicleIdentRequest) message);
+		} else if (message instanceof DoipUdpVehicleIdentRequestWithEid) {
+			return new DoipEventUdpVehicleIdentRequestWithEid(timestamp, (DoipUdpVehicleIdentRequestWithEid) message);
+		} else if (message instanceof DoipUdpVehicleIdentRequestWithVin) {
+			return new DoipEventUdpVehicleIdentRequestWithVin(timestamp, (DoipUdpVehicleIdentRequestWithVin) message);
+		} else if (message instanceof DoipUdpVehicleAnnouncementMessage) {
+			return new DoipEventUdpVehicleAnnouncementMessage(timestamp, (DoipUdpVehicleAnnouncementMessage) message);
+		} else if (message instanceof DoipUdpEntityStatusRequest) {
+			return new DoipEventUdpEntityStatusRequest(timestamp, (DoipUdpEntityStatusRequest) message);
+		} else if (message instanceof DoipUdpEntityStatusResponse) {
+			return new DoipEventUdpEntityStatusResponse(timestamp, (DoipUdpEntityStatusResponse) message);
+		} else if (message instanceof DoipUdpDiagnosticPowerModeRequest) {
+			return new DoipEventUdpDiagnosticPowerModeRequest(timestamp, (DoipUdpDiagnosticPowerModeRequest) message);
+		} else if (message instanceof DoipUdpDiagnosticPowerModeResponse) {
+			return new DoipEventUdpDiagnosticPowerModeResponse(timestamp, (DoipUdpDiagnosticPowerModeResponse) message);
+		} else if (message instanceof DoipUdpHeaderNegAck) {
+			return new DoipEventUdpHeaderNegAck(timestamp, (DoipUdpHeaderNegAck) message);
+		}
+		return null;
+	}
+
+	private static int getAddress(ByteBuffer payload) {
+		return payload.getShort() & 0xFFFF;
+	}
+
+	private static long getOemData(ByteBuffer payload) {
+		return payload.remaining() >= 4 ? payload.getInt() & 0xFFFFFFFFL : -1;
+	}
+
+	private static byte[] getBytes(ByteBuffer payload, int length) {
+		byte[] data = new byte[length];
+		payload.get(data);
+		return data;
+	}
+
+	private static byte[] getRemaining(ByteBuffer payload) {
+		return getBytes(payload, payload.remaining());
+	}
+}
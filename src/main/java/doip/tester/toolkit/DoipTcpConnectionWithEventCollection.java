@@ -2,7 +2,9 @@ package doip.tester.toolkit;
 
 import java.net.Socket;
 import java.util.LinkedList;
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
 
 import doip.library.comm.DoipTcpConnection;
 import doip.library.comm.DoipTcpConnectionListener;
@@ -26,6 +28,7 @@ import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
 import doip.tester.toolkit.event.DoipEventTcpHeaderNegAck;
 import doip.tester.toolkit.event.DoipEventTcpRoutingActivationRequest;
 import doip.tester.toolkit.event.DoipEventTcpRoutingActivationResponse;
+import doip.tester.toolkit.journal.EventJournal;
 import doip.tester.toolkit.exception.DiagnosticServiceExecutionFailed;
 import doip.tester.toolkit.exception.RoutingActivationFailed;
 import org.apache.logging.log4j.Logger;
@@ -34,21 +37,86 @@ import org.apache.logging.log4j.LogManager;
  * Class for testing a DoIP TCP connection. 
  */
 //public class DoipTcpConnectionWithEventCollection extends DoipTcpConnection {
-public class DoipTcpConnectionWithEventCollection extends DoipTcpConnection implements DoipTcpConnectionListener {
+public class DoipTcpConnectionWithEventCollection extends DoipTcpConnectionWithThreadFactory implements DoipTcpConnectionListener {
 
 	/**
 	 * log4j logger
 	 */
 	private static Logger logger = LogManager.getLogger(DoipTcpConnectionWithEventCollection.class);
+
+	/**
+	 * Types of received messages which can be filtered. The closing of
+	 * the connection will always be stored as event.
+	 */
+	public enum EventType {
+		DIAGNOSTIC_MESSAGE,
+		DIAGNOSTIC_MESSAGE_POS_ACK,
+		DIAGNOSTIC_MESSAGE_NEG_ACK,
+		ROUTING_ACTIVATION_REQUEST,
+		ROUTING_ACTIVATION_RESPONSE,
+		ALIVE_CHECK_REQUEST,
+		ALIVE_CHECK_RESPONSE,
+		HEADER_NEG_ACK;
+
+		private final int bit = 1 << ordinal();
+	}
+
+	/**
+	 * Bit mask of the subscribed event types, one bit for every
+	 * {@link EventType}. All types are subscribed by default.
+	 */
+	private final AtomicInteger subscriptions = new AtomicInteger((1 << EventType.values().length) - 1);
+
+	/**
+	 * Number of received messages for every {@link EventType} which have
+	 * been filtered
+	 */
+	private final AtomicLongArray filteredCounts = new AtomicLongArray(EventType.values().length);
 	
 	/**
 	 * Event queue for incoming events.
 	 * Can be TCP messages or connection closed event.
 	 */
-	private volatile Vector<DoipEvent> events = new Vector<DoipEvent>();
+	private final EventQueue events;
+
+	/**
+	 * Index of incoming events by their type
+	 */
+	private final EventTypeIndex typeIndex;
+
+	/**
+	 * Will be set to true when the connection has been closed
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * Journal to which all events will be written, null if there is none
+	 */
+	private volatile EventJournal journal = null;
+
+	/**
+	 * Channel number of this connection in the journal
+	 */
+	private volatile int journalChannel = 0;
 
 	public DoipTcpConnectionWithEventCollection(String tcpReceiverThreadName, int maxByteArraySizeLogging) {
+		this(tcpReceiverThreadName, maxByteArraySizeLogging,
+				EventQueue.DEFAULT_CAPACITY, EventQueue.DEFAULT_OVERFLOW_POLICY);
+	}
+
+	/**
+	 * Constructor with parameters for the event queue.
+	 * 
+	 * @param tcpReceiverThreadName Name of the TCP receiver thread
+	 * @param maxByteArraySizeLogging Maximum size of byte arrays in log output
+	 * @param eventQueueCapacity Maximum number of events in the event queue
+	 * @param overflowPolicy Defines what happens if the event queue is full
+	 */
+	public DoipTcpConnectionWithEventCollection(String tcpReceiverThreadName, int maxByteArraySizeLogging,
+			int eventQueueCapacity, EventQueue.OverflowPolicy overflowPolicy) {
 		super(tcpReceiverThreadName, maxByteArraySizeLogging);
+		this.events = new EventQueue(eventQueueCapacity, overflowPolicy);
+		this.typeIndex = new EventTypeIndex(eventQueueCapacity);
 		this.addListener(this);
 	}
 
@@ -77,80 +145,166 @@ public class DoipTcpConnectionWithEventCollection extends DoipTcpConnection impl
 
 	@Override
 	public void onConnectionClosed(DoipTcpConnection doipTcpConnection) {
+		this.closed = true;
 		DoipEventConnectionClosed event = 
 				new DoipEventConnectionClosed(System.nanoTime());
-		this.events.add(event);
+		this.addEvent(event);
 	}
 
 	
 	@Override
 	public void onDoipTcpDiagnosticMessage(DoipTcpConnection doipTcpConnection,
 			DoipTcpDiagnosticMessage doipMessage) {
+		if (!accept(EventType.DIAGNOSTIC_MESSAGE)) {
+			return;
+		}
 		DoipEventTcpDiagnosticMessage event = 
 				new DoipEventTcpDiagnosticMessage(System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event);
 	}
 
 	@Override
 	public void onDoipTcpDiagnosticMessageNegAck(
 			DoipTcpConnection doipTcpConnection,
 			DoipTcpDiagnosticMessageNegAck doipMessage) {
+		if (!accept(EventType.DIAGNOSTIC_MESSAGE_NEG_ACK)) {
+			return;
+		}
 		DoipEventTcpDiagnosticMessageNegAck event =
 				new DoipEventTcpDiagnosticMessageNegAck(System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event);
 	}
 
 	@Override
 	public void onDoipTcpDiagnosticMessagePosAck(
 			DoipTcpConnection doipTcpConnection,
 			DoipTcpDiagnosticMessagePosAck doipMessage) {
+		if (!accept(EventType.DIAGNOSTIC_MESSAGE_POS_ACK)) {
+			return;
+		}
 		DoipEventTcpDiagnosticMessagePosAck event =
 				new DoipEventTcpDiagnosticMessagePosAck(System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event);
 	}
 
 	@Override
 	public void onDoipTcpRoutingActivationRequest(
 			DoipTcpConnection doipTcpConnection,
 			DoipTcpRoutingActivationRequest doipMessage) {
+		if (!accept(EventType.ROUTING_ACTIVATION_REQUEST)) {
+			return;
+		}
 		DoipEventTcpRoutingActivationRequest event =
 				new DoipEventTcpRoutingActivationRequest(System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event);
 	}
 
 	@Override
 	public void onDoipTcpRoutingActivationResponse(
 			DoipTcpConnection doipTcpConnection,
 			DoipTcpRoutingActivationResponse doipMessage) {
+		if (!accept(EventType.ROUTING_ACTIVATION_RESPONSE)) {
+			return;
+		}
 		DoipEventTcpRoutingActivationResponse event = 
 				new DoipEventTcpRoutingActivationResponse(System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event);
 	}
 
 	@Override
 	public void onDoipTcpAliveCheckRequest(DoipTcpConnection doipTcpConnection,
 			DoipTcpAliveCheckRequest doipMessage) {
+		if (!accept(EventType.ALIVE_CHECK_REQUEST)) {
+			return;
+		}
 		DoipEventTcpAliveCheckRequest event =
 				new DoipEventTcpAliveCheckRequest(System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event);
 	}
 
 	@Override
 	public void onDoipTcpAliveCheckResponse(DoipTcpConnection doipTcpConnection,
 			DoipTcpAliveCheckResponse doipMessage) {
+		if (!accept(EventType.ALIVE_CHECK_RESPONSE)) {
+			return;
+		}
 		DoipEventTcpAliveCheckResponse event =
 				new DoipEventTcpAliveCheckResponse(System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event);
 	}
 
 	@Override
 	public void onDoipTcpHeaderNegAck(DoipTcpConnection doipTcpConnection,
 			DoipTcpHeaderNegAck doipMessage) {
+		if (!accept(EventType.HEADER_NEG_ACK)) {
+			return;
+		}
 		DoipEventTcpHeaderNegAck event =
 				new DoipEventTcpHeaderNegAck(System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event);
 	}
 	
+	/**
+	 * Checks the subscription for a received message before an event
+	 * will be created. If the type has not been subscribed the message
+	 * will only be counted.
+	 */
+	private boolean accept(EventType type) {
+		if ((subscriptions.get() & type.bit) != 0) {
+			return true;
+		}
+		filteredCounts.incrementAndGet(type.ordinal());
+		return false;
+	}
+
+	/**
+	 * Stores events of the given type from now on. All types are
+	 * subscribed by default.
+	 */
+	public void subscribe(EventType type) {
+		subscriptions.getAndUpdate(mask -> mask | type.bit);
+	}
+
+	/**
+	 * Received messages of the given type will only be counted from now
+	 * on. No event will be created, so they can neither be read from the
+	 * event queue nor be written to the journal, the packet capture or the
+	 * timing analyzer. Functions which wait for
+	 * events of this type will not get them, for example
+	 * {@link TesterTcpConnection#executeDiagnosticServicePosAck(byte[])}
+	 * needs the positive acknowledge. This can be used to ignore alive
+	 * checks or acknowledges in load tests.
+	 */
+	public void unsubscribe(EventType type) {
+		subscriptions.getAndUpdate(mask -> mask & ~type.bit);
+	}
+
+	/**
+	 * Subscribes all event types again, which is the default.
+	 */
+	public void subscribeAll() {
+		subscriptions.set((1 << EventType.values().length) - 1);
+	}
+
+	public boolean isSubscribed(EventType type) {
+		return (subscriptions.get() & type.bit) != 0;
+	}
+
+	/**
+	 * Returns the number of received messages of the given type which
+	 * have been filtered because the type was not subscribed.
+	 */
+	public long getFilteredCount(EventType type) {
+		return filteredCounts.get(type.ordinal());
+	}
+
+	/**
+	 * Returns true if the connection has been closed.
+	 */
+	public boolean isClosed() {
+		return this.closed;
+	}
+
 	public int getEventCount() {
 		return this.events.size();
 	}
@@ -159,8 +313,113 @@ public class DoipTcpConnectionWithEventCollection extends DoipTcpConnection impl
 		return this.events.get(index);
 	}
 
+	/**
+	 * Waits for the next event of the given type. Events of other types
+	 * will not be considered. Every event will only be returned once by
+	 * this function.
+	 * 
+	 * @param type The concrete class of the expected event
+	 * @param timeoutms Timeout in milliseconds
+	 * @return The event or null if no event of the given type has been
+	 *         received within the timeout
+	 * @throws InterruptedException
+	 */
+	public <T extends DoipEvent> T waitForEvent(Class<T> type, long timeoutms) throws InterruptedException {
+		return this.typeIndex.waitForEvent(type, timeoutms);
+	}
+
+	/**
+	 * Waits for the next event of the given type which matches the
+	 * given predicate. Events of this type which do not match will be
+	 * skipped.
+	 * 
+	 * @param type The concrete class of the expected event
+	 * @param predicate Condition which the event shall fulfill
+	 * @param timeoutms Timeout in milliseconds
+	 * @return The event or null if no matching event has been received
+	 *         within the timeout
+	 * @throws InterruptedException
+	 */
+	public <T extends DoipEvent> T waitForEvent(Class<T> type, Predicate<? super T> predicate, long timeoutms)
+			throws InterruptedException {
+		return this.typeIndex.waitForEvent(type, predicate, timeoutms);
+	}
+
+	private void addEvent(DoipEvent event) {
+		this.events.add(event);
+		this.typeIndex.add(event);
+		EventJournal currentJournal = this.journal;
+		if (currentJournal != null) {
+			currentJournal.append(journalChannel, event);
+		}
+		this.onEvent(event);
+	}
+
+	/**
+	 * Sets the journal to which all events received by this connection
+	 * will be written from now on.
+	 *
+	 * @param journal The journal or null to stop writing events
+	 * @param channel Number which identifies this connection in the journal
+	 */
+	public void setEventJournal(EventJournal journal, int channel) {
+		this.journalChannel = channel;
+		this.journal = journal;
+	}
+
+	/**
+	 * Will be called by the receiver thread for every event after it has
+	 * been added to the event queue. Subclasses can override this function
+	 * to evaluate events without reading them from the event queue.
+	 * The function must not block.
+	 */
+	protected void onEvent(DoipEvent event) {
+	}
+
+	/**
+	 * Creates a new cursor which reads all events which will be received
+	 * after this call. Every consumer can have its own cursor, the events
+	 * will not be removed from the event queue when they have been read.
+	 */
+	public EventCursor createEventCursor() {
+		return this.events.createCursor();
+	}
+
+	/**
+	 * Creates a new cursor which reads all events which will be received
+	 * after this call.
+	 * 
+	 * @param gating If true and the overflow policy of the event queue is
+	 *               BLOCK then the receiver thread will wait until this cursor
+	 *               has read the oldest event before it will be overwritten.
+	 */
+	public EventCursor createEventCursor(boolean gating) {
+		return this.events.createCursor(gating);
+	}
+
 	public void clearEvents() {
 		logger.info("Clear event queue");
 		this.events.clear();
+		this.typeIndex.skipAll();
+	}
+
+	public EventQueue.OverflowPolicy getEventQueueOverflowPolicy() {
+		return this.events.getOverflowPolicy();
+	}
+
+	/**
+	 * Returns the number of events which have been lost because the
+	 * event queue was full.
+	 */
+	public long getEventOverflowCount() {
+		return this.events.getOverflowCount();
+	}
+
+	/**
+	 * Returns the number of times the receiver thread had to wait because
+	 * the event queue was full (only for overflow policy BLOCK).
+	 */
+	public long getEventBlockCount() {
+		return this.events.getBlockCount();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,410 @@
+package doip.tester.toolkit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.library.comm.DoipTcpConnection;
+import doip.library.comm.DoipTcpConnectionListener;
+import doip.library.message.DoipMessage;
+import doip.library.message.DoipTcpHeaderNegAck;
+import doip.library.message.DoipTcpMessage;
+import doip.library.util.Conversion;
+import doip.library.util.Helper;
+
+/**
+ * DoIP TCP connection which reads from its socket with a thread of a
+ * {@link TesterThreadFactory}. The receiver thread of the DoIP library
+ * can not be created by a thread factory, so this class does the
+ * receiving and sending itself and only keeps the type and the listener
+ * interface of the library. Depending on the thread mode of the factory
+ * the receiver thread is a platform thread or a virtual thread.
+ * <p>
+ * Received messages will be decoded by a {@link DoipTcpStreamDecoder} and
+ * passed to all listeners in the receiver thread. Subclasses get the
+ * received bytes before they will be decoded by
+ * {@link #onDataReceived(byte[], int, int)}. Errors in the generic header
+ * will be answered with a negative acknowledge like in the DoIP library:
+ * an incorrect pattern closes the connection, an unknown payload type,
+ * a too large message or an invalid payload length only discards the
+ * message.
+ */
+public class DoipTcpConnectionWithThreadFactory extends DoipTcpConnection {
+
+	private static Logger logger = LogManager.getLogger(DoipTcpConnectionWithThreadFactory.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	/**
+	 * Maximum payload length which will be accepted
+	 */
+	public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 0x1000000;
+
+	/**
+	 * Factory which will be used if no other factory has been set
+	 */
+	private static final TesterThreadFactory DEFAULT_THREAD_FACTORY =
+			new TesterThreadFactory("TCP-RECV", TesterThreadFactory.ThreadMode.PLATFORM, true);
+
+	/**
+	 * Maximum time in milliseconds which {@link #stop()} waits for the
+	 * receiver thread before it will be interrupted
+	 */
+	private static final long STOP_TIMEOUT = 1000;
+
+	/**
+	 * Name of the connection, it will also be the name of the receiver thread
+	 */
+	private final String name;
+
+	/**
+	 * Maximum number of bytes of a message which will be logged
+	 */
+	private final int maxByteArraySizeLogging;
+
+	private final CopyOnWriteArrayList<DoipTcpConnectionListener> listeners =
+			new CopyOnWriteArrayList<DoipTcpConnectionListener>();
+
+	/**
+	 * Lock which serializes all writes to the socket
+	 */
+	private final Object sendLock = new Object();
+
+	private volatile TesterThreadFactory threadFactory = DEFAULT_THREAD_FACTORY;
+
+	private volatile Socket socket = null;
+
+	/**
+	 * Output stream of the socket, access is guarded by {@link #sendLock}
+	 */
+	private OutputStream output = null;
+
+	private volatile Thread thread = null;
+
+	/**
+	 * Will be true after {@link #stop()} has been called
+	 */
+	private volatile boolean stopped = false;
+
+	/**
+	 * Will be true after the listeners have been informed that the
+	 * connection has been closed
+	 */
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	public DoipTcpConnectionWithThreadFactory(String tcpReceiverThreadName, int maxByteArraySizeLogging) {
+		super(tcpReceiverThreadName, maxByteArraySizeLogging);
+		this.name = tcpReceiverThreadName;
+		this.maxByteArraySizeLogging = maxByteArraySizeLogging;
+	}
+
+	/**
+	 * Sets the factory which creates the receiver thread. It must be set
+	 * before the connection will be started.
+	 */
+	public void setThreadFactory(TesterThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	public TesterThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Returns the receiver thread, null if the connection has not been
+	 * started or if a subclass does the I/O without a receiver thread.
+	 */
+	public Thread getReceiverThread() {
+		return thread;
+	}
+
+	@Override
+	public void addListener(DoipTcpConnectionListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(DoipTcpConnectionListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts the receiver thread for the given socket.
+	 */
+	@Override
+	public void start(Socket socket) {
+		try {
+			logger.trace(enter, ">>> public void start(Socket socket)");
+			this.socket = socket;
+			try {
+				synchronized (sendLock) {
+					this.output = socket.getOutputStream();
+				}
+			} catch (IOException e) {
+				logger.error("Connection " + name + ": Unexpected " + e.getClass().getName()
+						+ " while getting output stream: " + e.getMessage());
+			}
+			Thread receiver = threadFactory.newThread(name, this::receive);
+			this.thread = receiver;
+			receiver.start();
+		} finally {
+			logger.trace(exit, "<<< public void start(Socket socket)");
+		}
+	}
+
+	/**
+	 * Closes the socket and waits until the receiver thread has informed
+	 * the listeners. If the receiver thread is still blocked after
+	 * a second, for example by a full event queue, it will be interrupted.
+	 */
+	@Override
+	public void stop() {
+		try {
+			logger.trace(enter, ">>> public void stop()");
+			this.stopped = true;
+			closeSocket();
+			Thread receiver = this.thread;
+			if (receiver == null || receiver == Thread.currentThread()) {
+				return;
+			}
+			try {
+				receiver.join(STOP_TIMEOUT);
+				if (receiver.isAlive()) {
+					logger.warn("Connection " + name + ": Receiver thread did not terminate, it will be interrupted");
+					receiver.interrupt();
+					receiver.join();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			logger.trace(exit, "<<< public void stop()");
+		}
+	}
+
+	@Override
+	public void send(DoipMessage message) {
+		logger.info("Connection " + name + ": Send " + message.getMessageName());
+		send(message.getMessage());
+	}
+
+	/**
+	 * Sends an encoded DoIP message. An IOException will only be logged,
+	 * the receiver thread will detect the closed connection. Subclasses
+	 * which need to know if the message has been sent use
+	 * {@link #write(byte[])}.
+	 */
+	@Override
+	public void send(byte[] data) {
+		try {
+			write(data);
+		} catch (IOException e) {
+			logger.error("Connection " + name + ": Unexpected " + e.getClass().getName()
+					+ " while sending message: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes an encoded DoIP message to the socket.
+	 *
+	 * @throws IOException If the connection has not been started or
+	 *                     writing to the socket failed
+	 */
+	protected void write(byte[] data) throws IOException {
+		synchronized (sendLock) {
+			if (output == null) {
+				throw new IOException("Connection " + name + " has not been started");
+			}
+			logSend(data, data.length);
+			output.write(data);
+		}
+	}
+
+	/**
+	 * Sends the negative acknowledge 'incorrect pattern format' before the
+	 * connection will be closed because of an invalid header.
+	 */
+	@Override
+	public void onHeaderIncorrectPatternFormat() {
+		send(new DoipTcpHeaderNegAck(DoipTcpStreamDecoder.NACK_INCORRECT_PATTERN_FORMAT));
+	}
+
+	/**
+	 * Sends the negative acknowledge 'unknown payload type'. The message
+	 * has been discarded, the connection stays open.
+	 */
+	public void onHeaderUnknownPayloadType() {
+		send(new DoipTcpHeaderNegAck(DoipTcpStreamDecoder.NACK_UNKNOWN_PAYLOAD_TYPE));
+	}
+
+	/**
+	 * Sends the negative acknowledge 'message too large'. The message
+	 * has been discarded, the connection stays open.
+	 */
+	public void onHeaderMessageTooLarge() {
+		send(new DoipTcpHeaderNegAck(DoipTcpStreamDecoder.NACK_MESSAGE_TOO_LARGE));
+	}
+
+	/**
+	 * Sends the negative acknowledge 'invalid payload length'. The message
+	 * has been discarded, the connection stays open.
+	 */
+	public void onHeaderInvalidPayloadLength() {
+		send(new DoipTcpHeaderNegAck(DoipTcpStreamDecoder.NACK_INVALID_PAYLOAD_LENGTH));
+	}
+
+	/**
+	 * Will be called for a message which has been discarded by the
+	 * {@link DoipTcpStreamDecoder}. Calls the function which belongs to
+	 * the negative acknowledge code.
+	 */
+	protected void onInvalidMessage(int code) {
+		switch (code) {
+		case DoipTcpStreamDecoder.NACK_UNKNOWN_PAYLOAD_TYPE:
+			onHeaderUnknownPayloadType();
+			break;
+		case DoipTcpStreamDecoder.NACK_MESSAGE_TOO_LARGE:
+			onHeaderMessageTooLarge();
+			break;
+		case DoipTcpStreamDecoder.NACK_INVALID_PAYLOAD_LENGTH:
+			onHeaderInvalidPayloadLength();
+			break;
+		default:
+			logger.warn("Connection " + name + ": Unexpected negative acknowledge code " + code);
+		}
+	}
+
+	/**
+	 * Will be called by the receiver thread with the bytes of every read
+	 * from the socket before they will be decoded. The bytes are exactly
+	 * what has been received, a read can contain parts of a message or
+	 * several messages. The array will be reused for the next read.
+	 * The default implementation does nothing.
+	 */
+	protected void onDataReceived(byte[] data, int offset, int length) {
+	}
+
+	/**
+	 * Returns the lock which serializes all writes to the socket.
+	 * Subclasses which write to the channel of the socket directly must
+	 * hold this lock.
+	 */
+	protected Object getSendLock() {
+		return sendLock;
+	}
+
+	/**
+	 * Logs a message which will be sent. Must be called by subclasses which
+	 * write to the channel of the socket directly.
+	 *
+	 * @param data Encoded message or only its first bytes
+	 * @param length Total length of the message
+	 */
+	protected void logSend(byte[] data, int length) {
+		if (logger.isDebugEnabled()) {
+			byte[] logged = data.length > maxByteArraySizeLogging ? Arrays.copyOf(data, maxByteArraySizeLogging) : data;
+			logger.debug("Connection " + name + ": Send " + length + " bytes: "
+					+ Conversion.byteArrayToHexString(logged) + (logged.length < length ? " ..." : ""));
+		}
+	}
+
+	/**
+	 * Logs a message which will be sent from several buffers with a
+	 * gathering write. The bytes from the position to the limit of the
+	 * buffers will be logged, the positions will not be changed.
+	 */
+	protected void logSend(ByteBuffer... buffers) {
+		if (!logger.isDebugEnabled()) {
+			return;
+		}
+		int length = 0;
+		for (ByteBuffer buffer : buffers) {
+			length += buffer.remaining();
+		}
+		byte[] logged = new byte[Math.min(length, maxByteArraySizeLogging)];
+		int offset = 0;
+		for (ByteBuffer buffer : buffers) {
+			int count = Math.min(buffer.remaining(), logged.length - offset);
+			buffer.duplicate().get(logged, offset, count);
+			offset += count;
+		}
+		logSend(logged, length);
+	}
+
+	private void receive() {
+		Socket current = this.socket;
+		DoipTcpStreamDecoder decoder = new DoipTcpStreamDecoder(name, DEFAULT_MAX_PAYLOAD_LENGTH);
+		DoipTcpStreamDecoder.Handler handler = new DoipTcpStreamDecoder.Handler() {
+			@Override
+			public boolean onMessage(int payloadType, DoipTcpMessage message) {
+				return dispatch(message);
+			}
+
+			@Override
+			public boolean onInvalidMessage(int code, int payloadType, long payloadLength) {
+				DoipTcpConnectionWithThreadFactory.this.onInvalidMessage(code);
+				return !stopped;
+			}
+		};
+		try {
+			InputStream input = current.getInputStream();
+			while (!stopped) {
+				ByteBuffer buffer = decoder.getBuffer();
+				int count = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				if (count < 0) {
+					logger.info("Connection " + name + ": Connection has been closed by peer");
+					break;
+				}
+				onDataReceived(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+				buffer.position(buffer.position() + count);
+				if (!decoder.decode(handler)) {
+					onHeaderIncorrectPatternFormat();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			if (!stopped) {
+				logger.info("Connection " + name + ": " + e.getClass().getName() + " while receiving: " + e.getMessage());
+			}
+		} catch (RuntimeException e) {
+			logger.error("Connection " + name + ": Unexpected " + e.getClass().getName() + " in receiver thread");
+			logger.error(Helper.getExceptionAsString(e));
+		} finally {
+			closeSocket();
+			if (closed.compareAndSet(false, true)) {
+				for (DoipTcpConnectionListener listener : listeners) {
+					listener.onConnectionClosed(this);
+				}
+			}
+		}
+	}
+
+	private boolean dispatch(DoipTcpMessage message) {
+		for (DoipTcpConnectionListener listener : listeners) {
+			DoipTcpStreamDecoder.dispatch(this, listener, message);
+		}
+		return !stopped;
+	}
+
+	private void closeSocket() {
+		Socket current = this.socket;
+		if (current == null) {
+			return;
+		}
+		try {
+			current.close();
+		} catch (IOException e) {
+			logger.warn("Connection " + name + ": " + e.getClass().getName() + " while closing socket: " + e.getMessage());
+		}
+	}
+}
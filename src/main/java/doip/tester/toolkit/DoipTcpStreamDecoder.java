@@ -0,0 +1,257 @@
+package doip.tester.toolkit;
+
+import java.nio.ByteBuffer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.comm.DoipTcpConnection;
+import doip.library.comm.DoipTcpConnectionListener;
+import doip.library.message.DoipTcpAliveCheckRequest;
+import doip.library.message.DoipTcpAliveCheckResponse;
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessageNegAck;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.library.message.DoipTcpHeaderNegAck;
+import doip.library.message.DoipTcpMessage;
+import doip.library.message.DoipTcpRoutingActivationRequest;
+import doip.library.message.DoipTcpRoutingActivationResponse;
+
+/**
+ * Splits the byte stream of a DoIP TCP connection into messages and
+ * decodes them with the {@link DoipMessageDecoder}. It will be used by
+ * all connections of the toolkit which read from their socket themselves
+ * instead of using the receiver thread of the DoIP library, regardless
+ * if they read with a blocking thread or with a selector.
+ * <p>
+ * The decoder is not thread safe, it shall only be used by the thread
+ * which reads from the socket.
+ */
+public class DoipTcpStreamDecoder {
+
+	private static Logger logger = LogManager.getLogger(DoipTcpStreamDecoder.class);
+
+	/**
+	 * Initial size of the receive buffer. It will grow if a larger
+	 * message will be received.
+	 */
+	public static final int INITIAL_BUFFER_SIZE = 1024;
+
+	/**
+	 * Negative acknowledge code 'incorrect pattern format' of the generic
+	 * header. The connection shall be closed.
+	 */
+	public static final int NACK_INCORRECT_PATTERN_FORMAT = 0x00;
+
+	/**
+	 * Negative acknowledge code 'unknown payload type', the message will
+	 * be discarded.
+	 */
+	public static final int NACK_UNKNOWN_PAYLOAD_TYPE = 0x01;
+
+	/**
+	 * Negative acknowledge code 'message too large', the message will be
+	 * discarded.
+	 */
+	public static final int NACK_MESSAGE_TOO_LARGE = 0x02;
+
+	/**
+	 * Negative acknowledge code 'invalid payload length', the message will
+	 * be discarded.
+	 */
+	public static final int NACK_INVALID_PAYLOAD_LENGTH = 0x04;
+
+	/**
+	 * Will be called for every complete message and for every message
+	 * which has been discarded.
+	 */
+	public interface Handler {
+
+		/**
+		 * @param payloadType Payload type from the generic header
+		 * @param message The decoded message
+		 * @return False if no more messages shall be decoded because
+		 *         the connection has been closed
+		 */
+		boolean onMessage(int payloadType, DoipTcpMessage message);
+
+		/**
+		 * Will be called for a message which has been discarded because
+		 * of an error in its generic header. The connection stays open,
+		 * the decoder continues with the next message.
+		 *
+		 * @param code The code of the negative acknowledge which shall
+		 *             be sent: {@link #NACK_UNKNOWN_PAYLOAD_TYPE},
+		 *             {@link #NACK_MESSAGE_TOO_LARGE} or
+		 *             {@link #NACK_INVALID_PAYLOAD_LENGTH}
+		 * @param payloadType Payload type from the generic header
+		 * @param payloadLength Payload length from the generic header
+		 * @return False if no more messages shall be decoded because
+		 *         the connection has been closed
+		 */
+		boolean onInvalidMessage(int code, int payloadType, long payloadLength);
+	}
+
+	private final String name;
+
+	/**
+	 * Maximum payload length which will be accepted
+	 */
+	private final int maxPayloadLength;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+	/**
+	 * Number of bytes of a discarded payload which have not been received
+	 * yet. They will be skipped when they arrive.
+	 */
+	private long discardLength = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name Name of the connection for log messages
+	 * @param maxPayloadLength Maximum payload length which will be accepted.
+	 *                         A message with a larger payload will be
+	 *                         discarded with the negative acknowledge
+	 *                         'message too large'.
+	 */
+	public DoipTcpStreamDecoder(String name, int maxPayloadLength) {
+		this.name = name;
+		this.maxPayloadLength = maxPayloadLength;
+	}
+
+	/**
+	 * Returns the buffer into which the received data shall be written.
+	 * The data which has not been decoded yet is in front of the position,
+	 * new data shall be written from the position up to the limit. The
+	 * buffer is a heap buffer, so it can also be filled from an
+	 * InputStream by its backing array.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Decodes all complete messages in the buffer and passes them to the
+	 * handler. An incomplete message stays in the buffer until the rest
+	 * has been received. If the buffer is too small for the message it
+	 * will be enlarged.
+	 * <p>
+	 * The generic header will be checked in the order of ISO 13400-2.
+	 * A message with an unknown payload type or a payload which is larger
+	 * than the maximum will be reported to
+	 * {@link Handler#onInvalidMessage(int, int, long)} and its payload will
+	 * be skipped without buffering it. A known message whose payload is
+	 * too short for its type will be reported with
+	 * {@link #NACK_INVALID_PAYLOAD_LENGTH}.
+	 *
+	 * @return False if a header with an incorrect pattern has been received.
+	 *         The negative acknowledge {@link #NACK_INCORRECT_PATTERN_FORMAT}
+	 *         shall be sent and the connection shall be closed in this case
+	 *         because the start of the next message can not be found anymore.
+	 */
+	public boolean decode(Handler handler) {
+		buffer.flip();
+		int required = 0;
+		while (true) {
+			if (discardLength > 0) {
+				int skipped = (int) Math.min(discardLength, buffer.remaining());
+				buffer.position(buffer.position() + skipped);
+				discardLength -= skipped;
+				if (discardLength > 0) {
+					break;
+				}
+			}
+			if (buffer.remaining() < DoipMessageDecoder.HEADER_LENGTH) {
+				break;
+			}
+			int position = buffer.position();
+			if (!DoipMessageDecoder.isValidHeader(buffer, position)) {
+				logger.warn("Connection " + name + ": Received invalid DoIP header");
+				return false;
+			}
+			int payloadType = DoipMessageDecoder.getPayloadType(buffer, position);
+			long payloadLength = DoipMessageDecoder.getPayloadLength(buffer, position);
+			int code = -1;
+			if (!DoipMessageDecoder.isTcpPayloadType(payloadType)) {
+				logger.warn("Connection " + name + ": Received message with unknown payload type 0x"
+						+ Integer.toHexString(payloadType));
+				code = NACK_UNKNOWN_PAYLOAD_TYPE;
+			} else if (payloadLength > maxPayloadLength) {
+				logger.warn("Connection " + name + ": Received payload length " + payloadLength
+						+ " exceeds maximum of " + maxPayloadLength);
+				code = NACK_MESSAGE_TOO_LARGE;
+			}
+			if (code >= 0) {
+				buffer.position(position + DoipMessageDecoder.HEADER_LENGTH);
+				discardLength = payloadLength;
+				if (!handler.onInvalidMessage(code, payloadType, payloadLength)) {
+					buffer.compact();
+					return true;
+				}
+				continue;
+			}
+			int messageLength = DoipMessageDecoder.HEADER_LENGTH + (int) payloadLength;
+			if (buffer.remaining() < messageLength) {
+				required = messageLength;
+				break;
+			}
+			ByteBuffer payload = buffer.duplicate();
+			payload.position(position + DoipMessageDecoder.HEADER_LENGTH);
+			payload.limit(position + messageLength);
+			buffer.position(position + messageLength);
+			DoipTcpMessage message = DoipMessageDecoder.decodeTcpMessage(payloadType, payload);
+			boolean proceed;
+			if (message == null) {
+				logger.warn("Connection " + name + ": Received payload length " + payloadLength
+						+ " is invalid for payload type 0x" + Integer.toHexString(payloadType));
+				proceed = handler.onInvalidMessage(NACK_INVALID_PAYLOAD_LENGTH, payloadType, payloadLength);
+			} else {
+				proceed = handler.onMessage(payloadType, message);
+			}
+			if (!proceed) {
+				buffer.compact();
+				return true;
+			}
+		}
+		buffer.compact();
+		if (required > buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(required);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		return true;
+	}
+
+	/**
+	 * Passes a decoded message to the function of the listener which
+	 * belongs to its type.
+	 *
+	 * @return False if the message has an unknown type
+	 */
+	public static boolean dispatch(DoipTcpConnection connection, DoipTcpConnectionListener listener,
+			DoipTcpMessage message) {
+		if (message instanceof DoipTcpDiagnosticMessage) {
+			listener.onDoipTcpDiagnosticMessage(connection, (DoipTcpDiagnosticMessage) message);
+		} else if (message instanceof DoipTcpDiagnosticMessagePosAck) {
+			listener.onDoipTcpDiagnosticMessagePosAck(connection, (DoipTcpDiagnosticMessagePosAck) message);
+		} else if (message instanceof DoipTcpDiagnosticMessageNegAck) {
+			listener.onDoipTcpDiagnosticMessageNegAck(connection, (DoipTcpDiagnosticMessageNegAck) message);
+		} else if (message instanceof DoipTcpRoutingActivationRequest) {
+			listener.onDoipTcpRoutingActivationRequest(connection, (DoipTcpRoutingActivationRequest) message);
+		} else if (message instanceof DoipTcpRoutingActivationResponse) {
+			listener.onDoipTcpRoutingActivationResponse(connection, (DoipTcpRoutingActivationResponse) message);
+		} else if (message instanceof DoipTcpAliveCheckRequest) {
+			listener.onDoipTcpAliveCheckRequest(connection, (DoipTcpAliveCheckRequest) message);
+		} else if (message instanceof DoipTcpAliveCheckResponse) {
+			listener.onDoipTcpAliveCheckResponse(connection, (DoipTcpAliveCheckResponse) message);
+		} else if (message instanceof DoipTcpHeaderNegAck) {
+			listener.onDoipTcpHeaderNegAck(connection, (DoipTcpHeaderNegAck) message);
+		} else {
+			return false;
+		}
+		return true;
+	}
+}
@@ -5,9 +5,8 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.List;
-import java.util.Vector;
+import java.util.function.Predicate;
 
-import doip.library.comm.DoipUdpMessageHandler;
 import doip.library.comm.DoipUdpMessageHandlerListener;
 import doip.library.message.DoipUdpDiagnosticPowerModeRequest;
 import doip.library.message.DoipUdpDiagnosticPowerModeResponse;
@@ -30,13 +29,14 @@ import doip.tester.toolkit.event.DoipEventUdpVehicleAnnouncementMessage;
 import doip.tester.toolkit.event.DoipEventUdpVehicleIdentRequest;
 import doip.tester.toolkit.event.DoipEventUdpVehicleIdentRequestWithEid;
 import doip.tester.toolkit.event.DoipEventUdpVehicleIdentRequestWithVin;
+import doip.tester.toolkit.journal.EventJournal;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 /**
  * Implements features to perform tests on a DoipUdpMessageHandler.
  */
-public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHandler
+public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHandlerWithThreadFactory
 		implements DoipUdpMessageHandlerListener {
 
 	/**
@@ -46,16 +46,36 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			.getLogger(DoipUdpMessageHandlerWithEventCollection.class);
 
 	/**
-	 * List where the incoming events will be stored.
+	 * Queue where the incoming events will be stored.
 	 * 
 	 */
-	private volatile Vector<DoipEvent> events = new Vector<DoipEvent>();
+	private final EventQueue events;
+
+	/**
+	 * Index of incoming events by their type
+	 */
+	private final EventTypeIndex typeIndex;
+
+	/**
+	 * Index of incoming events by their sender
+	 */
+	private final UdpEventIndex senderIndex;
 
 	/**
 	 * Configuration for the tests
 	 */
 	private TestConfig config = null;
 
+	/**
+	 * Journal to which all events will be written, null if there is none
+	 */
+	private volatile EventJournal journal = null;
+
+	/**
+	 * Channel number of this module in the journal
+	 */
+	private volatile int journalChannel = 0;
+
 //-----------------------------------------------------------------------------
 // Constructors
 //-----------------------------------------------------------------------------
@@ -66,8 +86,17 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 	 * @param config The test configuration
 	 */
 	public DoipUdpMessageHandlerWithEventCollection(TestConfig config) {
-		super("UDP-RECV", null);
+		super("UDP-RECV");
 		this.config = config;
+		if (config != null) {
+			this.events = new EventQueue(config.getEventQueueCapacity(), config.getEventQueueOverflowPolicy());
+			this.typeIndex = new EventTypeIndex(config.getEventQueueCapacity());
+			this.senderIndex = new UdpEventIndex(config.getUdpIndexTtl(), config.getEventQueueCapacity());
+		} else {
+			this.events = new EventQueue();
+			this.typeIndex = new EventTypeIndex(EventQueue.DEFAULT_CAPACITY);
+			this.senderIndex = new UdpEventIndex(UdpEventIndex.DEFAULT_TTL, EventQueue.DEFAULT_CAPACITY);
+		}
 	}
 	
 //-----------------------------------------------------------------------------	
@@ -101,14 +130,142 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 	}
 
 
+	/**
+	 * Waits for the next event of the given type. Events of other types
+	 * will not be considered. Every event will only be returned once by
+	 * this function.
+	 * 
+	 * @param type The concrete class of the expected event
+	 * @param timeoutms Timeout in milliseconds
+	 * @return The event or null if no event of the given type has been
+	 *         received within the timeout
+	 * @throws InterruptedException
+	 */
+	public <T extends DoipEvent> T waitForEvent(Class<T> type, long timeoutms) throws InterruptedException {
+		return this.typeIndex.waitForEvent(type, timeoutms);
+	}
+
+	/**
+	 * Waits for the next event of the given type which matches the
+	 * given predicate. Events of this type which do not match will be
+	 * skipped.
+	 * 
+	 * @param type The concrete class of the expected event
+	 * @param predicate Condition which the event shall fulfill
+	 * @param timeoutms Timeout in milliseconds
+	 * @return The event or null if no matching event has been received
+	 *         within the timeout
+	 * @throws InterruptedException
+	 */
+	public <T extends DoipEvent> T waitForEvent(Class<T> type, Predicate<? super T> predicate, long timeoutms)
+			throws InterruptedException {
+		return this.typeIndex.waitForEvent(type, predicate, timeoutms);
+	}
+
+	private void addEvent(DoipEvent event, DatagramPacket packet) {
+		this.onPacket(event.getTimestamp(), packet);
+		this.events.add(event);
+		this.typeIndex.add(event);
+		this.senderIndex.add(event, packet.getAddress(), packet.getPort());
+		EventJournal currentJournal = this.journal;
+		if (currentJournal != null) {
+			currentJournal.append(journalChannel, event);
+		}
+		this.onEvent(event);
+	}
+
+	/**
+	 * Returns the index of the received events by their sender. It also
+	 * contains the latest vehicle announcement of every DoIP entity.
+	 */
+	public UdpEventIndex getEventIndex() {
+		return this.senderIndex;
+	}
+
+	/**
+	 * Sets the journal to which all events received by this module
+	 * will be written from now on.
+	 *
+	 * @param journal The journal or null to stop writing events
+	 * @param channel Number which identifies this module in the journal
+	 */
+	public void setEventJournal(EventJournal journal, int channel) {
+		this.journalChannel = channel;
+		this.journal = journal;
+	}
+
+	/**
+	 * Will be called by the receiver thread for every event after it has
+	 * been added to the event queue. Subclasses can override this function
+	 * to evaluate events without reading them from the event queue.
+	 * The function must not block.
+	 */
+	protected void onEvent(DoipEvent event) {
+	}
+
+	/**
+	 * Will be called by the receiver thread for every received packet
+	 * from which an event has been created, before the event will be
+	 * added to the event queue. The packet will be reused by the receiver
+	 * thread after this call. The function must not block.
+	 *
+	 * @param timestamp Timestamp of the event
+	 * @param packet The received packet
+	 */
+	protected void onPacket(long timestamp, DatagramPacket packet) {
+	}
+
+	/**
+	 * Creates a new cursor which reads all events which will be received
+	 * after this call. Every consumer can have its own cursor, the events
+	 * will not be removed from the event queue when they have been read.
+	 */
+	public EventCursor createEventCursor() {
+		return this.events.createCursor();
+	}
+
+	/**
+	 * Creates a new cursor which reads all events which will be received
+	 * after this call.
+	 * 
+	 * @param gating If true and the overflow policy of the event queue is
+	 *               BLOCK then the receiver thread will wait until this cursor
+	 *               has read the oldest event before it will be overwritten.
+	 */
+	public EventCursor createEventCursor(boolean gating) {
+		return this.events.createCursor(gating);
+	}
+
 	public void clearEvents() {
 		this.events.clear();
+		this.typeIndex.skipAll();
+		this.senderIndex.clear();
 	}
 
 	public DoipEvent getEvent(int index) {
 		return this.events.get(index);
 	}
 
+	public int getEventCount() {
+		return this.events.size();
+	}
+
+	/**
+	 * Returns the number of events which have been lost because the
+	 * event queue was full.
+	 */
+	public long getEventOverflowCount() {
+		return this.events.getOverflowCount();
+	}
+
+	/**
+	 * Returns the number of times the receiver thread had to wait because
+	 * the event queue was full (only for overflow policy BLOCK).
+	 */
+	public long getEventBlockCount() {
+		return this.events.getBlockCount();
+	}
+
 	/**
 	 * Waits for incoming events
 	 * @param numberOfEvents The number of events which shall be in the event 
@@ -135,7 +292,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 
 		DoipEventUdpVehicleIdentRequest event = new DoipEventUdpVehicleIdentRequest(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 	@Override
@@ -144,7 +301,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			DatagramPacket packet) {
 		DoipEventUdpVehicleIdentRequestWithEid event = new DoipEventUdpVehicleIdentRequestWithEid(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 	@Override
@@ -153,7 +310,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			DatagramPacket packet) {
 		DoipEventUdpVehicleIdentRequestWithVin event = new DoipEventUdpVehicleIdentRequestWithVin(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 	@Override
@@ -162,7 +319,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			DatagramPacket packet) {
 		DoipEventUdpVehicleAnnouncementMessage event = new DoipEventUdpVehicleAnnouncementMessage(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 	@Override
@@ -171,7 +328,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			DatagramPacket packet) {
 		DoipEventUdpDiagnosticPowerModeRequest event = new DoipEventUdpDiagnosticPowerModeRequest(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 	@Override
@@ -180,7 +337,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			DatagramPacket packet) {
 		DoipEventUdpDiagnosticPowerModeResponse event = new DoipEventUdpDiagnosticPowerModeResponse(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 	@Override
@@ -188,7 +345,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			DoipUdpEntityStatusRequest doipMessage, DatagramPacket packet) {
 		DoipEventUdpEntityStatusRequest event = new DoipEventUdpEntityStatusRequest(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 	@Override
@@ -196,7 +353,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			DoipUdpEntityStatusResponse doipMessage, DatagramPacket packet) {
 		DoipEventUdpEntityStatusResponse event = new DoipEventUdpEntityStatusResponse(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 	@Override
@@ -204,7 +361,7 @@ public class DoipUdpMessageHandlerWithEventCollection extends DoipUdpMessageHand
 			DatagramPacket packet) {
 		DoipEventUdpHeaderNegAck event = new DoipEventUdpHeaderNegAck(
 				System.nanoTime(), doipMessage);
-		this.events.add(event);
+		this.addEvent(event, packet);
 	}
 
 //-----------------------------------------------------------------------------
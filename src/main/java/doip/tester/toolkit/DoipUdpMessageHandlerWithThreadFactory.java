@@ -0,0 +1,318 @@
+package doip.tester.toolkit;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.library.comm.DoipUdpMessageHandler;
+import doip.library.comm.DoipUdpMessageHandlerListener;
+import doip.library.message.DoipUdpDiagnosticPowerModeRequest;
+import doip.library.message.DoipUdpDiagnosticPowerModeResponse;
+import doip.library.message.DoipUdpEntityStatusRequest;
+import doip.library.message.DoipUdpEntityStatusResponse;
+import doip.library.message.DoipUdpHeaderNegAck;
+import doip.library.message.DoipUdpMessage;
+import doip.library.message.DoipUdpVehicleAnnouncementMessage;
+import doip.library.message.DoipUdpVehicleIdentRequest;
+import doip.library.message.DoipUdpVehicleIdentRequestWithEid;
+import doip.library.message.DoipUdpVehicleIdentRequestWithVin;
+import doip.library.util.Helper;
+
+/**
+ * DoIP UDP message handler which receives from its socket with a thread
+ * of a {@link TesterThreadFactory}. Like the TCP connection
+ * {@link DoipTcpConnectionWithThreadFactory} it does the receiving and
+ * sending itself because the receiver thread of the DoIP library can not
+ * be created by a thread factory. It keeps the type and the listener
+ * interface of the library.
+ * <p>
+ * Received datagrams will be decoded by the {@link DoipMessageDecoder}
+ * and passed to all listeners in the receiver thread. Errors in the
+ * generic header will be passed to the same functions as in the library,
+ * they send the negative acknowledge of ISO 13400-2 by default.
+ */
+public class DoipUdpMessageHandlerWithThreadFactory extends DoipUdpMessageHandler {
+
+	private static Logger logger = LogManager.getLogger(DoipUdpMessageHandlerWithThreadFactory.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	/**
+	 * Size of the receive buffer, it can hold the largest UDP datagram
+	 */
+	public static final int RECEIVE_BUFFER_SIZE = 0x10000;
+
+	/**
+	 * Factory which will be used if no other factory has been set
+	 */
+	private static final TesterThreadFactory DEFAULT_THREAD_FACTORY =
+			new TesterThreadFactory("UDP-RECV", TesterThreadFactory.ThreadMode.PLATFORM, true);
+
+	/**
+	 * Maximum time in milliseconds which {@link #stop()} waits for the
+	 * receiver thread before it will be interrupted
+	 */
+	private static final long STOP_TIMEOUT = 1000;
+
+	/**
+	 * Name of the handler, it will also be the name of the receiver thread
+	 */
+	private final String name;
+
+	private final CopyOnWriteArrayList<DoipUdpMessageHandlerListener> listeners =
+			new CopyOnWriteArrayList<DoipUdpMessageHandlerListener>();
+
+	private volatile TesterThreadFactory threadFactory = DEFAULT_THREAD_FACTORY;
+
+	private volatile DatagramSocket socket = null;
+
+	private volatile Thread thread = null;
+
+	/**
+	 * Will be true after {@link #stop()} has been called
+	 */
+	private volatile boolean stopped = false;
+
+	public DoipUdpMessageHandlerWithThreadFactory(String udpReceiverThreadName) {
+		super(udpReceiverThreadName, null);
+		this.name = udpReceiverThreadName;
+	}
+
+	/**
+	 * Sets the factory which creates the receiver thread. It must be set
+	 * before the handler will be started.
+	 */
+	public void setThreadFactory(TesterThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	public TesterThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	/**
+	 * Returns the receiver thread, null if the handler has not been started
+	 */
+	public Thread getReceiverThread() {
+		return thread;
+	}
+
+	@Override
+	public void addListener(DoipUdpMessageHandlerListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(DoipUdpMessageHandlerListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Starts the receiver thread for the given socket.
+	 */
+	@Override
+	public void start(DatagramSocket socket) {
+		try {
+			logger.trace(enter, ">>> public void start(DatagramSocket socket)");
+			this.stopped = false;
+			this.socket = socket;
+			Thread receiver = threadFactory.newThread(name, this::receive);
+			this.thread = receiver;
+			receiver.start();
+		} finally {
+			logger.trace(exit, "<<< public void start(DatagramSocket socket)");
+		}
+	}
+
+	/**
+	 * Closes the socket and waits until the receiver thread has terminated.
+	 */
+	@Override
+	public void stop() {
+		try {
+			logger.trace(enter, ">>> public void stop()");
+			this.stopped = true;
+			DatagramSocket current = this.socket;
+			if (current != null) {
+				current.close();
+			}
+			Thread receiver = this.thread;
+			if (receiver == null || receiver == Thread.currentThread()) {
+				return;
+			}
+			try {
+				receiver.join(STOP_TIMEOUT);
+				if (receiver.isAlive()) {
+					logger.warn("Handler " + name + ": Receiver thread did not terminate, it will be interrupted");
+					receiver.interrupt();
+					receiver.join();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			logger.trace(exit, "<<< public void stop()");
+		}
+	}
+
+	@Override
+	public void send(DoipUdpMessage message, InetAddress address, int port) throws IOException {
+		logger.info("Handler " + name + ": Send " + message.getMessageName());
+		byte[] data = message.getMessage();
+		sendDatagramPacket(data, data.length, address, port);
+	}
+
+	/**
+	 * Sends the first bytes of the array as one datagram.
+	 *
+	 * @throws IOException If the handler has not been started or sending
+	 *                     failed
+	 */
+	@Override
+	public void sendDatagramPacket(byte[] data, int length, InetAddress address, int port) throws IOException {
+		DatagramSocket current = this.socket;
+		if (current == null) {
+			throw logger.throwing(new IOException("Handler " + name + " has not been started"));
+		}
+		current.send(new DatagramPacket(data, length, address, port));
+	}
+
+	/**
+	 * Does nothing, a datagram which is shorter than the generic header
+	 * will be discarded.
+	 */
+	@Override
+	public void onHeaderTooShort(DatagramPacket packet) {
+	}
+
+	/**
+	 * Sends the negative acknowledge 'incorrect pattern format'.
+	 */
+	@Override
+	public void onHeaderIncorrectPatternFormat(DatagramPacket packet) {
+		sendNegAck(DoipTcpStreamDecoder.NACK_INCORRECT_PATTERN_FORMAT, packet);
+	}
+
+	/**
+	 * Sends the negative acknowledge 'unknown payload type'.
+	 */
+	@Override
+	public void onInvalidPayloadType(DatagramPacket packet) {
+		sendNegAck(DoipTcpStreamDecoder.NACK_UNKNOWN_PAYLOAD_TYPE, packet);
+	}
+
+	/**
+	 * Sends the negative acknowledge 'invalid payload length'.
+	 */
+	@Override
+	public void onInvalidPayloadLength(DatagramPacket packet) {
+		sendNegAck(DoipTcpStreamDecoder.NACK_INVALID_PAYLOAD_LENGTH, packet);
+	}
+
+	/**
+	 * Passes a decoded message to the function of the listener which
+	 * belongs to its type.
+	 *
+	 * @return False if the message has an unknown type
+	 */
+	public static boolean dispatch(DoipUdpMessageHandlerListener listener, DoipUdpMessage message,
+			DatagramPacket packet) {
+		if (message instanceof DoipUdpVehicleAnnouncementMessage) {
+			listener.onDoipUdpVehicleAnnouncementMessage((DoipUdpVehicleAnnouncementMessage) message, packet);
+		} else if (message instanceof DoipUdpEntityStatusResponse) {
+			listener.onDoipUdpEntityStatusResponse((DoipUdpEntityStatusResponse) message, packet);
+		} else if (message instanceof DoipUdpDiagnosticPowerModeResponse) {
+			listener.onDoipUdpDiagnosticPowerModeResponse((DoipUdpDiagnosticPowerModeResponse) message, packet);
+		} else if (message instanceof DoipUdpHeaderNegAck) {
+			listener.onDoipUdpHeaderNegAck((DoipUdpHeaderNegAck) message, packet);
+		} else if (message instanceof DoipUdpVehicleIdentRequest) {
+			listener.onDoipUdpVehicleIdentRequest((DoipUdpVehicleIdentRequest) message, packet);
+		} else if (message instanceof DoipUdpVehicleIdentRequestWithEid) {
+			listener.onDoipUdpVehicleIdentRequestWithEid((DoipUdpVehicleIdentRequestWithEid) message, packet);
+		} else if (message instanceof DoipUdpVehicleIdentRequestWithVin) {
+			listener.onDoipUdpVehicleIdentRequestWithVin((DoipUdpVehicleIdentRequestWithVin) message, packet);
+		} else if (message instanceof DoipUdpEntityStatusRequest) {
+			listener.onDoipUdpEntityStatusRequest((DoipUdpEntityStatusRequest) message, packet);
+		} else if (message instanceof DoipUdpDiagnosticPowerModeRequest) {
+			listener.onDoipUdpDiagnosticPowerModeRequest((DoipUdpDiagnosticPowerModeRequest) message, packet);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private void receive() {
+		DatagramSocket current = this.socket;
+		byte[] data = new byte[RECEIVE_BUFFER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		DatagramPacket packet = new DatagramPacket(data, data.length);
+		try {
+			while (!stopped) {
+				packet.setLength(data.length);
+				current.receive(packet);
+				onDatagram(buffer, packet);
+			}
+		} catch (IOException e) {
+			if (!stopped) {
+				logger.info("Handler " + name + ": " + e.getClass().getName() + " while receiving: " + e.getMessage());
+			}
+		} catch (RuntimeException e) {
+			logger.error("Handler " + name + ": Unexpected " + e.getClass().getName() + " in receiver thread");
+			logger.error(Helper.getExceptionAsString(e));
+		}
+	}
+
+	/**
+	 * Checks the generic header of a received datagram in the order of
+	 * ISO 13400-2, decodes the message and passes it to the listeners.
+	 */
+	private void onDatagram(ByteBuffer buffer, DatagramPacket packet) {
+		int length = packet.getLength();
+		if (length < DoipMessageDecoder.HEADER_LENGTH) {
+			onHeaderTooShort(packet);
+			return;
+		}
+		if (!DoipMessageDecoder.isValidHeader(buffer, 0)) {
+			onHeaderIncorrectPatternFormat(packet);
+			return;
+		}
+		int payloadType = DoipMessageDecoder.getPayloadType(buffer, 0);
+		if (!DoipMessageDecoder.isUdpPayloadType(payloadType)) {
+			onInvalidPayloadType(packet);
+			return;
+		}
+		long payloadLength = DoipMessageDecoder.getPayloadLength(buffer, 0);
+		if (payloadLength != length - DoipMessageDecoder.HEADER_LENGTH) {
+			onInvalidPayloadLength(packet);
+			return;
+		}
+		ByteBuffer payload = buffer.duplicate();
+		payload.position(DoipMessageDecoder.HEADER_LENGTH);
+		payload.limit(length);
+		DoipUdpMessage message = DoipMessageDecoder.decodeUdpMessage(payloadType, payload);
+		if (message == null) {
+			onInvalidPayloadLength(packet);
+			return;
+		}
+		for (DoipUdpMessageHandlerListener listener : listeners) {
+			dispatch(listener, message, packet);
+		}
+	}
+
+	private void sendNegAck(int code, DatagramPacket packet) {
+		try {
+			send(new DoipUdpHeaderNegAck(code), packet.getAddress(), packet.getPort());
+		} catch (IOException e) {
+			logger.error("Handler " + name + ": Unexpected " + e.getClass().getName()
+					+ " while sending negative acknowledge: " + e.getMessage());
+		}
+	}
+}
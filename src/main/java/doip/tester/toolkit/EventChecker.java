@@ -53,7 +53,68 @@ public class EventChecker {
 	private static Marker exit  = MarkerManager.getMarker("EXIT");
 
 	/**
-	 * Checks if the actual event matches the expected event.
+	 * Result if no event was expected and no event did occur
+	 */
+	private static final CheckResult NO_EVENT_EXPECTED =
+			new CheckResult(CheckResult.NO_ERROR, "No event did occur which is the expected result");
+
+	/**
+	 * Classification of every event class. It will be computed once per
+	 * class, so checking an event does not need to walk through the
+	 * class hierarchy again.
+	 */
+	private static final ClassValue<EventClassInfo> EVENT_CLASS_INFO = new ClassValue<EventClassInfo>() {
+		@Override
+		protected EventClassInfo computeValue(Class<?> type) {
+			return new EventClassInfo(type);
+		}
+	};
+
+	/**
+	 * Precomputed texts and results for one event class
+	 */
+	private static class EventClassInfo {
+
+		/**
+		 * Text which describes that an event of this class was expected
+		 */
+		final String expectedText;
+
+		/**
+		 * Result if an event of this class was expected and
+		 * it has been received
+		 */
+		final CheckResult expectedEventReceived;
+
+		/**
+		 * Result if an event of this class was expected and no event
+		 * has been received, null if the class is unknown
+		 */
+		final CheckResult noEventReceived;
+
+		EventClassInfo(Class<?> type) {
+			this.expectedText = getTextForExpectedResult(type);
+			this.expectedEventReceived = new CheckResult(CheckResult.NO_ERROR,
+					"A event of type '" + type.getSimpleName() + "' has been receive which was the expected event");
+			if (DoipEventUdpMessage.class.isAssignableFrom(type)) {
+				this.noEventReceived = new CheckResult(CheckResult.NO_UDP_RESPONSE_RECEIVED,
+						expectedText + ", but this wasn't the case.");
+			} else if (DoipEventTcpMessage.class.isAssignableFrom(type)) {
+				this.noEventReceived = new CheckResult(CheckResult.NO_TCP_RESPONSE_RECEIVED,
+						expectedText + ", but this wasn't the case.");
+			} else if (DoipEventConnectionClosed.class.isAssignableFrom(type)) {
+				this.noEventReceived = new CheckResult(CheckResult.SOCKET_NOT_CLOSED,
+						"It was expected that the socket has been closed, but it hasn't been closed");
+			} else {
+				this.noEventReceived = null;
+			}
+		}
+	}
+
+	/**
+	 * Checks if the actual event matches the expected event. Results
+	 * without error are shared instances, texts for errors will only be
+	 * built if an error has been detected.
 	 * @param actualEvent Actual event which also call be null.
 	 * @param expectedClass Expected event whcih also can be null.
 	 * @return The result which consists of an error code and a error text.
@@ -99,8 +160,7 @@ public class EventChecker {
 	 */
 	private static CheckResult checkEventIsNotNullAndClassIsNotNull(DoipEvent actualEvent, Class<? extends DoipEvent> expectedClass) {
 		if (expectedClass.isInstance(actualEvent)) {
-			String text = "A event of type '" + actualEvent.getClass().getSimpleName() + "' has been receive which was the expected event"; 
-			return new CheckResult(CheckResult.NO_ERROR, text);
+			return EVENT_CLASS_INFO.get(actualEvent.getClass()).expectedEventReceived;
 		} else {
 			// TODO: Distinguish between different event types and expected class
 			//String text = "It was expected to receive a event of type '" + expectedClass.getSimpleName()+ "', but a event of type '" + actualEvent.getClass().getSimpleName() + "' has been received";
@@ -110,7 +170,7 @@ public class EventChecker {
 			//if (DoipEventTcpDiagnosticMessagePosAck.class.isAssignableFrom(expectedClass)) {
 			//	text1 = "It was expected to receive a '" + DoipTcpDiagnosticMessagePosAck.getMessageNameOfClass() + "' message, ";
 			//}
-			String text = getTextForExpectedResult(expectedClass) + getTextForActualResult(actualEvent);
+			String text = EVENT_CLASS_INFO.get(expectedClass).expectedText + getTextForActualResult(actualEvent);
 			return new CheckResult(CheckResult.WRONG_EVENT, text);
 		}		
 	}
@@ -131,25 +191,14 @@ public class EventChecker {
 	
 	private static CheckResult checkEventIsNull(Class<? extends DoipEvent> expectedClass) {
 		if (expectedClass != null) {
-			// 	Check if it a DoipEventMessage was expected
-			if (DoipEventUdpMessage.class.isAssignableFrom(expectedClass)) {
-//				String text = "It was expected to receive a valid DoIP UDP message, but no valid DoIP UDP message has been received"; 
-				String text = getTextForExpectedResult(expectedClass) + ", but this wasn't the case."; 
-				return new CheckResult(CheckResult.NO_UDP_RESPONSE_RECEIVED, text);
-			} else if (DoipEventTcpMessage.class.isAssignableFrom(expectedClass)) {
-//				String text = "It was expected to receive a valid DoIP TCP message, but no valid DoIP TCP message has been received"; 
-				String text = getTextForExpectedResult(expectedClass) + ", but this wasn't the case."; 
-				return new CheckResult(CheckResult.NO_TCP_RESPONSE_RECEIVED, text);
-			} else if (DoipEventConnectionClosed.class.isAssignableFrom(expectedClass)) {
-				String text = "It was expected that the socket has been closed, but it hasn't been closed"; 
-				return new CheckResult(CheckResult.SOCKET_NOT_CLOSED, text);
-			} else {
+			CheckResult result = EVENT_CLASS_INFO.get(expectedClass).noEventReceived;
+			if (result == null) {
 				String text = "An unknown event class has been passed"; 
 				throw logger.throwing(Level.FATAL, new IllegalArgumentException(text));
 			}
+			return result;
 		} else {
-			String text = "No event did occur which is the expected result"; 
-			return new CheckResult(CheckResult.NO_ERROR, text);
+			return NO_EVENT_EXPECTED;
 		}
 	}
 	
@@ -163,7 +212,7 @@ public class EventChecker {
 		return ", but a event of type '" + event.getClass().getSimpleName() + "' did occure.";
 	}
 	
-	private static String getTextForExpectedResult(Class<? extends DoipEvent> expectedClass) {
+	private static String getTextForExpectedResult(Class<?> expectedClass) {
 			if (DoipEventConnectionClosed.class.isAssignableFrom(expectedClass)) {
 				return "It was expected that the connection has been closed";
 			} else if (DoipEventTcpHeaderNegAck.class.isAssignableFrom(expectedClass)) {
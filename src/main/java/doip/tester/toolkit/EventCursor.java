@@ -0,0 +1,183 @@
+package doip.tester.toolkit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import doip.tester.toolkit.event.DoipEvent;
+
+/**
+ * Read cursor on an {@link EventQueue}. Every consumer of an event queue
+ * (for example the test itself, a logger or a metrics tap) can hold its own
+ * cursor and read the events independently from all other consumers.
+ * Reading events does neither copy nor remove events from the queue, and
+ * it does not allocate any objects.
+ * <p>
+ * A cursor shall only be used by one thread.
+ */
+public class EventCursor {
+
+	private final EventQueue queue;
+
+	/**
+	 * If true the producer of the queue will not overwrite events which have
+	 * not been read by this cursor when the overflow policy is BLOCK.
+	 */
+	private final boolean gating;
+
+	/**
+	 * Sequence number of the next event which will be read
+	 */
+	private volatile long position;
+
+	/**
+	 * Number of events which have been overwritten before they could be
+	 * read by this cursor.
+	 */
+	private long missedCount = 0;
+
+	EventCursor(EventQueue queue, long position, boolean gating) {
+		this.queue = queue;
+		this.position = position;
+		this.gating = gating;
+	}
+
+	/**
+	 * Returns the next event or null if there is no new event.
+	 */
+	public DoipEvent poll() {
+		while (position < queue.getHead()) {
+			DoipEvent event = readAndAdvance();
+			if (event != null) {
+				return event;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Waits for the next event.
+	 *
+	 * @param timeoutms Timeout in milliseconds
+	 *
+	 * @return The next event or null if no event has been added to the
+	 *         queue within the timeout.
+	 *
+	 * @throws InterruptedException Will be thrown if the waiting thread
+	 *                              gets interrupted.
+	 */
+	public DoipEvent next(long timeoutms) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutms);
+		while (true) {
+			DoipEvent event = poll();
+			if (event != null) {
+				return event;
+			}
+			if (!queue.waitForSequence(position, deadline - System.nanoTime())) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Passes all new events to the given handler and moves the cursor
+	 * behind the last event.
+	 *
+	 * @param handler The handler which will be called for every event
+	 *
+	 * @return The number of events which have been passed to the handler
+	 */
+	public int drain(Consumer<? super DoipEvent> handler) {
+		return drain(handler, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Passes up to maxEvents new events to the given handler.
+	 *
+	 * @param handler The handler which will be called for every event
+	 *
+	 * @param maxEvents Maximum number of events which will be passed to the
+	 *                  handler
+	 *
+	 * @return The number of events which have been passed to the handler
+	 */
+	public int drain(Consumer<? super DoipEvent> handler, int maxEvents) {
+		int count = 0;
+		long head = queue.getHead();
+		while (count < maxEvents && position < head) {
+			DoipEvent event = readAndAdvance();
+			if (event != null) {
+				handler.accept(event);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Moves the cursor behind the last event in the queue, so only events
+	 * which will be added afterwards will be read.
+	 */
+	public void skipToEnd() {
+		setPosition(queue.getHead());
+	}
+
+	/**
+	 * Returns the number of events which are available for this cursor.
+	 */
+	public int available() {
+		return (int) (queue.getHead() - position);
+	}
+
+	/**
+	 * Returns the number of events which have been overwritten before they
+	 * could be read by this cursor.
+	 */
+	public long getMissedCount() {
+		return missedCount;
+	}
+
+	/**
+	 * Detaches the cursor from the queue. If it is a gating cursor the
+	 * producer will not wait for it anymore.
+	 */
+	public void close() {
+		if (gating) {
+			queue.removeGatingCursor(this);
+		}
+	}
+
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Reads the event at the current position and advances the cursor.
+	 * If the event has already been overwritten the cursor will be moved
+	 * to the oldest event which is still available.
+	 *
+	 * @return The event or null if the event has been overwritten
+	 */
+	private DoipEvent readAndAdvance() {
+		DoipEvent event = queue.read(position);
+		if (event != null) {
+			setPosition(position + 1);
+			return event;
+		}
+		long oldest = queue.getOldestSequence();
+		if (oldest > position) {
+			missedCount += oldest - position;
+			setPosition(oldest);
+		} else {
+			missedCount++;
+			setPosition(position + 1);
+		}
+		return null;
+	}
+
+	private void setPosition(long value) {
+		this.position = value;
+		if (gating) {
+			queue.onGatingCursorMoved();
+		}
+	}
+}
@@ -0,0 +1,405 @@
+package doip.tester.toolkit;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import doip.tester.toolkit.event.DoipEvent;
+
+/**
+ * Queue for incoming DoIP events. The queue is a bounded ring buffer
+ * with a single producer (the receiver thread) and any number of
+ * consumers. Adding an event never takes a lock, so the receiver
+ * thread can not be blocked by a test thread which is reading events
+ * (except if the overflow policy {@link OverflowPolicy#BLOCK} has been
+ * chosen).
+ * <p>
+ * Threads which are waiting for events will be parked and will be
+ * unparked directly when a new event has been added. Compared to polling
+ * the size of a list this does not consume any CPU time while waiting.
+ * <p>
+ * Every event gets a sequence number. The position of an event which will
+ * be passed to {@link #get(int)} or {@link #waitForEvents(int, long)} is
+ * relative to the last call of {@link #clear()}. Alternatively consumers
+ * can read the events with their own {@link EventCursor}, which does not
+ * require to clear the queue.
+ */
+public class EventQueue {
+
+	/**
+	 * Defines what will happen if an event shall be added but the
+	 * queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** The oldest event will be overwritten by the new event */
+		DROP_OLDEST,
+		/** The new event will be discarded */
+		DROP_NEWEST,
+		/**
+		 * The producer will wait until the queue has been cleared or
+		 * all gating cursors have read the oldest event
+		 */
+		BLOCK
+	}
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+
+	/**
+	 * The slots of the ring buffer. The slot of an event with the sequence
+	 * number seq is (seq &amp; mask).
+	 */
+	private final AtomicReferenceArray<DoipEvent> slots;
+
+	private final int capacity;
+
+	private final int mask;
+
+	private final OverflowPolicy overflowPolicy;
+
+	/**
+	 * Sequence number of the next event which will be written. Will only be
+	 * modified by the producer.
+	 */
+	private volatile long head = 0;
+
+	/**
+	 * Sequence number of the event which is currently written by the
+	 * producer. It will be set before the slot gets overwritten, so a
+	 * consumer can detect that the event it has read may have been
+	 * overwritten.
+	 */
+	private volatile long claimed = -1;
+
+	/**
+	 * Sequence number of the event at position 0. It will be set to the
+	 * head when the queue gets cleared.
+	 */
+	private final AtomicLong base = new AtomicLong(0);
+
+	/**
+	 * Number of events which have been lost because the queue was full.
+	 * Will only be modified by the producer.
+	 */
+	private volatile long overflowCount = 0;
+
+	/**
+	 * Number of times the producer had to wait because the queue was full.
+	 * Will only be modified by the producer.
+	 */
+	private volatile long blockCount = 0;
+
+	/**
+	 * Threads which are currently waiting for new events
+	 */
+	private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+	/**
+	 * Cursors which will be respected by the producer when the overflow
+	 * policy is BLOCK
+	 */
+	private final CopyOnWriteArrayList<EventCursor> gatingCursors = new CopyOnWriteArrayList<EventCursor>();
+
+	/**
+	 * The producer thread if it is waiting for free space in the queue
+	 */
+	private volatile Thread blockedProducer = null;
+
+	public EventQueue() {
+		this(DEFAULT_CAPACITY, DEFAULT_OVERFLOW_POLICY);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity Maximum number of events in the queue. It will be
+	 *                 rounded up to the next power of two.
+	 *
+	 * @param overflowPolicy Defines what will happen if the queue is full.
+	 */
+	public EventQueue(int capacity, OverflowPolicy overflowPolicy) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be greater than 0, but it was " + capacity);
+		}
+		if (overflowPolicy == null) {
+			throw new IllegalArgumentException("Overflow policy must not be null");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.capacity = size;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<DoipEvent>(size);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Adds a new event to the queue and wakes up all threads which are
+	 * waiting for events. This function shall only be called by one
+	 * thread (usually the receiver thread).
+	 *
+	 * @param event The event which shall be added
+	 */
+	public void add(DoipEvent event) {
+		long seq = head;
+		if (seq - base.get() >= capacity && seq - getConsumedSequence() >= capacity) {
+			switch (overflowPolicy) {
+			case DROP_NEWEST:
+				overflowCount++;
+				return;
+			case BLOCK:
+				if (!waitForFreeSpace(seq)) {
+					overflowCount++;
+					return;
+				}
+				break;
+			default:
+				overflowCount++;
+				break;
+			}
+		}
+		claimed = seq;
+		slots.set((int) (seq & mask), event);
+		head = seq + 1;
+		wakeUpWaiters();
+	}
+
+	/**
+	 * Waits until the queue contains at least the given number of events.
+	 *
+	 * @param numberOfEvents The minimum number of events that shall be available
+	 *                       in the queue.
+	 *
+	 * @param timeoutms Timeout in milliseconds
+	 *
+	 * @return Returns the event at position (numberOfEvents - 1) if the queue
+	 *         contains the number of events within the timeout, otherwise
+	 *         it returns null. It also returns null if the event has
+	 *         already been overwritten.
+	 *
+	 * @throws InterruptedException Will be thrown if the waiting thread
+	 *                              gets interrupted.
+	 */
+	public DoipEvent waitForEvents(int numberOfEvents, long timeoutms) throws InterruptedException {
+		long seq = base.get() + numberOfEvents - 1;
+		if (!waitForSequence(seq, TimeUnit.MILLISECONDS.toNanos(timeoutms))) {
+			return null;
+		}
+		return read(seq);
+	}
+
+	/**
+	 * Returns the event at the given position.
+	 *
+	 * @param index Position of the event relative to the last clear
+	 *
+	 * @return The event or null if the event has already been overwritten
+	 *
+	 * @throws IndexOutOfBoundsException If there is no event at the given
+	 *                                   position
+	 */
+	public DoipEvent get(int index) {
+		long seq = base.get() + index;
+		if (index < 0 || seq >= head) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+		}
+		return read(seq);
+	}
+
+	/**
+	 * Returns the number of events which have been added since the last
+	 * clear. If events have been dropped the number can be larger than
+	 * the number of events which can still be read.
+	 */
+	public int size() {
+		return (int) (head - base.get());
+	}
+
+	/**
+	 * Clears the queue. Events which have been added before will not
+	 * be accessible any more.
+	 */
+	public void clear() {
+		long current;
+		long next;
+		do {
+			current = base.get();
+			next = head;
+		} while (next > current && !base.compareAndSet(current, next));
+		Thread producer = blockedProducer;
+		if (producer != null) {
+			LockSupport.unpark(producer);
+		}
+	}
+
+	/**
+	 * Creates a new cursor which will read all events which will be added
+	 * after this call.
+	 */
+	public EventCursor createCursor() {
+		return createCursor(false);
+	}
+
+	/**
+	 * Creates a new cursor which will read all events which will be added
+	 * after this call.
+	 *
+	 * @param gating If true and the overflow policy is BLOCK then the
+	 *               producer will wait until this cursor has read the oldest
+	 *               event before it overwrites it. The cursor shall be closed
+	 *               when it will not be used anymore.
+	 */
+	public EventCursor createCursor(boolean gating) {
+		EventCursor cursor = new EventCursor(this, head, gating);
+		if (gating) {
+			gatingCursors.add(cursor);
+		}
+		return cursor;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Returns the number of events which have been lost because
+	 * the queue was full.
+	 */
+	public long getOverflowCount() {
+		return overflowCount;
+	}
+
+	/**
+	 * Returns the number of times the producer had to wait because
+	 * the queue was full (only for policy BLOCK).
+	 */
+	public long getBlockCount() {
+		return blockCount;
+	}
+
+	/**
+	 * Returns the sequence number of the next event which will be added.
+	 */
+	long getHead() {
+		return head;
+	}
+
+	/**
+	 * Returns the sequence number of the oldest event which has not
+	 * been overwritten.
+	 */
+	long getOldestSequence() {
+		return Math.max(0, claimed - capacity + 1);
+	}
+
+	void removeGatingCursor(EventCursor cursor) {
+		gatingCursors.remove(cursor);
+		onGatingCursorMoved();
+	}
+
+	void onGatingCursorMoved() {
+		Thread producer = blockedProducer;
+		if (producer != null) {
+			LockSupport.unpark(producer);
+		}
+	}
+
+	/**
+	 * Returns the sequence number up to which all events have been consumed.
+	 * These are all events before the last clear, or if there are gating
+	 * cursors, all events which have been read by all gating cursors.
+	 */
+	private long getConsumedSequence() {
+		long consumed = base.get();
+		if (gatingCursors.isEmpty()) {
+			return consumed;
+		}
+		long min = Long.MAX_VALUE;
+		for (EventCursor cursor : gatingCursors) {
+			min = Math.min(min, cursor.getPosition());
+		}
+		return Math.max(consumed, min);
+	}
+
+	/**
+	 * Reads the event with the given sequence number.
+	 *
+	 * @return The event or null if it has already been overwritten
+	 */
+	DoipEvent read(long seq) {
+		DoipEvent event = slots.get((int) (seq & mask));
+		if (seq <= claimed - capacity) {
+			return null;
+		}
+		return event;
+	}
+
+	/**
+	 * Waits until an event with the given sequence number has been added.
+	 *
+	 * @return Returns true if the event has been added within the timeout
+	 */
+	boolean waitForSequence(long seq, long nanos) throws InterruptedException {
+		if (seq < head) {
+			return true;
+		}
+		long deadline = System.nanoTime() + nanos;
+		Thread current = Thread.currentThread();
+		waiters.add(current);
+		try {
+			while (seq >= head) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			return true;
+		} finally {
+			waiters.remove(current);
+		}
+	}
+
+	/**
+	 * Waits until the queue has been cleared by a consumer or all gating
+	 * cursors have moved. Will only be called for overflow policy BLOCK.
+	 *
+	 * @return Returns false if the producer has been interrupted.
+	 */
+	private boolean waitForFreeSpace(long seq) {
+		blockCount++;
+		blockedProducer = Thread.currentThread();
+		try {
+			while (seq - getConsumedSequence() >= capacity) {
+				if (Thread.currentThread().isInterrupted()) {
+					return false;
+				}
+				LockSupport.park(this);
+			}
+			return true;
+		} finally {
+			blockedProducer = null;
+		}
+	}
+
+	private void wakeUpWaiters() {
+		if (waiters.isEmpty()) {
+			return;
+		}
+		for (Thread thread : waiters) {
+			LockSupport.unpark(thread);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package doip.tester.toolkit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import doip.tester.toolkit.event.DoipEvent;
+
+/**
+ * Index of incoming events by their concrete class. For every class of
+ * event which has been received there is an own event queue, so waiting
+ * for an event of a specific type returns as soon as such an event arrives
+ * and does not need to look at events of other types.
+ * <p>
+ * Every type has a default cursor which will be used by the wait functions.
+ * An event which has been returned by a wait function will not be returned
+ * again. The wait functions shall only be called by one thread.
+ */
+public class EventTypeIndex {
+
+	/**
+	 * Queue and default cursor for one type of event
+	 */
+	private static class Entry {
+
+		private final EventQueue queue;
+
+		private final EventCursor cursor;
+
+		private Entry(int capacity) {
+			this.queue = new EventQueue(capacity, EventQueue.OverflowPolicy.DROP_OLDEST);
+			this.cursor = queue.createCursor();
+		}
+	}
+
+	private final ConcurrentHashMap<Class<?>, Entry> entries = new ConcurrentHashMap<Class<?>, Entry>();
+
+	private final int capacity;
+
+	/**
+	 * Function which creates a new entry; it is stored in a field so it will
+	 * not be created for every call of computeIfAbsent.
+	 */
+	private final Function<Class<?>, Entry> entryFactory;
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity Maximum number of events per type
+	 */
+	public EventTypeIndex(int capacity) {
+		this.capacity = capacity;
+		this.entryFactory = clazz -> new Entry(this.capacity);
+	}
+
+	/**
+	 * Adds an event to the queue of its type. This function shall only be
+	 * called by one thread (usually the receiver thread).
+	 *
+	 * @param event The event which shall be added
+	 */
+	public void add(DoipEvent event) {
+		getEntry(event.getClass()).queue.add(event);
+	}
+
+	/**
+	 * Waits for the next event of the given type.
+	 *
+	 * @param type The concrete class of the expected event
+	 *
+	 * @param timeoutms Timeout in milliseconds
+	 *
+	 * @return The event or null if no event of the given type has been
+	 *         received within the timeout
+	 *
+	 * @throws InterruptedException Will be thrown if the waiting thread
+	 *                              gets interrupted.
+	 */
+	public <T extends DoipEvent> T waitForEvent(Class<T> type, long timeoutms) throws InterruptedException {
+		return type.cast(getEntry(type).cursor.next(timeoutms));
+	}
+
+	/**
+	 * Waits for the next event of the given type which matches the given
+	 * predicate. Events of this type which do not match will be skipped.
+	 *
+	 * @param type The concrete class of the expected event
+	 *
+	 * @param predicate Condition which the event shall fulfill
+	 *
+	 * @param timeoutms Timeout in milliseconds
+	 *
+	 * @return The event or null if no matching event has been received
+	 *         within the timeout
+	 *
+	 * @throws InterruptedException Will be thrown if the waiting thread
+	 *                              gets interrupted.
+	 */
+	public <T extends DoipEvent> T waitForEvent(Class<T> type, Predicate<? super T> predicate, long timeoutms)
+			throws InterruptedException {
+		EventCursor cursor = getEntry(type).cursor;
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutms);
+		while (true) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			DoipEvent event = cursor.next(Math.max(0, remaining));
+			if (event == null) {
+				return null;
+			}
+			T typedEvent = type.cast(event);
+			if (predicate.test(typedEvent)) {
+				return typedEvent;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of events of the given type which have not yet been
+	 * returned by a wait function.
+	 */
+	public int getPendingCount(Class<? extends DoipEvent> type) {
+		Entry entry = entries.get(type);
+		return entry == null ? 0 : entry.cursor.available();
+	}
+
+	/**
+	 * Skips all events which have been received so far, so the wait functions
+	 * will only return events which will be received afterwards.
+	 */
+	public void skipAll() {
+		for (Entry entry : entries.values()) {
+			entry.cursor.skipToEnd();
+		}
+	}
+
+	private Entry getEntry(Class<?> type) {
+		Entry entry = entries.get(type);
+		if (entry == null) {
+			entry = entries.computeIfAbsent(type, entryFactory);
+		}
+		return entry;
+	}
+}
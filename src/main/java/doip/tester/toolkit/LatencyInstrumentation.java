@@ -0,0 +1,308 @@
+package doip.tester.toolkit;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessageNegAck;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessageNegAck;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+import doip.tester.toolkit.event.DoipEventTcpRoutingActivationResponse;
+
+/**
+ * Records the latencies on a TCP connection. The times when requests have
+ * been sent will be stored in ring buffers, the times of the answers are
+ * taken from the timestamps of the received events. The latencies will
+ * be recorded in histograms with a resolution of microseconds and two
+ * significant digits.
+ * <p>
+ * Acknowledges and responses will be assigned to the requests which have
+ * been sent from their target address to their source address, in the
+ * order in which these requests have been sent. Requests to different ECUs
+ * behind the same gateway can be answered in any order. Requests which
+ * will not be answered (for example with suppressPosRspMsgIndicationBit)
+ * distort the latency from the positive acknowledge to the response of
+ * the same ECU.
+ * <p>
+ * Recording does not allocate memory, apart from the ring buffers for
+ * a new pair of addresses. The histograms can be read at any time from
+ * any thread.
+ */
+public class LatencyInstrumentation {
+
+	public enum LatencyType {
+		/** Routing activation request to routing activation response */
+		ROUTING_ACTIVATION,
+		/** Diagnostic request to positive acknowledge */
+		DIAGNOSTIC_MESSAGE_POS_ACK,
+		/** Positive acknowledge to final response */
+		DIAGNOSTIC_MESSAGE_RESPONSE,
+		/** Diagnostic request to final response */
+		DIAGNOSTIC_MESSAGE_ROUND_TRIP
+	}
+
+	/**
+	 * Highest latency in microseconds which can be recorded. Larger
+	 * values will be recorded as this value.
+	 */
+	public static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.MINUTES.toMicros(1);
+
+	private static final int SIGNIFICANT_DIGITS = 2;
+
+	/**
+	 * Maximum number of outstanding requests, must be a power of 2
+	 */
+	private static final int RING_SIZE = 64;
+
+	private static final int RING_MASK = RING_SIZE - 1;
+
+	private final Histogram[] histograms = new Histogram[LatencyType.values().length];
+
+	/**
+	 * Outstanding requests of one pair of addresses
+	 */
+	private static class RequestQueue {
+
+		/**
+		 * Address of the ECU in the high word, address of the tester in
+		 * the low word
+		 */
+		final int key;
+
+		/**
+		 * Send times of diagnostic requests which wait for the acknowledge
+		 */
+		final long[] requestTimes = new long[RING_SIZE];
+
+		int requestHead = 0;
+
+		int requestTail = 0;
+
+		/**
+		 * Send times of diagnostic requests which have been acknowledged
+		 * and wait for the response
+		 */
+		final long[] acknowledgedRequestTimes = new long[RING_SIZE];
+
+		/**
+		 * Times of the positive acknowledges for the requests in
+		 * acknowledgedRequestTimes
+		 */
+		final long[] posAckTimes = new long[RING_SIZE];
+
+		int responseHead = 0;
+
+		int responseTail = 0;
+
+		RequestQueue(int key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Queues of all pairs of addresses to which requests have been sent.
+	 * There are only a few ECUs behind a gateway, so they will be searched
+	 * linearly instead of boxing the key for a map.
+	 */
+	private RequestQueue[] queues = new RequestQueue[4];
+
+	private int queueCount = 0;
+
+	/**
+	 * Send time of the routing activation request which waits for
+	 * the response, -1 if there is none
+	 */
+	private long routingActivationTime = -1;
+
+	/**
+	 * Number of answers which could not be assigned to a request and
+	 * number of requests which have been dropped because too many
+	 * requests were outstanding
+	 */
+	private long unmatchedCount = 0;
+
+	public LatencyInstrumentation() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new Histogram(HIGHEST_TRACKABLE_LATENCY, SIGNIFICANT_DIGITS);
+		}
+	}
+
+	/**
+	 * Will be called when a routing activation request has been sent.
+	 *
+	 * @param timestamp Time of sending (System.nanoTime())
+	 */
+	public synchronized void onRoutingActivationRequestSent(long timestamp) {
+		routingActivationTime = timestamp;
+	}
+
+	/**
+	 * Will be called when a diagnostic request has been sent.
+	 *
+	 * @param sourceAddress Logical address of the tester
+	 * @param targetAddress Logical address of the ECU
+	 * @param timestamp Time of sending (System.nanoTime())
+	 */
+	public synchronized void onDiagnosticMessageSent(int sourceAddress, int targetAddress, long timestamp) {
+		RequestQueue queue = getQueue(getAddressKey(targetAddress, sourceAddress), true);
+		if (queue.requestTail - queue.requestHead == RING_SIZE) {
+			queue.requestHead++;
+			unmatchedCount++;
+		}
+		queue.requestTimes[queue.requestTail & RING_MASK] = timestamp;
+		queue.requestTail++;
+	}
+
+	/**
+	 * Will be called for every event which has been received on
+	 * the connection.
+	 */
+	public synchronized void onEvent(DoipEvent event) {
+		long timestamp = event.getTimestamp();
+		if (event instanceof DoipEventTcpDiagnosticMessagePosAck) {
+			DoipTcpDiagnosticMessagePosAck message = (DoipTcpDiagnosticMessagePosAck)
+					((DoipEventTcpDiagnosticMessagePosAck) event).getDoipMessage();
+			RequestQueue queue = getQueue(getAddressKey(message.getSourceAddress(), message.getTargetAddress()), false);
+			if (queue == null || queue.requestHead == queue.requestTail) {
+				unmatchedCount++;
+				return;
+			}
+			long requestTime = queue.requestTimes[queue.requestHead & RING_MASK];
+			queue.requestHead++;
+			record(LatencyType.DIAGNOSTIC_MESSAGE_POS_ACK, timestamp - requestTime);
+			if (queue.responseTail - queue.responseHead == RING_SIZE) {
+				queue.responseHead++;
+				unmatchedCount++;
+			}
+			queue.acknowledgedRequestTimes[queue.responseTail & RING_MASK] = requestTime;
+			queue.posAckTimes[queue.responseTail & RING_MASK] = timestamp;
+			queue.responseTail++;
+		} else if (event instanceof DoipEventTcpDiagnosticMessage) {
+			if (isResponsePending((DoipEventTcpDiagnosticMessage) event)) {
+				return;
+			}
+			DoipTcpDiagnosticMessage message = (DoipTcpDiagnosticMessage)
+					((DoipEventTcpDiagnosticMessage) event).getDoipMessage();
+			RequestQueue queue = getQueue(getAddressKey(message.getSourceAddress(), message.getTargetAddress()), false);
+			if (queue == null || queue.responseHead == queue.responseTail) {
+				unmatchedCount++;
+				return;
+			}
+			int index = queue.responseHead & RING_MASK;
+			queue.responseHead++;
+			record(LatencyType.DIAGNOSTIC_MESSAGE_RESPONSE, timestamp - queue.posAckTimes[index]);
+			record(LatencyType.DIAGNOSTIC_MESSAGE_ROUND_TRIP, timestamp - queue.acknowledgedRequestTimes[index]);
+		} else if (event instanceof DoipEventTcpDiagnosticMessageNegAck) {
+			DoipTcpDiagnosticMessageNegAck message = (DoipTcpDiagnosticMessageNegAck)
+					((DoipEventTcpDiagnosticMessageNegAck) event).getDoipMessage();
+			RequestQueue queue = getQueue(getAddressKey(message.getSourceAddress(), message.getTargetAddress()), false);
+			if (queue == null || queue.requestHead == queue.requestTail) {
+				unmatchedCount++;
+			} else {
+				queue.requestHead++;
+			}
+		} else if (event instanceof DoipEventTcpRoutingActivationResponse) {
+			if (routingActivationTime == -1) {
+				unmatchedCount++;
+				return;
+			}
+			record(LatencyType.ROUTING_ACTIVATION, timestamp - routingActivationTime);
+			routingActivationTime = -1;
+		} else if (event instanceof DoipEventConnectionClosed) {
+			for (int i = 0; i < queueCount; i++) {
+				queues[i].requestHead = queues[i].requestTail;
+				queues[i].responseHead = queues[i].responseTail;
+			}
+			routingActivationTime = -1;
+		}
+	}
+
+	/**
+	 * Returns a copy of the histogram for the given latency type.
+	 * Values are given in microseconds.
+	 */
+	public synchronized Histogram getHistogram(LatencyType type) {
+		return histograms[type.ordinal()].copy();
+	}
+
+	/**
+	 * Returns the number of recorded latencies of the given type.
+	 */
+	public synchronized long getCount(LatencyType type) {
+		return histograms[type.ordinal()].getTotalCount();
+	}
+
+	/**
+	 * Returns the latency in microseconds at the given percentile.
+	 */
+	public synchronized long getValueAtPercentile(LatencyType type, double percentile) {
+		return histograms[type.ordinal()].getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * Returns the number of answers which could not be assigned to a
+	 * request and the number of requests which have been discarded
+	 * because too many requests were outstanding.
+	 */
+	public synchronized long getUnmatchedCount() {
+		return unmatchedCount;
+	}
+
+	/**
+	 * Clears all histograms. Outstanding requests will not be discarded.
+	 */
+	public synchronized void reset() {
+		for (Histogram histogram : histograms) {
+			histogram.reset();
+		}
+		unmatchedCount = 0;
+	}
+
+	/**
+	 * Returns the queue for the given key.
+	 *
+	 * @param create If true a new queue will be created if there is none
+	 * @return The queue or null if there is none and create is false
+	 */
+	private RequestQueue getQueue(int key, boolean create) {
+		for (int i = 0; i < queueCount; i++) {
+			if (queues[i].key == key) {
+				return queues[i];
+			}
+		}
+		if (!create) {
+			return null;
+		}
+		if (queueCount == queues.length) {
+			queues = Arrays.copyOf(queues, queueCount * 2);
+		}
+		RequestQueue queue = new RequestQueue(key);
+		queues[queueCount++] = queue;
+		return queue;
+	}
+
+	/**
+	 * Returns the key of the queue for messages from the source address
+	 * to the target address of an answer.
+	 */
+	private static int getAddressKey(int sourceAddress, int targetAddress) {
+		return ((sourceAddress & 0xFFFF) << 16) | (targetAddress & 0xFFFF);
+	}
+
+	private void record(LatencyType type, long nanos) {
+		long micros = Math.min(Math.max(nanos / 1000, 0), HIGHEST_TRACKABLE_LATENCY);
+		histograms[type.ordinal()].recordValue(micros);
+	}
+
+	static boolean isResponsePending(DoipEventTcpDiagnosticMessage event) {
+		byte[] response = ((DoipTcpDiagnosticMessage) event.getDoipMessage()).getDiagnosticMessage();
+		return response != null && response.length >= 3 && (response[0] & 0xFF) == 0x7F
+				&& (response[2] & 0xFF) == 0x78;
+	}
+}
@@ -13,6 +13,7 @@ import doip.library.properties.EmptyPropertyValue;
 import doip.library.properties.MissingProperty;
 import doip.library.properties.MissingSystemProperty;
 import doip.library.properties.PropertyFile;
+import doip.tester.toolkit.capture.PcapngCapture;
 
 public class TestConfig {
 	
@@ -96,6 +97,66 @@ public class TestConfig {
 	private int A_Processing_Time = 2000;
 	
 	private int A_Vehicle_Discovery_Timer = 5000;
+	
+	/**
+	 * Timeout in milliseconds for establishing a TCP connection
+	 */
+	private int tcpConnectTimeout = 2000;
+	
+	/**
+	 * Maximum number of connections in a connection pool. The real size
+	 * of the pool can be smaller if the gateway does not accept as many
+	 * connections.
+	 */
+	private int connectionPoolMaxSize = 8;
+	
+	/**
+	 * Maximum number of events which will be stored in an event queue
+	 */
+	private int eventQueueCapacity = EventQueue.DEFAULT_CAPACITY;
+	
+	/**
+	 * Defines what happens if an event queue is full
+	 */
+	private EventQueue.OverflowPolicy eventQueueOverflowPolicy = EventQueue.DEFAULT_OVERFLOW_POLICY;
+	
+	/**
+	 * Defines if threads created by the toolkit will be platform threads
+	 * or virtual threads. Can be overridden by the system property
+	 * "tester.thread.mode".
+	 */
+	private TesterThreadFactory.ThreadMode threadMode = TesterThreadFactory.ThreadMode.PLATFORM;
+	
+	/**
+	 * Directory of the event journal, null if no journal shall be written
+	 */
+	private String eventJournalDirectory = null;
+	
+	/**
+	 * Size of one segment of the event journal in megabytes
+	 */
+	private int eventJournalSegmentSize = 64;
+	
+	/**
+	 * Directory of the packet capture, null if no capture shall be written
+	 */
+	private String captureDirectory = null;
+	
+	/**
+	 * Maximum size of one capture file in megabytes
+	 */
+	private int captureFileSize = 100;
+	
+	/**
+	 * Maximum time in milliseconds which captured packets stay in the
+	 * write buffer, 0 writes every packet immediately
+	 */
+	private int captureFlushInterval = (int) PcapngCapture.DEFAULT_FLUSH_INTERVAL;
+	
+	/**
+	 * Time to live of the entries in the index of UDP senders in milliseconds
+	 */
+	private int udpIndexTtl = (int) UdpEventIndex.DEFAULT_TTL;
 
 //-----------------------------------------------------------------------------	
 // Constructor
@@ -150,6 +211,51 @@ public class TestConfig {
 			A_Processing_Time = file.getOptionalPropertyAsInt("A_Processing_Time", 2000);
 			A_Vehicle_Discovery_Timer = file.getOptionalPropertyAsInt("A_Vehicle_Discovery_Timer", 5000);
 			
+			tcpConnectTimeout = file.getOptionalPropertyAsInt("tcp.connect.timeout", 2000);
+			logger.info("tcp.connect.timeout = " + tcpConnectTimeout);
+			
+			connectionPoolMaxSize = file.getOptionalPropertyAsInt("connection.pool.max.size", 8);
+			logger.info("connection.pool.max.size = " + connectionPoolMaxSize);
+			
+			eventQueueCapacity = file.getOptionalPropertyAsInt("event.queue.capacity", EventQueue.DEFAULT_CAPACITY);
+			logger.info("event.queue.capacity = " + eventQueueCapacity);
+			
+			String policy = file.getOptionalPropertyAsString("event.queue.overflow.policy", EventQueue.DEFAULT_OVERFLOW_POLICY.name());
+			eventQueueOverflowPolicy = EventQueue.OverflowPolicy.valueOf(policy.trim().toUpperCase());
+			logger.info("event.queue.overflow.policy = " + eventQueueOverflowPolicy);
+			
+			String mode = System.getProperty(TesterThreadFactory.THREAD_MODE_PROPERTY);
+			if (mode == null) {
+				mode = file.getOptionalPropertyAsString("thread.mode", TesterThreadFactory.ThreadMode.PLATFORM.name());
+			}
+			threadMode = TesterThreadFactory.ThreadMode.valueOf(mode.trim().toUpperCase());
+			logger.info("thread.mode = " + threadMode);
+			
+			eventJournalDirectory = file.getOptionalPropertyAsString("event.journal.directory", "").trim();
+			if (eventJournalDirectory.isEmpty()) {
+				eventJournalDirectory = null;
+			}
+			logger.info("event.journal.directory = " + eventJournalDirectory);
+			
+			eventJournalSegmentSize = file.getOptionalPropertyAsInt("event.journal.segment.size", 64);
+			logger.info("event.journal.segment.size = " + eventJournalSegmentSize);
+			
+			captureDirectory = file.getOptionalPropertyAsString("capture.directory", "").trim();
+			if (captureDirectory.isEmpty()) {
+				captureDirectory = null;
+			}
+			logger.info("capture.directory = " + captureDirectory);
+			
+			captureFileSize = file.getOptionalPropertyAsInt("capture.file.size", 100);
+			logger.info("capture.file.size = " + captureFileSize);
+			
+			captureFlushInterval = file.getOptionalPropertyAsInt("capture.flush.interval",
+					(int) PcapngCapture.DEFAULT_FLUSH_INTERVAL);
+			logger.info("capture.flush.interval = " + captureFlushInterval);
+			
+			udpIndexTtl = file.getOptionalPropertyAsInt("udp.index.ttl", (int) UdpEventIndex.DEFAULT_TTL);
+			logger.info("udp.index.ttl = " + udpIndexTtl);
+			
 			logger.info("Reading configuration file finished.");
 		} finally {
 			logger.trace(markerExit, "<<< public TestConfig()");
@@ -251,4 +357,61 @@ public class TestConfig {
 	public int getRoutingActivationTimeout() {
 		return 2000;
 	}
+	
+	public int getTcpConnectTimeout() {
+		return tcpConnectTimeout;
+	}
+	
+	public int getConnectionPoolMaxSize() {
+		return connectionPoolMaxSize;
+	}
+	
+	public int getEventQueueCapacity() {
+		return eventQueueCapacity;
+	}
+	
+	public EventQueue.OverflowPolicy getEventQueueOverflowPolicy() {
+		return eventQueueOverflowPolicy;
+	}
+	
+	public TesterThreadFactory.ThreadMode getThreadMode() {
+		return threadMode;
+	}
+	
+	public String getEventJournalDirectory() {
+		return eventJournalDirectory;
+	}
+	
+	/**
+	 * Returns the size of one segment of the event journal in bytes.
+	 */
+	public int getEventJournalSegmentSize() {
+		return eventJournalSegmentSize * 1024 * 1024;
+	}
+	
+	public String getCaptureDirectory() {
+		return captureDirectory;
+	}
+	
+	/**
+	 * Returns the maximum size of one capture file in bytes.
+	 */
+	public long getCaptureFileSize() {
+		return captureFileSize * 1024L * 1024L;
+	}
+	
+	/**
+	 * Returns the flush interval of the packet capture in milliseconds.
+	 */
+	public int getCaptureFlushInterval() {
+		return captureFlushInterval;
+	}
+	
+	/**
+	 * Returns the time in milliseconds after which senders and vehicle
+	 * announcements will be removed from the index of UDP events.
+	 */
+	public int getUdpIndexTtl() {
+		return udpIndexTtl;
+	}
 }
@@ -2,19 +2,29 @@ package doip.tester.toolkit;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.Socket;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
+import doip.library.message.DoipUdpEntityStatusResponse;
 import doip.library.properties.EmptyPropertyValue;
 import doip.library.properties.MissingProperty;
 import doip.library.properties.MissingSystemProperty;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+import doip.tester.toolkit.capture.PcapngCapture;
+import doip.tester.toolkit.journal.EventJournal;
 
 /**
  * Contains all utilities to perform tests for a DoIP gateway.
@@ -45,6 +55,43 @@ public class TestSetup {
 	 */
 	private TesterUdpCommModule testerUdpCommModule = null;
 	
+	/**
+	 * Pool of connections on which the routing activation has already
+	 * been performed
+	 */
+	private TesterTcpConnectionPool connectionPool = null;
+	
+	/**
+	 * Factory for threads which will be created by the tests or by
+	 * the toolkit itself, for example to drive several connections
+	 * in parallel.
+	 */
+	private TesterThreadFactory threadFactory = null;
+	
+	/**
+	 * Checks the timing of all TCP connections and of the UDP module
+	 * against the timers of the configuration
+	 */
+	private TimingAnalyzer timingAnalyzer = null;
+	
+	/**
+	 * Number of TCP connections which have been created, used to name
+	 * the channels of the timing analyzer
+	 */
+	private final AtomicInteger tcpConnectionCount = new AtomicInteger(0);
+	
+	/**
+	 * Journal to which all received events will be written, null if
+	 * no directory for the journal has been configured
+	 */
+	private EventJournal eventJournal = null;
+	
+	/**
+	 * Packet capture of all TCP connections and of the UDP module, null
+	 * if no directory for the capture has been configured
+	 */
+	private PcapngCapture capture = null;
+	
 	private Map<String, String> context;
 	
 	public TestSetup() {
@@ -68,10 +115,33 @@ public class TestSetup {
 			logger.debug("Initialize the test setup");
 	
 			this.config = new TestConfig();
+			this.threadFactory = new TesterThreadFactory("TESTER-WORKER", config.getThreadMode(), true);
+			this.timingAnalyzer = new TimingAnalyzer(this.config);
+			if (config.getEventJournalDirectory() != null) {
+				this.eventJournal = new EventJournal(Paths.get(config.getEventJournalDirectory()), "tester",
+						config.getEventJournalSegmentSize(), EventJournal.DEFAULT_QUEUE_CAPACITY);
+			}
+			if (config.getCaptureDirectory() != null) {
+				this.capture = new PcapngCapture(Paths.get(config.getCaptureDirectory()), "tester",
+						config.getCaptureFileSize(), config.getCaptureFlushInterval());
+			}
 			logger.debug("Create UDP socket");
 			this.testerUdpCommModule = new TesterUdpCommModule(this.config);
 			this.testerUdpCommModule.setContext(context);
-			DatagramSocket socket = new DatagramSocket();
+			this.testerUdpCommModule.setThreadFactory(this.threadFactory);
+			this.testerUdpCommModule.setTimingChannel(this.timingAnalyzer.createUdpChannel("UDP"));
+			this.testerUdpCommModule.setEventJournal(this.eventJournal, 0);
+			// The socket will be created by a channel, so the module can send
+			// requests from a direct buffer. Unlike a DatagramSocket a channel
+			// does not allow broadcasts by default.
+			DatagramChannel channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+			channel.bind(null);
+			DatagramSocket socket = channel.socket();
+			if (this.capture != null) {
+				this.testerUdpCommModule.setCaptureFlow(this.capture.createUdpFlow(
+						(InetSocketAddress) socket.getLocalSocketAddress()));
+			}
 			logger.debug("Start thread which listens on data from UDP socket");
 			this.testerUdpCommModule.start(socket);
 			
@@ -93,6 +163,11 @@ public class TestSetup {
 		try {
 			logger.trace(enter, ">>> public boolean uninitialize()");
 	
+			if (this.connectionPool != null) {
+				this.connectionPool.close();
+				this.connectionPool = null;
+			}
+			
 			if (this.tcpConnections != null) {
 				for (DoipTcpConnectionWithEventCollection conn : this.tcpConnections) {
 					conn.stop();																	
@@ -105,6 +180,16 @@ public class TestSetup {
 				this.testerUdpCommModule = null;
 			}
 			
+			if (this.eventJournal != null) {
+				this.eventJournal.close();
+				this.eventJournal = null;
+			}
+			
+			if (this.capture != null) {
+				this.capture.close();
+				this.capture = null;
+			}
+			
 			this.config = null;
 		
 			return true;
@@ -122,23 +207,71 @@ public class TestSetup {
 	public TesterTcpConnection createTesterTcpConnection() throws IOException {
 		try {
 			logger.trace(enter, ">>> public TesterTcpConnection createTesterTcpConnection()");
-		
-			TesterTcpConnection conn = new TesterTcpConnection(config);
-			this.tcpConnections.add(conn);
-			logger.info("Connect to host with IP address " + config.getTargetAddress() + " and port number " + config.getTargetPort());
-			long before = System.nanoTime();
-			Socket socket = new Socket(config.getTargetAddress(), config.getTargetPort());
+			return connect(new TesterTcpConnection(config));
+		} finally {
+			logger.trace(exit, "<<< public TesterTcpConnection createTesterTcpConnection()");
+		}
+	}
+	
+	/**
+	 * Creates a new TCP connection to the DoIP gateway with an event queue
+	 * which differs from the configuration.
+	 * @param eventQueueCapacity Maximum number of events in the event queue
+	 * @param overflowPolicy Defines what happens if the event queue is full
+	 * @return The new TCP connection
+	 * @throws IOException
+	 */
+	public TesterTcpConnection createTesterTcpConnection(int eventQueueCapacity,
+			EventQueue.OverflowPolicy overflowPolicy) throws IOException {
+		try {
+			logger.trace(enter, ">>> public TesterTcpConnection createTesterTcpConnection(int eventQueueCapacity, EventQueue.OverflowPolicy overflowPolicy)");
+			return connect(new TesterTcpConnection(config, eventQueueCapacity, overflowPolicy));
+		} finally {
+			logger.trace(exit, "<<< public TesterTcpConnection createTesterTcpConnection(int eventQueueCapacity, EventQueue.OverflowPolicy overflowPolicy)");
+		}
+	}
+	
+	/**
+	 * Connects a new TCP connection to the DoIP gateway and starts it.
+	 * If the connection can not be established or started the socket
+	 * will be closed.
+	 */
+	private TesterTcpConnection connect(TesterTcpConnection conn) throws IOException {
+		logger.info("Connect to host with IP address " + config.getTargetAddress() + " and port number " + config.getTargetPort());
+		long before = System.nanoTime();
+		// The socket will be created by a channel, so large diagnostic
+		// messages can be sent with a gathering write
+		SocketChannel channel = SocketChannel.open();
+		try {
+			Socket socket = channel.socket();
+			socket.connect(new InetSocketAddress(config.getTargetAddress(), config.getTargetPort()), config.getTcpConnectTimeout());
 			long after = System.nanoTime();
 			long duration = after - before;
 			logger.info("Connection established. It took " + duration + " ns to establish the connection.");
 			socket.setTcpNoDelay(true);
+			int number = tcpConnectionCount.incrementAndGet();
+			TimingAnalyzer.TcpChannel timing = timingAnalyzer.createTcpChannel("TCP-" + number);
+			timing.onConnected(after);
+			conn.setTimingChannel(timing);
+			conn.setEventJournal(eventJournal, number);
+			if (capture != null) {
+				conn.setCaptureFlow(capture.createTcpFlow((InetSocketAddress) socket.getLocalSocketAddress(),
+						(InetSocketAddress) socket.getRemoteSocketAddress(), after));
+			}
 			conn.setContext(context);
+			conn.setThreadFactory(threadFactory);
 			conn.start(socket);
-			return conn;
-		
-		} finally {
-			logger.trace(exit, "<<< public TesterTcpConnection createTesterTcpConnection()");
+		} catch (IOException | RuntimeException e) {
+			logger.warn(e.getClass().getName() + " while connecting to the gateway, the socket will be closed: " + e.getMessage());
+			try {
+				channel.close();
+			} catch (IOException closeException) {
+				e.addSuppressed(closeException);
+			}
+			throw e;
 		}
+		this.tcpConnections.add(conn);
+		return conn;
 	}
 	
 	/**
@@ -157,6 +290,54 @@ public class TestSetup {
 		}
 	}
 	
+	/**
+	 * Returns the pool of TCP connections on which the routing activation has
+	 * already been performed. The pool will be created on the first call.
+	 * Its size will be determined from the entity status of the gateway
+	 * (maximum number of sockets minus currently open sockets) and is limited
+	 * by the parameter 'connection.pool.max.size' of the configuration.
+	 * @return The connection pool
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public synchronized TesterTcpConnectionPool getConnectionPool() throws IOException, InterruptedException {
+		try {
+			logger.trace(enter, ">>> public TesterTcpConnectionPool getConnectionPool()");
+			if (this.connectionPool == null) {
+				int size = determineConnectionPoolSize();
+				logger.info("Create connection pool with size " + size);
+				this.connectionPool = new TesterTcpConnectionPool(this, size);
+			}
+			return this.connectionPool;
+		} finally {
+			logger.trace(exit, "<<< public TesterTcpConnectionPool getConnectionPool()");
+		}
+	}
+	
+	/**
+	 * Sends a DoIP entity status request to the gateway and calculates the
+	 * number of sockets which are still available. If no valid response has
+	 * been received the maximum size from the configuration will be used.
+	 * @return The size of the connection pool
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private int determineConnectionPoolSize() throws IOException, InterruptedException {
+		int maxSize = config.getConnectionPoolMaxSize();
+		this.testerUdpCommModule.sendDoipUdpEntityStatusRequest(config.getTargetAddress());
+		DoipEventUdpEntityStatusResponse event = this.testerUdpCommModule.waitForEvent(
+				DoipEventUdpEntityStatusResponse.class, config.get_A_DoIP_Ctrl());
+		if (event == null) {
+			logger.warn("No DoIP entity status response received, size of connection pool will be " + maxSize);
+			return maxSize;
+		}
+		DoipUdpEntityStatusResponse response = (DoipUdpEntityStatusResponse) event.getDoipMessage();
+		int available = response.getMaxNumberOfSockets() - response.getCurrentNumberOfSockets();
+		logger.info("Gateway accepts " + response.getMaxNumberOfSockets() + " sockets, "
+				+ response.getCurrentNumberOfSockets() + " sockets are currently open");
+		return Math.max(1, Math.min(maxSize, available));
+	}
+	
 	public TesterUdpCommModule getTesterUdpCommModule() {
 		return this.testerUdpCommModule;
 	}
@@ -164,4 +345,47 @@ public class TestSetup {
 	public TestConfig getConfig() {
 		return this.config;
 	}
+	
+	/**
+	 * Returns the factory for threads which shall be created by the tests.
+	 * Depending on the configuration it creates platform threads or
+	 * virtual threads. The receiver threads of the TCP connections and
+	 * of the UDP communication module will also be created by this factory.
+	 */
+	public TesterThreadFactory getThreadFactory() {
+		return this.threadFactory;
+	}
+	
+	/**
+	 * Returns the analyzer which checks the timing of all TCP connections
+	 * created by this test setup and of the UDP communication module
+	 * against the timers of the configuration.
+	 */
+	public TimingAnalyzer getTimingAnalyzer() {
+		return this.timingAnalyzer;
+	}
+	
+	/**
+	 * Returns the journal to which all received events will be written.
+	 * The UDP communication module writes on channel 0, the TCP
+	 * connections on channel 1, 2, 3 and so on in the order in which
+	 * they have been created.
+	 * 
+	 * @return The journal or null if the parameter
+	 *         'event.journal.directory' has not been configured
+	 */
+	public EventJournal getEventJournal() {
+		return this.eventJournal;
+	}
+	
+	/**
+	 * Returns the packet capture of all TCP connections and of the UDP
+	 * communication module.
+	 * 
+	 * @return The capture or null if the parameter 'capture.directory'
+	 *         has not been configured
+	 */
+	public PcapngCapture getCapture() {
+		return this.capture;
+	}
 }
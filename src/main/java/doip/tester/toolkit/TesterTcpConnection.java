@@ -1,18 +1,33 @@
 package doip.tester.toolkit;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
+import doip.library.comm.DoipTcpConnection;
 import doip.library.message.DoipMessage;
 import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessageNegAck;
 import doip.library.message.DoipTcpDiagnosticMessagePosAck;
 import doip.library.message.DoipTcpRoutingActivationRequest;
 import doip.library.message.DoipTcpRoutingActivationResponse;
 import doip.library.util.Helper;
+import doip.tester.toolkit.capture.TcpFlow;
 import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventMessage;
 import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
 import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
 import doip.tester.toolkit.event.DoipEventTcpRoutingActivationResponse;
@@ -29,10 +44,121 @@ public class TesterTcpConnection extends DoipTcpConnectionWithEventCollection {
 
 	private TestConfig config = null;
 
+	/**
+	 * Cursor on the event queue which will be used to read the responses
+	 * on requests which have been sent by this connection. It is not a
+	 * gating cursor, it only reads events while a request is executed and
+	 * must not hold back the receiver thread in between.
+	 */
+	private final EventCursor cursor;
+
+	/**
+	 * UDS service identifier of a negative response
+	 */
+	private static final int UDS_NEGATIVE_RESPONSE = 0x7F;
+
+	/**
+	 * UDS negative response code 'request correctly received - response pending'
+	 */
+	private static final int UDS_NRC_RESPONSE_PENDING = 0x78;
+
+	/**
+	 * Asynchronous diagnostic services which are waiting for the
+	 * acknowledge. The key is built from source and target address of
+	 * the acknowledge, see {@link #getAddressKey(int, int)}. Acknowledges
+	 * will be received in the same order as the requests have been sent.
+	 */
+	private final HashMap<Integer, ArrayDeque<DiagnosticServiceFuture>> pendingAcks =
+			new HashMap<Integer, ArrayDeque<DiagnosticServiceFuture>>();
+
+	/**
+	 * Asynchronous diagnostic services which are waiting for the response.
+	 * The key is built from source and target address of the response and
+	 * the UDS service identifier, see {@link #getServiceKey(int, int, int)}.
+	 */
+	private final HashMap<Long, ArrayDeque<DiagnosticServiceFuture>> pendingResponses =
+			new HashMap<Long, ArrayDeque<DiagnosticServiceFuture>>();
+
+	/**
+	 * Lock for the maps with pending diagnostic services
+	 */
+	private final Object pendingLock = new Object();
+
+	/**
+	 * Scheduler for the timeouts of the asynchronous diagnostic services
+	 * of all connections. Cancelled timeouts will be removed from its
+	 * queue immediately.
+	 */
+	private static final ScheduledThreadPoolExecutor TIMEOUT_SCHEDULER = createTimeoutScheduler();
+
+	/**
+	 * Latencies of the requests which have been sent on this connection
+	 */
+	private final LatencyInstrumentation latencies = new LatencyInstrumentation();
+
+	/**
+	 * Channel of the timing analyzer, null if the timing will not be analyzed
+	 */
+	private volatile TimingAnalyzer.TcpChannel timing = null;
+
+	/**
+	 * Flow in the packet capture, null if the traffic will not be captured
+	 */
+	private volatile TcpFlow capture = null;
+
+	/**
+	 * First two bytes of the generic DoIP header (protocol version and
+	 * inverse protocol version) as encoded by the library
+	 */
+	private static final byte[] PROTOCOL_VERSION = new DoipTcpDiagnosticMessage(0, 0, new byte[] {0x3E}).getMessage();
+
+	/**
+	 * Length of the generic header and the source and target address of
+	 * a diagnostic message
+	 */
+	private static final int DIAGNOSTIC_MESSAGE_HEADER_LENGTH = DoipMessageDecoder.HEADER_LENGTH + 4;
+
+	/**
+	 * Channel of the socket, null if the socket has not been created
+	 * by a {@link SocketChannel}
+	 */
+	private volatile SocketChannel channel = null;
+
+	/**
+	 * Buffer for the header of a diagnostic message. Access is guarded
+	 * by the send lock of the base class.
+	 */
+	private final ByteBuffer header = ByteBuffer.allocateDirect(DIAGNOSTIC_MESSAGE_HEADER_LENGTH);
+
+	/**
+	 * Header and payload of a diagnostic message for the gathering write.
+	 * Access is guarded by the send lock of the base class.
+	 */
+	private final ByteBuffer[] gather = new ByteBuffer[] {header, null};
+
+	/**
+	 * Event which has been created by the base class for the message that
+	 * is currently processed. Will only be accessed by the receiver thread.
+	 */
+	private DoipEvent receivedEvent = null;
+
 	public TesterTcpConnection(TestConfig config) {
-		super("TCP-TESTER-" + connectionCounter, 64);
+		this(config, config.getEventQueueCapacity(), config.getEventQueueOverflowPolicy());
+	}
+
+	/**
+	 * Constructor with parameters for the event queue which differ from
+	 * the configuration.
+	 * 
+	 * @param config The test configuration
+	 * @param eventQueueCapacity Maximum number of events in the event queue
+	 * @param overflowPolicy Defines what happens if the event queue is full
+	 */
+	public TesterTcpConnection(TestConfig config, int eventQueueCapacity, EventQueue.OverflowPolicy overflowPolicy) {
+		super("TCP-TESTER-" + connectionCounter, 64, eventQueueCapacity, overflowPolicy);
 		connectionCounter++;
 		this.config = config;
+		this.cursor = this.createEventCursor();
 	}
 
 	/**
@@ -52,6 +178,12 @@ public class TesterTcpConnection extends DoipTcpConnectionWithEventCollection {
 	
 			DoipTcpRoutingActivationRequest request = new DoipTcpRoutingActivationRequest(sourceAddress, activationType, oemData);
 			logger.info("Send routing activation request");
+			long now = System.nanoTime();
+			this.latencies.onRoutingActivationRequestSent(now);
+			TimingAnalyzer.TcpChannel currentTiming = this.timing;
+			if (currentTiming != null) {
+				currentTiming.onRoutingActivationRequestSent(now);
+			}
 			this.send(request);
 		} finally {
 			logger.trace(exit, "<<< public void sendRoutingActivationRequest(int sourceAddress, int activationType, long oemData)");
@@ -76,14 +208,14 @@ public class TesterTcpConnection extends DoipTcpConnectionWithEventCollection {
 		try {
 			logger.trace(enter, ">>> " + function);
 
-			// Clear the event queue
-			this.clearEvents();
+			// Only events after sending the request are relevant
+			this.skipPreviousEvents();
 
 			this.sendRoutingActivationRequest(address, activationType, -1);
 
 			// Wait for incoming TCP message
 			DoipEvent event = null;
-			event = this.waitForEvents(1, config.getRoutingActivationTimeout());
+			event = this.waitForNextEvent(config.getRoutingActivationTimeout());
 			CheckResult result = EventChecker.checkEvent(event, DoipEventTcpRoutingActivationResponse.class);
 			if (result.getCode() != CheckResult.NO_ERROR) {
 				logger.error(result.getText());
@@ -124,7 +256,37 @@ public class TesterTcpConnection extends DoipTcpConnectionWithEventCollection {
 			logger.trace(">>> " + function);
 			logger.trace("<<< " + function);
 	}
-	
+
+	/**
+	 * Does nothing, a diagnostic tester shall not send a negative
+	 * acknowledge message. The message has already been discarded.
+	 */
+	@Override
+	public void onHeaderUnknownPayloadType() {
+		logger.info("Received TCP message with unknown payload type, but there is nothing to do " +
+				"because a diagnostic tester shall not send a negative acknowledge message.");
+	}
+
+	/**
+	 * Does nothing, a diagnostic tester shall not send a negative
+	 * acknowledge message. The message has already been discarded.
+	 */
+	@Override
+	public void onHeaderMessageTooLarge() {
+		logger.info("Received TCP message which was too large, but there is nothing to do " +
+				"because a diagnostic tester shall not send a negative acknowledge message.");
+	}
+
+	/**
+	 * Does nothing, a diagnostic tester shall not send a negative
+	 * acknowledge message. The message has already been discarded.
+	 */
+	@Override
+	public void onHeaderInvalidPayloadLength() {
+		logger.info("Received TCP message with invalid payload length, but there is nothing to do " +
+				"because a diagnostic tester shall not send a negative acknowledge message.");
+	}
+
 	/**
 	 * Executes a diagnostic service and check for correct result.
 	 * @param request
@@ -136,12 +298,21 @@ public class TesterTcpConnection extends DoipTcpConnectionWithEventCollection {
 
 		try {
 			logger.trace(enter, ">>> public byte[] executeDiagnosticService(byte[] request)");
-			this.clearEvents();
+			// Only events after sending the request are relevant
+			this.skipPreviousEvents();
 			
-			this.sendDiagnosticMessage(config.getTesterAddress(), config.getEcuAddressPhysical(), request);
+			try {
+				this.sendDiagnosticMessage(config.getTesterAddress(), config.getEcuAddressPhysical(), request);
+			} catch (UncheckedIOException e) {
+				DiagnosticServiceExecutionFailed ex =
+						new DiagnosticServiceExecutionFailed(
+								DiagnosticServiceExecutionFailed.SEND_FAILED,
+								"Diagnostic request could not be sent: " + e.getCause().getMessage());
+				throw logger.throwing(Level.INFO, ex);
+			}
 			
 			// It is expected to receive a positive acknowledge on the diagnostic request message
-			DoipEvent event = this.waitForEvents(1, config.get_A_DoIP_Diagnostic_Message());
+			DoipEvent event = this.waitForNextEvent(config.get_A_DoIP_Diagnostic_Message());
 			CheckResult result = EventChecker.checkEvent(event, DoipEventTcpDiagnosticMessagePosAck.class);
 			if (result.getCode() != CheckResult.NO_ERROR ) {
 				logger.error(result.getText());
@@ -165,8 +336,8 @@ public class TesterTcpConnection extends DoipTcpConnectionWithEventCollection {
 			DoipEventTcpDiagnosticMessagePosAck posAckEvent = (DoipEventTcpDiagnosticMessagePosAck) event;
 			DoipTcpDiagnosticMessagePosAck posAckMsg = (DoipTcpDiagnosticMessagePosAck) posAckEvent.getDoipMessage();
 
-			event = this.waitForEvents(2, config.get_A_DoIP_Diagnostic_Message());
-			EventChecker.checkEvent(event, DoipEventTcpDiagnosticMessage.class);
+			event = this.waitForNextEvent(config.get_A_DoIP_Diagnostic_Message());
+			result = EventChecker.checkEvent(event, DoipEventTcpDiagnosticMessage.class);
 			if (result.getCode() != CheckResult.NO_ERROR ) {
 				logger.error(result.getText());
 			}
@@ -203,10 +374,493 @@ public class TesterTcpConnection extends DoipTcpConnectionWithEventCollection {
 	public void sendDiagnosticMessage(int sourceAddress, int targetAddress, byte[] message) {
 		try {
 			logger.trace(enter, ">>> public void sendDiagnosticMessage(int sourceAddress, int targetAddress, byte[] message)");
-			DoipTcpDiagnosticMessage request = new DoipTcpDiagnosticMessage(sourceAddress, targetAddress, message);
-			this.send(request);
+			sendDiagnosticMessage(sourceAddress, targetAddress, ByteBuffer.wrap(message));
 		} finally {
 			logger.trace(exit, "<<< public void sendDiagnosticMessage(int sourceAddress, int targetAddress, byte[] message)");
 		}
 	}
+
+	/**
+	 * Sends a diagnostic message with the bytes from the position to the
+	 * limit of the buffer as payload. If the socket has been created by a
+	 * {@link SocketChannel} the header will be written from a buffer of
+	 * this connection and the payload will follow with the same gathering
+	 * write. The payload will only be written without copying it if the
+	 * buffer is a direct buffer, the JDK copies a heap buffer into a
+	 * temporary direct buffer. This makes a difference for large requests
+	 * like TransferData. Without a channel or if the traffic will be
+	 * captured, header and payload will be copied once into one array.
+	 * After the call the position of the buffer is at its limit.
+	 *
+	 * @param sourceAddress Logical address of the tester
+	 * @param targetAddress Logical address of the ECU
+	 * @param message The UDS message, it can also be a slice of a
+	 *                larger buffer
+	 * @throws UncheckedIOException If the message could not be sent. The
+	 *                              receiver thread will also detect the
+	 *                              closed connection.
+	 */
+	public void sendDiagnosticMessage(int sourceAddress, int targetAddress, ByteBuffer message) {
+		try {
+			logger.trace(enter, ">>> public void sendDiagnosticMessage(int sourceAddress, int targetAddress, ByteBuffer message)");
+			long now = System.nanoTime();
+			this.latencies.onDiagnosticMessageSent(sourceAddress, targetAddress, now);
+			TimingAnalyzer.TcpChannel currentTiming = this.timing;
+			if (currentTiming != null) {
+				currentTiming.onDiagnosticMessageSent(sourceAddress, targetAddress, now);
+			}
+			SocketChannel currentChannel = this.channel;
+			TcpFlow currentCapture = this.capture;
+			try {
+				if (currentChannel == null || currentCapture != null) {
+					// The capture needs the whole message in one array anyway
+					byte[] data = new byte[DIAGNOSTIC_MESSAGE_HEADER_LENGTH + message.remaining()];
+					ByteBuffer frame = ByteBuffer.wrap(data);
+					putDiagnosticMessageHeader(frame, sourceAddress, targetAddress, message.remaining());
+					frame.put(message);
+					if (currentCapture != null) {
+						currentCapture.onSent(System.nanoTime(), data);
+					}
+					write(data);
+					return;
+				}
+				synchronized (getSendLock()) {
+					header.clear();
+					putDiagnosticMessageHeader(header, sourceAddress, targetAddress, message.remaining());
+					header.flip();
+					gather[1] = message;
+					try {
+						logSend(gather);
+						// A blocking channel writes everything and other threads
+						// can not write to the channel in between
+						currentChannel.write(gather);
+					} finally {
+						gather[1] = null;
+					}
+				}
+			} catch (IOException e) {
+				throw logger.throwing(new UncheckedIOException("Sending diagnostic message failed", e));
+			}
+		} finally {
+			logger.trace(exit, "<<< public void sendDiagnosticMessage(int sourceAddress, int targetAddress, ByteBuffer message)");
+		}
+	}
+
+	private static void putDiagnosticMessageHeader(ByteBuffer out, int sourceAddress, int targetAddress,
+			int payloadLength) {
+		out.put(PROTOCOL_VERSION, 0, 2);
+		out.putShort((short) DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE);
+		out.putInt(4 + payloadLength);
+		out.putShort((short) sourceAddress);
+		out.putShort((short) targetAddress);
+	}
+
+	/**
+	 * Returns the latencies of the requests which have been sent on this
+	 * connection. The instrumentation is always active.
+	 */
+	public LatencyInstrumentation getLatencyInstrumentation() {
+		return latencies;
+	}
+
+	/**
+	 * Sets the channel of the timing analyzer which will be fed with the
+	 * send times and the received events of this connection.
+	 *
+	 * @param timing The channel or null to stop the analysis
+	 */
+	public void setTimingChannel(TimingAnalyzer.TcpChannel timing) {
+		this.timing = timing;
+	}
+
+	public TimingAnalyzer.TcpChannel getTimingChannel() {
+		return timing;
+	}
+
+	/**
+	 * Sets the flow of the packet capture to which all data which will be
+	 * sent and received on this connection will be written.
+	 *
+	 * @param capture The flow or null to stop capturing
+	 */
+	public void setCaptureFlow(TcpFlow capture) {
+		this.capture = capture;
+	}
+
+	public TcpFlow getCaptureFlow() {
+		return capture;
+	}
+
+	/**
+	 * Starts the connection. If the socket has been created by a
+	 * {@link SocketChannel} diagnostic messages will be sent with a
+	 * gathering write.
+	 */
+	@Override
+	public void start(Socket socket) {
+		this.channel = socket.getChannel();
+		super.start(socket);
+	}
+
+	@Override
+	public void send(byte[] data) {
+		TcpFlow currentCapture = this.capture;
+		if (currentCapture != null) {
+			currentCapture.onSent(System.nanoTime(), data);
+		}
+		super.send(data);
+	}
+
+	@Override
+	protected void onEvent(DoipEvent event) {
+		this.receivedEvent = event;
+		latencies.onEvent(event);
+		TimingAnalyzer.TcpChannel currentTiming = this.timing;
+		if (currentTiming != null) {
+			currentTiming.onEvent(event);
+		}
+		if (event instanceof DoipEventConnectionClosed) {
+			TcpFlow currentCapture = this.capture;
+			if (currentCapture != null) {
+				currentCapture.onClosed(event.getTimestamp(), false);
+			}
+		}
+	}
+
+	/**
+	 * Writes the received bytes to the packet capture before they will be
+	 * decoded, so the capture also contains invalid messages and messages
+	 * of types which have not been subscribed.
+	 */
+	@Override
+	protected void onDataReceived(byte[] data, int offset, int length) {
+		TcpFlow currentCapture = this.capture;
+		if (currentCapture != null) {
+			currentCapture.onReceived(System.nanoTime(), data, offset, length);
+		}
+	}
+
+	@Override
+	public void stop() {
+		this.channel = null;
+		TimingAnalyzer.TcpChannel currentTiming = this.timing;
+		if (currentTiming != null) {
+			currentTiming.onClose();
+		}
+		TcpFlow currentCapture = this.capture;
+		if (currentCapture != null) {
+			currentCapture.onClosed(System.nanoTime(), true);
+		}
+		super.stop();
+	}
+
+	/**
+	 * Moves the cursor of this connection behind all events which have
+	 * been received so far. If the event queue does not overwrite old
+	 * events (overflow policy DROP_NEWEST or BLOCK) it will also be
+	 * cleared. Otherwise it would stay full after some requests and the
+	 * responses would be dropped or the receiver thread would wait forever.
+	 */
+	private void skipPreviousEvents() {
+		this.cursor.skipToEnd();
+		if (this.getEventQueueOverflowPolicy() != EventQueue.OverflowPolicy.DROP_OLDEST) {
+			this.clearEvents();
+		}
+	}
+
+	/**
+	 * Waits for the next event which has not yet been read by the cursor
+	 * of this connection.
+	 * 
+	 * @param timeoutms Timeout in milliseconds
+	 * @return The next event or null if no event has been received
+	 *         within the timeout.
+	 * @throws InterruptedException
+	 */
+	private DoipEvent waitForNextEvent(long timeoutms) throws InterruptedException {
+		logger.info("Wait for next incoming event, timeout is " + timeoutms + " ms");
+		DoipEvent event = this.cursor.next(timeoutms);
+		if (event == null) {
+			logger.debug("No event has been received within " + timeoutms + " ms");
+		}
+		return event;
+	}
+
+	/**
+	 * Sends a diagnostic request to the physical ECU address from the
+	 * configuration without waiting for the response.
+	 * 
+	 * @param request The UDS request
+	 * @return Future which will be completed when the response has been
+	 *         received.
+	 * @see #executeDiagnosticServiceAsync(int, byte[])
+	 */
+	public DiagnosticServiceFuture executeDiagnosticServiceAsync(byte[] request) {
+		return executeDiagnosticServiceAsync(config.getEcuAddressPhysical(), request);
+	}
+
+	/**
+	 * Sends a diagnostic request without waiting for the response. Any
+	 * number of requests can be outstanding on one connection. Acknowledges
+	 * will be assigned to the requests by source and target address in the
+	 * order of the requests, responses will be assigned by source and target
+	 * address and by the UDS service identifier. Like in
+	 * {@link #executeDiagnosticServicePosAck(byte[])} the acknowledge is
+	 * expected within A_DoIP_Diagnostic_Message and the timeout will be
+	 * restarted for the response when the acknowledge has been received.
+	 * A negative response 'response pending' (NRC 0x78) restarts the
+	 * timeout for the response with A_Processing_Time.
+	 * <p>
+	 * The futures will be completed by the receiver thread. If the overflow
+	 * policy of the event queue is BLOCK the test has to clear the events
+	 * or read them with a gating cursor, otherwise the receiver thread
+	 * waits when the queue is full and no further future will be completed.
+	 * 
+	 * @param targetAddress The logical address of the ECU
+	 * @param request The UDS request
+	 * @return Future which will be completed when the response has been
+	 *         received. The future for the positive acknowledge can be
+	 *         obtained by {@link DiagnosticServiceFuture#getPosAck()}.
+	 */
+	public DiagnosticServiceFuture executeDiagnosticServiceAsync(int targetAddress, byte[] request) {
+		String function = "public DiagnosticServiceFuture executeDiagnosticServiceAsync(int targetAddress, byte[] request)";
+		try {
+			logger.trace(enter, ">>> " + function);
+			if (request == null || request.length == 0) {
+				throw logger.throwing(new IllegalArgumentException("The diagnostic request must not be empty"));
+			}
+			int sourceAddress = config.getTesterAddress();
+			DiagnosticServiceFuture future = new DiagnosticServiceFuture(sourceAddress, targetAddress, request);
+			Integer addressKey = getAddressKey(targetAddress, sourceAddress);
+			Long serviceKey = getServiceKey(targetAddress, sourceAddress, future.getServiceId());
+			synchronized (pendingLock) {
+				pendingAcks.computeIfAbsent(addressKey, key -> new ArrayDeque<DiagnosticServiceFuture>()).add(future);
+				pendingResponses.computeIfAbsent(serviceKey, key -> new ArrayDeque<DiagnosticServiceFuture>()).add(future);
+			}
+			future.whenComplete((response, ex) -> {
+				removePending(future, addressKey, serviceKey);
+				future.cancelTimeout();
+			});
+			
+			scheduleTimeout(future, config.get_A_DoIP_Diagnostic_Message());
+			try {
+				this.sendDiagnosticMessage(sourceAddress, targetAddress, request);
+			} catch (UncheckedIOException e) {
+				future.completeExceptionally(new DiagnosticServiceExecutionFailed(
+						DiagnosticServiceExecutionFailed.SEND_FAILED,
+						"Diagnostic request could not be sent: " + e.getCause().getMessage()));
+			}
+			return future;
+		} finally {
+			logger.trace(exit, "<<< " + function);
+		}
+	}
+
+	@Override
+	public void onDoipTcpDiagnosticMessagePosAck(DoipTcpConnection doipTcpConnection,
+			DoipTcpDiagnosticMessagePosAck doipMessage) {
+		super.onDoipTcpDiagnosticMessagePosAck(doipTcpConnection, doipMessage);
+		DoipEventTcpDiagnosticMessagePosAck event = takeReceivedEvent(DoipEventTcpDiagnosticMessagePosAck.class, doipMessage);
+		DiagnosticServiceFuture future = pollPendingAck(doipMessage.getSourceAddress(), doipMessage.getTargetAddress());
+		if (future != null) {
+			if (event == null) {
+				// The type has not been subscribed, so there is no event yet
+				event = new DoipEventTcpDiagnosticMessagePosAck(System.nanoTime(), doipMessage);
+			}
+			// Like the synchronous execution the response will be expected
+			// within A_DoIP_Diagnostic_Message after the acknowledge
+			scheduleTimeout(future, config.get_A_DoIP_Diagnostic_Message());
+			future.getPosAck().complete(event);
+		}
+	}
+
+	@Override
+	public void onDoipTcpDiagnosticMessageNegAck(DoipTcpConnection doipTcpConnection,
+			DoipTcpDiagnosticMessageNegAck doipMessage) {
+		super.onDoipTcpDiagnosticMessageNegAck(doipTcpConnection, doipMessage);
+		DiagnosticServiceFuture future = pollPendingAck(doipMessage.getSourceAddress(), doipMessage.getTargetAddress());
+		if (future != null) {
+			future.completeExceptionally(new DiagnosticServiceExecutionFailed(
+					DiagnosticServiceExecutionFailed.NEG_ACK_RECEIVED,
+					"A '" + DoipTcpDiagnosticMessageNegAck.getMessageNameOfClass() + "' has been received."));
+		}
+	}
+
+	@Override
+	public void onDoipTcpDiagnosticMessage(DoipTcpConnection doipTcpConnection,
+			DoipTcpDiagnosticMessage doipMessage) {
+		super.onDoipTcpDiagnosticMessage(doipTcpConnection, doipMessage);
+		DoipEventTcpDiagnosticMessage event = takeReceivedEvent(DoipEventTcpDiagnosticMessage.class, doipMessage);
+		byte[] response = doipMessage.getDiagnosticMessage();
+		if (response == null || response.length == 0) {
+			return;
+		}
+		int serviceId;
+		boolean responsePending = false;
+		if ((response[0] & 0xFF) == UDS_NEGATIVE_RESPONSE) {
+			if (response.length < 3) {
+				return;
+			}
+			serviceId = response[1] & 0xFF;
+			responsePending = (response[2] & 0xFF) == UDS_NRC_RESPONSE_PENDING;
+		} else {
+			serviceId = (response[0] & 0xFF) - 0x40;
+		}
+		Long serviceKey = getServiceKey(doipMessage.getSourceAddress(), doipMessage.getTargetAddress(), serviceId);
+		DiagnosticServiceFuture future;
+		synchronized (pendingLock) {
+			ArrayDeque<DiagnosticServiceFuture> queue = pendingResponses.get(serviceKey);
+			if (queue == null) {
+				return;
+			}
+			future = responsePending ? queue.peek() : queue.poll();
+		}
+		if (future == null) {
+			return;
+		}
+		if (responsePending) {
+			logger.debug("Response pending received, restart timeout for response");
+			scheduleTimeout(future, config.get_A_Processing_Time());
+		} else {
+			if (event == null) {
+				// The type has not been subscribed, so there is no event yet
+				event = new DoipEventTcpDiagnosticMessage(System.nanoTime(), doipMessage);
+			}
+			future.complete(event);
+		}
+	}
+
+	@Override
+	public void onConnectionClosed(DoipTcpConnection doipTcpConnection) {
+		super.onConnectionClosed(doipTcpConnection);
+		failPendingServices(DiagnosticServiceExecutionFailed.CONNECTION_CLOSED,
+				"The connection has been closed before the response has been received.");
+	}
+
+	/**
+	 * Prepares the connection for the next test, will be called by the
+	 * {@link TesterTcpConnectionPool} when the connection will be released.
+	 * Asynchronous diagnostic services which are still pending will be
+	 * completed exceptionally, all events received so far will be cleared
+	 * (including the positions of the type index and of the cursor of this
+	 * connection) and all event types will be subscribed again.
+	 */
+	public void reset() {
+		try {
+			logger.trace(enter, ">>> public void reset()");
+			failPendingServices(DiagnosticServiceExecutionFailed.CONNECTION_RELEASED,
+					"The connection has been released before the response has been received.");
+			this.subscribeAll();
+			this.clearEvents();
+			this.cursor.skipToEnd();
+		} finally {
+			logger.trace(exit, "<<< public void reset()");
+		}
+	}
+
+	/**
+	 * Completes all pending asynchronous diagnostic services exceptionally.
+	 */
+	private void failPendingServices(int code, String text) {
+		ArrayDeque<DiagnosticServiceFuture> pending = new ArrayDeque<DiagnosticServiceFuture>();
+		synchronized (pendingLock) {
+			for (ArrayDeque<DiagnosticServiceFuture> queue : pendingResponses.values()) {
+				pending.addAll(queue);
+			}
+		}
+		for (DiagnosticServiceFuture future : pending) {
+			future.completeExceptionally(new DiagnosticServiceExecutionFailed(code, text));
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor createTimeoutScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+				new TesterThreadFactory("TESTER-TIMEOUT", TesterThreadFactory.ThreadMode.PLATFORM, true));
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	/**
+	 * Schedules the timeout for a pending diagnostic service and cancels
+	 * the timeout which has been scheduled before. If the service has not
+	 * been completed within the timeout it will be completed exceptionally.
+	 */
+	private void scheduleTimeout(DiagnosticServiceFuture future, long timeoutms) {
+		int generation = future.restartTimeout();
+		future.setTimeout(TIMEOUT_SCHEDULER.schedule(() -> {
+			if (future.isDone() || future.getTimeoutGeneration() != generation) {
+				return;
+			}
+			DiagnosticServiceExecutionFailed ex;
+			if (!future.getPosAck().isDone()) {
+				ex = new DiagnosticServiceExecutionFailed(
+						DiagnosticServiceExecutionFailed.NO_DIAG_MESSAGE_POS_ACK_RECEIVED,
+						"No message of type '" + DoipTcpDiagnosticMessagePosAck.getMessageNameOfClass() + "' has been received.");
+			} else {
+				ex = new DiagnosticServiceExecutionFailed(
+						DiagnosticServiceExecutionFailed.NO_DIAG_MESSAGE_RECEIVED,
+						"No response has been received within " + timeoutms + " ms.");
+			}
+			logger.info(ex.getMessage());
+			future.completeExceptionally(ex);
+		}, timeoutms, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Removes the oldest diagnostic service which waits for an acknowledge
+	 * with the given addresses.
+	 */
+	private DiagnosticServiceFuture pollPendingAck(int sourceAddress, int targetAddress) {
+		synchronized (pendingLock) {
+			ArrayDeque<DiagnosticServiceFuture> queue = pendingAcks.get(getAddressKey(sourceAddress, targetAddress));
+			return queue == null ? null : queue.poll();
+		}
+	}
+
+	/**
+	 * Removes a completed diagnostic service from the maps of pending
+	 * services. Will be called for every way of completion. Empty queues
+	 * will be removed, so the maps do not grow with every address and
+	 * service identifier which has ever been used.
+	 */
+	private void removePending(DiagnosticServiceFuture future, Integer addressKey, Long serviceKey) {
+		synchronized (pendingLock) {
+			removeFromQueue(pendingAcks, addressKey, future);
+			removeFromQueue(pendingResponses, serviceKey, future);
+		}
+	}
+
+	private static <K> void removeFromQueue(HashMap<K, ArrayDeque<DiagnosticServiceFuture>> map, K key,
+			DiagnosticServiceFuture future) {
+		ArrayDeque<DiagnosticServiceFuture> queue = map.get(key);
+		if (queue == null) {
+			return;
+		}
+		queue.remove(future);
+		if (queue.isEmpty()) {
+			map.remove(key);
+		}
+	}
+
+	/**
+	 * Returns the event which has been created by the base class for the
+	 * given message, or null if the type of the message has not been
+	 * subscribed. Will only be called by the receiver thread.
+	 */
+	private <T extends DoipEventMessage> T takeReceivedEvent(Class<T> type, DoipMessage message) {
+		DoipEvent event = this.receivedEvent;
+		this.receivedEvent = null;
+		if (type.isInstance(event) && ((DoipEventMessage) event).getDoipMessage() == message) {
+			return type.cast(event);
+		}
+		return null;
+	}
+
+	private static Integer getAddressKey(int sourceAddress, int targetAddress) {
+		return ((sourceAddress & 0xFFFF) << 16) | (targetAddress & 0xFFFF);
+	}
+
+	private static Long getServiceKey(int sourceAddress, int targetAddress, int serviceId) {
+		return ((long) getAddressKey(sourceAddress, targetAddress) << 8) | (serviceId & 0xFF);
+	}
 }
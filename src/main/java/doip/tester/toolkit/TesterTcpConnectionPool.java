@@ -0,0 +1,208 @@
+package doip.tester.toolkit;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.tester.toolkit.exception.RoutingActivationFailed;
+
+/**
+ * Pool of TCP connections to the gateway on which the routing activation
+ * has already been performed. A test acquires a connection from the pool
+ * and releases it when it is finished, so the costs for establishing the
+ * TCP connection and for the routing activation will only occur once per
+ * test run instead of once per test.
+ * <p>
+ * Connections will be created on demand until the size of the pool has
+ * been reached. Connections which have been closed by the gateway will be
+ * removed from the pool when they are released.
+ */
+public class TesterTcpConnectionPool {
+
+	private static Logger logger = LogManager.getLogger(TesterTcpConnectionPool.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	private final TestSetup testSetup;
+
+	/**
+	 * Maximum number of connections in this pool
+	 */
+	private final int size;
+
+	/**
+	 * Connections which are currently not used
+	 */
+	private final LinkedBlockingDeque<TesterTcpConnection> idle = new LinkedBlockingDeque<TesterTcpConnection>();
+
+	/**
+	 * Number of connections which have been created and not yet been removed
+	 */
+	private final AtomicInteger created = new AtomicInteger(0);
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor
+	 *
+	 * @param testSetup The test setup which will be used to create new
+	 *                  connections
+	 *
+	 * @param size Maximum number of connections in the pool
+	 */
+	public TesterTcpConnectionPool(TestSetup testSetup, int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Size of connection pool must be greater than 0, but it was " + size);
+		}
+		this.testSetup = testSetup;
+		this.size = size;
+	}
+
+	/**
+	 * Returns a connection on which the routing activation has already been
+	 * performed. If there is no idle connection and the size of the pool has
+	 * not been reached a new connection will be created, otherwise the
+	 * function waits until another test releases a connection.
+	 *
+	 * @param timeoutms Maximum time in milliseconds to wait for a connection
+	 *
+	 * @return A connection or null if no connection became available
+	 *         within the timeout
+	 *
+	 * @throws IOException If a new connection could not be established
+	 * @throws RoutingActivationFailed If the routing activation on a new
+	 *                                 connection failed
+	 * @throws InterruptedException
+	 */
+	public TesterTcpConnection acquire(long timeoutms) throws IOException, RoutingActivationFailed, InterruptedException {
+		try {
+			logger.trace(enter, ">>> public TesterTcpConnection acquire(long timeoutms)");
+			if (closed) {
+				throw logger.throwing(new IllegalStateException("Connection pool has already been closed"));
+			}
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutms);
+			while (true) {
+				TesterTcpConnection conn = idle.pollFirst();
+				if (conn == null) {
+					conn = tryCreateConnection();
+				}
+				if (conn == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						logger.warn("No connection available in connection pool within " + timeoutms + " ms");
+						return null;
+					}
+					conn = idle.pollFirst(remaining, TimeUnit.NANOSECONDS);
+				}
+				if (conn == null) {
+					continue;
+				}
+				if (conn.isClosed()) {
+					discard(conn);
+					continue;
+				}
+				// Late responses on requests of the previous test could have
+				// been received after the connection has been released
+				conn.clearEvents();
+				return conn;
+			}
+		} finally {
+			logger.trace(exit, "<<< public TesterTcpConnection acquire(long timeoutms)");
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool. Connections which have been closed
+	 * will be removed from the pool. Otherwise the connection will be
+	 * reset (see {@link TesterTcpConnection#reset()}), so the next test
+	 * does not see events, subscriptions or pending services of the
+	 * previous test.
+	 *
+	 * @param conn The connection which has been acquired before
+	 */
+	public void release(TesterTcpConnection conn) {
+		if (conn.isClosed() || closed) {
+			discard(conn);
+		} else {
+			conn.reset();
+			idle.offerFirst(conn);
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Connections which are still in use will
+	 * be closed when they will be released.
+	 */
+	public void close() {
+		closed = true;
+		TesterTcpConnection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			discard(conn);
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of connections which are currently not used.
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * Returns the number of connections which have been established by the
+	 * pool and are still open.
+	 */
+	public int getConnectionCount() {
+		return created.get();
+	}
+
+	/**
+	 * Creates a new connection and performs the routing activation if
+	 * the size of the pool has not been reached.
+	 *
+	 * @return The new connection or null if the size of the pool has
+	 *         been reached
+	 */
+	private TesterTcpConnection tryCreateConnection() throws IOException, RoutingActivationFailed, InterruptedException {
+		int count;
+		do {
+			count = created.get();
+			if (count >= size) {
+				return null;
+			}
+		} while (!created.compareAndSet(count, count + 1));
+
+		TesterTcpConnection conn = null;
+		boolean success = false;
+		try {
+			logger.info("Create connection " + (count + 1) + " of " + size + " in connection pool");
+			conn = testSetup.createTesterTcpConnection();
+			conn.performRoutingActivation(testSetup.getConfig().getTesterAddress(), 0);
+			success = true;
+			return conn;
+		} finally {
+			if (!success) {
+				created.decrementAndGet();
+				if (conn != null) {
+					testSetup.removeDoipTcpConnectionTest(conn);
+				}
+			}
+		}
+	}
+
+	private void discard(TesterTcpConnection conn) {
+		logger.info("Remove connection from connection pool");
+		created.decrementAndGet();
+		testSetup.removeDoipTcpConnectionTest(conn);
+	}
+}
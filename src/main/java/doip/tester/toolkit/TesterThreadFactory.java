@@ -0,0 +1,140 @@
+package doip.tester.toolkit;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.util.Helper;
+
+/**
+ * Factory for all threads which will be created by the toolkit. Depending
+ * on the thread mode it creates platform threads or virtual threads.
+ * <p>
+ * Virtual threads are available since JDK 21. They will be created by
+ * reflection, so the toolkit can still be compiled and executed with older
+ * JDKs. If virtual threads are not available the factory falls back to
+ * platform threads.
+ */
+public class TesterThreadFactory implements ThreadFactory {
+
+	private static Logger logger = LogManager.getLogger(TesterThreadFactory.class);
+
+	public enum ThreadMode {
+		/** Classic operating system threads */
+		PLATFORM,
+		/** Virtual threads (JDK 21 or newer) */
+		VIRTUAL
+	}
+
+	/**
+	 * Name of the system property which overrides the thread mode
+	 * from the test configuration
+	 */
+	public static final String THREAD_MODE_PROPERTY = "tester.thread.mode";
+
+	/**
+	 * Function Thread.ofVirtual(), null if not available
+	 */
+	private static final Method OF_VIRTUAL;
+
+	/**
+	 * Function Thread.Builder.name(String)
+	 */
+	private static final Method BUILDER_NAME;
+
+	/**
+	 * Function Thread.Builder.unstarted(Runnable)
+	 */
+	private static final Method BUILDER_UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderUnstarted = null;
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			builderName = builderClass.getMethod("name", String.class);
+			builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+			// On JDK 19 and 20 virtual threads are a preview feature and
+			// can not be used without --enable-preview.
+			Object builder = ofVirtual.invoke(null);
+			builderUnstarted.invoke(builder, (Runnable) () -> {});
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_UNSTARTED = builderUnstarted;
+	}
+
+	private final String namePrefix;
+
+	private final ThreadMode mode;
+
+	private final boolean daemon;
+
+	private final AtomicInteger counter = new AtomicInteger(0);
+
+	/**
+	 * Constructor
+	 *
+	 * @param namePrefix Threads will be named "namePrefix-n"
+	 * @param mode The requested thread mode. If virtual threads are not
+	 *             available platform threads will be created.
+	 * @param daemon Defines if platform threads will be daemon threads.
+	 *               Virtual threads are always daemon threads.
+	 */
+	public TesterThreadFactory(String namePrefix, ThreadMode mode, boolean daemon) {
+		if (mode == ThreadMode.VIRTUAL && !isVirtualThreadSupported()) {
+			logger.warn("Virtual threads are not supported by this JVM (" + System.getProperty("java.version")
+					+ "), platform threads will be used for '" + namePrefix + "'");
+			mode = ThreadMode.PLATFORM;
+		}
+		this.namePrefix = namePrefix;
+		this.mode = mode;
+		this.daemon = daemon;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		return newThread(namePrefix + "-" + counter.getAndIncrement(), runnable);
+	}
+
+	/**
+	 * Creates a new thread with the given name. The thread will not be started.
+	 */
+	public Thread newThread(String name, Runnable runnable) {
+		if (mode == ThreadMode.VIRTUAL) {
+			try {
+				Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+			} catch (ReflectiveOperationException e) {
+				// Can not happen because it has been checked in the static initializer
+				logger.error("Unexpected " + e.getClass().getName() + " while creating virtual thread");
+				logger.error(Helper.getExceptionAsString(e));
+			}
+		}
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(daemon);
+		return thread;
+	}
+
+	/**
+	 * Returns the thread mode which will really be used.
+	 */
+	public ThreadMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Returns true if the JVM supports virtual threads without
+	 * any additional command line options.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL != null;
+	}
+}
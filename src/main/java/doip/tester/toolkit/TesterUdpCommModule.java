@@ -2,12 +2,20 @@ package doip.tester.toolkit;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 import doip.library.message.DoipUdpEntityStatusRequest;
+import doip.library.message.DoipUdpMessage;
+import doip.library.message.DoipUdpVehicleAnnouncementMessage;
 import doip.library.message.DoipUdpVehicleIdentRequest;
 import doip.library.message.DoipUdpVehicleIdentRequestWithEid;
 import doip.library.message.DoipUdpVehicleIdentRequestWithVin;
+import doip.tester.toolkit.capture.UdpFlow;
+import doip.tester.toolkit.event.DoipEvent;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
@@ -24,12 +32,178 @@ public class TesterUdpCommModule extends DoipUdpMessageHandlerWithEventCollectio
 	
 	/** Log4j marker for function exit */
 	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	// Encoded requests which will be sent without creating a message object.
+	// Of the requests with EID and VIN only the header will be used, the EID
+	// or VIN will be appended when the request will be sent.
+
+	private static final byte[] VEHICLE_IDENT_REQUEST = new DoipUdpVehicleIdentRequest().getMessage();
+
+	private static final byte[] VEHICLE_IDENT_REQUEST_WITH_EID = new DoipUdpVehicleIdentRequestWithEid(new byte[6]).getMessage();
+
+	private static final byte[] VEHICLE_IDENT_REQUEST_WITH_VIN = new DoipUdpVehicleIdentRequestWithVin(new byte[17]).getMessage();
+
+	private static final byte[] ENTITY_STATUS_REQUEST = new DoipUdpEntityStatusRequest().getMessage();
+
+	private static final String SEND_VEHICLE_IDENT_REQUEST =
+			TextBuilder.sendMessage(DoipUdpVehicleIdentRequest.getMessageNameOfClass());
+
+	/**
+	 * Channel of the socket, null if the socket has not been created
+	 * by a {@link DatagramChannel}
+	 */
+	private volatile DatagramChannel channel = null;
+
+	/**
+	 * Buffer in which a request will be assembled. Access is guarded by
+	 * this buffer.
+	 */
+	private final byte[] sendData = new byte[VEHICLE_IDENT_REQUEST_WITH_VIN.length];
+
+	/**
+	 * Buffer from which a request will be written to the channel. Access
+	 * is guarded by {@link #sendData}.
+	 */
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(sendData.length);
+
+	/**
+	 * Address to which the last request has been sent, requests are
+	 * usually sent to the same few addresses. Access is guarded by
+	 * {@link #sendData}.
+	 */
+	private InetSocketAddress lastTarget = null;
 	
 	
+	/**
+	 * Channel of the timing analyzer, null if the timing will not be analyzed
+	 */
+	private volatile TimingAnalyzer.UdpChannel timing = null;
+
+	/**
+	 * Flow in the packet capture, null if the traffic will not be captured
+	 */
+	private volatile UdpFlow capture = null;
+
+	/**
+	 * Discovery which is running at the moment, null if there is none
+	 */
+	private volatile VehicleDiscovery discovery = null;
+
 	public TesterUdpCommModule(TestConfig config) {
 		super(config);
 		this.config = config;
 	}
+
+	/**
+	 * Starts the module. If the socket has been created by a
+	 * {@link DatagramChannel} the requests will be sent by the channel
+	 * from a direct buffer.
+	 */
+	@Override
+	public void start(DatagramSocket socket) {
+		this.channel = socket.getChannel();
+		super.start(socket);
+	}
+
+	@Override
+	public void stop() {
+		this.channel = null;
+		super.stop();
+	}
+
+	/**
+	 * Sets the channel of the timing analyzer which will be fed with the
+	 * send times and the received events of this module.
+	 *
+	 * @param timing The channel or null to stop the analysis
+	 */
+	public void setTimingChannel(TimingAnalyzer.UdpChannel timing) {
+		this.timing = timing;
+	}
+
+	public TimingAnalyzer.UdpChannel getTimingChannel() {
+		return timing;
+	}
+
+	@Override
+	public void send(DoipUdpMessage message, InetAddress address, int port) throws IOException {
+		TimingAnalyzer.UdpChannel currentTiming = this.timing;
+		if (currentTiming != null) {
+			currentTiming.onMessageSent(message, System.nanoTime());
+		}
+		super.send(message, address, port);
+	}
+
+	/**
+	 * Sets the flow of the packet capture to which all datagrams which
+	 * will be sent and received by this module will be written.
+	 *
+	 * @param capture The flow or null to stop capturing
+	 */
+	public void setCaptureFlow(UdpFlow capture) {
+		this.capture = capture;
+	}
+
+	public UdpFlow getCaptureFlow() {
+		return capture;
+	}
+
+	@Override
+	public void sendDatagramPacket(byte[] data, int length, InetAddress address, int port) throws IOException {
+		UdpFlow currentCapture = this.capture;
+		if (currentCapture != null) {
+			currentCapture.onSent(System.nanoTime(), data, 0, length, new InetSocketAddress(address, port));
+		}
+		super.sendDatagramPacket(data, length, address, port);
+	}
+
+	/**
+	 * Sets the discovery which will be informed about all received
+	 * vehicle announcements. Will be called by the discovery itself.
+	 *
+	 * @param discovery The discovery or null when it has been finished
+	 */
+	void setVehicleDiscovery(VehicleDiscovery discovery) {
+		this.discovery = discovery;
+	}
+
+	VehicleDiscovery getVehicleDiscovery() {
+		return discovery;
+	}
+
+	@Override
+	public void onDoipUdpVehicleAnnouncementMessage(DoipUdpVehicleAnnouncementMessage doipMessage,
+			DatagramPacket packet) {
+		long timestamp = System.nanoTime();
+		InetSocketAddress source = (InetSocketAddress) packet.getSocketAddress();
+		super.onDoipUdpVehicleAnnouncementMessage(doipMessage, packet);
+		VehicleDiscovery currentDiscovery = this.discovery;
+		if (currentDiscovery != null) {
+			currentDiscovery.onAnnouncement(timestamp, doipMessage, source);
+		}
+	}
+
+	@Override
+	protected void onEvent(DoipEvent event) {
+		TimingAnalyzer.UdpChannel currentTiming = this.timing;
+		if (currentTiming != null) {
+			currentTiming.onEvent(event);
+		}
+	}
+
+	@Override
+	protected void onPacket(long timestamp, DatagramPacket packet) {
+		capturePacket(timestamp, packet);
+	}
+
+	private void capturePacket(long timestamp, DatagramPacket packet) {
+		UdpFlow currentCapture = this.capture;
+		if (currentCapture != null) {
+			currentCapture.onReceived(timestamp, packet.getData(), packet.getOffset(), packet.getLength(),
+					(InetSocketAddress) packet.getSocketAddress());
+		}
+	}
+
 	/**
 	 * Sends a UDP message to the address which is given as argument.
 	 * The target port will be taken from the configuration file.
@@ -59,10 +233,8 @@ public class TesterUdpCommModule extends DoipUdpMessageHandlerWithEventCollectio
 	 */
 	public void sendDoipUdpVehicleIdentRequest(InetAddress address) throws IOException {
 		logger.trace(enter, ">>> public void sendDoipUdpVehicleIdentRequest(InetAddress address)");
-		DoipUdpVehicleIdentRequest request = new DoipUdpVehicleIdentRequest();
-		logger.info(TextBuilder.sendMessage(request.getMessageName()));
-		this.send(request, address,
-				config.getTargetPort());
+		logger.info(SEND_VEHICLE_IDENT_REQUEST);
+		sendTemplate(DoipMessageDecoder.TYPE_VEHICLE_IDENT_REQUEST, VEHICLE_IDENT_REQUEST, null, address);
 		logger.trace(exit, "<<< public void sendDoipUdpVehicleIdentRequest(InetAddress address)");
 	}
 
@@ -78,10 +250,15 @@ public class TesterUdpCommModule extends DoipUdpMessageHandlerWithEventCollectio
 	 */
 	public void sendDoipUdpVehicleIdentRequestWithEid(byte[] eid, InetAddress address) throws IOException {
 		logger.trace(enter, ">>> public void sendDoipUdpVehicleIdentRequestWithEid(byte[] eid, InetAddress address) throws IOException");
-		DoipUdpVehicleIdentRequestWithEid request = new DoipUdpVehicleIdentRequestWithEid(
-				eid);
-		this.send(request, address,
-				config.getTargetPort());
+		if (eid.length == VEHICLE_IDENT_REQUEST_WITH_EID.length - DoipMessageDecoder.HEADER_LENGTH) {
+			sendTemplate(DoipMessageDecoder.TYPE_VEHICLE_IDENT_REQUEST_WITH_EID, VEHICLE_IDENT_REQUEST_WITH_EID, eid, address);
+		} else {
+			// An invalid EID will be sent as it is for negative tests
+			DoipUdpVehicleIdentRequestWithEid request = new DoipUdpVehicleIdentRequestWithEid(
+					eid);
+			this.send(request, address,
+					config.getTargetPort());
+		}
 		logger.trace(exit, "<<< public void sendDoipUdpVehicleIdentRequestWithEid(byte[] eid, InetAddress address) throws IOException");
 	}
 
@@ -98,10 +275,15 @@ public class TesterUdpCommModule extends DoipUdpMessageHandlerWithEventCollectio
 	public void sendDoipUdpVehicleIdentRequestWithVin(byte[] vin, InetAddress address) throws IOException {
 		logger.trace(enter, ">>> public void sendDoipUdpVehicleIdentRequestWithVin(byte[] vin, InetAddress address)");
 		try {
-			DoipUdpVehicleIdentRequestWithVin request = new DoipUdpVehicleIdentRequestWithVin(
-					vin);
-			this.send(request, address,
-					config.getTargetPort());
+			if (vin.length == VEHICLE_IDENT_REQUEST_WITH_VIN.length - DoipMessageDecoder.HEADER_LENGTH) {
+				sendTemplate(DoipMessageDecoder.TYPE_VEHICLE_IDENT_REQUEST_WITH_VIN, VEHICLE_IDENT_REQUEST_WITH_VIN, vin, address);
+			} else {
+				// An invalid VIN will be sent as it is for negative tests
+				DoipUdpVehicleIdentRequestWithVin request = new DoipUdpVehicleIdentRequestWithVin(
+						vin);
+				this.send(request, address,
+						config.getTargetPort());
+			}
 		} finally {
 			logger.trace(exit, "<<< public void sendDoipUdpVehicleIdentRequestWithVin(byte[] vin, InetAddress address)");
 		}
@@ -111,17 +293,63 @@ public class TesterUdpCommModule extends DoipUdpMessageHandlerWithEventCollectio
 		String method = "public void sendDoipEntityStatusRequest()";
 		try {
 			logger.trace(enter, ">>> {}", method);
-			DoipUdpEntityStatusRequest request = new DoipUdpEntityStatusRequest();
-			this.send(request, address, config.getTargetPort());
+			sendTemplate(DoipMessageDecoder.TYPE_ENTITY_STATUS_REQUEST, ENTITY_STATUS_REQUEST, null, address);
 					
 		} finally {
 			logger.trace(exit, "<<< {}", method);
 		}
 	}
+
+	/**
+	 * Sends an encoded request to the target port of the configuration.
+	 * If the socket has a channel no objects will be created, apart from
+	 * the socket address when the target address changes.
+	 *
+	 * @param payloadType Payload type of the request
+	 * @param template The encoded request
+	 * @param parameter EID or VIN which replaces the payload of the
+	 *                  template, null to send the template as it is
+	 * @param address The target address
+	 */
+	private void sendTemplate(int payloadType, byte[] template, byte[] parameter, InetAddress address) throws IOException {
+		int port = config.getTargetPort();
+		TimingAnalyzer.UdpChannel currentTiming = this.timing;
+		if (currentTiming != null) {
+			currentTiming.onMessageSent(payloadType, System.nanoTime());
+		}
+		DatagramChannel currentChannel = this.channel;
+		synchronized (sendData) {
+			int length = template.length;
+			if (parameter == null) {
+				System.arraycopy(template, 0, sendData, 0, length);
+			} else {
+				System.arraycopy(template, 0, sendData, 0, DoipMessageDecoder.HEADER_LENGTH);
+				System.arraycopy(parameter, 0, sendData, DoipMessageDecoder.HEADER_LENGTH, parameter.length);
+			}
+			if (currentChannel == null) {
+				this.sendDatagramPacket(sendData, length, address, port);
+				return;
+			}
+			InetSocketAddress target = lastTarget;
+			if (target == null || target.getPort() != port || !target.getAddress().equals(address)) {
+				target = new InetSocketAddress(address, port);
+				lastTarget = target;
+			}
+			UdpFlow currentCapture = this.capture;
+			if (currentCapture != null) {
+				currentCapture.onSent(System.nanoTime(), sendData, 0, length, target);
+			}
+			sendBuffer.clear();
+			sendBuffer.put(sendData, 0, length);
+			sendBuffer.flip();
+			currentChannel.send(sendBuffer, target);
+		}
+	}
 	
 	@Override
 	public void onHeaderTooShort(DatagramPacket packet) {
 		logger.trace(enter, ">>> public void onHeaderTooShort(DatagramPacket packet)");
+		capturePacket(System.nanoTime(), packet);
 		logger.info("Received UDP message which was too short, but there is nothing to do " +
 				"because a diagnostic tester shall not send a negative acknowledge message.");
 		logger.trace(exit, "<<< public void onHeaderTooShort(DatagramPacket packet)");
@@ -130,6 +358,7 @@ public class TesterUdpCommModule extends DoipUdpMessageHandlerWithEventCollectio
 	@Override
 	public void onInvalidPayloadLength(DatagramPacket packet) {
 		logger.trace(enter, ">>> public void onInvalidPayloadLength(DatagramPacket packet)");
+		capturePacket(System.nanoTime(), packet);
 		logger.info("Received UPD message with invalid payload length, but there is nothing to do " +
 				"because a diagnostic tester shall not send a negative acknowledge message.");
 		logger.trace(exit, "<<< public void onInvalidPayloadLength(DatagramPacket packet)");
@@ -138,6 +367,7 @@ public class TesterUdpCommModule extends DoipUdpMessageHandlerWithEventCollectio
 	@Override
 	public void onInvalidPayloadType(DatagramPacket packet) {
 		logger.trace(enter, ">>> public void onInvalidPayloadType(DatagramPacket packet)");
+		capturePacket(System.nanoTime(), packet);
 		logger.info("Received UPD message with invalid payload type, but there is nothing to do " +
 				"because a diagnostic tester shall not send a negative acknowledge message.");
 		logger.trace(exit, "<<< public void onInvalidPayloadType(DatagramPacket packet)");
@@ -146,6 +376,7 @@ public class TesterUdpCommModule extends DoipUdpMessageHandlerWithEventCollectio
 	@Override
 	public void onHeaderIncorrectPatternFormat(DatagramPacket packet) {
 		logger.trace(enter, ">>> 	public void onHeaderIncorrectPatternFormat(DatagramPacket packet)");
+		capturePacket(System.nanoTime(), packet);
 		logger.info("Received UPD message with incorrect pattern format, but there is nothing to do " +
 				"because a diagnostic tester shall not send a negative acknowledge message.");
 		logger.trace(exit, "<<< 	public void onHeaderIncorrectPatternFormat(DatagramPacket packet)");
@@ -0,0 +1,571 @@
+package doip.tester.toolkit;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessageNegAck;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.library.message.DoipTcpRoutingActivationResponse;
+import doip.library.message.DoipUdpDiagnosticPowerModeRequest;
+import doip.library.message.DoipUdpEntityStatusRequest;
+import doip.library.message.DoipUdpMessage;
+import doip.library.message.DoipUdpVehicleIdentRequest;
+import doip.library.message.DoipUdpVehicleIdentRequestWithEid;
+import doip.library.message.DoipUdpVehicleIdentRequestWithVin;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessageNegAck;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+import doip.tester.toolkit.event.DoipEventTcpHeaderNegAck;
+import doip.tester.toolkit.event.DoipEventTcpRoutingActivationResponse;
+import doip.tester.toolkit.event.DoipEventUdpDiagnosticPowerModeResponse;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+import doip.tester.toolkit.event.DoipEventUdpVehicleAnnouncementMessage;
+
+/**
+ * Checks the timing of the DoIP entity against the timers of the test
+ * configuration. Every TCP connection and every UDP module gets its own
+ * channel which will be fed with the times when requests have been sent
+ * and with the received events in the order in which they occur. Each
+ * event will be processed once when it arrives, so the analysis needs
+ * constant memory per channel and pair of addresses and can run over any
+ * number of messages, independent of the capacity of the event queues.
+ * <p>
+ * For every rule the number of checks and the smallest margin to the
+ * limit will be counted. Every violation will be recorded as
+ * {@link TimingViolation}.
+ */
+public class TimingAnalyzer {
+
+	private static Logger logger = LogManager.getLogger(TimingAnalyzer.class);
+
+	public enum TimingRule {
+		/** Routing activation request to routing activation response, limit is A_DoIP_Ctrl */
+		ROUTING_ACTIVATION_RESPONSE(false),
+		/** Diagnostic request to positive or negative acknowledge, limit is A_DoIP_Diagnostic_Message */
+		DIAGNOSTIC_MESSAGE_ACK(false),
+		/** Positive acknowledge to first response, limit is A_DoIP_Diagnostic_Message */
+		DIAGNOSTIC_MESSAGE_RESPONSE(false),
+		/** Response pending (NRC 0x78) to next response, limit is A_Processing_Time */
+		RESPONSE_PENDING(false),
+		/**
+		 * Connection establishment to closing of the connection by the
+		 * gateway if no routing activation has been requested. The
+		 * gateway must not close before T_TCP_Initial_Inactivity.
+		 */
+		INITIAL_INACTIVITY(true),
+		/**
+		 * Last message of the tester to closing of the connection by the
+		 * gateway. The gateway must not close before T_TCP_General_Inactivity.
+		 */
+		GENERAL_INACTIVITY(true),
+		/** UDP request to UDP response, limit is A_DoIP_Ctrl */
+		UDP_RESPONSE(false);
+
+		private final boolean lowerLimit;
+
+		private TimingRule(boolean lowerLimit) {
+			this.lowerLimit = lowerLimit;
+		}
+
+		/**
+		 * Returns true if the measured time must not be less than the
+		 * limit, false if it must not be greater than the limit.
+		 */
+		public boolean isLowerLimit() {
+			return lowerLimit;
+		}
+	}
+
+	/**
+	 * Maximum number of outstanding diagnostic requests per TCP
+	 * connection and pair of addresses, must be a power of 2
+	 */
+	private static final int RING_SIZE = 64;
+
+	private static final int RING_MASK = RING_SIZE - 1;
+
+	private static final int RULE_COUNT = TimingRule.values().length;
+
+	/**
+	 * Limits in nanoseconds
+	 */
+	private final long[] limits = new long[RULE_COUNT];
+
+	private final LongAdder[] checkCounts = new LongAdder[RULE_COUNT];
+
+	private final LongAdder[] violationCounts = new LongAdder[RULE_COUNT];
+
+	private final LongAccumulator[] minimumMargins = new LongAccumulator[RULE_COUNT];
+
+	private final List<TimingViolation> violations = new ArrayList<TimingViolation>();
+
+	public TimingAnalyzer(TestConfig config) {
+		setLimit(TimingRule.ROUTING_ACTIVATION_RESPONSE, config.get_A_DoIP_Ctrl());
+		setLimit(TimingRule.DIAGNOSTIC_MESSAGE_ACK, config.get_A_DoIP_Diagnostic_Message());
+		setLimit(TimingRule.DIAGNOSTIC_MESSAGE_RESPONSE, config.get_A_DoIP_Diagnostic_Message());
+		setLimit(TimingRule.RESPONSE_PENDING, config.get_A_Processing_Time());
+		setLimit(TimingRule.INITIAL_INACTIVITY, config.get_T_TCP_Initial_Inactivity());
+		setLimit(TimingRule.GENERAL_INACTIVITY, config.get_T_TCP_General_Inactivity());
+		setLimit(TimingRule.UDP_RESPONSE, config.get_A_DoIP_Ctrl());
+		for (int i = 0; i < RULE_COUNT; i++) {
+			checkCounts[i] = new LongAdder();
+			violationCounts[i] = new LongAdder();
+			minimumMargins[i] = new LongAccumulator(Math::min, Long.MAX_VALUE);
+		}
+	}
+
+	private void setLimit(TimingRule rule, int limitms) {
+		limits[rule.ordinal()] = TimeUnit.MILLISECONDS.toNanos(limitms);
+	}
+
+	/**
+	 * Creates a new channel for a TCP connection.
+	 *
+	 * @param name Name of the connection which will be used in the report
+	 */
+	public TcpChannel createTcpChannel(String name) {
+		return new TcpChannel(name);
+	}
+
+	/**
+	 * Creates a new channel for a UDP module.
+	 *
+	 * @param name Name of the module which will be used in the report
+	 */
+	public UdpChannel createUdpChannel(String name) {
+		return new UdpChannel(name);
+	}
+
+	/**
+	 * Returns the limit of the rule in nanoseconds.
+	 */
+	public long getLimit(TimingRule rule) {
+		return limits[rule.ordinal()];
+	}
+
+	/**
+	 * Returns how often the rule has been checked.
+	 */
+	public long getCheckCount(TimingRule rule) {
+		return checkCounts[rule.ordinal()].sum();
+	}
+
+	public long getViolationCount(TimingRule rule) {
+		return violationCounts[rule.ordinal()].sum();
+	}
+
+	/**
+	 * Returns the total number of violations of all rules.
+	 */
+	public long getViolationCount() {
+		long count = 0;
+		for (LongAdder adder : violationCounts) {
+			count += adder.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the smallest margin to the limit in nanoseconds which has
+	 * been measured for the rule. A negative value means that the rule
+	 * has been violated. If the rule has not been checked yet
+	 * Long.MAX_VALUE will be returned.
+	 */
+	public long getMinimumMargin(TimingRule rule) {
+		return minimumMargins[rule.ordinal()].get();
+	}
+
+	/**
+	 * Returns a copy of all violations in the order in which they
+	 * have been detected.
+	 */
+	public List<TimingViolation> getViolations() {
+		synchronized (violations) {
+			return new ArrayList<TimingViolation>(violations);
+		}
+	}
+
+	/**
+	 * Clears all counters and violations. The state of the channels
+	 * will not be changed.
+	 */
+	public void reset() {
+		for (int i = 0; i < RULE_COUNT; i++) {
+			checkCounts[i].reset();
+			violationCounts[i].reset();
+			minimumMargins[i].reset();
+		}
+		synchronized (violations) {
+			violations.clear();
+		}
+	}
+
+	/**
+	 * Prints the counters of every rule followed by all violations.
+	 */
+	public void printReport(PrintStream out) {
+		out.println();
+		out.println(String.format("%-28s %10s %10s %10s %16s", "Timing rule", "Checks",
+				"Violations", "Limit [ms]", "Min margin [ms]"));
+		for (TimingRule rule : TimingRule.values()) {
+			long checks = getCheckCount(rule);
+			out.println(String.format("%-28s %10d %10d %10.3f %16s", rule, checks, getViolationCount(rule),
+					getLimit(rule) / 1e6,
+					checks == 0 ? "-" : String.format("%.3f", getMinimumMargin(rule) / 1e6)));
+		}
+		List<TimingViolation> list = getViolations();
+		if (!list.isEmpty()) {
+			out.println();
+			for (TimingViolation violation : list) {
+				out.println(violation);
+			}
+		}
+	}
+
+	private static Integer getAddressKey(int sourceAddress, int targetAddress) {
+		return ((sourceAddress & 0xFFFF) << 16) | (targetAddress & 0xFFFF);
+	}
+
+	private void check(TimingRule rule, String channel, long timestamp, long measured) {
+		int index = rule.ordinal();
+		long limit = limits[index];
+		long margin = rule.isLowerLimit() ? measured - limit : limit - measured;
+		checkCounts[index].increment();
+		minimumMargins[index].accumulate(margin);
+		if (margin < 0) {
+			violationCounts[index].increment();
+			TimingViolation violation = new TimingViolation(rule, channel, timestamp, measured, limit);
+			synchronized (violations) {
+				violations.add(violation);
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug("Timing violation: " + violation);
+			}
+		}
+	}
+
+	/**
+	 * Send times of the diagnostic requests from a tester address to an
+	 * ECU address which wait for their acknowledge or response.
+	 */
+	private static class RequestQueue {
+
+		/**
+		 * Send times of diagnostic requests which wait for the acknowledge
+		 */
+		final long[] requestTimes = new long[RING_SIZE];
+
+		int requestHead = 0;
+
+		int requestTail = 0;
+
+		/**
+		 * Times of the positive acknowledges or of the last response
+		 * pending for the requests which wait for the response
+		 */
+		final long[] referenceTimes = new long[RING_SIZE];
+
+		/**
+		 * True if the reference time is the time of a response pending
+		 */
+		final boolean[] responsePending = new boolean[RING_SIZE];
+
+		int responseHead = 0;
+
+		int responseTail = 0;
+	}
+
+	/**
+	 * Timing state of one TCP connection. The functions can be called
+	 * from different threads.
+	 * <p>
+	 * Acknowledges and responses will be assigned to the requests which
+	 * have been sent from their target address to their source address,
+	 * in the order in which these requests have been sent. Requests to
+	 * different ECUs behind the same gateway can be answered in any order.
+	 */
+	public class TcpChannel {
+
+		private final String name;
+
+		/**
+		 * Time when the connection has been established, -1 if the
+		 * connection is not established
+		 */
+		private long connectTime = -1;
+
+		/**
+		 * Time of the last message which has been sent by the tester
+		 */
+		private long lastActivity = -1;
+
+		private boolean routingActivationRequested = false;
+
+		/**
+		 * Send time of the routing activation request which waits for
+		 * the response, -1 if there is none
+		 */
+		private long routingActivationTime = -1;
+
+		/**
+		 * True if the gateway is expected to close the connection, for
+		 * example after a denied routing activation
+		 */
+		private boolean closeExpected = false;
+
+		/**
+		 * True if the connection will be closed by the tester
+		 */
+		private boolean closedByTester = false;
+
+		/**
+		 * Outstanding diagnostic requests. The key is built from source
+		 * and target address of the answers, see
+		 * {@link TimingAnalyzer#getAddressKey(int, int)}.
+		 */
+		private final HashMap<Integer, RequestQueue> queues = new HashMap<Integer, RequestQueue>();
+
+		private TcpChannel(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Will be called when the TCP connection has been established.
+		 */
+		public synchronized void onConnected(long timestamp) {
+			connectTime = timestamp;
+			lastActivity = timestamp;
+			routingActivationRequested = false;
+			routingActivationTime = -1;
+			closeExpected = false;
+			closedByTester = false;
+			queues.clear();
+		}
+
+		public synchronized void onRoutingActivationRequestSent(long timestamp) {
+			lastActivity = timestamp;
+			routingActivationRequested = true;
+			routingActivationTime = timestamp;
+		}
+
+		/**
+		 * Will be called when a diagnostic message has been sent.
+		 *
+		 * @param sourceAddress Logical address of the tester
+		 * @param targetAddress Logical address of the ECU
+		 */
+		public synchronized void onDiagnosticMessageSent(int sourceAddress, int targetAddress, long timestamp) {
+			lastActivity = timestamp;
+			RequestQueue queue = queues.computeIfAbsent(getAddressKey(targetAddress, sourceAddress),
+					key -> new RequestQueue());
+			if (queue.requestTail - queue.requestHead == RING_SIZE) {
+				queue.requestHead++;
+			}
+			queue.requestTimes[queue.requestTail & RING_MASK] = timestamp;
+			queue.requestTail++;
+		}
+
+		/**
+		 * Will be called when any other message has been sent,
+		 * for example an alive check response.
+		 */
+		public synchronized void onMessageSent(long timestamp) {
+			lastActivity = timestamp;
+		}
+
+		/**
+		 * Will be called before the tester closes the connection. The
+		 * following connection closed event will not be checked.
+		 */
+		public synchronized void onClose() {
+			closedByTester = true;
+		}
+
+		/**
+		 * Will be called for every event which has been received on
+		 * the connection.
+		 */
+		public synchronized void onEvent(DoipEvent event) {
+			long timestamp = event.getTimestamp();
+			if (event instanceof DoipEventTcpDiagnosticMessagePosAck) {
+				DoipTcpDiagnosticMessagePosAck message = (DoipTcpDiagnosticMessagePosAck)
+						((DoipEventTcpDiagnosticMessagePosAck) event).getDoipMessage();
+				RequestQueue queue = queues.get(getAddressKey(message.getSourceAddress(), message.getTargetAddress()));
+				if (queue == null || queue.requestHead == queue.requestTail) {
+					return;
+				}
+				check(TimingRule.DIAGNOSTIC_MESSAGE_ACK, name, timestamp,
+						timestamp - queue.requestTimes[queue.requestHead & RING_MASK]);
+				queue.requestHead++;
+				if (queue.responseTail - queue.responseHead == RING_SIZE) {
+					queue.responseHead++;
+				}
+				queue.referenceTimes[queue.responseTail & RING_MASK] = timestamp;
+				queue.responsePending[queue.responseTail & RING_MASK] = false;
+				queue.responseTail++;
+			} else if (event instanceof DoipEventTcpDiagnosticMessage) {
+				DoipTcpDiagnosticMessage message = (DoipTcpDiagnosticMessage)
+						((DoipEventTcpDiagnosticMessage) event).getDoipMessage();
+				RequestQueue queue = queues.get(getAddressKey(message.getSourceAddress(), message.getTargetAddress()));
+				if (queue == null || queue.responseHead == queue.responseTail) {
+					return;
+				}
+				int index = queue.responseHead & RING_MASK;
+				TimingRule rule = queue.responsePending[index] ? TimingRule.RESPONSE_PENDING
+						: TimingRule.DIAGNOSTIC_MESSAGE_RESPONSE;
+				check(rule, name, timestamp, timestamp - queue.referenceTimes[index]);
+				if (LatencyInstrumentation.isResponsePending((DoipEventTcpDiagnosticMessage) event)) {
+					queue.referenceTimes[index] = timestamp;
+					queue.responsePending[index] = true;
+				} else {
+					queue.responseHead++;
+				}
+			} else if (event instanceof DoipEventTcpDiagnosticMessageNegAck) {
+				DoipTcpDiagnosticMessageNegAck message = (DoipTcpDiagnosticMessageNegAck)
+						((DoipEventTcpDiagnosticMessageNegAck) event).getDoipMessage();
+				RequestQueue queue = queues.get(getAddressKey(message.getSourceAddress(), message.getTargetAddress()));
+				if (queue == null || queue.requestHead == queue.requestTail) {
+					return;
+				}
+				check(TimingRule.DIAGNOSTIC_MESSAGE_ACK, name, timestamp,
+						timestamp - queue.requestTimes[queue.requestHead & RING_MASK]);
+				queue.requestHead++;
+			} else if (event instanceof DoipEventTcpRoutingActivationResponse) {
+				if (routingActivationTime != -1) {
+					check(TimingRule.ROUTING_ACTIVATION_RESPONSE, name, timestamp,
+							timestamp - routingActivationTime);
+					routingActivationTime = -1;
+				}
+				int responseCode = ((DoipTcpRoutingActivationResponse)
+						((DoipEventTcpRoutingActivationResponse) event).getDoipMessage()).getResponseCode();
+				if (responseCode != 0x10 && responseCode != 0x11) {
+					closeExpected = true;
+				}
+			} else if (event instanceof DoipEventTcpHeaderNegAck) {
+				closeExpected = true;
+			} else if (event instanceof DoipEventConnectionClosed) {
+				if (connectTime != -1 && !closedByTester && !closeExpected) {
+					if (routingActivationRequested) {
+						check(TimingRule.GENERAL_INACTIVITY, name, timestamp, timestamp - lastActivity);
+					} else {
+						check(TimingRule.INITIAL_INACTIVITY, name, timestamp, timestamp - connectTime);
+					}
+				}
+				connectTime = -1;
+				routingActivationTime = -1;
+				queues.clear();
+			}
+		}
+	}
+
+	/**
+	 * Timing state of one UDP module. The functions can be called
+	 * from different threads.
+	 * <p>
+	 * A vehicle identification request can be answered by several DoIP
+	 * entities, so it stays open for further answers until A_DoIP_Ctrl
+	 * has elapsed. Vehicle announcements after A_DoIP_Ctrl or without
+	 * a request will not be checked, they can not be distinguished from
+	 * the unsolicited announcements of a DoIP entity.
+	 */
+	public class UdpChannel {
+
+		private final String name;
+
+		private long vehicleIdentRequestTime = -1;
+
+		private long entityStatusRequestTime = -1;
+
+		private long powerModeRequestTime = -1;
+
+		private UdpChannel(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Will be called when a UDP message has been sent.
+		 */
+		public synchronized void onMessageSent(DoipUdpMessage message, long timestamp) {
+			if (message instanceof DoipUdpVehicleIdentRequest
+					|| message instanceof DoipUdpVehicleIdentRequestWithEid
+					|| message instanceof DoipUdpVehicleIdentRequestWithVin) {
+				vehicleIdentRequestTime = timestamp;
+			} else if (message instanceof DoipUdpEntityStatusRequest) {
+				entityStatusRequestTime = timestamp;
+			} else if (message instanceof DoipUdpDiagnosticPowerModeRequest) {
+				powerModeRequestTime = timestamp;
+			}
+		}
+
+		/**
+		 * Will be called when a UDP message has been sent from an encoded
+		 * template, so there is no message object.
+		 *
+		 * @param payloadType Payload type of the message
+		 */
+		public synchronized void onMessageSent(int payloadType, long timestamp) {
+			switch (payloadType) {
+			case DoipMessageDecoder.TYPE_VEHICLE_IDENT_REQUEST:
+			case DoipMessageDecoder.TYPE_VEHICLE_IDENT_REQUEST_WITH_EID:
+			case DoipMessageDecoder.TYPE_VEHICLE_IDENT_REQUEST_WITH_VIN:
+				vehicleIdentRequestTime = timestamp;
+				break;
+			case DoipMessageDecoder.TYPE_ENTITY_STATUS_REQUEST:
+				entityStatusRequestTime = timestamp;
+				break;
+			case DoipMessageDecoder.TYPE_DIAGNOSTIC_POWER_MODE_REQUEST:
+				powerModeRequestTime = timestamp;
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Will be called for every event which has been received by
+		 * the UDP module.
+		 */
+		public synchronized void onEvent(DoipEvent event) {
+			long timestamp = event.getTimestamp();
+			if (event instanceof DoipEventUdpVehicleAnnouncementMessage) {
+				if (vehicleIdentRequestTime != -1) {
+					long measured = timestamp - vehicleIdentRequestTime;
+					if (measured > limits[TimingRule.UDP_RESPONSE.ordinal()]) {
+						vehicleIdentRequestTime = -1;
+					} else {
+						check(TimingRule.UDP_RESPONSE, name, timestamp, measured);
+					}
+				}
+			} else if (event instanceof DoipEventUdpEntityStatusResponse) {
+				if (entityStatusRequestTime != -1) {
+					check(TimingRule.UDP_RESPONSE, name, timestamp, timestamp - entityStatusRequestTime);
+					entityStatusRequestTime = -1;
+				}
+			} else if (event instanceof DoipEventUdpDiagnosticPowerModeResponse) {
+				if (powerModeRequestTime != -1) {
+					check(TimingRule.UDP_RESPONSE, name, timestamp, timestamp - powerModeRequestTime);
+					powerModeRequestTime = -1;
+				}
+			}
+		}
+	}
+}
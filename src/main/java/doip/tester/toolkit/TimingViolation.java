@@ -0,0 +1,70 @@
+package doip.tester.toolkit;
+
+import doip.tester.toolkit.TimingAnalyzer.TimingRule;
+
+/**
+ * Describes a measured time which violates a timing rule of
+ * the {@link TimingAnalyzer}. All times are given in nanoseconds.
+ */
+public class TimingViolation {
+
+	private final TimingRule rule;
+
+	private final String channel;
+
+	private final long timestamp;
+
+	private final long measured;
+
+	private final long limit;
+
+	public TimingViolation(TimingRule rule, String channel, long timestamp, long measured, long limit) {
+		this.rule = rule;
+		this.channel = channel;
+		this.timestamp = timestamp;
+		this.measured = measured;
+		this.limit = limit;
+	}
+
+	public TimingRule getRule() {
+		return rule;
+	}
+
+	/**
+	 * Returns the name of the connection or the UDP module on which
+	 * the violation has been detected.
+	 */
+	public String getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the time (System.nanoTime()) of the event which
+	 * violated the rule.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getMeasured() {
+		return measured;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the margin to the limit. It is always negative because
+	 * the limit has been violated.
+	 */
+	public long getMargin() {
+		return rule.isLowerLimit() ? measured - limit : limit - measured;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s on %s: measured %.3f ms, limit %.3f ms, margin %.3f ms",
+				rule, channel, measured / 1e6, limit / 1e6, getMargin() / 1e6);
+	}
+}
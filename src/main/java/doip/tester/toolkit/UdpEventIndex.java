@@ -0,0 +1,326 @@
+package doip.tester.toolkit;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import doip.library.message.DoipUdpVehicleAnnouncementMessage;
+import doip.library.util.Conversion;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventUdpVehicleAnnouncementMessage;
+
+/**
+ * Index of incoming UDP events by their sender. For every sender the
+ * latest event of every type will be kept. Vehicle announcements will in
+ * addition be stored in a table without duplicates, where an entity is
+ * identified by its EID and logical address. The announcements can be
+ * found by sender, VIN, EID and logical address.
+ * <p>
+ * Senders and announcements expire when nothing has been received from
+ * them for the time to live, and the number of senders and announcements
+ * is limited by the capacity. If the capacity has been reached the entry
+ * which has not been updated for the longest time will be removed. So the
+ * memory stays constant for monitors which run for days.
+ * <p>
+ * All functions are thread safe. Lookups take constant time, apart from
+ * removing expired entries.
+ */
+public class UdpEventIndex {
+
+	/**
+	 * Default time to live in milliseconds
+	 */
+	public static final long DEFAULT_TTL = 60000;
+
+	private final long ttl;
+
+	private final int capacity;
+
+	// The following fields are guarded by this object. The linked hash maps
+	// are ordered by the time of the last update, the oldest entry first.
+
+	private final LinkedHashMap<InetAddress, Sender> senders = new LinkedHashMap<InetAddress, Sender>();
+
+	/**
+	 * Announcements by EID and logical address
+	 */
+	private final LinkedHashMap<String, Announcement> announcements = new LinkedHashMap<String, Announcement>();
+
+	private final HashMap<InetAddress, Announcement> announcementsBySender = new HashMap<InetAddress, Announcement>();
+
+	private final HashMap<String, Announcement> announcementsByVin = new HashMap<String, Announcement>();
+
+	private final HashMap<String, Announcement> announcementsByEid = new HashMap<String, Announcement>();
+
+	private final HashMap<Integer, Announcement> announcementsByLogicalAddress = new HashMap<Integer, Announcement>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param ttl Time to live in milliseconds
+	 * @param capacity Maximum number of senders and maximum number of
+	 *                 announcements
+	 */
+	public UdpEventIndex(long ttl, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be at least 1");
+		}
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Adds an event which has been received from the given sender. Will
+	 * be called by the receiver thread.
+	 *
+	 * @param event The event
+	 * @param address Address of the sender
+	 * @param port Port of the sender
+	 */
+	public synchronized void add(DoipEvent event, InetAddress address, int port) {
+		long timestamp = event.getTimestamp();
+		expire(timestamp);
+		Sender sender = senders.remove(address);
+		if (sender == null) {
+			sender = new Sender();
+		}
+		sender.lastUpdate = timestamp;
+		sender.latestEvent = event;
+		sender.latestEvents.put(event.getClass(), event);
+		senders.put(address, sender);
+		if (senders.size() > capacity) {
+			removeEldest(senders);
+		}
+		if (event instanceof DoipEventUdpVehicleAnnouncementMessage) {
+			addAnnouncement(timestamp, (DoipUdpVehicleAnnouncementMessage)
+					((DoipEventUdpVehicleAnnouncementMessage) event).getDoipMessage(), new InetSocketAddress(address, port));
+		}
+	}
+
+	/**
+	 * Returns the latest event which has been received from the sender,
+	 * null if nothing has been received within the time to live.
+	 */
+	public synchronized DoipEvent getLatestEvent(InetAddress sender) {
+		expire(System.nanoTime());
+		Sender entry = senders.get(sender);
+		return entry == null ? null : entry.latestEvent;
+	}
+
+	/**
+	 * Returns the latest event of the given type which has been received
+	 * from the sender, null if there is none.
+	 *
+	 * @param sender Address of the sender
+	 * @param type The concrete class of the event
+	 */
+	public synchronized <T extends DoipEvent> T getLatestEvent(InetAddress sender, Class<T> type) {
+		expire(System.nanoTime());
+		Sender entry = senders.get(sender);
+		return entry == null ? null : type.cast(entry.latestEvents.get(type));
+	}
+
+	/**
+	 * Returns the addresses of all senders which have sent something within
+	 * the time to live, the sender of the oldest event first.
+	 */
+	public synchronized List<InetAddress> getSenders() {
+		expire(System.nanoTime());
+		return new ArrayList<InetAddress>(senders.keySet());
+	}
+
+	/**
+	 * Returns the latest announcement which has been received from the
+	 * sender, null if there is none.
+	 */
+	public synchronized Announcement getAnnouncement(InetAddress sender) {
+		expire(System.nanoTime());
+		return announcementsBySender.get(sender);
+	}
+
+	/**
+	 * Returns the latest announcement with the given VIN. Several entities
+	 * of a vehicle can have the same VIN.
+	 */
+	public synchronized Announcement getAnnouncementByVin(byte[] vin) {
+		expire(System.nanoTime());
+		return announcementsByVin.get(Conversion.byteArrayToHexString(vin));
+	}
+
+	/**
+	 * Returns the latest announcement with the given EID.
+	 */
+	public synchronized Announcement getAnnouncementByEid(byte[] eid) {
+		expire(System.nanoTime());
+		return announcementsByEid.get(Conversion.byteArrayToHexString(eid));
+	}
+
+	/**
+	 * Returns the latest announcement with the given logical address.
+	 */
+	public synchronized Announcement getAnnouncementByLogicalAddress(int logicalAddress) {
+		expire(System.nanoTime());
+		return announcementsByLogicalAddress.get(logicalAddress);
+	}
+
+	/**
+	 * Returns all announcements which have been received within the time
+	 * to live, the one which has not been updated for the longest time first.
+	 */
+	public synchronized List<Announcement> getAnnouncements() {
+		expire(System.nanoTime());
+		return new ArrayList<Announcement>(announcements.values());
+	}
+
+	public synchronized void clear() {
+		senders.clear();
+		announcements.clear();
+		announcementsBySender.clear();
+		announcementsByVin.clear();
+		announcementsByEid.clear();
+		announcementsByLogicalAddress.clear();
+	}
+
+	private void addAnnouncement(long timestamp, DoipUdpVehicleAnnouncementMessage message, InetSocketAddress source) {
+		String vin = Conversion.byteArrayToHexString(message.getVin());
+		String eid = Conversion.byteArrayToHexString(message.getEid());
+		int logicalAddress = message.getLogicalAddress();
+		String key = eid + "/" + logicalAddress;
+		Announcement previous = announcements.remove(key);
+		Announcement announcement;
+		if (previous == null) {
+			announcement = new Announcement(message, source, timestamp, timestamp, 1);
+		} else {
+			removeFromIndexes(previous);
+			announcement = new Announcement(message, source, previous.firstTimestamp, timestamp, previous.count + 1);
+		}
+		announcements.put(key, announcement);
+		announcementsBySender.put(source.getAddress(), announcement);
+		announcementsByVin.put(vin, announcement);
+		announcementsByEid.put(eid, announcement);
+		announcementsByLogicalAddress.put(logicalAddress, announcement);
+		if (announcements.size() > capacity) {
+			removeFromIndexes(removeEldest(announcements));
+		}
+	}
+
+	/**
+	 * Removes the announcement from the secondary indexes, but only where
+	 * it has not been replaced by a newer announcement of another entity.
+	 */
+	private void removeFromIndexes(Announcement announcement) {
+		DoipUdpVehicleAnnouncementMessage message = announcement.message;
+		announcementsBySender.remove(announcement.source.getAddress(), announcement);
+		announcementsByVin.remove(Conversion.byteArrayToHexString(message.getVin()), announcement);
+		announcementsByEid.remove(Conversion.byteArrayToHexString(message.getEid()), announcement);
+		announcementsByLogicalAddress.remove(message.getLogicalAddress(), announcement);
+	}
+
+	/**
+	 * Removes all senders and announcements which have not been updated
+	 * within the time to live.
+	 */
+	private void expire(long now) {
+		Iterator<Sender> senderIter = senders.values().iterator();
+		while (senderIter.hasNext() && now - senderIter.next().lastUpdate > ttl) {
+			senderIter.remove();
+		}
+		Iterator<Announcement> announcementIter = announcements.values().iterator();
+		while (announcementIter.hasNext()) {
+			Announcement announcement = announcementIter.next();
+			if (now - announcement.lastTimestamp <= ttl) {
+				break;
+			}
+			announcementIter.remove();
+			removeFromIndexes(announcement);
+		}
+	}
+
+	private static <V> V removeEldest(LinkedHashMap<?, V> map) {
+		Iterator<V> iter = map.values().iterator();
+		V eldest = iter.next();
+		iter.remove();
+		return eldest;
+	}
+
+	/**
+	 * Latest events of one sender
+	 */
+	private static class Sender {
+
+		private long lastUpdate = 0;
+
+		private DoipEvent latestEvent = null;
+
+		private final HashMap<Class<?>, DoipEvent> latestEvents = new HashMap<Class<?>, DoipEvent>();
+	}
+
+	/**
+	 * Latest vehicle announcement of a DoIP entity
+	 */
+	public static class Announcement {
+
+		private final DoipUdpVehicleAnnouncementMessage message;
+
+		private final InetSocketAddress source;
+
+		private final long firstTimestamp;
+
+		private final long lastTimestamp;
+
+		private final long count;
+
+		private Announcement(DoipUdpVehicleAnnouncementMessage message, InetSocketAddress source,
+				long firstTimestamp, long lastTimestamp, long count) {
+			this.message = message;
+			this.source = source;
+			this.firstTimestamp = firstTimestamp;
+			this.lastTimestamp = lastTimestamp;
+			this.count = count;
+		}
+
+		/**
+		 * Returns the latest announcement message of the entity.
+		 */
+		public DoipUdpVehicleAnnouncementMessage getMessage() {
+			return message;
+		}
+
+		/**
+		 * Returns the address from which the latest announcement has been
+		 * received.
+		 */
+		public InetSocketAddress getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the timestamp (System.nanoTime()) of the first
+		 * announcement of the entity within the time to live.
+		 */
+		public long getFirstTimestamp() {
+			return firstTimestamp;
+		}
+
+		/**
+		 * Returns the timestamp (System.nanoTime()) of the latest
+		 * announcement of the entity.
+		 */
+		public long getLastTimestamp() {
+			return lastTimestamp;
+		}
+
+		/**
+		 * Returns the number of announcements which have been received
+		 * from the entity within the time to live.
+		 */
+		public long getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,373 @@
+package doip.tester.toolkit;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.library.message.DoipUdpVehicleAnnouncementMessage;
+import doip.library.message.DoipUdpVehicleIdentRequest;
+import doip.library.util.Conversion;
+
+/**
+ * Discovers DoIP entities by sending vehicle identification requests to
+ * many unicast, broadcast and multicast addresses at once. All requests
+ * will be sent in one burst over the socket of the
+ * {@link TesterUdpCommModule}, the announcements will be collected by its
+ * receiver thread while the requests are still being sent.
+ * <p>
+ * If VINs or EIDs are expected the discovery finishes as soon as all of
+ * them have answered, otherwise it waits for the full timeout. Requests
+ * which have not yet been sent when the discovery has been finished early
+ * will not be sent any more.
+ * <p>
+ * A discovery can be executed several times, but only one discovery
+ * can be executed at the same time with one {@link TesterUdpCommModule}.
+ */
+public class VehicleDiscovery {
+
+	private static Logger logger = LogManager.getLogger(VehicleDiscovery.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	/**
+	 * Maximum number of host addresses of a subnet which will be added by
+	 * {@link #addSubnetHosts(InetAddress, int)}, which is a /16 network
+	 */
+	public static final int MAX_SUBNET_HOSTS = 65534;
+
+	private final TesterUdpCommModule udp;
+
+	private final int port;
+
+	private final List<InetAddress> targets = new ArrayList<InetAddress>();
+
+	private final Set<String> expectedVins = new HashSet<String>();
+
+	private final Set<String> expectedEids = new HashSet<String>();
+
+	// The following fields are guarded by this object
+
+	/**
+	 * Entities which answered the current discovery by EID and logical
+	 * address in the order of their first announcement
+	 */
+	private final LinkedHashMap<String, DiscoveredEntity> entities = new LinkedHashMap<String, DiscoveredEntity>();
+
+	private final Set<String> missingVins = new HashSet<String>();
+
+	private final Set<String> missingEids = new HashSet<String>();
+
+	private long startTime = 0;
+
+	private long announcementCount = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param udp The module which will send the requests and receive
+	 *            the announcements
+	 * @param config Configuration which gives the UDP port of the DoIP
+	 *               entities
+	 */
+	public VehicleDiscovery(TesterUdpCommModule udp, TestConfig config) {
+		this.udp = udp;
+		this.port = config.getTargetPort();
+	}
+
+	/**
+	 * Adds an address to which a vehicle identification request will be
+	 * sent. It can be a unicast, broadcast or multicast address.
+	 */
+	public synchronized void addTarget(InetAddress address) {
+		targets.add(address);
+	}
+
+	/**
+	 * Adds the directed broadcast address of an IPv4 subnet.
+	 *
+	 * @param network Any address in the subnet
+	 * @param prefixLength Length of the network prefix, for example 24
+	 */
+	public synchronized void addSubnetBroadcast(InetAddress network, int prefixLength) throws UnknownHostException {
+		int hostMask = getHostMask(network, prefixLength);
+		targets.add(toInetAddress(toInt(network) | hostMask));
+	}
+
+	/**
+	 * Adds all host addresses of an IPv4 subnet, without the network and
+	 * the broadcast address. This can be used in networks in which
+	 * broadcasts will not be forwarded.
+	 *
+	 * @param network Any address in the subnet
+	 * @param prefixLength Length of the network prefix, at least 16
+	 */
+	public synchronized void addSubnetHosts(InetAddress network, int prefixLength) throws UnknownHostException {
+		int hostMask = getHostMask(network, prefixLength);
+		if (hostMask > MAX_SUBNET_HOSTS + 1) {
+			throw logger.throwing(new IllegalArgumentException(
+					"Subnet with prefix length " + prefixLength + " has more than " + MAX_SUBNET_HOSTS + " hosts"));
+		}
+		int base = toInt(network) & ~hostMask;
+		for (int host = 1; host < hostMask; host++) {
+			targets.add(toInetAddress(base | host));
+		}
+	}
+
+	/**
+	 * The discovery finishes early when entities with all expected
+	 * VINs and EIDs have answered.
+	 *
+	 * @param vin The VIN (17 bytes)
+	 */
+	public synchronized void expectVin(byte[] vin) {
+		expectedVins.add(Conversion.byteArrayToHexString(vin));
+	}
+
+	/**
+	 * The discovery finishes early when entities with all expected
+	 * VINs and EIDs have answered.
+	 *
+	 * @param eid The EID (6 bytes)
+	 */
+	public synchronized void expectEid(byte[] eid) {
+		expectedEids.add(Conversion.byteArrayToHexString(eid));
+	}
+
+	public synchronized int getTargetCount() {
+		return targets.size();
+	}
+
+	/**
+	 * Sends the vehicle identification requests and collects the
+	 * announcements.
+	 *
+	 * @param timeoutms Maximum time in milliseconds after the first
+	 *                  request has been sent, usually
+	 *                  {@link TestConfig#get_A_Vehicle_Discovery_Timer()}
+	 * @return The entities which have answered
+	 * @throws IOException If a request could not be sent
+	 */
+	public Result discover(long timeoutms) throws IOException, InterruptedException {
+		try {
+			logger.trace(enter, ">>> public Result discover(long timeoutms)");
+			InetAddress[] currentTargets;
+			synchronized (this) {
+				currentTargets = targets.toArray(new InetAddress[targets.size()]);
+				entities.clear();
+				missingVins.clear();
+				missingVins.addAll(expectedVins);
+				missingEids.clear();
+				missingEids.addAll(expectedEids);
+				announcementCount = 0;
+				startTime = System.nanoTime();
+			}
+			long deadline = startTime + TimeUnit.MILLISECONDS.toNanos(timeoutms);
+			byte[] request = new DoipUdpVehicleIdentRequest().getMessage();
+			int sent = 0;
+			udp.setVehicleDiscovery(this);
+			try {
+				for (InetAddress target : currentTargets) {
+					if (isComplete()) {
+						break;
+					}
+					udp.sendDatagramPacket(request, request.length, target, port);
+					sent++;
+				}
+				logger.info("Sent " + sent + " vehicle identification requests");
+				synchronized (this) {
+					while (!isComplete()) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							break;
+						}
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}
+					Result result = new Result(new ArrayList<DiscoveredEntity>(entities.values()),
+							isComplete(), sent, announcementCount, System.nanoTime() - startTime);
+					logger.info("Discovery finished after " + TimeUnit.NANOSECONDS.toMillis(result.getDuration())
+							+ " ms with " + result.getEntities().size() + " entities"
+							+ (result.isComplete() ? "" : ", missing VINs: " + missingVins + ", missing EIDs: " + missingEids));
+					return result;
+				}
+			} finally {
+				udp.setVehicleDiscovery(null);
+			}
+		} finally {
+			logger.trace(exit, "<<< public Result discover(long timeoutms)");
+		}
+	}
+
+	/**
+	 * Will be called by the receiver thread of the
+	 * {@link TesterUdpCommModule} for every vehicle announcement.
+	 */
+	synchronized void onAnnouncement(long timestamp, DoipUdpVehicleAnnouncementMessage message, InetSocketAddress source) {
+		announcementCount++;
+		String eid = Conversion.byteArrayToHexString(message.getEid());
+		String vin = Conversion.byteArrayToHexString(message.getVin());
+		String key = eid + "/" + message.getLogicalAddress();
+		if (entities.containsKey(key)) {
+			return;
+		}
+		entities.put(key, new DiscoveredEntity(message, source, timestamp - startTime));
+		boolean changed = missingVins.remove(vin) | missingEids.remove(eid);
+		if (changed && isComplete()) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns true if all expected entities have answered. Returns
+	 * always false if no entities are expected.
+	 */
+	private synchronized boolean isComplete() {
+		return (!expectedVins.isEmpty() || !expectedEids.isEmpty()) && missingVins.isEmpty() && missingEids.isEmpty();
+	}
+
+	private static int getHostMask(InetAddress network, int prefixLength) {
+		if (!(network instanceof Inet4Address)) {
+			throw logger.throwing(new IllegalArgumentException("Subnets are only supported for IPv4"));
+		}
+		if (prefixLength < 0 || prefixLength > 30) {
+			throw logger.throwing(new IllegalArgumentException("Invalid prefix length " + prefixLength));
+		}
+		return (int) ((1L << (32 - prefixLength)) - 1);
+	}
+
+	private static int toInt(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+	}
+
+	private static InetAddress toInetAddress(int value) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] {
+				(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value});
+	}
+
+	/**
+	 * DoIP entity which has answered the discovery
+	 */
+	public static class DiscoveredEntity {
+
+		private final DoipUdpVehicleAnnouncementMessage announcement;
+
+		private final InetSocketAddress source;
+
+		private final long responseTime;
+
+		DiscoveredEntity(DoipUdpVehicleAnnouncementMessage announcement, InetSocketAddress source, long responseTime) {
+			this.announcement = announcement;
+			this.source = source;
+			this.responseTime = responseTime;
+		}
+
+		/**
+		 * Returns the first announcement which has been received from
+		 * this entity.
+		 */
+		public DoipUdpVehicleAnnouncementMessage getAnnouncement() {
+			return announcement;
+		}
+
+		/**
+		 * Returns the address from which the announcement has been sent,
+		 * it can be used to open the TCP connection.
+		 */
+		public InetSocketAddress getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the time in nanoseconds from the start of the discovery
+		 * until the first announcement of this entity.
+		 */
+		public long getResponseTime() {
+			return responseTime;
+		}
+
+		@Override
+		public String toString() {
+			return "VIN " + Conversion.byteArrayToHexString(announcement.getVin())
+					+ ", EID " + Conversion.byteArrayToHexString(announcement.getEid())
+					+ ", logical address " + String.format("0x%04X", announcement.getLogicalAddress())
+					+ " at " + source.getAddress().getHostAddress()
+					+ " after " + TimeUnit.NANOSECONDS.toMillis(responseTime) + " ms";
+		}
+	}
+
+	/**
+	 * Result of a discovery
+	 */
+	public static class Result {
+
+		private final List<DiscoveredEntity> entities;
+
+		private final boolean complete;
+
+		private final int requestCount;
+
+		private final long announcementCount;
+
+		private final long duration;
+
+		Result(List<DiscoveredEntity> entities, boolean complete, int requestCount, long announcementCount, long duration) {
+			this.entities = Collections.unmodifiableList(entities);
+			this.complete = complete;
+			this.requestCount = requestCount;
+			this.announcementCount = announcementCount;
+			this.duration = duration;
+		}
+
+		/**
+		 * Returns the entities in the order of their first announcement.
+		 * Every entity is contained only once, even if it has answered
+		 * several requests.
+		 */
+		public List<DiscoveredEntity> getEntities() {
+			return entities;
+		}
+
+		/**
+		 * Returns true if all expected VINs and EIDs have answered.
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * Returns the number of requests which have been sent.
+		 */
+		public int getRequestCount() {
+			return requestCount;
+		}
+
+		/**
+		 * Returns the number of announcements which have been received,
+		 * including repeated announcements of the same entity.
+		 */
+		public long getAnnouncementCount() {
+			return announcementCount;
+		}
+
+		/**
+		 * Returns the duration of the discovery in nanoseconds.
+		 */
+		public long getDuration() {
+			return duration;
+		}
+	}
+}
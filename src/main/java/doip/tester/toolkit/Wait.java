@@ -30,7 +30,12 @@ public class Wait {
 	 *         
 	 * @throws InterruptedException Will be thrown if sleep function will
 	 *                              get interrupted.
+	 *
+	 * @deprecated This function polls the size of the list. Use
+	 *             {@link #waitForEvents(EventQueue, int, long)} which
+	 *             will be woken up directly when a new event arrives.
 	 */
+	@Deprecated
 	public static DoipEvent waitForEvents(List<DoipEvent> events, int numberOfEvents, long timeoutms) throws InterruptedException {
 		DoipEvent event = null;
 		try {
@@ -57,4 +62,41 @@ public class Wait {
 		}
 		return event;
 	}
+
+	/**
+	 * Waits that a specific number of DoIP events are stored in a event queue.
+	 * The calling thread will be blocked until the event queue signals that
+	 * a new event has been added or the timeout has elapsed.
+	 * 
+	 * @param events The event queue.
+	 * 
+	 * @param numberOfEvents The minimum number of events that shall be available
+	 *                       in the event queue.
+	 *                        
+	 * @param timeoutms Timeout in milliseconds
+	 * 
+	 * @return Returns the event at position (numberOfEvents - 1) if the queue
+	 *         contains at least the specific number of events. If the queue
+	 *         does not contain the specific number of events it returns null.
+	 *         
+	 * @throws InterruptedException Will be thrown if the waiting thread
+	 *                              gets interrupted.
+	 */
+	public static DoipEvent waitForEvents(EventQueue events, int numberOfEvents, long timeoutms) throws InterruptedException {
+		DoipEvent event = null;
+		try {
+			logger.trace(">>> public DoipEvent waitForEvents(EventQueue events, int numberOfEvents, long timeoutms)");
+			
+			logger.debug("Number of events in event queue at function entry: " + events.size());
+			logger.info("Wait for incoming events until " + numberOfEvents + " are in event queue, timeout is " + timeoutms + " ms");
+			event = events.waitForEvents(numberOfEvents, timeoutms);
+			logger.debug("Number of events in event queue at function exit: " + events.size());
+		} catch (InterruptedException e) {
+			logger.fatal(TextBuilder.unexpectedException(e));
+			throw logger.throwing(Level.FATAL, e);
+		} finally {
+			logger.trace("<<< public DoipEvent waitForEvents(EventQueue events, int numberOfEvents, long timeoutms)");
+		}
+		return event;
+	}
 }
@@ -0,0 +1,530 @@
+package doip.tester.toolkit.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.library.util.Helper;
+
+/**
+ * Writes DoIP traffic to pcapng files which can be opened with Wireshark.
+ * The tester does not have access to the raw packets of the network
+ * interface, so IP, TCP and UDP headers will be synthesized from the
+ * socket addresses of the connections. Sequence and acknowledge numbers
+ * of TCP are counted per connection, so Wireshark can reassemble the
+ * DoIP messages. Checksums of TCP and UDP are set to 0.
+ * <p>
+ * Packets will be collected in a direct buffer and written with a
+ * FileChannel when the buffer is full, but at the latest after the flush
+ * interval, so the file can be followed while the test is running and
+ * not more than one interval will be lost if the process gets killed.
+ * With a flush interval of 0 every packet will be written immediately.
+ * When a file would exceed the
+ * maximum file size the next file will be started. Files are named
+ * "prefix-000000.pcapng", "prefix-000001.pcapng" and so on.
+ * <p>
+ * Timestamps are given as System.nanoTime() like the timestamps of the
+ * events. They will be converted to the wall clock time with the offset
+ * which has been measured when the capture has been created.
+ * <p>
+ * All functions are thread-safe. If writing fails the capture will be
+ * stopped and the error will be logged, the traffic will not be disturbed.
+ */
+public class PcapngCapture implements Closeable {
+
+	private static Logger logger = LogManager.getLogger(PcapngCapture.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	public static final String FILE_SUFFIX = ".pcapng";
+
+	public static final long DEFAULT_MAX_FILE_SIZE = 100L * 1024 * 1024;
+
+	/**
+	 * Maximum time in milliseconds which packets stay in the buffer
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/**
+	 * Size of the write buffer
+	 */
+	public static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final int BLOCK_TYPE_SECTION_HEADER = 0x0A0D0D0A;
+
+	private static final int BLOCK_TYPE_INTERFACE_DESCRIPTION = 0x00000001;
+
+	private static final int BLOCK_TYPE_ENHANCED_PACKET = 0x00000006;
+
+	private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+	/**
+	 * Link type for raw IPv4 and IPv6 packets without link layer header
+	 */
+	private static final int LINKTYPE_RAW = 101;
+
+	private static final int OPTION_IF_TSRESOL = 9;
+
+	private static final int PROTOCOL_TCP = 6;
+
+	private static final int PROTOCOL_UDP = 17;
+
+	static final int TCP_FLAG_FIN = 0x01;
+
+	static final int TCP_FLAG_SYN = 0x02;
+
+	static final int TCP_FLAG_PSH = 0x08;
+
+	static final int TCP_FLAG_ACK = 0x10;
+
+	private static final int TCP_HEADER_LENGTH = 20;
+
+	private static final int UDP_HEADER_LENGTH = 8;
+
+	private static final int IPV4_HEADER_LENGTH = 20;
+
+	private static final int IPV6_HEADER_LENGTH = 40;
+
+	/**
+	 * Maximum TCP payload in one packet, larger data will be split
+	 * into several segments
+	 */
+	private static final int MAX_SEGMENT_SIZE = 65000;
+
+	/**
+	 * Length of the section header block and interface description block
+	 * which will be written at the beginning of every file
+	 */
+	private static final int FILE_HEADER_LENGTH = 28 + 32;
+
+	private final Path directory;
+
+	private final String prefix;
+
+	private final long maxFileSize;
+
+	/**
+	 * Flush interval in milliseconds, 0 if every packet will be
+	 * written immediately
+	 */
+	private final long flushInterval;
+
+	/**
+	 * Writes the buffer periodically, null if the flush interval is 0
+	 */
+	private final ScheduledThreadPoolExecutor flusher;
+
+	/**
+	 * Difference between wall clock time in nanoseconds since
+	 * 1970 and System.nanoTime()
+	 */
+	private final long clockOffset;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	private FileChannel channel = null;
+
+	private int fileIndex = 0;
+
+	/**
+	 * Number of bytes in the current file including the buffer
+	 */
+	private long fileSize = 0;
+
+	private long packetCount = 0;
+
+	private int fileCount = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Creates the capture with the default flush interval.
+	 *
+	 * @see #PcapngCapture(Path, String, long, long)
+	 */
+	public PcapngCapture(Path directory, String prefix, long maxFileSize) throws IOException {
+		this(directory, prefix, maxFileSize, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * Creates the capture and the first file. The directory will be
+	 * created if it does not exist, existing files will not be
+	 * overwritten.
+	 *
+	 * @param directory Directory for the capture files
+	 * @param prefix Prefix of the file names
+	 * @param maxFileSize Maximum size of one file in bytes
+	 * @param flushInterval Maximum time in milliseconds which packets stay
+	 *                      in the buffer, 0 writes every packet immediately
+	 * @throws IOException If the directory or the first file could not
+	 *                     be created
+	 */
+	public PcapngCapture(Path directory, String prefix, long maxFileSize, long flushInterval) throws IOException {
+		if (maxFileSize <= FILE_HEADER_LENGTH) {
+			throw new IllegalArgumentException("Maximum file size " + maxFileSize + " is too small");
+		}
+		if (flushInterval < 0) {
+			throw new IllegalArgumentException("Flush interval " + flushInterval + " is negative");
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.maxFileSize = maxFileSize;
+		this.flushInterval = flushInterval;
+		this.clockOffset = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+		Files.createDirectories(directory);
+		while (Files.exists(getFile(fileIndex))) {
+			fileIndex++;
+		}
+		openFile();
+		if (flushInterval > 0) {
+			this.flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+				Thread thread = new Thread(runnable, "PCAP-FLUSH");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		} else {
+			this.flusher = null;
+			writeBuffer();
+		}
+	}
+
+	/**
+	 * Creates a TCP connection in the capture. The handshake will be
+	 * written immediately with the given timestamp.
+	 *
+	 * @param local Address of the tester
+	 * @param remote Address of the DoIP entity
+	 */
+	public TcpFlow createTcpFlow(InetSocketAddress local, InetSocketAddress remote, long timestamp) {
+		TcpFlow flow = new TcpFlow(this, local, remote);
+		flow.writeHandshake(timestamp);
+		return flow;
+	}
+
+	/**
+	 * Creates a UDP socket in the capture.
+	 *
+	 * @param local Address of the tester
+	 */
+	public UdpFlow createUdpFlow(InetSocketAddress local) {
+		return new UdpFlow(this, local);
+	}
+
+	/**
+	 * Writes the buffer to the current file.
+	 */
+	public synchronized void flush() {
+		if (closed) {
+			return;
+		}
+		try {
+			writeBuffer();
+		} catch (IOException e) {
+			stop(e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			logger.trace(enter, ">>> public void close()");
+			if (closed) {
+				return;
+			}
+			if (flusher != null) {
+				// Not shutdownNow(), an interrupt would close the channel
+				// while the flusher writes to it
+				flusher.shutdown();
+			}
+			try {
+				writeBuffer();
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Failed to close capture file");
+				logger.error(Helper.getExceptionAsString(e));
+			}
+			closed = true;
+			logger.info("Capture closed, packets: " + packetCount + ", files: " + fileCount);
+		} finally {
+			logger.trace(exit, "<<< public void close()");
+		}
+	}
+
+	public synchronized long getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * Returns the number of files which have been created by this capture.
+	 */
+	public synchronized int getFileCount() {
+		return fileCount;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the flush interval in milliseconds, 0 if every packet will
+	 * be written immediately.
+	 */
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Returns the path of the file with the given index.
+	 */
+	public Path getFile(int index) {
+		return directory.resolve(String.format("%s-%06d%s", prefix, index, FILE_SUFFIX));
+	}
+
+	/**
+	 * Writes a TCP packet.
+	 */
+	synchronized void writeTcp(long timestamp, InetSocketAddress source, InetSocketAddress destination,
+			long sequence, long acknowledge, int flags, byte[] data, int offset, int length) {
+		int ipHeaderLength = getIpHeaderLength(source.getAddress(), destination.getAddress());
+		int packetLength = ipHeaderLength + TCP_HEADER_LENGTH + length;
+		ByteBuffer out = beginPacket(timestamp, packetLength);
+		if (out == null) {
+			return;
+		}
+		putIpHeader(out, source.getAddress(), destination.getAddress(), PROTOCOL_TCP,
+				TCP_HEADER_LENGTH + length);
+		out.putShort((short) source.getPort());
+		out.putShort((short) destination.getPort());
+		out.putInt((int) sequence);
+		out.putInt((int) acknowledge);
+		out.put((byte) ((TCP_HEADER_LENGTH / 4) << 4));
+		out.put((byte) flags);
+		out.putShort((short) 0xFFFF);
+		// Checksum and urgent pointer
+		out.putInt(0);
+		if (length > 0) {
+			out.put(data, offset, length);
+		}
+		endPacket(out, packetLength);
+	}
+
+	/**
+	 * Writes a UDP packet.
+	 */
+	synchronized void writeUdp(long timestamp, InetSocketAddress source, InetSocketAddress destination,
+			byte[] data, int offset, int length) {
+		int ipHeaderLength = getIpHeaderLength(source.getAddress(), destination.getAddress());
+		int packetLength = ipHeaderLength + UDP_HEADER_LENGTH + length;
+		ByteBuffer out = beginPacket(timestamp, packetLength);
+		if (out == null) {
+			return;
+		}
+		putIpHeader(out, source.getAddress(), destination.getAddress(), PROTOCOL_UDP,
+				UDP_HEADER_LENGTH + length);
+		out.putShort((short) source.getPort());
+		out.putShort((short) destination.getPort());
+		out.putShort((short) (UDP_HEADER_LENGTH + length));
+		out.putShort((short) 0);
+		out.put(data, offset, length);
+		endPacket(out, packetLength);
+	}
+
+	static int getMaxSegmentSize() {
+		return MAX_SEGMENT_SIZE;
+	}
+
+	/**
+	 * Starts an enhanced packet block. Rotates the file and flushes the
+	 * buffer if required.
+	 *
+	 * @return The buffer to which the packet shall be written, null if
+	 *         the capture has been stopped
+	 */
+	private ByteBuffer beginPacket(long timestamp, int packetLength) {
+		if (closed) {
+			return null;
+		}
+		int blockLength = 28 + pad4(packetLength) + 4;
+		try {
+			// A packet which is larger than a file will be written to its own file
+			if (fileSize + blockLength > maxFileSize && fileSize > FILE_HEADER_LENGTH) {
+				writeBuffer();
+				channel.close();
+				fileIndex++;
+				openFile();
+			}
+			if (buffer.remaining() < blockLength) {
+				writeBuffer();
+			}
+		} catch (IOException e) {
+			stop(e);
+			return null;
+		}
+		ByteBuffer out = buffer.remaining() >= blockLength ? buffer : ByteBuffer.allocate(blockLength);
+		long wallClock = timestamp + clockOffset;
+		out.putInt(BLOCK_TYPE_ENHANCED_PACKET);
+		out.putInt(blockLength);
+		// Interface ID
+		out.putInt(0);
+		out.putInt((int) (wallClock >>> 32));
+		out.putInt((int) wallClock);
+		out.putInt(packetLength);
+		out.putInt(packetLength);
+		return out;
+	}
+
+	private void endPacket(ByteBuffer out, int packetLength) {
+		for (int i = packetLength; i < pad4(packetLength); i++) {
+			out.put((byte) 0);
+		}
+		int blockLength = 28 + pad4(packetLength) + 4;
+		out.putInt(blockLength);
+		fileSize += blockLength;
+		packetCount++;
+		try {
+			if (out != buffer) {
+				// Packet was too large for the buffer
+				out.flip();
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+			} else if (flushInterval == 0) {
+				writeBuffer();
+			}
+		} catch (IOException e) {
+			stop(e);
+		}
+	}
+
+	private static int getIpHeaderLength(InetAddress source, InetAddress destination) {
+		return source instanceof Inet6Address || destination instanceof Inet6Address
+				? IPV6_HEADER_LENGTH : IPV4_HEADER_LENGTH;
+	}
+
+	private static void putIpHeader(ByteBuffer out, InetAddress source, InetAddress destination,
+			int protocol, int payloadLength) {
+		byte[] sourceBytes = source.getAddress();
+		byte[] destinationBytes = destination.getAddress();
+		if (source instanceof Inet6Address || destination instanceof Inet6Address) {
+			out.putInt(0x60000000);
+			out.putShort((short) payloadLength);
+			out.put((byte) protocol);
+			// Hop limit
+			out.put((byte) 64);
+			out.put(toIpv6(sourceBytes));
+			out.put(toIpv6(destinationBytes));
+			return;
+		}
+		int start = out.position();
+		out.put((byte) 0x45);
+		out.put((byte) 0);
+		out.putShort((short) (IPV4_HEADER_LENGTH + payloadLength));
+		// Identification, flags (don't fragment) and fragment offset
+		out.putShort((short) 0);
+		out.putShort((short) 0x4000);
+		out.put((byte) 64);
+		out.put((byte) protocol);
+		out.putShort((short) 0);
+		out.put(sourceBytes);
+		out.put(destinationBytes);
+		int sum = 0;
+		for (int i = 0; i < IPV4_HEADER_LENGTH; i += 2) {
+			sum += out.getShort(start + i) & 0xFFFF;
+		}
+		while ((sum >> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >> 16);
+		}
+		out.putShort(start + 10, (short) ~sum);
+	}
+
+	/**
+	 * Converts an IPv4 address to an IPv4-mapped IPv6 address if the
+	 * other address of the packet is an IPv6 address.
+	 */
+	private static byte[] toIpv6(byte[] address) {
+		if (address.length == 16) {
+			return address;
+		}
+		byte[] mapped = new byte[16];
+		mapped[10] = (byte) 0xFF;
+		mapped[11] = (byte) 0xFF;
+		System.arraycopy(address, 0, mapped, 12, 4);
+		return mapped;
+	}
+
+	private static int pad4(int length) {
+		return (length + 3) & ~3;
+	}
+
+	private void openFile() throws IOException {
+		Path file = getFile(fileIndex);
+		channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		fileSize = 0;
+		fileCount++;
+
+		// Section header block
+		buffer.putInt(BLOCK_TYPE_SECTION_HEADER);
+		buffer.putInt(28);
+		buffer.putInt(BYTE_ORDER_MAGIC);
+		buffer.putShort((short) 1);
+		buffer.putShort((short) 0);
+		// Section length is not specified
+		buffer.putLong(-1L);
+		buffer.putInt(28);
+
+		// Interface description block with option if_tsresol = 9 (nanoseconds)
+		buffer.putInt(BLOCK_TYPE_INTERFACE_DESCRIPTION);
+		buffer.putInt(32);
+		buffer.putShort((short) LINKTYPE_RAW);
+		buffer.putShort((short) 0);
+		// Snap length, 0 means no limit
+		buffer.putInt(0);
+		buffer.putShort((short) OPTION_IF_TSRESOL);
+		buffer.putShort((short) 1);
+		buffer.put((byte) 9);
+		buffer.put(new byte[3]);
+		// opt_endofopt
+		buffer.putInt(0);
+		buffer.putInt(32);
+		fileSize += FILE_HEADER_LENGTH;
+		logger.info("Capture file " + file + " has been created");
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private void stop(IOException e) {
+		logger.error("Writing the capture file failed, capture will be stopped");
+		logger.error(Helper.getExceptionAsString(e));
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e2) {
+			// Capture has already failed
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package doip.tester.toolkit.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads the TCP and UDP packets of pcapng files one after the other.
+ * Only one block is held in memory, so captures of any size can be read
+ * with constant memory. Files written by {@link PcapngCapture} and files
+ * recorded by Wireshark on Ethernet or raw IP interfaces are supported.
+ * Other packets and blocks will be skipped.
+ * <p>
+ * After {@link #next()} returned true the fields of the packet can be read
+ * with the getters of the reader. The payload is only valid until the
+ * next call of {@link #next()}.
+ * <p>
+ * Example:
+ * <pre>
+ * try (PcapngReader reader = new PcapngReader(files)) {
+ *     while (reader.next()) {
+ *         ByteBuffer payload = reader.getPayload();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public class PcapngReader implements Closeable {
+
+	private static Logger logger = LogManager.getLogger(PcapngReader.class);
+
+	public static final int PROTOCOL_TCP = 6;
+
+	public static final int PROTOCOL_UDP = 17;
+
+	public static final int TCP_FLAG_FIN = PcapngCapture.TCP_FLAG_FIN;
+
+	public static final int TCP_FLAG_SYN = PcapngCapture.TCP_FLAG_SYN;
+
+	public static final int TCP_FLAG_RST = 0x04;
+
+	public static final int TCP_FLAG_ACK = PcapngCapture.TCP_FLAG_ACK;
+
+	private static final int BLOCK_TYPE_SECTION_HEADER = 0x0A0D0D0A;
+
+	private static final int BLOCK_TYPE_INTERFACE_DESCRIPTION = 0x00000001;
+
+	private static final int BLOCK_TYPE_ENHANCED_PACKET = 0x00000006;
+
+	private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+	private static final int LINKTYPE_ETHERNET = 1;
+
+	private static final int LINKTYPE_RAW = 101;
+
+	private static final int LINKTYPE_IPV4 = 228;
+
+	private static final int LINKTYPE_IPV6 = 229;
+
+	private static final int OPTION_IF_TSRESOL = 9;
+
+	private static final int ETHERTYPE_IPV4 = 0x0800;
+
+	private static final int ETHERTYPE_IPV6 = 0x86DD;
+
+	private static final int ETHERTYPE_VLAN = 0x8100;
+
+	private static final int MAX_BLOCK_LENGTH = 16 * 1024 * 1024;
+
+	private final List<Path> files;
+
+	private int nextFile = 0;
+
+	private FileChannel channel = null;
+
+	private ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+
+	private final ByteBuffer blockHeader = ByteBuffer.allocate(8);
+
+	private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+	/**
+	 * Link types of the interfaces of the current section
+	 */
+	private final List<Integer> linkTypes = new ArrayList<Integer>();
+
+	/**
+	 * Nanoseconds per timestamp unit of the interfaces of the current
+	 * section, 0 if the resolution is not a power of 10
+	 */
+	private final List<Long> timestampUnits = new ArrayList<Long>();
+
+	private long timestamp;
+
+	private int protocol;
+
+	private InetSocketAddress source;
+
+	private InetSocketAddress destination;
+
+	private long sequence;
+
+	private int flags;
+
+	private ByteBuffer payload;
+
+	private long skippedCount = 0;
+
+	/**
+	 * Creates a reader for the given files which will be read in the
+	 * given order.
+	 */
+	public PcapngReader(List<Path> files) {
+		this.files = new ArrayList<Path>(files);
+	}
+
+	/**
+	 * Creates a reader for all files which have been written by a
+	 * {@link PcapngCapture} with the given prefix.
+	 */
+	public PcapngReader(Path directory, String prefix) throws IOException {
+		this(listFiles(directory, prefix));
+	}
+
+	/**
+	 * Reads the next TCP or UDP packet.
+	 *
+	 * @return True if a packet has been read, false at the end of the
+	 *         last file
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (channel == null) {
+				if (nextFile >= files.size()) {
+					return false;
+				}
+				channel = FileChannel.open(files.get(nextFile++), StandardOpenOption.READ);
+			}
+			if (!readBlock()) {
+				channel.close();
+				channel = null;
+				continue;
+			}
+			int type = block.getInt(0);
+			if (type == BLOCK_TYPE_SECTION_HEADER) {
+				linkTypes.clear();
+				timestampUnits.clear();
+			} else if (type == BLOCK_TYPE_INTERFACE_DESCRIPTION) {
+				readInterfaceDescription();
+			} else if (type == BLOCK_TYPE_ENHANCED_PACKET) {
+				if (readEnhancedPacket()) {
+					return true;
+				}
+				skippedCount++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the timestamp of the packet in nanoseconds since 1970.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns {@link #PROTOCOL_TCP} or {@link #PROTOCOL_UDP}.
+	 */
+	public int getProtocol() {
+		return protocol;
+	}
+
+	public InetSocketAddress getSource() {
+		return source;
+	}
+
+	public InetSocketAddress getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Returns the TCP sequence number, 0 for UDP packets.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns the TCP flags, 0 for UDP packets.
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Returns the TCP or UDP payload from position to limit. The buffer
+	 * is only valid until the next call of {@link #next()}.
+	 */
+	public ByteBuffer getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Returns the number of packets which have been skipped because they
+	 * are no TCP or UDP packets or because they have been truncated.
+	 */
+	public long getSkippedCount() {
+		return skippedCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		nextFile = files.size();
+	}
+
+	/**
+	 * Reads the next block of the current file into the block buffer.
+	 *
+	 * @return False at the end of the file
+	 */
+	private boolean readBlock() throws IOException {
+		blockHeader.clear();
+		if (!readFully(blockHeader)) {
+			return false;
+		}
+		int type = blockHeader.getInt(0);
+		if (type == BLOCK_TYPE_SECTION_HEADER) {
+			// The byte order is given by the magic which follows the header
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			if (!readFully(magic)) {
+				return false;
+			}
+			order = magic.getInt(0) == BYTE_ORDER_MAGIC ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			blockHeader.order(order);
+			channel.position(channel.position() - 4);
+		} else {
+			blockHeader.order(order);
+		}
+		int length = blockHeader.getInt(4);
+		if (length < 12 || length > MAX_BLOCK_LENGTH) {
+			throw new IOException("Invalid pcapng block length " + length);
+		}
+		if (block.capacity() < length) {
+			block = ByteBuffer.allocate(Math.max(length, 2 * block.capacity()));
+		}
+		block.clear();
+		block.order(order);
+		block.put(blockHeader.array(), 0, 8);
+		block.limit(length);
+		if (!readFully(block)) {
+			throw new IOException("Unexpected end of pcapng file");
+		}
+		return true;
+	}
+
+	private boolean readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (buffer.position() == 0) {
+					return false;
+				}
+				throw new IOException("Unexpected end of pcapng file");
+			}
+		}
+		return true;
+	}
+
+	private void readInterfaceDescription() {
+		int length = block.getInt(4);
+		linkTypes.add(block.getShort(8) & 0xFFFF);
+		// Default resolution is microseconds
+		long unit = 1000;
+		int position = 16;
+		while (position + 4 <= length - 4) {
+			int code = block.getShort(position) & 0xFFFF;
+			int optionLength = block.getShort(position + 2) & 0xFFFF;
+			if (code == 0) {
+				break;
+			}
+			if (code == OPTION_IF_TSRESOL && optionLength >= 1) {
+				int resolution = block.get(position + 4) & 0xFF;
+				unit = 0;
+				if ((resolution & 0x80) == 0 && resolution <= 9) {
+					unit = 1;
+					for (int i = resolution; i < 9; i++) {
+						unit *= 10;
+					}
+				}
+			}
+			position += 4 + ((optionLength + 3) & ~3);
+		}
+		timestampUnits.add(unit);
+	}
+
+	/**
+	 * Parses an enhanced packet block.
+	 *
+	 * @return False if the packet is no TCP or UDP packet
+	 */
+	private boolean readEnhancedPacket() {
+		int interfaceId = block.getInt(8);
+		if (interfaceId >= linkTypes.size()) {
+			return false;
+		}
+		long unit = timestampUnits.get(interfaceId);
+		if (unit == 0) {
+			return false;
+		}
+		long ticks = ((long) block.getInt(12) << 32) | (block.getInt(16) & 0xFFFFFFFFL);
+		timestamp = ticks * unit;
+		int capturedLength = block.getInt(20);
+		int packetLength = block.getInt(24);
+		if (capturedLength < packetLength || 28 + capturedLength > block.limit()) {
+			// Truncated packets can not be replayed
+			return false;
+		}
+		ByteBuffer packet = block.duplicate().order(ByteOrder.BIG_ENDIAN);
+		packet.position(28);
+		packet.limit(28 + capturedLength);
+		int linkType = linkTypes.get(interfaceId);
+		if (linkType == LINKTYPE_ETHERNET) {
+			if (packet.remaining() < 14) {
+				return false;
+			}
+			int etherType = packet.getShort(packet.position() + 12) & 0xFFFF;
+			packet.position(packet.position() + 14);
+			if (etherType == ETHERTYPE_VLAN && packet.remaining() >= 4) {
+				etherType = packet.getShort(packet.position() + 2) & 0xFFFF;
+				packet.position(packet.position() + 4);
+			}
+			if (etherType != ETHERTYPE_IPV4 && etherType != ETHERTYPE_IPV6) {
+				return false;
+			}
+		} else if (linkType != LINKTYPE_RAW && linkType != LINKTYPE_IPV4 && linkType != LINKTYPE_IPV6) {
+			return false;
+		}
+		return readIpPacket(packet.slice());
+	}
+
+	private boolean readIpPacket(ByteBuffer packet) {
+		if (packet.remaining() < 1) {
+			return false;
+		}
+		int version = (packet.get(0) & 0xFF) >> 4;
+		byte[] sourceAddress;
+		byte[] destinationAddress;
+		int headerLength;
+		int end;
+		if (version == 4) {
+			if (packet.remaining() < 20) {
+				return false;
+			}
+			headerLength = (packet.get(0) & 0x0F) * 4;
+			end = Math.min(packet.getShort(2) & 0xFFFF, packet.limit());
+			protocol = packet.get(9) & 0xFF;
+			// Fragments can not be handled
+			if ((packet.getShort(6) & 0x3FFF) != 0) {
+				return false;
+			}
+			sourceAddress = new byte[4];
+			destinationAddress = new byte[4];
+			packet.position(12);
+		} else if (version == 6) {
+			if (packet.remaining() < 40) {
+				return false;
+			}
+			headerLength = 40;
+			end = Math.min(40 + (packet.getShort(4) & 0xFFFF), packet.limit());
+			// Extension headers are not supported
+			protocol = packet.get(6) & 0xFF;
+			sourceAddress = new byte[16];
+			destinationAddress = new byte[16];
+			packet.position(8);
+		} else {
+			return false;
+		}
+		packet.get(sourceAddress);
+		packet.get(destinationAddress);
+		packet.position(headerLength);
+		packet.limit(end);
+
+		int sourcePort;
+		int destinationPort;
+		if (protocol == PROTOCOL_TCP) {
+			if (packet.remaining() < 20) {
+				return false;
+			}
+			int start = packet.position();
+			sourcePort = packet.getShort(start) & 0xFFFF;
+			destinationPort = packet.getShort(start + 2) & 0xFFFF;
+			sequence = packet.getInt(start + 4) & 0xFFFFFFFFL;
+			int dataOffset = ((packet.get(start + 12) & 0xFF) >> 4) * 4;
+			flags = packet.get(start + 13) & 0xFF;
+			if (dataOffset < 20 || dataOffset > packet.remaining()) {
+				return false;
+			}
+			packet.position(start + dataOffset);
+		} else if (protocol == PROTOCOL_UDP) {
+			if (packet.remaining() < 8) {
+				return false;
+			}
+			int start = packet.position();
+			sourcePort = packet.getShort(start) & 0xFFFF;
+			destinationPort = packet.getShort(start + 2) & 0xFFFF;
+			sequence = 0;
+			flags = 0;
+			packet.limit(Math.min(packet.limit(), start + (packet.getShort(start + 4) & 0xFFFF)));
+			packet.position(start + 8);
+		} else {
+			return false;
+		}
+		try {
+			source = new InetSocketAddress(InetAddress.getByAddress(sourceAddress), sourcePort);
+			destination = new InetSocketAddress(InetAddress.getByAddress(destinationAddress), destinationPort);
+		} catch (IOException e) {
+			// Can not happen because the length of the address is valid
+			logger.error("Invalid address in capture");
+			return false;
+		}
+		payload = packet.slice();
+		return true;
+	}
+
+	/**
+	 * Returns all files which have been written by a {@link PcapngCapture}
+	 * with the given prefix, sorted by their index.
+	 */
+	public static List<Path> listFiles(Path directory, String prefix) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return new ArrayList<Path>();
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> getFileIndex(file, prefix) >= 0)
+					.sorted((a, b) -> Integer.compare(getFileIndex(a, prefix), getFileIndex(b, prefix)))
+					.collect(Collectors.toList());
+		}
+	}
+
+	private static int getFileIndex(Path file, String prefix) {
+		String name = file.getFileName().toString();
+		if (!name.startsWith(prefix + "-") || !name.endsWith(PcapngCapture.FILE_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(prefix.length() + 1,
+					name.length() - PcapngCapture.FILE_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
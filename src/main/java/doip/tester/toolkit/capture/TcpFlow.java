@@ -0,0 +1,120 @@
+package doip.tester.toolkit.capture;
+
+import java.net.InetSocketAddress;
+
+/**
+ * TCP connection in a {@link PcapngCapture}. It counts the sequence numbers
+ * of both directions, every message will be written as one segment (or
+ * several segments if it is larger than 65000 bytes) which is acknowledged
+ * by the next segment of the other direction.
+ */
+public class TcpFlow {
+
+	/**
+	 * Initial sequence numbers of the synthesized handshake
+	 */
+	private static final long LOCAL_ISN = 1000;
+
+	private static final long REMOTE_ISN = 2000;
+
+	private final PcapngCapture capture;
+
+	private final InetSocketAddress local;
+
+	private final InetSocketAddress remote;
+
+	private long localSequence = LOCAL_ISN;
+
+	private long remoteSequence = REMOTE_ISN;
+
+	private boolean closed = false;
+
+	TcpFlow(PcapngCapture capture, InetSocketAddress local, InetSocketAddress remote) {
+		this.capture = capture;
+		this.local = local;
+		this.remote = remote;
+	}
+
+	public InetSocketAddress getLocalAddress() {
+		return local;
+	}
+
+	public InetSocketAddress getRemoteAddress() {
+		return remote;
+	}
+
+	/**
+	 * Writes data which has been sent by the tester.
+	 */
+	public synchronized void onSent(long timestamp, byte[] data) {
+		if (closed) {
+			return;
+		}
+		localSequence = writeData(timestamp, local, remote, localSequence, remoteSequence, data, 0, data.length);
+	}
+
+	/**
+	 * Writes data which has been received from the DoIP entity.
+	 */
+	public void onReceived(long timestamp, byte[] data) {
+		onReceived(timestamp, data, 0, data.length);
+	}
+
+	/**
+	 * Writes data which has been received from the DoIP entity. The data
+	 * will be copied into the buffer of the capture, so the array can be
+	 * reused after the call.
+	 */
+	public synchronized void onReceived(long timestamp, byte[] data, int offset, int length) {
+		if (closed) {
+			return;
+		}
+		remoteSequence = writeData(timestamp, remote, local, remoteSequence, localSequence, data, offset, length);
+	}
+
+	/**
+	 * Writes a FIN segment. Later data will be ignored.
+	 *
+	 * @param byTester True if the tester has closed the connection, false
+	 *                 if the connection has been closed by the DoIP entity.
+	 */
+	public synchronized void onClosed(long timestamp, boolean byTester) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		int flags = PcapngCapture.TCP_FLAG_FIN | PcapngCapture.TCP_FLAG_ACK;
+		if (byTester) {
+			capture.writeTcp(timestamp, local, remote, localSequence, remoteSequence, flags, null, 0, 0);
+		} else {
+			capture.writeTcp(timestamp, remote, local, remoteSequence, localSequence, flags, null, 0, 0);
+		}
+	}
+
+	synchronized void writeHandshake(long timestamp) {
+		capture.writeTcp(timestamp, local, remote, localSequence, 0,
+				PcapngCapture.TCP_FLAG_SYN, null, 0, 0);
+		localSequence++;
+		capture.writeTcp(timestamp, remote, local, remoteSequence, localSequence,
+				PcapngCapture.TCP_FLAG_SYN | PcapngCapture.TCP_FLAG_ACK, null, 0, 0);
+		remoteSequence++;
+		capture.writeTcp(timestamp, local, remote, localSequence, remoteSequence,
+				PcapngCapture.TCP_FLAG_ACK, null, 0, 0);
+	}
+
+	/**
+	 * Writes the data as segments and returns the next sequence number.
+	 */
+	private long writeData(long timestamp, InetSocketAddress source, InetSocketAddress destination,
+			long sequence, long acknowledge, byte[] data, int offset, int length) {
+		int end = offset + length;
+		do {
+			int segmentLength = Math.min(end - offset, PcapngCapture.getMaxSegmentSize());
+			capture.writeTcp(timestamp, source, destination, sequence, acknowledge,
+					PcapngCapture.TCP_FLAG_PSH | PcapngCapture.TCP_FLAG_ACK, data, offset, segmentLength);
+			sequence += segmentLength;
+			offset += segmentLength;
+		} while (offset < end);
+		return sequence & 0xFFFFFFFFL;
+	}
+}
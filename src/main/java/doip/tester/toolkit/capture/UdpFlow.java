@@ -0,0 +1,38 @@
+package doip.tester.toolkit.capture;
+
+import java.net.InetSocketAddress;
+
+/**
+ * UDP socket of the tester in a {@link PcapngCapture}. The address of the
+ * other side is given with every datagram because UDP messages can be sent
+ * to broadcast addresses and can be received from several DoIP entities.
+ */
+public class UdpFlow {
+
+	private final PcapngCapture capture;
+
+	private final InetSocketAddress local;
+
+	UdpFlow(PcapngCapture capture, InetSocketAddress local) {
+		this.capture = capture;
+		this.local = local;
+	}
+
+	public InetSocketAddress getLocalAddress() {
+		return local;
+	}
+
+	/**
+	 * Writes a datagram which has been sent by the tester.
+	 */
+	public void onSent(long timestamp, byte[] data, int offset, int length, InetSocketAddress remote) {
+		capture.writeUdp(timestamp, local, remote, data, offset, length);
+	}
+
+	/**
+	 * Writes a datagram which has been received by the tester.
+	 */
+	public void onReceived(long timestamp, byte[] data, int offset, int length, InetSocketAddress remote) {
+		capture.writeUdp(timestamp, remote, local, data, offset, length);
+	}
+}
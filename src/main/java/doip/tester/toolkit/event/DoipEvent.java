@@ -2,9 +2,18 @@ package doip.tester.toolkit.event;
 
 public class DoipEvent {
 	
-	private long timestamp;
+	private final long timestamp;
 	
 	public DoipEvent(long timestamp) {
 		this.timestamp = timestamp;
 	}
+	
+	/**
+	 * Returns the time when the event has been received. The value has
+	 * been taken from System.nanoTime(), so it can only be used to
+	 * calculate time differences to other events or timestamps.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
 }
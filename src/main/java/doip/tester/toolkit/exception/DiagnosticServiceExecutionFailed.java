@@ -9,6 +9,10 @@ public class DiagnosticServiceExecutionFailed extends DoipException {
 	public static final int GENERAL_ERROR = 0;
 	public static final int NO_DIAG_MESSAGE_POS_ACK_RECEIVED = 1;
 	public static final int NO_DIAG_MESSAGE_RECEIVED = 2;
+	public static final int NEG_ACK_RECEIVED = 3;
+	public static final int CONNECTION_CLOSED = 4;
+	public static final int CONNECTION_RELEASED = 5;
+	public static final int SEND_FAILED = 6;
 	
 	private int errorCode = 0;
 
@@ -0,0 +1,466 @@
+package doip.tester.toolkit.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.library.util.Helper;
+import doip.tester.toolkit.DoipMessageDecoder;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventMessage;
+import doip.tester.toolkit.event.DoipEventUdpMessage;
+
+/**
+ * Append-only journal which writes received events in a compact binary
+ * form to memory-mapped files. The event collections hand over their
+ * events with {@link #append(int, DoipEvent)}, which only puts the event
+ * into a queue. The events will be encoded and written by a separate
+ * writer thread, so the receiver threads will not be delayed by the
+ * journal. If the queue is full the event will be dropped and counted.
+ * <p>
+ * The journal consists of segments with a fixed size. When a segment is
+ * full the next one will be created. Segment files are named
+ * "prefix-000000.journal", "prefix-000001.journal" and so on. Every
+ * segment starts with a header of {@link #SEGMENT_HEADER_LENGTH} bytes:
+ * <pre>
+ * int   magic number (0x444A4E4C, "DJNL")
+ * short version
+ * short reserved
+ * int   index of the segment
+ * int   reserved
+ * </pre>
+ * It is followed by the records, all values are big endian:
+ * <pre>
+ * int   length of the record including this field, 0 marks the end
+ * long  timestamp (System.nanoTime())
+ * short event type (DoIP payload type or {@link #TYPE_CONNECTION_CLOSED})
+ * byte  transport ({@link #TRANSPORT_TCP} or {@link #TRANSPORT_UDP})
+ * byte  reserved
+ * int   channel (number of the connection or UDP module)
+ * short source address (0 if the message has no source address)
+ * short target address (0 if the message has no target address)
+ * byte[] DoIP message including the generic header
+ * </pre>
+ * Use {@link EventJournalReader} to read the events back.
+ */
+public class EventJournal implements Closeable {
+
+	private static Logger logger = LogManager.getLogger(EventJournal.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	public static final int MAGIC = 0x444A4E4C;
+
+	public static final short VERSION = 1;
+
+	public static final int SEGMENT_HEADER_LENGTH = 16;
+
+	public static final int RECORD_HEADER_LENGTH = 24;
+
+	/**
+	 * Event type for a closed connection, there is no DoIP message
+	 */
+	public static final int TYPE_CONNECTION_CLOSED = 0xFFFF;
+
+	public static final byte TRANSPORT_TCP = 0;
+
+	public static final byte TRANSPORT_UDP = 1;
+
+	public static final String SEGMENT_SUFFIX = ".journal";
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 65536;
+
+	/**
+	 * Maximum number of events which will be written before the writer
+	 * thread notifies threads waiting in {@link #flush(long)}
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Maximum time in milliseconds which {@link #close()} waits for space
+	 * in the queue before it checks again if the writer thread is alive
+	 */
+	private static final long STOP_OFFER_TIMEOUT = 100;
+
+	private final Path directory;
+
+	private final String prefix;
+
+	private final int segmentSize;
+
+	private final ArrayBlockingQueue<Entry> queue;
+
+	private final AtomicLong appendedCount = new AtomicLong(0);
+
+	private final AtomicLong droppedCount = new AtomicLong(0);
+
+	/**
+	 * Number of events which have been taken from the queue by the
+	 * writer thread, guarded by "this"
+	 */
+	private long processedCount = 0;
+
+	/**
+	 * Number of records in all segments, only written by the writer thread
+	 */
+	private volatile long writtenCount = 0;
+
+	private volatile int segmentCount = 0;
+
+	private volatile boolean running = true;
+
+	private final Thread writer;
+
+	/**
+	 * Mapped buffer of the current segment, only used by the writer thread
+	 */
+	private MappedByteBuffer segment = null;
+
+	/**
+	 * Index of the current segment, only used by the writer thread
+	 */
+	private int segmentIndex = 0;
+
+	/**
+	 * An event and the channel on which it has been received
+	 */
+	private static final class Entry {
+
+		final int channel;
+
+		final DoipEvent event;
+
+		Entry(int channel, DoipEvent event) {
+			this.channel = channel;
+			this.event = event;
+		}
+	}
+
+	/**
+	 * Will be put into the queue by {@link #close()}. The writer thread
+	 * terminates when it has written all entries in front of it.
+	 */
+	private static final Entry STOP = new Entry(-1, null);
+
+	/**
+	 * Creates the journal with default segment size and queue capacity
+	 * and starts the writer thread.
+	 */
+	public EventJournal(Path directory, String prefix) throws IOException {
+		this(directory, prefix, DEFAULT_SEGMENT_SIZE, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Creates the journal and starts the writer thread. The directory will
+	 * be created if it does not exist. Existing segments with the same
+	 * prefix will not be overwritten, the index continues after the
+	 * highest existing segment.
+	 *
+	 * @param directory Directory for the segment files
+	 * @param prefix Prefix of the segment file names
+	 * @param segmentSize Size of one segment file in bytes
+	 * @param queueCapacity Maximum number of events which can wait
+	 *                      for the writer thread
+	 */
+	public EventJournal(Path directory, String prefix, int segmentSize, int queueCapacity) throws IOException {
+		if (segmentSize < SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH + DoipMessageDecoder.HEADER_LENGTH) {
+			throw new IllegalArgumentException("Segment size " + segmentSize + " is too small");
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+		Files.createDirectories(directory);
+		int index = 0;
+		for (Path file : EventJournalReader.listSegments(directory, prefix)) {
+			index = Math.max(index, EventJournalReader.getSegmentIndex(file, prefix) + 1);
+		}
+		openSegment(index);
+		this.writer = new Thread(this::run, "EVENT-JOURNAL");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Hands over an event to the writer thread. This function does not
+	 * block, it can be called by the receiver threads.
+	 *
+	 * @param channel Number of the connection or of the UDP module on
+	 *                which the event has been received
+	 * @param event The received event
+	 * @return False if the event has been dropped because the queue was
+	 *         full or the journal has been closed
+	 */
+	public boolean append(int channel, DoipEvent event) {
+		if (!running || !queue.offer(new Entry(channel, event))) {
+			droppedCount.incrementAndGet();
+			return false;
+		}
+		appendedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Waits until all events which have been appended before this call
+	 * have been written to the mapped segment. From then on they can be
+	 * read by an {@link EventJournalReader}. Segments will be forced to
+	 * the storage device when they are full and when the journal will
+	 * be closed.
+	 *
+	 * @param timeoutms Maximum time to wait
+	 * @return True if all events have been written
+	 */
+	public boolean flush(long timeoutms) throws InterruptedException {
+		long target = appendedCount.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutms);
+		synchronized (this) {
+			while (processedCount < target) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || !writer.isAlive()) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops accepting events, writes all events which are still in the
+	 * queue and stops the writer thread. The writer thread will not be
+	 * interrupted, it would close the file channel of a segment which is
+	 * just being opened. Instead a stop entry will be queued behind the
+	 * remaining events.
+	 */
+	@Override
+	public void close() {
+		try {
+			logger.trace(enter, ">>> public void close()");
+			running = false;
+			try {
+				// If the queue is full the writer thread makes room. If it
+				// has terminated after an error nobody takes the stop entry.
+				while (writer.isAlive() && !queue.offer(STOP, STOP_OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					continue;
+				}
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			logger.info("Event journal closed, events written: " + writtenCount + ", dropped: "
+					+ droppedCount.get() + ", segments: " + segmentCount);
+		} finally {
+			logger.trace(exit, "<<< public void close()");
+		}
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Returns the number of events which have been written to the journal.
+	 */
+	public long getWrittenCount() {
+		return writtenCount;
+	}
+
+	/**
+	 * Returns the number of events which could not be written because
+	 * the queue was full, the journal has been closed or the message did
+	 * not fit into a segment.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Returns the number of segments which have been created by this journal.
+	 */
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	private void run() {
+		List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+		boolean stopped = false;
+		try {
+			// After the stop entry the loop still writes the events of
+			// appenders which have passed the check of "running" before
+			// the journal has been closed.
+			while (!stopped || !queue.isEmpty()) {
+				if (queue.drainTo(batch, BATCH_SIZE) == 0) {
+					try {
+						batch.add(queue.take());
+					} catch (InterruptedException e) {
+						// The writer thread will only be stopped by the stop entry
+						continue;
+					}
+				}
+				int count = 0;
+				for (Entry entry : batch) {
+					if (entry == STOP) {
+						stopped = true;
+					} else {
+						write(entry);
+						count++;
+					}
+				}
+				synchronized (this) {
+					processedCount += count;
+					this.notifyAll();
+				}
+				batch.clear();
+			}
+		} catch (IOException e) {
+			logger.error("Writing the event journal failed, no further events will be written");
+			logger.error(Helper.getExceptionAsString(e));
+			running = false;
+		} finally {
+			if (segment != null) {
+				segment.force();
+			}
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+	}
+
+	private void write(Entry entry) throws IOException {
+		DoipEvent event = entry.event;
+		byte[] message;
+		int type;
+		byte transport;
+		if (event instanceof DoipEventMessage) {
+			message = ((DoipEventMessage) event).getDoipMessage().getMessage();
+			type = ((message[2] & 0xFF) << 8) | (message[3] & 0xFF);
+			transport = event instanceof DoipEventUdpMessage ? TRANSPORT_UDP : TRANSPORT_TCP;
+		} else if (event instanceof DoipEventConnectionClosed) {
+			message = EMPTY;
+			type = TYPE_CONNECTION_CLOSED;
+			transport = TRANSPORT_TCP;
+		} else {
+			logger.warn("Event of type " + event.getClass().getName() + " can not be written to the journal");
+			droppedCount.incrementAndGet();
+			return;
+		}
+
+		int length = RECORD_HEADER_LENGTH + message.length;
+		if (length > segmentSize - SEGMENT_HEADER_LENGTH) {
+			logger.warn("Message with " + message.length + " bytes does not fit into a segment of the journal");
+			droppedCount.incrementAndGet();
+			return;
+		}
+		if (segment.remaining() < length) {
+			segment.force();
+			openSegment(segmentIndex + 1);
+		}
+
+		ByteBuffer buffer = segment;
+		int position = buffer.position();
+		// Length will be written last, a reader of an unfinished
+		// segment stops at the record without length.
+		buffer.position(position + 4);
+		buffer.putLong(event.getTimestamp());
+		buffer.putShort((short) type);
+		buffer.put(transport);
+		buffer.put((byte) 0);
+		buffer.putInt(entry.channel);
+		buffer.putShort((short) getSourceAddress(type, message));
+		buffer.putShort((short) getTargetAddress(type, message));
+		buffer.put(message);
+		buffer.putInt(position, length);
+		writtenCount++;
+	}
+
+	private void openSegment(int index) throws IOException {
+		Path file = directory.resolve(EventJournalReader.getSegmentFileName(prefix, index));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// The mapping stays valid after the channel has been closed
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		segment.putInt(MAGIC);
+		segment.putShort(VERSION);
+		segment.putShort((short) 0);
+		segment.putInt(index);
+		segment.putInt(0);
+		segmentIndex = index;
+		segmentCount++;
+		logger.info("Event journal segment " + file + " has been created");
+	}
+
+	/**
+	 * Returns the source address of the DoIP message or 0 if the
+	 * message does not have a source address.
+	 */
+	static int getSourceAddress(int type, byte[] message) {
+		int offset = DoipMessageDecoder.HEADER_LENGTH;
+		switch (type) {
+		case DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE:
+		case DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE_POS_ACK:
+		case DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE_NEG_ACK:
+		case DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST:
+		case DoipMessageDecoder.TYPE_ALIVE_CHECK_RESPONSE:
+			return getShort(message, offset);
+		case DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_RESPONSE:
+			// Logical address of the DoIP entity
+			return getShort(message, offset + 2);
+		case DoipMessageDecoder.TYPE_VEHICLE_ANNOUNCEMENT_MESSAGE:
+			// Logical address follows the VIN
+			return getShort(message, offset + 17);
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the target address of the DoIP message or 0 if the
+	 * message does not have a target address.
+	 */
+	static int getTargetAddress(int type, byte[] message) {
+		int offset = DoipMessageDecoder.HEADER_LENGTH;
+		switch (type) {
+		case DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE:
+		case DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE_POS_ACK:
+		case DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE_NEG_ACK:
+			return getShort(message, offset + 2);
+		case DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_RESPONSE:
+			// Logical address of the tester
+			return getShort(message, offset);
+		default:
+			return 0;
+		}
+	}
+
+	private static int getShort(byte[] message, int offset) {
+		if (message.length < offset + 2) {
+			return 0;
+		}
+		return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+	}
+}
@@ -0,0 +1,245 @@
+package doip.tester.toolkit.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.message.DoipMessage;
+import doip.tester.toolkit.DoipMessageDecoder;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+
+/**
+ * Reads the segments of an {@link EventJournal} in the order in which they
+ * have been written and creates the events again. The DoIP messages will
+ * be decoded with the {@link DoipMessageDecoder}. Records which can not
+ * be decoded will be skipped and counted.
+ * <p>
+ * After {@link #next()} the channel and the addresses of the returned
+ * event can be read with the getters of the reader.
+ * <p>
+ * Example:
+ * <pre>
+ * EventJournalReader reader = new EventJournalReader(directory, "tester");
+ * while (reader.hasNext()) {
+ *     DoipEvent event = reader.next();
+ *     int channel = reader.getChannel();
+ *     ...
+ * }
+ * </pre>
+ */
+public class EventJournalReader implements Iterator<DoipEvent> {
+
+	private static Logger logger = LogManager.getLogger(EventJournalReader.class);
+
+	private final List<Path> segments;
+
+	private int nextSegment = 0;
+
+	private ByteBuffer buffer = null;
+
+	/**
+	 * Next event which will be returned, null if it has not been read yet
+	 */
+	private DoipEvent pending = null;
+
+	private int pendingChannel;
+
+	private int pendingEventType;
+
+	private int pendingSourceAddress;
+
+	private int pendingTargetAddress;
+
+	private int channel;
+
+	private int eventType;
+
+	private int sourceAddress;
+
+	private int targetAddress;
+
+	private long skippedCount = 0;
+
+	/**
+	 * Creates a reader for all segments in the directory which have
+	 * the given prefix.
+	 */
+	public EventJournalReader(Path directory, String prefix) throws IOException {
+		this.segments = listSegments(directory, prefix);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (pending != null) {
+			return true;
+		}
+		try {
+			while (true) {
+				if (buffer == null || buffer.remaining() < 4 || buffer.getInt(buffer.position()) == 0) {
+					if (nextSegment >= segments.size()) {
+						return false;
+					}
+					openSegment(segments.get(nextSegment++));
+					continue;
+				}
+				pending = readRecord();
+				if (pending != null) {
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to read event journal", e);
+		}
+	}
+
+	@Override
+	public DoipEvent next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		DoipEvent event = pending;
+		pending = null;
+		channel = pendingChannel;
+		eventType = pendingEventType;
+		sourceAddress = pendingSourceAddress;
+		targetAddress = pendingTargetAddress;
+		return event;
+	}
+
+	/**
+	 * Returns the channel of the last event returned by {@link #next()}.
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Returns the DoIP payload type of the last event returned by
+	 * {@link #next()} or {@link EventJournal#TYPE_CONNECTION_CLOSED}.
+	 */
+	public int getEventType() {
+		return eventType;
+	}
+
+	public int getSourceAddress() {
+		return sourceAddress;
+	}
+
+	public int getTargetAddress() {
+		return targetAddress;
+	}
+
+	/**
+	 * Returns the number of records which could not be decoded.
+	 */
+	public long getSkippedCount() {
+		return skippedCount;
+	}
+
+	/**
+	 * Reads the record at the current position and returns the event
+	 * or null if the record could not be decoded.
+	 */
+	private DoipEvent readRecord() {
+		int position = buffer.position();
+		int length = buffer.getInt();
+		if (length < EventJournal.RECORD_HEADER_LENGTH || length > buffer.remaining() + 4) {
+			logger.warn("Invalid record length " + length + " in event journal, rest of segment will be skipped");
+			skippedCount++;
+			buffer.position(buffer.limit());
+			return null;
+		}
+		long timestamp = buffer.getLong();
+		int type = buffer.getShort() & 0xFFFF;
+		byte transport = buffer.get();
+		buffer.get();
+		pendingChannel = buffer.getInt();
+		pendingSourceAddress = buffer.getShort() & 0xFFFF;
+		pendingTargetAddress = buffer.getShort() & 0xFFFF;
+		pendingEventType = type;
+		int end = position + length;
+
+		DoipEvent event = null;
+		if (type == EventJournal.TYPE_CONNECTION_CLOSED) {
+			event = new DoipEventConnectionClosed(timestamp);
+		} else if (end - buffer.position() >= DoipMessageDecoder.HEADER_LENGTH) {
+			ByteBuffer payload = buffer.duplicate();
+			payload.position(buffer.position() + DoipMessageDecoder.HEADER_LENGTH);
+			payload.limit(end);
+			DoipMessage message = transport == EventJournal.TRANSPORT_UDP
+					? DoipMessageDecoder.decodeUdpMessage(type, payload)
+					: DoipMessageDecoder.decodeTcpMessage(type, payload);
+			if (message != null) {
+				event = DoipMessageDecoder.createEvent(timestamp, message);
+			}
+		}
+		buffer.position(end);
+		if (event == null) {
+			skippedCount++;
+		}
+		return event;
+	}
+
+	private void openSegment(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.remaining() < EventJournal.SEGMENT_HEADER_LENGTH || buffer.getInt() != EventJournal.MAGIC) {
+			throw new IOException("File " + file + " is not a segment of an event journal");
+		}
+		short version = buffer.getShort();
+		if (version != EventJournal.VERSION) {
+			throw new IOException("Segment " + file + " has unsupported version " + version);
+		}
+		buffer.position(EventJournal.SEGMENT_HEADER_LENGTH);
+	}
+
+	static String getSegmentFileName(String prefix, int index) {
+		return String.format("%s-%06d%s", prefix, index, EventJournal.SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Returns the index of the segment from its file name, -1 if the
+	 * file is not a segment with the given prefix.
+	 */
+	static int getSegmentIndex(Path file, String prefix) {
+		String name = file.getFileName().toString();
+		if (!name.startsWith(prefix + "-") || !name.endsWith(EventJournal.SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(prefix.length() + 1,
+					name.length() - EventJournal.SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns all segments with the given prefix sorted by their index.
+	 */
+	static List<Path> listSegments(Path directory, String prefix) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return new ArrayList<Path>();
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> getSegmentIndex(file, prefix) >= 0)
+					.sorted((a, b) -> Integer.compare(getSegmentIndex(a, prefix), getSegmentIndex(b, prefix)))
+					.collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,534 @@
+package doip.tester.toolkit.load;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.util.Conversion;
+import doip.library.util.Helper;
+import doip.tester.toolkit.TestConfig;
+import doip.tester.toolkit.TimingAnalyzer;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessageNegAck;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+
+/**
+ * Standalone load test for a DoIP gateway. It opens N connections with the
+ * {@link NioLoadGenerator}, sends diagnostic requests with a fixed total
+ * rate for a given duration and records the latencies from the request to
+ * the positive acknowledge and from the request to the response in
+ * HdrHistograms. When the run has finished p50, p90, p99 and max will be
+ * printed for every message type, followed by the report of the
+ * {@link TimingAnalyzer} which checks all messages against the timers of
+ * the test configuration.
+ * <p>
+ * Usage:
+ * <pre>
+ * java -Dtester.config=tester.properties doip.tester.toolkit.load.DoipLoadTester
+ *      &lt;connections&gt; &lt;requests per second&gt; &lt;duration in seconds&gt; [request ...]
+ * </pre>
+ * Requests are given as hex strings, for example "22F190". They will be sent
+ * round robin to the physical ECU address from the test configuration.
+ * Default request is "3E00" (tester present).
+ * <p>
+ * Every connection has at most one outstanding request, as it is usual for
+ * UDS. If all connections are busy when a request is due it will be sent on
+ * the next connection which becomes free. Latencies are measured from the
+ * time when a request was due, not from the time when it has been sent, so
+ * the time a request had to wait for a connection and other delays of the
+ * load tester itself are included in the results (no coordinated omission).
+ * Requests which still could not be sent one timeout after the end of the
+ * run will be counted as skipped. They will be recorded in the histograms
+ * with the time they have waited since they were due, which is a lower
+ * bound for their latency.
+ * <p>
+ * A connection on which a request has timed out will not be used again
+ * until the late answer has been received or a second timeout has elapsed,
+ * so a late answer will not be taken as answer to the next request. A
+ * response will only be accepted for the outstanding request if its
+ * service identifier matches the request.
+ * <p>
+ * Every connection uses its own tester address, starting with the tester
+ * address from the test configuration, because a gateway accepts only one
+ * socket per tester address.
+ */
+public class DoipLoadTester implements LoadSessionListener {
+
+	private static Logger logger = LogManager.getLogger(DoipLoadTester.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	/**
+	 * Highest latency which can be recorded in the histograms
+	 */
+	private static final long HIGHEST_TRACKABLE_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+	private static final int SIGNIFICANT_DIGITS = 3;
+
+	/**
+	 * Time in nanoseconds to wait before looking again for a free
+	 * connection if all connections are busy
+	 */
+	private static final long BUSY_RETRY_INTERVAL = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * States of a {@link Driver}
+	 */
+	private static final int IDLE = 0;
+	private static final int BUSY = 1;
+	private static final int EXPIRED = 2;
+
+	private final TestConfig config;
+
+	private final int connections;
+
+	private final int requestsPerSecond;
+
+	private final int durationSeconds;
+
+	private final List<byte[]> requests;
+
+	/**
+	 * Time in nanoseconds after which an outstanding request will be
+	 * counted as timeout
+	 */
+	private final long timeoutNanos;
+
+	private final Histogram[] posAckLatencies;
+
+	private final Histogram[] responseLatencies;
+
+	private final TimingAnalyzer timingAnalyzer;
+
+	private final AtomicLong sentCount = new AtomicLong(0);
+
+	private final AtomicLong skippedCount = new AtomicLong(0);
+
+	private final AtomicLong negAckCount = new AtomicLong(0);
+
+	private final AtomicLong timeoutCount = new AtomicLong(0);
+
+	private final AtomicLong closedCount = new AtomicLong(0);
+
+	private final AtomicLong lateCount = new AtomicLong(0);
+
+	/**
+	 * State of every session, index is the session ID
+	 */
+	private volatile Driver[] drivers = null;
+
+	/**
+	 * State of a session which will be shared between the thread which
+	 * sends the requests and the selector thread of the session.
+	 * <p>
+	 * Only the sending thread changes the state from IDLE to BUSY. It
+	 * writes the fields of the request before, so the selector thread sees
+	 * them after it has read the state BUSY. The selector thread changes
+	 * the state from BUSY or EXPIRED back to IDLE when the answer has been
+	 * received, the sending thread from BUSY to EXPIRED when the request
+	 * has timed out and from EXPIRED to IDLE after a second timeout.
+	 */
+	private static class Driver {
+
+		final LoadSession session;
+
+		/**
+		 * IDLE, BUSY while a request is outstanding or EXPIRED while the
+		 * answer on a request which has timed out might still come
+		 */
+		final AtomicInteger state = new AtomicInteger(IDLE);
+
+		/**
+		 * Time (System.nanoTime()) when the outstanding request was due
+		 */
+		volatile long dueTime;
+
+		/**
+		 * Time (System.nanoTime()) when the outstanding request has been sent
+		 */
+		volatile long sentTime;
+
+		/**
+		 * Index of the outstanding request
+		 */
+		volatile int requestIndex;
+
+		/**
+		 * True if the positive acknowledge on the outstanding request has
+		 * been received. Will only be accessed by the selector thread
+		 * while the state is BUSY.
+		 */
+		boolean acknowledged;
+
+		Driver(LoadSession session) {
+			this.session = session;
+		}
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param config The test configuration
+	 * @param connections Number of connections
+	 * @param requestsPerSecond Total number of requests per second over
+	 *                          all connections
+	 * @param durationSeconds Duration of the load test in seconds
+	 * @param requests UDS requests which will be sent round robin
+	 */
+	public DoipLoadTester(TestConfig config, int connections, int requestsPerSecond, int durationSeconds,
+			List<byte[]> requests) {
+		if (connections <= 0 || requestsPerSecond <= 0 || durationSeconds <= 0) {
+			throw new IllegalArgumentException("Connections, requests per second and duration must be greater than 0");
+		}
+		if (requests.isEmpty()) {
+			throw new IllegalArgumentException("At least one request is required");
+		}
+		this.config = config;
+		this.connections = connections;
+		this.requestsPerSecond = requestsPerSecond;
+		this.durationSeconds = durationSeconds;
+		this.requests = requests;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+				config.get_A_DoIP_Diagnostic_Message() + config.get_A_Processing_Time());
+		this.posAckLatencies = new Histogram[requests.size()];
+		this.responseLatencies = new Histogram[requests.size()];
+		for (int i = 0; i < requests.size(); i++) {
+			posAckLatencies[i] = new ConcurrentHistogram(HIGHEST_TRACKABLE_LATENCY, SIGNIFICANT_DIGITS);
+			responseLatencies[i] = new ConcurrentHistogram(HIGHEST_TRACKABLE_LATENCY, SIGNIFICANT_DIGITS);
+		}
+		this.timingAnalyzer = new TimingAnalyzer(config);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Usage: DoipLoadTester <connections> <requests per second> <duration in seconds> [request ...]");
+			System.exit(1);
+		}
+		try {
+			int connections = Integer.parseInt(args[0]);
+			int requestsPerSecond = Integer.parseInt(args[1]);
+			int durationSeconds = Integer.parseInt(args[2]);
+			List<byte[]> requests = new ArrayList<byte[]>();
+			for (int i = 3; i < args.length; i++) {
+				requests.add(parseHex(args[i]));
+			}
+			if (requests.isEmpty()) {
+				requests.add(new byte[] {0x3E, 0x00});
+			}
+
+			TestConfig config = new TestConfig();
+			DoipLoadTester tester = new DoipLoadTester(config, connections, requestsPerSecond, durationSeconds, requests);
+			tester.run();
+			tester.printResults(System.out);
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in load test");
+			logger.error(Helper.getExceptionAsString(e));
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Opens the connections, waits until the routing activation has been
+	 * performed on all connections and sends the requests for the given
+	 * duration. Afterwards it waits for the outstanding responses and
+	 * closes all connections.
+	 */
+	public void run() throws Exception {
+		try {
+			logger.trace(enter, ">>> public void run()");
+			NioLoadGenerator generator = new NioLoadGenerator(config,
+					Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), connections / 256 + 1)));
+			generator.setListener(this);
+			generator.setTimingAnalyzer(timingAnalyzer);
+			generator.start();
+			try {
+				Driver[] newDrivers = new Driver[connections];
+				for (int i = 0; i < connections; i++) {
+					LoadSession session = generator.openSession(config.getTesterAddress() + i);
+					newDrivers[session.getId()] = new Driver(session);
+				}
+				// Events which will be received before this assignment
+				// belong to the routing activation and will be ignored.
+				drivers = newDrivers;
+				long activationTimeout = config.getTcpConnectTimeout() + config.getRoutingActivationTimeout();
+				if (!generator.waitForActivatedSessions(connections, activationTimeout)) {
+					logger.warn("Load test will be executed with " + generator.getActivatedCount() + " connections");
+				}
+				logger.info("Start load test with " + connections + " connections, " + requestsPerSecond
+						+ " requests per second for " + durationSeconds + " seconds");
+				sendRequests();
+				waitForOutstandingRequests();
+			} finally {
+				generator.stop();
+			}
+		} finally {
+			logger.trace(exit, "<<< public void run()");
+		}
+	}
+
+	/**
+	 * Prints the latencies for every message type and the counters.
+	 */
+	public void printResults(PrintStream out) {
+		out.println();
+		out.println(String.format("%-32s %10s %10s %10s %10s %10s", "Message type", "Count",
+				"p50 [ms]", "p90 [ms]", "p99 [ms]", "max [ms]"));
+		for (int i = 0; i < requests.size(); i++) {
+			String request = Conversion.byteArrayToHexString(requests.get(i));
+			printHistogram(out, "PosAck   " + request, posAckLatencies[i]);
+			printHistogram(out, "Response " + request, responseLatencies[i]);
+		}
+		out.println();
+		out.println("Requests sent:    " + sentCount.get());
+		out.println("Requests skipped: " + skippedCount.get() + " (all connections busy)");
+		out.println("Negative acks:    " + negAckCount.get());
+		out.println("Timeouts:         " + timeoutCount.get());
+		out.println("Late answers:     " + lateCount.get());
+		out.println("Closed sessions:  " + closedCount.get());
+		timingAnalyzer.printReport(out);
+	}
+
+	public Histogram getPosAckLatencies(int requestIndex) {
+		return posAckLatencies[requestIndex];
+	}
+
+	public Histogram getResponseLatencies(int requestIndex) {
+		return responseLatencies[requestIndex];
+	}
+
+	public TimingAnalyzer getTimingAnalyzer() {
+		return timingAnalyzer;
+	}
+
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * Returns the number of answers which have been received after their
+	 * request had timed out or which did not match the outstanding request.
+	 */
+	public long getLateCount() {
+		return lateCount.get();
+	}
+
+	@Override
+	public void onSessionActivated(LoadSession session) {
+		// Requests will be sent by the thread which executes run()
+	}
+
+	@Override
+	public void onSessionEvent(LoadSession session, DoipEvent event) {
+		Driver[] current = drivers;
+		if (current == null) {
+			return;
+		}
+		Driver driver = current[session.getId()];
+		int state = driver.state.get();
+		if (state == IDLE) {
+			return;
+		}
+		// The fields must be read before the state will be set to IDLE,
+		// afterwards the sending thread can overwrite them.
+		int requestIndex = driver.requestIndex;
+		long latency = event.getTimestamp() - driver.dueTime;
+		if (event instanceof DoipEventTcpDiagnosticMessagePosAck) {
+			if (state == BUSY && !driver.acknowledged) {
+				driver.acknowledged = true;
+				record(posAckLatencies[requestIndex], latency);
+			}
+		} else if (event instanceof DoipEventTcpDiagnosticMessage) {
+			DoipTcpDiagnosticMessage message = (DoipTcpDiagnosticMessage) ((DoipEventTcpDiagnosticMessage) event).getDoipMessage();
+			byte[] response = message.getDiagnosticMessage();
+			if (response.length >= 3 && response[0] == 0x7F && response[2] == 0x78) {
+				// Response pending, wait for the final response
+				return;
+			}
+			if (state == BUSY && !isResponseTo(requests.get(requestIndex), response)) {
+				// Late response on a request which had been expired
+				// before, the response on the current request will follow
+				lateCount.incrementAndGet();
+				return;
+			}
+			if (driver.state.compareAndSet(BUSY, IDLE)) {
+				record(responseLatencies[requestIndex], latency);
+			} else if (driver.state.compareAndSet(EXPIRED, IDLE)) {
+				lateCount.incrementAndGet();
+			}
+		} else if (event instanceof DoipEventTcpDiagnosticMessageNegAck) {
+			if (driver.state.compareAndSet(BUSY, IDLE)) {
+				negAckCount.incrementAndGet();
+			} else if (driver.state.compareAndSet(EXPIRED, IDLE)) {
+				lateCount.incrementAndGet();
+			}
+		} else if (event instanceof DoipEventConnectionClosed) {
+			closedCount.incrementAndGet();
+			driver.state.set(IDLE);
+		}
+	}
+
+	/**
+	 * Sends the requests with the configured rate until the duration
+	 * has elapsed. If all connections are busy the request will be sent
+	 * as soon as a connection becomes free, the latency will still be
+	 * measured from the time when it was due.
+	 */
+	private void sendRequests() {
+		long interval = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+		long due = start;
+		int nextDriver = 0;
+		long count = 0;
+		int ecuAddress = config.getEcuAddressPhysical();
+		while (due < end) {
+			long now = System.nanoTime();
+			long wait = due - now;
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+			Driver driver = null;
+			for (int i = 0; i < drivers.length; i++) {
+				Driver candidate = drivers[nextDriver];
+				nextDriver = (nextDriver + 1) % drivers.length;
+				if (candidate.session.isActive() && acquire(candidate, now)) {
+					driver = candidate;
+					break;
+				}
+			}
+			if (driver == null) {
+				if (now - end > timeoutNanos) {
+					skipRemainingRequests(start, end, interval, count, now);
+					return;
+				}
+				LockSupport.parkNanos(BUSY_RETRY_INTERVAL);
+				continue;
+			}
+			int requestIndex = (int) (count % requests.size());
+			driver.requestIndex = requestIndex;
+			driver.dueTime = due;
+			driver.acknowledged = false;
+			driver.sentTime = System.nanoTime();
+			// Publishes the fields to the selector thread
+			driver.state.set(BUSY);
+			driver.session.sendDiagnosticMessage(ecuAddress, requests.get(requestIndex));
+			sentCount.incrementAndGet();
+			count++;
+			due = start + count * interval;
+		}
+	}
+
+	/**
+	 * Counts the requests which were due until the end of the run but
+	 * could not be sent and records the time they have waited.
+	 */
+	private void skipRemainingRequests(long start, long end, long interval, long count, long now) {
+		logger.warn("No connection became free within the timeout after the end of the run, remaining requests will be skipped");
+		for (long due = start + count * interval; due < end; due = start + (++count) * interval) {
+			int requestIndex = (int) (count % requests.size());
+			skippedCount.incrementAndGet();
+			record(posAckLatencies[requestIndex], now - due);
+			record(responseLatencies[requestIndex], now - due);
+		}
+	}
+
+	/**
+	 * Returns true if the session has no outstanding request. An
+	 * outstanding request which is older than the timeout will be counted
+	 * as timeout, but the session will only be used again when the late
+	 * answer has been received or after a second timeout.
+	 * Will only be called by the sending thread.
+	 */
+	private boolean acquire(Driver driver, long now) {
+		switch (driver.state.get()) {
+		case IDLE:
+			return true;
+		case BUSY:
+			if (now - driver.sentTime > timeoutNanos && driver.state.compareAndSet(BUSY, EXPIRED)) {
+				timeoutCount.incrementAndGet();
+			}
+			return false;
+		default:
+			return now - driver.sentTime > 2 * timeoutNanos && driver.state.compareAndSet(EXPIRED, IDLE);
+		}
+	}
+
+	/**
+	 * Returns true if the response belongs to the request, which means
+	 * that it is the positive or negative response on its service.
+	 */
+	private static boolean isResponseTo(byte[] request, byte[] response) {
+		if (response.length == 0) {
+			return false;
+		}
+		int service = request[0] & 0xFF;
+		if ((response[0] & 0xFF) == 0x7F) {
+			return response.length >= 2 && (response[1] & 0xFF) == service;
+		}
+		return (response[0] & 0xFF) == service + 0x40;
+	}
+
+	private void waitForOutstandingRequests() throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		for (Driver driver : drivers) {
+			while (driver.state.get() == BUSY && driver.session.isActive()) {
+				if (System.nanoTime() - deadline > 0) {
+					if (driver.state.compareAndSet(BUSY, EXPIRED)) {
+						timeoutCount.incrementAndGet();
+					}
+					break;
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	private static void record(Histogram histogram, long latency) {
+		histogram.recordValue(Math.min(Math.max(latency, 0), HIGHEST_TRACKABLE_LATENCY));
+	}
+
+	private static void printHistogram(PrintStream out, String name, Histogram histogram) {
+		out.println(String.format("%-32s %10d %10.3f %10.3f %10.3f %10.3f", name, histogram.getTotalCount(),
+				toMillis(histogram.getValueAtPercentile(50.0)), toMillis(histogram.getValueAtPercentile(90.0)),
+				toMillis(histogram.getValueAtPercentile(99.0)), toMillis(histogram.getMaxValue())));
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	private static byte[] parseHex(String value) {
+		String hex = value.replace(" ", "");
+		if (hex.length() == 0 || hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("Invalid hex string '" + value + "'");
+		}
+		byte[] data = new byte[hex.length() / 2];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return data;
+	}
+}
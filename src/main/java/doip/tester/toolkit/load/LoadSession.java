@@ -0,0 +1,409 @@
+package doip.tester.toolkit.load;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.message.DoipTcpAliveCheckRequest;
+import doip.library.message.DoipTcpAliveCheckResponse;
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpMessage;
+import doip.library.message.DoipTcpRoutingActivationRequest;
+import doip.library.message.DoipTcpRoutingActivationResponse;
+import doip.tester.toolkit.DoipMessageDecoder;
+import doip.tester.toolkit.DoipTcpStreamDecoder;
+import doip.tester.toolkit.EventCursor;
+import doip.tester.toolkit.EventQueue;
+import doip.tester.toolkit.EventTypeIndex;
+import doip.tester.toolkit.TimingAnalyzer;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.journal.EventJournal;
+
+/**
+ * One DoIP TCP session of the {@link NioLoadGenerator}. The session will be
+ * handled by a selector thread of the load generator, there is no thread
+ * per session. Received messages will be decoded into the message classes
+ * of the DoIP library and stored as the same DoipEvent types which will be
+ * stored by {@link doip.tester.toolkit.DoipTcpConnectionWithEventCollection}.
+ * <p>
+ * The functions for sending messages and reading events can be called from
+ * any thread.
+ */
+public class LoadSession {
+
+	private static Logger logger = LogManager.getLogger(LoadSession.class);
+
+	public enum State {
+		/** TCP connection is being established */
+		CONNECTING,
+		/** Routing activation request has been sent */
+		ACTIVATING,
+		/** Routing activation has been accepted by the gateway */
+		ACTIVE,
+		/** Connection has been closed */
+		CLOSED
+	}
+
+	/**
+	 * Response code of the routing activation response 'routing
+	 * successfully activated'
+	 */
+	private static final int ROUTING_ACTIVATED = 0x10;
+
+	/**
+	 * Response code of the routing activation response 'routing will be
+	 * activated, confirmation required'. Diagnostic messages can already
+	 * be sent, see ISO 13400-2.
+	 */
+	private static final int ROUTING_ACTIVATED_CONFIRMATION_REQUIRED = 0x11;
+
+	private final int id;
+
+	private final int testerAddress;
+
+	private final SocketChannel channel;
+
+	private final SelectorLoop loop;
+
+	private final NioLoadGenerator generator;
+
+	private final EventQueue events;
+
+	private final EventTypeIndex typeIndex;
+
+	/**
+	 * Channel of the timing analyzer, null if the timing will not be analyzed
+	 */
+	private final TimingAnalyzer.TcpChannel timing;
+
+	/**
+	 * Journal to which all received events will be written with the ID
+	 * of the session as channel, null if there is none
+	 */
+	private final EventJournal journal;
+
+	/**
+	 * Encoded messages which have not yet been written to the channel
+	 */
+	private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Will be true while the session is in the list of sessions with
+	 * pending writes of the selector thread.
+	 */
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+	private volatile State state = State.CONNECTING;
+
+	// The following fields will only be accessed by the selector thread
+
+	private SelectionKey key = null;
+
+	private final DoipTcpStreamDecoder decoder;
+
+	/**
+	 * Time (System.nanoTime()) when the data which is currently decoded
+	 * has been read
+	 */
+	private long receiveTimestamp;
+
+	private final DoipTcpStreamDecoder.Handler handler = new DoipTcpStreamDecoder.Handler() {
+		@Override
+		public boolean onMessage(int payloadType, DoipTcpMessage message) {
+			LoadSession.this.onMessage(receiveTimestamp, message);
+			return state != State.CLOSED;
+		}
+
+		@Override
+		public boolean onInvalidMessage(int code, int payloadType, long payloadLength) {
+			// The decoder has logged the message, a tester shall not
+			// send a negative acknowledge
+			return state != State.CLOSED;
+		}
+	};
+
+	/**
+	 * Messages created by the session itself (routing activation request,
+	 * alive check response). They will be written before the messages in
+	 * the write queue.
+	 */
+	private final ArrayDeque<ByteBuffer> controlQueue = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Time (System.nanoTime()) until the connection has to be established
+	 * or the routing activation has to be finished
+	 */
+	private long deadline;
+
+	LoadSession(int id, int testerAddress, SocketChannel channel, SelectorLoop loop,
+			NioLoadGenerator generator, int maxPayloadLength, int eventQueueCapacity,
+			TimingAnalyzer.TcpChannel timing, EventJournal journal) {
+		this.id = id;
+		this.testerAddress = testerAddress;
+		this.channel = channel;
+		this.loop = loop;
+		this.generator = generator;
+		this.decoder = new DoipTcpStreamDecoder("LOAD-" + id, maxPayloadLength);
+		this.events = new EventQueue(eventQueueCapacity, EventQueue.OverflowPolicy.DROP_OLDEST);
+		this.typeIndex = new EventTypeIndex(eventQueueCapacity);
+		this.timing = timing;
+		this.journal = journal;
+	}
+
+	/**
+	 * Sends a diagnostic message from the tester address of this session
+	 * to the given target address.
+	 */
+	public void sendDiagnosticMessage(int targetAddress, byte[] message) {
+		if (timing != null) {
+			timing.onDiagnosticMessageSent(testerAddress, targetAddress, System.nanoTime());
+		}
+		send(new DoipTcpDiagnosticMessage(testerAddress, targetAddress, message));
+	}
+
+	public void send(DoipTcpMessage message) {
+		send(message.getMessage());
+	}
+
+	/**
+	 * Sends an encoded DoIP message. The data will be written by the
+	 * selector thread, this function does not block.
+	 *
+	 * @param data Encoded DoIP message including the generic header
+	 */
+	public void send(byte[] data) {
+		if (state == State.CLOSED) {
+			throw logger.throwing(new IllegalStateException("Session " + id + " has already been closed"));
+		}
+		writeQueue.add(ByteBuffer.wrap(data));
+		if (writeScheduled.compareAndSet(false, true)) {
+			loop.scheduleWrite(this);
+		}
+	}
+
+	/**
+	 * Closes the TCP connection. The connection will be closed by the
+	 * selector thread, this function does not block.
+	 */
+	public void close() {
+		if (timing != null) {
+			timing.onClose();
+		}
+		loop.scheduleClose(this);
+	}
+
+	public <T extends DoipEvent> T waitForEvent(Class<T> type, long timeoutms) throws InterruptedException {
+		return typeIndex.waitForEvent(type, timeoutms);
+	}
+
+	public <T extends DoipEvent> T waitForEvent(Class<T> type, Predicate<? super T> predicate, long timeoutms)
+			throws InterruptedException {
+		return typeIndex.waitForEvent(type, predicate, timeoutms);
+	}
+
+	/**
+	 * Creates a new cursor which reads all events which will be received
+	 * after this call.
+	 */
+	public EventCursor createEventCursor() {
+		return events.createCursor();
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getTesterAddress() {
+		return testerAddress;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public boolean isActive() {
+		return state == State.ACTIVE;
+	}
+
+	public boolean isClosed() {
+		return state == State.CLOSED;
+	}
+
+	public long getEventOverflowCount() {
+		return events.getOverflowCount();
+	}
+
+	// ------------------------------------------------------------------------
+	// Functions which will be called by the selector thread only
+	// ------------------------------------------------------------------------
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	long getDeadline() {
+		return deadline;
+	}
+
+	void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Will be called when the TCP connection has been established.
+	 * Sends the routing activation request.
+	 */
+	void onConnected(long routingActivationTimeoutNanos) {
+		state = State.ACTIVATING;
+		long now = System.nanoTime();
+		deadline = now + routingActivationTimeoutNanos;
+		if (timing != null) {
+			timing.onConnected(now);
+			timing.onRoutingActivationRequestSent(now);
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		controlQueue.add(ByteBuffer.wrap(new DoipTcpRoutingActivationRequest(testerAddress, 0, -1).getMessage()));
+		flush();
+	}
+
+	void onReadable() {
+		int count;
+		try {
+			count = channel.read(decoder.getBuffer());
+		} catch (IOException e) {
+			logger.warn("Session " + id + ": " + e.getClass().getName() + " while reading from channel: " + e.getMessage());
+			closeNow(true);
+			return;
+		}
+		if (count < 0) {
+			closeNow(true);
+			return;
+		}
+		receiveTimestamp = System.nanoTime();
+		if (!decoder.decode(handler)) {
+			logger.warn("Session " + id + ": Connection will be closed");
+			closeNow();
+		}
+	}
+
+	void onWritable() {
+		flush();
+	}
+
+	/**
+	 * Writes as much of the pending data as possible to the channel.
+	 */
+	void flush() {
+		writeScheduled.set(false);
+		if (state == State.CLOSED) {
+			return;
+		}
+		try {
+			if (write(controlQueue) && write(writeQueue)) {
+				key.interestOps(SelectionKey.OP_READ);
+			} else {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			logger.warn("Session " + id + ": " + e.getClass().getName() + " while writing to channel: " + e.getMessage());
+			closeNow();
+		}
+	}
+
+	/**
+	 * Writes the buffers of the queue to the channel.
+	 *
+	 * @return True if all buffers have been written completely
+	 */
+	private boolean write(Queue<ByteBuffer> queue) throws IOException {
+		ByteBuffer buffer;
+		while ((buffer = queue.peek()) != null) {
+			channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				return false;
+			}
+			queue.poll();
+		}
+		return true;
+	}
+
+	void closeNow() {
+		closeNow(false);
+	}
+
+	/**
+	 * Closes the connection immediately.
+	 *
+	 * @param byPeer True if the connection has been closed by the gateway
+	 */
+	private void closeNow(boolean byPeer) {
+		if (state == State.CLOSED) {
+			return;
+		}
+		if (timing != null && !byPeer) {
+			timing.onClose();
+		}
+		State previous = state;
+		state = State.CLOSED;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warn("Session " + id + ": " + e.getClass().getName() + " while closing channel: " + e.getMessage());
+		}
+		writeQueue.clear();
+		controlQueue.clear();
+		addEvent(new DoipEventConnectionClosed(System.nanoTime()));
+		generator.onSessionClosed(this, previous);
+	}
+
+	private void onMessage(long timestamp, DoipTcpMessage message) {
+		if (message instanceof DoipTcpAliveCheckRequest) {
+			controlQueue.add(ByteBuffer.wrap(new DoipTcpAliveCheckResponse(testerAddress).getMessage()));
+			if (timing != null) {
+				timing.onMessageSent(timestamp);
+			}
+			flush();
+		}
+		addEvent(DoipMessageDecoder.createEvent(timestamp, message));
+		if (message instanceof DoipTcpRoutingActivationResponse && state == State.ACTIVATING) {
+			int responseCode = ((DoipTcpRoutingActivationResponse) message).getResponseCode();
+			if (responseCode == ROUTING_ACTIVATED || responseCode == ROUTING_ACTIVATED_CONFIRMATION_REQUIRED) {
+				state = State.ACTIVE;
+				generator.onSessionActivated(this);
+			} else {
+				logger.warn("Session " + id + ": Routing activation has been denied with response code 0x"
+						+ Integer.toHexString(responseCode));
+				closeNow();
+			}
+		}
+	}
+
+	private void addEvent(DoipEvent event) {
+		events.add(event);
+		typeIndex.add(event);
+		if (timing != null) {
+			timing.onEvent(event);
+		}
+		if (journal != null) {
+			journal.append(id, event);
+		}
+		generator.onSessionEvent(this, event);
+	}
+}
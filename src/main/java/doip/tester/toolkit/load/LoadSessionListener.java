@@ -0,0 +1,28 @@
+package doip.tester.toolkit.load;
+
+import doip.tester.toolkit.event.DoipEvent;
+
+/**
+ * Listener which will be notified about all events of the sessions of a
+ * {@link NioLoadGenerator}. It can be used to drive the sessions, for example
+ * to send the next request as soon as the response to the previous request
+ * has been received.
+ * <p>
+ * The functions will be called by the selector threads of the load
+ * generator. They must not block, otherwise all other sessions which are
+ * handled by the same selector thread will be delayed.
+ */
+public interface LoadSessionListener {
+
+	/**
+	 * Will be called when the routing activation of a session has been
+	 * accepted by the gateway.
+	 */
+	public void onSessionActivated(LoadSession session);
+
+	/**
+	 * Will be called for every event of a session, which are all received
+	 * messages and finally the event for the closed connection.
+	 */
+	public void onSessionEvent(LoadSession session, DoipEvent event);
+}
@@ -0,0 +1,379 @@
+package doip.tester.toolkit.load;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.tester.toolkit.TestConfig;
+import doip.tester.toolkit.TimingAnalyzer;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.journal.EventJournal;
+
+/**
+ * Load generator which opens and drives thousands of DoIP TCP sessions
+ * to the gateway with a small number of selector threads. Every session
+ * performs the routing activation on its own after the TCP connection
+ * has been established. Afterwards the sessions can be driven by calling
+ * {@link LoadSession#sendDiagnosticMessage(int, byte[])} from any thread
+ * or from a {@link LoadSessionListener} which will be called by the
+ * selector threads.
+ * <p>
+ * Sessions will be distributed round robin over the selector threads.
+ */
+public class NioLoadGenerator {
+
+	private static Logger logger = LogManager.getLogger(NioLoadGenerator.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	/**
+	 * Default capacity of the event queue of each session. It is much
+	 * smaller than the capacity of the event queue of a
+	 * {@link doip.tester.toolkit.TesterTcpConnection} because there will
+	 * be thousands of sessions.
+	 */
+	public static final int DEFAULT_SESSION_EVENT_QUEUE_CAPACITY = 64;
+
+	/**
+	 * Maximum payload length which will be accepted from the gateway
+	 */
+	public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 0x10000;
+
+	private final InetSocketAddress target;
+
+	private final int testerAddress;
+
+	private final int selectorThreadCount;
+
+	private final long connectTimeoutNanos;
+
+	private final long routingActivationTimeoutNanos;
+
+	private final int sessionEventQueueCapacity;
+
+	private SelectorLoop[] loops = null;
+
+	/**
+	 * Sessions which have been opened and not been closed yet, the key is
+	 * the ID of the session.
+	 */
+	private final ConcurrentHashMap<Integer, LoadSession> sessions = new ConcurrentHashMap<Integer, LoadSession>();
+
+	private volatile LoadSessionListener listener = null;
+
+	private volatile TimingAnalyzer timingAnalyzer = null;
+
+	private volatile EventJournal eventJournal = null;
+
+	private final AtomicInteger nextSessionId = new AtomicInteger(0);
+
+	private final AtomicInteger openedCount = new AtomicInteger(0);
+
+	private final AtomicInteger activatedCount = new AtomicInteger(0);
+
+	private final AtomicInteger failedCount = new AtomicInteger(0);
+
+	private final AtomicInteger closedCount = new AtomicInteger(0);
+
+	/**
+	 * Lock on which threads wait for activated sessions
+	 */
+	private final Object activationLock = new Object();
+
+	/**
+	 * Creates a load generator for the gateway which is defined in the
+	 * test configuration.
+	 *
+	 * @param config The test configuration
+	 * @param selectorThreadCount Number of selector threads
+	 */
+	public NioLoadGenerator(TestConfig config, int selectorThreadCount) {
+		this(new InetSocketAddress(config.getTargetAddress(), config.getTargetPort()),
+				config.getTesterAddress(), selectorThreadCount, config.getTcpConnectTimeout(),
+				config.getRoutingActivationTimeout(), DEFAULT_SESSION_EVENT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param target Address and port of the gateway
+	 * @param testerAddress Default logical address of the tester
+	 * @param selectorThreadCount Number of selector threads
+	 * @param connectTimeoutms Timeout in milliseconds for establishing
+	 *                         the TCP connection
+	 * @param routingActivationTimeoutms Timeout in milliseconds for the
+	 *                                   routing activation response
+	 * @param sessionEventQueueCapacity Capacity of the event queue of
+	 *                                  each session
+	 */
+	public NioLoadGenerator(InetSocketAddress target, int testerAddress, int selectorThreadCount,
+			long connectTimeoutms, long routingActivationTimeoutms, int sessionEventQueueCapacity) {
+		if (selectorThreadCount <= 0) {
+			throw new IllegalArgumentException(
+					"Number of selector threads must be greater than 0, but it was " + selectorThreadCount);
+		}
+		this.target = target;
+		this.testerAddress = testerAddress;
+		this.selectorThreadCount = selectorThreadCount;
+		this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeoutms);
+		this.routingActivationTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(routingActivationTimeoutms);
+		this.sessionEventQueueCapacity = sessionEventQueueCapacity;
+	}
+
+	/**
+	 * Sets the listener which will be notified about the events of all
+	 * sessions. Should be set before sessions will be opened.
+	 */
+	public void setListener(LoadSessionListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets the analyzer which checks the timing of all sessions which
+	 * will be opened after this call.
+	 *
+	 * @param timingAnalyzer The analyzer or null to stop the analysis
+	 *                       for new sessions
+	 */
+	public void setTimingAnalyzer(TimingAnalyzer timingAnalyzer) {
+		this.timingAnalyzer = timingAnalyzer;
+	}
+
+	/**
+	 * Sets the journal to which the received events of all sessions which
+	 * will be opened after this call will be written. The ID of the
+	 * session will be used as channel.
+	 *
+	 * @param eventJournal The journal or null to stop writing events
+	 *                     for new sessions
+	 */
+	public void setEventJournal(EventJournal eventJournal) {
+		this.eventJournal = eventJournal;
+	}
+
+	/**
+	 * Starts the selector threads.
+	 */
+	public synchronized void start() throws IOException {
+		try {
+			logger.trace(enter, ">>> public void start()");
+			if (loops != null) {
+				throw logger.throwing(new IllegalStateException("Load generator has already been started"));
+			}
+			SelectorLoop[] newLoops = new SelectorLoop[selectorThreadCount];
+			for (int i = 0; i < selectorThreadCount; i++) {
+				newLoops[i] = new SelectorLoop(connectTimeoutNanos, routingActivationTimeoutNanos);
+			}
+			for (int i = 0; i < selectorThreadCount; i++) {
+				newLoops[i].start("NIO-LOAD-" + i);
+			}
+			loops = newLoops;
+		} finally {
+			logger.trace(exit, "<<< public void start()");
+		}
+	}
+
+	/**
+	 * Stops the selector threads. All sessions will be closed.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		try {
+			logger.trace(enter, ">>> public void stop()");
+			if (loops == null) {
+				return;
+			}
+			for (SelectorLoop loop : loops) {
+				loop.stop();
+			}
+			loops = null;
+			logger.info("Load generator stopped, sessions activated: " + activatedCount.get()
+					+ ", failed: " + failedCount.get() + ", closed: " + closedCount.get());
+		} finally {
+			logger.trace(exit, "<<< public void stop()");
+		}
+	}
+
+	/**
+	 * Opens a new session with the default tester address.
+	 */
+	public LoadSession openSession() throws IOException {
+		return openSession(testerAddress);
+	}
+
+	/**
+	 * Opens a new session. This function only starts establishing the
+	 * TCP connection, it does not wait until the connection has been
+	 * established or the routing activation has been finished.
+	 *
+	 * @param sourceAddress Logical address of the tester which will be
+	 *                      used for the routing activation and for the
+	 *                      diagnostic messages of this session
+	 * @throws IllegalStateException If the load generator has not been
+	 *                               started or has been stopped while
+	 *                               the session was opened
+	 */
+	public LoadSession openSession(int sourceAddress) throws IOException {
+		SelectorLoop[] currentLoops = loops;
+		if (currentLoops == null) {
+			throw logger.throwing(new IllegalStateException("Load generator has not been started"));
+		}
+		int id = nextSessionId.getAndIncrement();
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(target);
+		} catch (IOException e) {
+			channel.close();
+			throw logger.throwing(e);
+		}
+		SelectorLoop loop = currentLoops[id % currentLoops.length];
+		TimingAnalyzer analyzer = timingAnalyzer;
+		LoadSession session = new LoadSession(id, sourceAddress, channel, loop, this,
+				DEFAULT_MAX_PAYLOAD_LENGTH, sessionEventQueueCapacity,
+				analyzer == null ? null : analyzer.createTcpChannel("LOAD-" + id), eventJournal);
+		sessions.put(id, session);
+		openedCount.incrementAndGet();
+		if (!loop.register(session)) {
+			// The load generator has been stopped concurrently and the
+			// selector thread will not take care of the session anymore.
+			session.closeNow();
+			throw logger.throwing(new IllegalStateException("Load generator has been stopped"));
+		}
+		return session;
+	}
+
+	/**
+	 * Opens several sessions with the default tester address.
+	 *
+	 * @param count Number of sessions
+	 * @return The new sessions
+	 */
+	public List<LoadSession> openSessions(int count) throws IOException {
+		try {
+			logger.trace(enter, ">>> public List<LoadSession> openSessions(int count)");
+			List<LoadSession> list = new ArrayList<LoadSession>(count);
+			for (int i = 0; i < count; i++) {
+				list.add(openSession());
+			}
+			return list;
+		} finally {
+			logger.trace(exit, "<<< public List<LoadSession> openSessions(int count)");
+		}
+	}
+
+	/**
+	 * Waits until the given number of sessions has been activated or
+	 * no more sessions can become active.
+	 *
+	 * @param count Number of activated sessions to wait for
+	 * @param timeoutms Maximum time in milliseconds to wait
+	 * @return True if the number of activated sessions has been reached
+	 */
+	public boolean waitForActivatedSessions(int count, long timeoutms) throws InterruptedException {
+		try {
+			logger.trace(enter, ">>> public boolean waitForActivatedSessions(int count, long timeoutms)");
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutms);
+			synchronized (activationLock) {
+				while (activatedCount.get() < count) {
+					int opened = openedCount.get();
+					if (activatedCount.get() + failedCount.get() >= opened && opened >= count) {
+						// All sessions are either active or have failed
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					TimeUnit.NANOSECONDS.timedWait(activationLock, remaining);
+				}
+			}
+			boolean result = activatedCount.get() >= count;
+			if (!result) {
+				logger.warn("Only " + activatedCount.get() + " of " + count + " sessions have been activated"
+						+ ", " + failedCount.get() + " sessions failed");
+			}
+			return result;
+		} finally {
+			logger.trace(exit, "<<< public boolean waitForActivatedSessions(int count, long timeoutms)");
+		}
+	}
+
+	/**
+	 * Returns the sessions which are currently open. Sessions which have
+	 * been closed will not be returned.
+	 *
+	 * @return A snapshot of the open sessions
+	 */
+	public List<LoadSession> getSessions() {
+		return new ArrayList<LoadSession>(sessions.values());
+	}
+
+	/**
+	 * Returns the number of sessions which have been opened.
+	 * Sessions which have been closed afterwards are included.
+	 */
+	public int getOpenedCount() {
+		return openedCount.get();
+	}
+
+	/**
+	 * Returns the number of sessions which have been activated.
+	 * Sessions which have been closed afterwards are included.
+	 */
+	public int getActivatedCount() {
+		return activatedCount.get();
+	}
+
+	/**
+	 * Returns the number of sessions which could not be connected or
+	 * where the routing activation failed.
+	 */
+	public int getFailedCount() {
+		return failedCount.get();
+	}
+
+	public int getClosedCount() {
+		return closedCount.get();
+	}
+
+	void onSessionActivated(LoadSession session) {
+		activatedCount.incrementAndGet();
+		synchronized (activationLock) {
+			activationLock.notifyAll();
+		}
+		LoadSessionListener current = listener;
+		if (current != null) {
+			current.onSessionActivated(session);
+		}
+	}
+
+	void onSessionClosed(LoadSession session, LoadSession.State previous) {
+		sessions.remove(session.getId(), session);
+		closedCount.incrementAndGet();
+		if (previous != LoadSession.State.ACTIVE) {
+			failedCount.incrementAndGet();
+			synchronized (activationLock) {
+				activationLock.notifyAll();
+			}
+		}
+	}
+
+	void onSessionEvent(LoadSession session, DoipEvent event) {
+		LoadSessionListener current = listener;
+		if (current != null) {
+			current.onSessionEvent(session, event);
+		}
+	}
+}
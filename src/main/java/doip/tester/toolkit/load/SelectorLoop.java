@@ -0,0 +1,231 @@
+package doip.tester.toolkit.load;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.util.Helper;
+
+/**
+ * Selector thread of the {@link NioLoadGenerator}. It handles all I/O of the
+ * sessions which have been assigned to it. Other threads communicate with
+ * the selector thread only by task queues and {@link Selector#wakeup()}.
+ */
+class SelectorLoop implements Runnable {
+
+	private static Logger logger = LogManager.getLogger(SelectorLoop.class);
+
+	/**
+	 * Interval in milliseconds in which connect and routing activation
+	 * timeouts will be checked
+	 */
+	private static final long TIMEOUT_CHECK_INTERVAL = 50;
+
+	private final Selector selector;
+
+	private final long connectTimeoutNanos;
+
+	private final long routingActivationTimeoutNanos;
+
+	private final ConcurrentLinkedQueue<LoadSession> registrations = new ConcurrentLinkedQueue<LoadSession>();
+
+	private final ConcurrentLinkedQueue<LoadSession> writes = new ConcurrentLinkedQueue<LoadSession>();
+
+	private final ConcurrentLinkedQueue<LoadSession> closes = new ConcurrentLinkedQueue<LoadSession>();
+
+	/**
+	 * Sessions which are connecting or waiting for the routing activation
+	 * response. Will only be accessed by the selector thread.
+	 */
+	private final ArrayList<LoadSession> pending = new ArrayList<LoadSession>();
+
+	private volatile boolean running = true;
+
+	private Thread thread = null;
+
+	SelectorLoop(long connectTimeoutNanos, long routingActivationTimeoutNanos) throws IOException {
+		this.selector = Selector.open();
+		this.connectTimeoutNanos = connectTimeoutNanos;
+		this.routingActivationTimeoutNanos = routingActivationTimeoutNanos;
+	}
+
+	void start(String threadName) {
+		thread = new Thread(this, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Hands the session over to the selector thread.
+	 *
+	 * @return False if the loop has already been stopped and the session
+	 *         has not been taken over. The caller is responsible for
+	 *         closing the session in this case.
+	 */
+	boolean register(LoadSession session) {
+		registrations.add(session);
+		selector.wakeup();
+		if (running) {
+			// The selector thread will register the session or close it
+			// when it drains the registrations after it has been stopped.
+			return true;
+		}
+		// If the selector thread already polled the session it will also
+		// close it, otherwise the session is still owned by the caller.
+		return !registrations.remove(session);
+	}
+
+	void scheduleWrite(LoadSession session) {
+		writes.add(session);
+		selector.wakeup();
+	}
+
+	void scheduleClose(LoadSession session) {
+		closes.add(session);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		long nextTimeoutCheck = System.nanoTime();
+		try {
+			while (running) {
+				selector.select(TIMEOUT_CHECK_INTERVAL);
+				processRegistrations();
+				processWrites();
+				processCloses();
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					try {
+						processKey(key);
+					} catch (RuntimeException e) {
+						// Only the session which caused the exception will be
+						// closed, all other sessions of this thread continue.
+						LoadSession session = (LoadSession) key.attachment();
+						logger.error("Unexpected " + e.getClass().getName() + " in session " + session.getId());
+						logger.error(Helper.getExceptionAsString(e));
+						session.closeNow();
+					}
+				}
+				long now = System.nanoTime();
+				if (now - nextTimeoutCheck >= 0) {
+					checkTimeouts(now);
+					nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL * 1000000L;
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in selector thread");
+			logger.error(Helper.getExceptionAsString(e));
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				((LoadSession) key.attachment()).closeNow();
+			}
+			LoadSession session;
+			while ((session = registrations.poll()) != null) {
+				session.closeNow();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.warn(e.getClass().getName() + " while closing selector: " + e.getMessage());
+			}
+		}
+	}
+
+	private void processRegistrations() {
+		LoadSession session;
+		while ((session = registrations.poll()) != null) {
+			try {
+				boolean connected = !session.getChannel().isConnectionPending();
+				SelectionKey key = session.getChannel().register(selector,
+						connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, session);
+				session.setKey(key);
+				pending.add(session);
+				if (connected) {
+					session.onConnected(routingActivationTimeoutNanos);
+				} else {
+					session.setDeadline(System.nanoTime() + connectTimeoutNanos);
+				}
+			} catch (IOException e) {
+				logger.warn("Session " + session.getId() + ": " + e.getClass().getName()
+						+ " while registering channel: " + e.getMessage());
+				session.closeNow();
+			}
+		}
+	}
+
+	private void processWrites() {
+		LoadSession session;
+		while ((session = writes.poll()) != null) {
+			// Messages which will be sent before the routing activation has
+			// been sent stay in the queue until the session is connected.
+			if (session.getState() != LoadSession.State.CONNECTING) {
+				session.flush();
+			}
+		}
+	}
+
+	private void processCloses() {
+		LoadSession session;
+		while ((session = closes.poll()) != null) {
+			session.closeNow();
+		}
+	}
+
+	private void processKey(SelectionKey key) {
+		LoadSession session = (LoadSession) key.attachment();
+		if (!key.isValid()) {
+			return;
+		}
+		if (key.isConnectable()) {
+			try {
+				if (session.getChannel().finishConnect()) {
+					session.onConnected(routingActivationTimeoutNanos);
+				}
+			} catch (IOException e) {
+				logger.warn("Session " + session.getId() + ": " + e.getClass().getName()
+						+ " while connecting: " + e.getMessage());
+				session.closeNow();
+			}
+			return;
+		}
+		if (key.isReadable()) {
+			session.onReadable();
+		}
+		if (key.isValid() && key.isWritable()) {
+			session.onWritable();
+		}
+	}
+
+	private void checkTimeouts(long now) {
+		Iterator<LoadSession> iter = pending.iterator();
+		while (iter.hasNext()) {
+			LoadSession session = iter.next();
+			LoadSession.State state = session.getState();
+			if (state == LoadSession.State.ACTIVE || state == LoadSession.State.CLOSED) {
+				iter.remove();
+			} else if (now - session.getDeadline() >= 0) {
+				logger.warn("Session " + session.getId() + ": Timeout in state " + state);
+				iter.remove();
+				session.closeNow();
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package doip.tester.toolkit.replay;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import doip.tester.toolkit.DoipMessageDecoder;
+
+/**
+ * Splits the recorded data of one direction of a TCP connection into DoIP
+ * messages. Segments are expected in the order of their sequence numbers,
+ * retransmitted data will be ignored. If data is missing in the capture
+ * the incomplete message will be dropped and the framer continues with
+ * the next segment which starts with a valid DoIP header.
+ */
+class DoipStreamFramer {
+
+	private static final long SEQUENCE_MASK = 0xFFFFFFFFL;
+
+	/**
+	 * Messages with a larger payload will be treated as invalid data
+	 */
+	private static final long MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+	/**
+	 * Next expected sequence number, -1 if no segment has been received yet
+	 */
+	private long nextSequence = -1;
+
+	/**
+	 * True if the framer waits for a segment which starts with a valid
+	 * header. This is the case at the beginning if the SYN is not part of
+	 * the capture and after data has been lost.
+	 */
+	private boolean resync = true;
+
+	private long gapCount = 0;
+
+	/**
+	 * Sets the sequence number of the first data byte, which is the
+	 * sequence number of the SYN plus 1.
+	 */
+	void onSyn(long sequence) {
+		nextSequence = (sequence + 1) & SEQUENCE_MASK;
+		buffer.clear();
+		resync = false;
+	}
+
+	/**
+	 * Adds the payload of a segment. Every complete DoIP message (header
+	 * and payload) will be passed to the consumer as a new array.
+	 */
+	void onSegment(long sequence, ByteBuffer payload, Consumer<byte[]> consumer) {
+		int length = payload.remaining();
+		if (length == 0) {
+			return;
+		}
+		if (nextSequence >= 0) {
+			// Number of bytes of this segment which have already been seen
+			long offset = (nextSequence - sequence) & SEQUENCE_MASK;
+			if (offset >= 0x80000000L) {
+				gapCount++;
+				buffer.clear();
+				resync = true;
+			} else if (offset >= length) {
+				return;
+			} else if (offset > 0) {
+				payload.position(payload.position() + (int) offset);
+			}
+		}
+		nextSequence = (sequence + length) & SEQUENCE_MASK;
+		if (resync) {
+			if (payload.remaining() < 2 || !DoipMessageDecoder.isValidHeader(payload, payload.position())) {
+				return;
+			}
+			resync = false;
+		}
+		append(payload);
+		extract(consumer);
+	}
+
+	/**
+	 * Returns the number of times data was missing in the capture.
+	 */
+	long getGapCount() {
+		return gapCount;
+	}
+
+	private void append(ByteBuffer payload) {
+		if (buffer.remaining() < payload.remaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(
+					Math.max(buffer.capacity() * 2, buffer.position() + payload.remaining()));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		buffer.put(payload);
+	}
+
+	private void extract(Consumer<byte[]> consumer) {
+		buffer.flip();
+		while (buffer.remaining() >= DoipMessageDecoder.HEADER_LENGTH) {
+			int start = buffer.position();
+			long payloadLength = DoipMessageDecoder.getPayloadLength(buffer, start);
+			if (!DoipMessageDecoder.isValidHeader(buffer, start) || payloadLength > MAX_PAYLOAD_LENGTH) {
+				gapCount++;
+				buffer.position(buffer.limit());
+				resync = true;
+				break;
+			}
+			int messageLength = DoipMessageDecoder.HEADER_LENGTH + (int) payloadLength;
+			if (buffer.remaining() < messageLength) {
+				break;
+			}
+			byte[] message = new byte[messageLength];
+			buffer.get(message);
+			consumer.accept(message);
+		}
+		buffer.compact();
+	}
+}
@@ -0,0 +1,644 @@
+package doip.tester.toolkit.replay;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import doip.library.util.Conversion;
+import doip.tester.toolkit.DoipMessageDecoder;
+import doip.tester.toolkit.EventCursor;
+import doip.tester.toolkit.TestConfig;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.TesterTcpConnection;
+import doip.tester.toolkit.capture.PcapngReader;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventMessage;
+
+/**
+ * Replays a recorded session against the gateway of the test configuration.
+ * The session is read from pcapng files, for example files written by
+ * {@link doip.tester.toolkit.capture.PcapngCapture} or recorded with
+ * Wireshark in the field. Packets to the target port of the configuration
+ * are messages of the tester, packets from this port are responses of the
+ * gateway.
+ * <p>
+ * Every recorded TCP connection will be opened again with
+ * {@link TestSetup#createTesterTcpConnection()} and the messages of the
+ * tester will be sent with the original pacing divided by the speed-up
+ * factor. Diagnostic messages and routing activation requests will be sent
+ * with the functions of {@link TesterTcpConnection}, so they will be
+ * measured by the latency instrumentation and the timing analyzer. UDP
+ * messages will be sent with the {@link doip.tester.toolkit.TesterUdpCommModule}
+ * to the target address of the configuration.
+ * <p>
+ * The responses of the gateway will be compared with the recorded responses
+ * which have the same payload type, the same source and target address and
+ * belong to the same UDS service. So ECUs behind the gateway can answer in
+ * a different order than in the recording. Recorded responses of the same
+ * ECU which have been skipped by a received response will be counted as
+ * missing, so the comparison continues in step after a response has been
+ * lost. The comparison is done while the replay is running, only responses
+ * which have not been compared yet are held in memory, at most
+ * {@link #MAX_OUTSTANDING_RESPONSES} per connection. Alive check requests
+ * of the gateway will not be compared because the library answers them
+ * itself.
+ */
+public class SessionReplay {
+
+	private static Logger logger = LogManager.getLogger(SessionReplay.class);
+	private static Marker enter = MarkerManager.getMarker("ENTER");
+	private static Marker exit = MarkerManager.getMarker("EXIT");
+
+	/**
+	 * Maximum number of mismatches which will be kept for the report
+	 */
+	public static final int MAX_REPORTED_MISMATCHES = 100;
+
+	/**
+	 * Maximum number of recorded and of received responses per connection
+	 * which wait for the comparison. If there are more, the oldest recorded
+	 * response will be counted as missing and the oldest received response
+	 * as unexpected.
+	 */
+	public static final int MAX_OUTSTANDING_RESPONSES = 1024;
+
+	private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/**
+	 * UDS service identifier of a negative response
+	 */
+	private static final int UDS_NEGATIVE_RESPONSE = 0x7F;
+
+	/**
+	 * Bit which is set in the service identifier of a positive response
+	 */
+	private static final int UDS_POSITIVE_RESPONSE_OFFSET = 0x40;
+
+	private final TestSetup setup;
+
+	private final TestConfig config;
+
+	private final double speedup;
+
+	/**
+	 * Time in milliseconds to wait for outstanding responses when a
+	 * recorded connection has been closed and at the end of the replay
+	 */
+	private long responseTimeout;
+
+	/**
+	 * Active TCP connections, the key is the address of the tester
+	 * in the recording
+	 */
+	private final HashMap<InetSocketAddress, ReplayConnection> connections =
+			new HashMap<InetSocketAddress, ReplayConnection>();
+
+	private ResponseComparison udpComparison = null;
+
+	private long recordedStart;
+
+	private long replayStart;
+
+	private boolean started = false;
+
+	private long sentCount = 0;
+
+	private long matchedCount = 0;
+
+	private long mismatchCount = 0;
+
+	private long missingCount = 0;
+
+	private long unexpectedCount = 0;
+
+	private long connectionCount = 0;
+
+	private long gapCount = 0;
+
+	private long duration = 0;
+
+	private final List<String> mismatches = new ArrayList<String>();
+
+	/**
+	 * Creates a replay for the given test setup which must have been
+	 * initialized.
+	 *
+	 * @param setup The test setup which creates the connections
+	 * @param speedup Factor by which the replay will be faster than the
+	 *                recording, 1.0 replays with the original pacing,
+	 *                Double.POSITIVE_INFINITY sends without waiting
+	 */
+	public SessionReplay(TestSetup setup, double speedup) {
+		if (!(speedup > 0)) {
+			throw new IllegalArgumentException("Speed-up must be greater than 0");
+		}
+		this.setup = setup;
+		this.config = setup.getConfig();
+		this.speedup = speedup;
+		this.responseTimeout = config.get_A_DoIP_Diagnostic_Message() + config.get_A_Processing_Time();
+	}
+
+	/**
+	 * Sets the time to wait for outstanding responses when a recorded
+	 * connection has been closed and at the end of the replay.
+	 *
+	 * @param timeoutms Timeout in milliseconds
+	 */
+	public void setResponseTimeout(long timeoutms) {
+		this.responseTimeout = timeoutms;
+	}
+
+	/**
+	 * Replays all packets of the reader. The function returns when all
+	 * packets have been sent and the remaining responses have been
+	 * received or the response timeout has elapsed. All connections which
+	 * have been opened by the replay will be closed.
+	 */
+	public void replay(PcapngReader reader) throws IOException, InterruptedException {
+		try {
+			logger.trace(enter, ">>> public void replay(PcapngReader reader)");
+			udpComparison = new ResponseComparison("UDP",
+					setup.getTesterUdpCommModule().createEventCursor());
+			long begin = System.nanoTime();
+			try {
+				while (reader.next()) {
+					int targetPort = config.getTargetPort();
+					boolean fromTester = reader.getDestination().getPort() == targetPort;
+					if (!fromTester && reader.getSource().getPort() != targetPort) {
+						continue;
+					}
+					if (reader.getProtocol() == PcapngReader.PROTOCOL_TCP) {
+						onTcpPacket(reader, fromTester);
+					} else {
+						onUdpPacket(reader, fromTester);
+					}
+				}
+				for (ReplayConnection connection : new ArrayList<ReplayConnection>(connections.values())) {
+					close(connection);
+				}
+				udpComparison.waitForResponses(responseTimeout);
+			} finally {
+				for (ReplayConnection connection : connections.values()) {
+					setup.removeDoipTcpConnectionTest(connection.connection);
+				}
+				connections.clear();
+				udpComparison.finish();
+				duration = System.nanoTime() - begin;
+			}
+			logger.info("Replay finished, sent: " + sentCount + ", matched: " + matchedCount
+					+ ", mismatches: " + mismatchCount + ", missing: " + missingCount
+					+ ", unexpected: " + unexpectedCount);
+		} finally {
+			logger.trace(exit, "<<< public void replay(PcapngReader reader)");
+		}
+	}
+
+	/**
+	 * Returns the number of messages which have been sent by the replay.
+	 */
+	public long getSentCount() {
+		return sentCount;
+	}
+
+	/**
+	 * Returns the number of responses which are equal to the recorded ones.
+	 */
+	public long getMatchedCount() {
+		return matchedCount;
+	}
+
+	/**
+	 * Returns the number of responses which differ from the recorded ones.
+	 */
+	public long getMismatchCount() {
+		return mismatchCount;
+	}
+
+	/**
+	 * Returns the number of recorded responses which have not been received.
+	 */
+	public long getMissingCount() {
+		return missingCount;
+	}
+
+	/**
+	 * Returns the number of received responses which have not been recorded.
+	 */
+	public long getUnexpectedCount() {
+		return unexpectedCount;
+	}
+
+	/**
+	 * Returns the number of TCP connections which have been opened.
+	 */
+	public long getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Returns the number of times data was missing in the recorded
+	 * TCP streams.
+	 */
+	public long getGapCount() {
+		return gapCount;
+	}
+
+	/**
+	 * Returns the first {@link #MAX_REPORTED_MISMATCHES} mismatches
+	 * as text.
+	 */
+	public List<String> getMismatches() {
+		return new ArrayList<String>(mismatches);
+	}
+
+	public void printReport(PrintStream out) {
+		out.println();
+		out.println(String.format("Duration:               %.3f s (speed-up %.1f)", duration / 1e9, speedup));
+		out.println(String.format("Connections:            %d", connectionCount));
+		out.println(String.format("Messages sent:          %d", sentCount));
+		out.println(String.format("Responses matched:      %d", matchedCount));
+		out.println(String.format("Responses mismatched:   %d", mismatchCount));
+		out.println(String.format("Responses missing:      %d", missingCount));
+		out.println(String.format("Responses unexpected:   %d", unexpectedCount));
+		out.println(String.format("Gaps in recording:      %d", gapCount));
+		if (!mismatches.isEmpty()) {
+			out.println();
+			for (String mismatch : mismatches) {
+				out.println(mismatch);
+			}
+		}
+	}
+
+	private void onTcpPacket(PcapngReader reader, boolean fromTester) throws IOException, InterruptedException {
+		InetSocketAddress key = fromTester ? reader.getSource() : reader.getDestination();
+		ReplayConnection connection = connections.get(key);
+		int flags = reader.getFlags();
+		long sequence = reader.getSequence();
+		ByteBuffer payload = reader.getPayload();
+
+		if ((flags & PcapngReader.TCP_FLAG_SYN) != 0) {
+			if (fromTester) {
+				if (connection != null) {
+					close(connection);
+				}
+				pace(reader.getTimestamp());
+				connection = open(key);
+				connection.toGateway.onSyn(sequence);
+			} else if (connection != null) {
+				connection.fromGateway.onSyn(sequence);
+			}
+			return;
+		}
+		if (connection == null) {
+			// Recording started after the connection had been established
+			if (!fromTester || !payload.hasRemaining()) {
+				return;
+			}
+			pace(reader.getTimestamp());
+			connection = open(key);
+		}
+
+		final ReplayConnection current = connection;
+		if (fromTester) {
+			long timestamp = reader.getTimestamp();
+			try {
+				current.toGateway.onSegment(sequence, payload, message -> send(current, message, timestamp));
+			} catch (UncheckedIOException e) {
+				// Diagnostic message could not be sent
+				throw e.getCause();
+			}
+		} else {
+			current.fromGateway.onSegment(sequence, payload, current.comparison::onRecorded);
+		}
+		current.comparison.poll();
+
+		if (fromTester && (flags & (PcapngReader.TCP_FLAG_FIN | PcapngReader.TCP_FLAG_RST)) != 0) {
+			close(current);
+		}
+	}
+
+	private void onUdpPacket(PcapngReader reader, boolean fromTester) throws IOException {
+		ByteBuffer payload = reader.getPayload();
+		byte[] message = new byte[payload.remaining()];
+		payload.get(message);
+		if (fromTester) {
+			pace(reader.getTimestamp());
+			setup.getTesterUdpCommModule().send(message, config.getTargetAddress());
+			sentCount++;
+		} else {
+			udpComparison.onRecorded(message);
+		}
+		udpComparison.poll();
+	}
+
+	private ReplayConnection open(InetSocketAddress key) throws IOException {
+		TesterTcpConnection connection = setup.createTesterTcpConnection();
+		connectionCount++;
+		ReplayConnection replayConnection = new ReplayConnection(connection,
+				new ResponseComparison("TCP " + key, connection.createEventCursor()));
+		connections.put(key, replayConnection);
+		return replayConnection;
+	}
+
+	/**
+	 * Waits for the outstanding responses of the connection and closes it.
+	 */
+	private void close(ReplayConnection connection) throws InterruptedException {
+		connection.comparison.waitForResponses(responseTimeout);
+		connection.comparison.finish();
+		gapCount += connection.toGateway.getGapCount() + connection.fromGateway.getGapCount();
+		setup.removeDoipTcpConnectionTest(connection.connection);
+		connections.values().remove(connection);
+	}
+
+	private void send(ReplayConnection current, byte[] message, long timestamp) {
+		int type = DoipMessageDecoder.getPayloadType(ByteBuffer.wrap(message), 0);
+		if (type == DoipMessageDecoder.TYPE_ALIVE_CHECK_RESPONSE) {
+			// The library answers alive check requests of the gateway itself
+			return;
+		}
+		pace(timestamp);
+		TesterTcpConnection connection = current.connection;
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		int payloadLength = message.length - DoipMessageDecoder.HEADER_LENGTH;
+		if (type == DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE && payloadLength >= 4) {
+			connection.sendDiagnosticMessage(buffer.getShort(8) & 0xFFFF, buffer.getShort(10) & 0xFFFF,
+					Arrays.copyOfRange(message, 12, message.length));
+		} else if (type == DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST && payloadLength >= 7) {
+			long oemData = payloadLength >= 11 ? buffer.getInt(15) & 0xFFFFFFFFL : -1;
+			connection.sendRoutingActivationRequest(buffer.getShort(8) & 0xFFFF, buffer.get(10) & 0xFF, oemData);
+		} else {
+			connection.send(message);
+		}
+		sentCount++;
+	}
+
+	/**
+	 * Waits until the time at which the recorded packet shall be replayed.
+	 * While waiting the responses of all connections will be compared.
+	 */
+	private void pace(long timestamp) {
+		if (!started) {
+			started = true;
+			recordedStart = timestamp;
+			replayStart = System.nanoTime();
+			return;
+		}
+		long target = replayStart + (long) ((timestamp - recordedStart) / speedup);
+		while (true) {
+			long remaining = target - System.nanoTime();
+			if (remaining <= 0) {
+				return;
+			}
+			for (ReplayConnection connection : connections.values()) {
+				connection.comparison.poll();
+			}
+			udpComparison.poll();
+			LockSupport.parkNanos(Math.min(remaining, POLL_INTERVAL));
+		}
+	}
+
+	private static boolean isCompared(byte[] message) {
+		if (message.length < DoipMessageDecoder.HEADER_LENGTH) {
+			return true;
+		}
+		int type = DoipMessageDecoder.getPayloadType(ByteBuffer.wrap(message), 0);
+		return type != DoipMessageDecoder.TYPE_ALIVE_CHECK_REQUEST;
+	}
+
+	/**
+	 * Returns the key by which a received response will be assigned to a
+	 * recorded one. It contains the payload type in bits 48 to 63. For
+	 * diagnostic messages and their acknowledges it also contains the
+	 * source address in bits 32 to 47, the target address in bits 16 to 31
+	 * and the identifier of the UDS service which has been requested in the
+	 * lower bits. Responses of the same ECU have the same key in the bits
+	 * 16 to 63.
+	 */
+	private static long getMatchKey(byte[] message) {
+		if (message.length < DoipMessageDecoder.HEADER_LENGTH) {
+			return -1;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(message);
+		long type = DoipMessageDecoder.getPayloadType(buffer, 0);
+		long key = type << 48;
+		if ((type != DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE
+				&& type != DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE_POS_ACK
+				&& type != DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE_NEG_ACK)
+				|| message.length < DoipMessageDecoder.HEADER_LENGTH + 4) {
+			return key;
+		}
+		key |= (long) (buffer.getShort(8) & 0xFFFF) << 32;
+		key |= (long) (buffer.getShort(10) & 0xFFFF) << 16;
+		int service = -1;
+		if (type == DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE) {
+			if (message.length > 12) {
+				service = message[12] & 0xFF;
+				if (service == UDS_NEGATIVE_RESPONSE && message.length > 13) {
+					service = message[13] & 0xFF;
+				} else {
+					// Positive response or request
+					service &= ~UDS_POSITIVE_RESPONSE_OFFSET;
+				}
+			}
+		} else if (message.length > 13) {
+			// Acknowledges contain the code and the beginning of the request
+			service = message[13] & 0xFF;
+		}
+		return key | (service & 0xFFFF);
+	}
+
+	/**
+	 * Recorded TCP connection and the connection which replays it
+	 */
+	private class ReplayConnection {
+
+		private final TesterTcpConnection connection;
+
+		private final ResponseComparison comparison;
+
+		private final DoipStreamFramer toGateway = new DoipStreamFramer();
+
+		private final DoipStreamFramer fromGateway = new DoipStreamFramer();
+
+		private ReplayConnection(TesterTcpConnection connection, ResponseComparison comparison) {
+			this.connection = connection;
+			this.comparison = comparison;
+		}
+	}
+
+	/**
+	 * Compares the received responses of one connection with the recorded
+	 * ones. Responses which have been recorded but not received yet and
+	 * responses which have been received but not been read from the
+	 * recording yet will be queued, see {@link #getMatchKey(byte[])} for
+	 * how they will be assigned.
+	 */
+	private class ResponseComparison {
+
+		private final String name;
+
+		private final EventCursor cursor;
+
+		private final ArrayDeque<byte[]> expected = new ArrayDeque<byte[]>();
+
+		private final ArrayDeque<byte[]> received = new ArrayDeque<byte[]>();
+
+		private ResponseComparison(String name, EventCursor cursor) {
+			this.name = name;
+			this.cursor = cursor;
+		}
+
+		private void onRecorded(byte[] message) {
+			if (isCompared(message)) {
+				if (expected.size() == MAX_OUTSTANDING_RESPONSES) {
+					missingCount++;
+					report("Response missing, expected " + Conversion.byteArrayToHexString(expected.poll()));
+				}
+				expected.add(message);
+				match();
+			}
+		}
+
+		private void poll() {
+			DoipEvent event;
+			while ((event = cursor.poll()) != null) {
+				addReceived(event);
+			}
+			match();
+		}
+
+		private void waitForResponses(long timeoutms) throws InterruptedException {
+			poll();
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutms);
+			while (!expected.isEmpty()) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					break;
+				}
+				DoipEvent event = cursor.next(remaining);
+				if (event == null) {
+					break;
+				}
+				addReceived(event);
+				match();
+			}
+		}
+
+		/**
+		 * Counts the remaining responses as missing or unexpected.
+		 */
+		private void finish() {
+			poll();
+			for (byte[] message : expected) {
+				report("Response missing, expected " + Conversion.byteArrayToHexString(message));
+			}
+			for (byte[] message : received) {
+				report("Unexpected response " + Conversion.byteArrayToHexString(message));
+			}
+			missingCount += expected.size();
+			unexpectedCount += received.size();
+			expected.clear();
+			received.clear();
+			cursor.close();
+		}
+
+		private void addReceived(DoipEvent event) {
+			if (event instanceof DoipEventMessage) {
+				byte[] message = ((DoipEventMessage) event).getDoipMessage().getMessage();
+				if (isCompared(message)) {
+					if (received.size() == MAX_OUTSTANDING_RESPONSES) {
+						unexpectedCount++;
+						report("Unexpected response " + Conversion.byteArrayToHexString(received.poll()));
+					}
+					received.add(message);
+				}
+			}
+		}
+
+		/**
+		 * Assigns the received responses to the recorded ones with the same
+		 * key. A recorded response which is equal to the received one will
+		 * be preferred to the first recorded response with the same key.
+		 * Received responses without a recorded one will wait until it has
+		 * been read from the recording.
+		 */
+		private void match() {
+			if (expected.isEmpty()) {
+				return;
+			}
+			Iterator<byte[]> responses = received.iterator();
+			while (responses.hasNext() && !expected.isEmpty()) {
+				byte[] response = responses.next();
+				long key = getMatchKey(response);
+				int first = -1;
+				int equal = -1;
+				int index = 0;
+				for (byte[] recorded : expected) {
+					if (getMatchKey(recorded) == key) {
+						if (first < 0) {
+							first = index;
+						}
+						if (Arrays.equals(recorded, response)) {
+							equal = index;
+							break;
+						}
+					}
+					index++;
+				}
+				if (first < 0) {
+					continue;
+				}
+				responses.remove();
+				compare(equal >= 0 ? equal : first, key >>> 16, response);
+			}
+		}
+
+		/**
+		 * Compares the response with the recorded response at the given
+		 * position and removes it. Recorded responses of the same ECU in
+		 * front of it have been skipped and will be counted as missing.
+		 */
+		private void compare(int position, long ecu, byte[] response) {
+			Iterator<byte[]> iterator = expected.iterator();
+			for (int index = 0; index < position; index++) {
+				byte[] recorded = iterator.next();
+				if (getMatchKey(recorded) >>> 16 == ecu) {
+					iterator.remove();
+					missingCount++;
+					report("Response missing, expected " + Conversion.byteArrayToHexString(recorded));
+				}
+			}
+			byte[] recorded = iterator.next();
+			iterator.remove();
+			if (Arrays.equals(recorded, response)) {
+				matchedCount++;
+			} else {
+				mismatchCount++;
+				report("Expected " + Conversion.byteArrayToHexString(recorded)
+						+ ", received " + Conversion.byteArrayToHexString(response));
+			}
+		}
+
+		private void report(String text) {
+			if (mismatches.size() < MAX_REPORTED_MISMATCHES) {
+				mismatches.add(name + ": " + text);
+			}
+		}
+	}
+}
@@ -3,10 +3,26 @@ package doip.tester.toolkit.server4unittest;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.LinkedList;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -38,11 +54,12 @@ import doip.library.message.DoipUdpVehicleIdentRequestWithEid;
 import doip.library.message.DoipUdpVehicleIdentRequestWithVin;
 import doip.library.net.TcpServer;
 import doip.library.net.TcpServerListener;
-import doip.library.net.TcpServerThread;
 import doip.library.timer.NanoTimer;
 import doip.library.util.Helper;
 import doip.library.util.LookupTable;
+import doip.tester.toolkit.TesterThreadFactory;
 import doip.tester.toolkit.TextBuilder;
+import doip.tester.toolkit.server4unittest.FaultInjection.MessageType;
 
 /**
  * Implements a DoIP gateway which will be used for unit tests. The project "DoIP Simulation"
@@ -57,7 +74,71 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 	private	Marker markerEnter = MarkerManager.getMarker("ENTER");
 	private Marker markerExit = MarkerManager.getMarker("EXIT");
 	
-	private TcpServerThread tcpServerThread = null;
+	/**
+	 * Defines how the TCP connections will be handled
+	 */
+	public enum TcpMode {
+		/** Every connection has its own receiver thread */
+		THREAD_PER_CONNECTION,
+		/** All connections will be handled by a few selector threads */
+		SELECTOR
+	}
+	
+	/**
+	 * Name of the system property which defines the TCP mode when the
+	 * gateway will be started by {@link #main(String[])}
+	 */
+	public static final String TCP_MODE_PROPERTY = "gateway.tcp.mode";
+	
+	/**
+	 * Maximum time in milliseconds to wait for the thread which accepts
+	 * connections in the mode {@link TcpMode#THREAD_PER_CONNECTION}
+	 */
+	private static final long ACCEPT_THREAD_STOP_TIMEOUT = 1000;
+	
+	/**
+	 * Backlog of the server socket in the mode {@link TcpMode#SELECTOR}.
+	 * The operating system might limit it to a smaller value.
+	 */
+	private static final int SELECTOR_ACCEPT_BACKLOG = 4096;
+	
+	/**
+	 * Maximum payload length which will be accepted in the mode
+	 * {@link TcpMode#SELECTOR}
+	 */
+	private static final int SELECTOR_MAX_PAYLOAD_LENGTH = 0x10000;
+	
+	private TcpMode tcpMode = TcpMode.THREAD_PER_CONNECTION;
+	
+	private int selectorThreadCount = 2;
+	
+	/**
+	 * Defines if the threads of the gateway will be platform threads or
+	 * virtual threads
+	 */
+	private TesterThreadFactory.ThreadMode threadMode = TesterThreadFactory.ThreadMode.PLATFORM;
+	
+	/**
+	 * Factory for the thread which accepts connections, the receiver
+	 * threads of the connections and the selector threads
+	 */
+	private TesterThreadFactory threadFactory = null;
+	
+	/**
+	 * Thread which accepts connections in the mode
+	 * {@link TcpMode#THREAD_PER_CONNECTION}
+	 */
+	private Thread acceptThread = null;
+	
+	private ServerSocketChannel serverChannel = null;
+	
+	private NioServerLoop[] selectorLoops = null;
+	
+	/**
+	 * Index of the selector loop which gets the next connection, will
+	 * only be accessed by the selector thread which accepts connections
+	 */
+	private int nextSelectorLoop = 0;
 	
 	/**
 	 * UDP socket for this gateway
@@ -68,7 +149,35 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 	
 	private ServerSocket tcpSocket = null;
 
-	private LinkedList<DoipTcpConnection4UnitTest> tcpConnectionList = new LinkedList<DoipTcpConnection4UnitTest>();
+	/**
+	 * All open connections with their number. The connections will be
+	 * added and removed by the receiver or selector threads.
+	 */
+	private final ConcurrentHashMap<DoipTcpConnection4UnitTest, Integer> tcpConnections =
+			new ConcurrentHashMap<DoipTcpConnection4UnitTest, Integer>();
+	
+	/**
+	 * Messages which have been delayed by fault injection and have not
+	 * been sent yet, for every connection. Access to a queue is guarded
+	 * by its connection.
+	 */
+	private final ConcurrentHashMap<DoipTcpConnection, DelayedMessages> delayedMessages =
+			new ConcurrentHashMap<DoipTcpConnection, DelayedMessages>();
+	
+	/**
+	 * Delayed messages of one connection in the order in which they will
+	 * be sent
+	 */
+	private static class DelayedMessages {
+		
+		final ArrayDeque<byte[]> messages = new ArrayDeque<byte[]>();
+		
+		/**
+		 * Time (System.nanoTime()) when the last message in the queue
+		 * will be sent
+		 */
+		long lastSendTime;
+	}
 	
 	private int entityAddress = 0xE000;
 	
@@ -76,7 +185,7 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 	private byte[] eid = new byte[6];
 	private byte[] gid = new byte[6];
 	
-	private static int connectionCounter = 1;
+	private static AtomicInteger connectionCounter = new AtomicInteger(1);
 	
 	private boolean isSilent = false;
 	
@@ -86,12 +195,212 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 	
 	private byte[] nextUdpResponse = null;
 	
+	/**
+	 * Table with the responses on diagnostic messages
+	 */
+	private volatile ResponseTable responseTable = ResponseTable.createDefault();
+	
+	/**
+	 * Negative acknowledge code 'unknown target address'
+	 */
+	public static final int NACK_UNKNOWN_TARGET_ADDRESS = 0x03;
+	
+	/**
+	 * Negative acknowledge code 'out of memory', it will be sent if the
+	 * queue of the ECU is full
+	 */
+	public static final int NACK_OUT_OF_MEMORY = 0x05;
+	
+	/**
+	 * Virtual ECUs indexed by their logical address. It is null as long
+	 * as no ECU has been added, in this case the gateway answers all
+	 * diagnostic messages itself.
+	 */
+	private volatile VirtualEcu[] virtualEcusByAddress = null;
+	
+	private final List<VirtualEcu> virtualEcus = new CopyOnWriteArrayList<VirtualEcu>();
+	
+	/**
+	 * Number of threads which will be shared by all virtual ECUs and
+	 * by delayed messages
+	 */
+	private int ecuThreadCount = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Executes the requests of the virtual ECUs and sends delayed messages
+	 */
+	private ScheduledThreadPoolExecutor scheduler = null;
+	
+	/**
+	 * Faults which will be injected, null if the gateway shall not inject
+	 * any faults
+	 */
+	private volatile FaultInjection faultInjection = null;
+	
 	public void setSilent(boolean value) {
 		this.isSilent = value;
 	}
 	
+	/**
+	 * Sets the table which gives the responses on diagnostic messages.
+	 * 
+	 * @param responseTable The new table
+	 */
+	public void setResponseTable(ResponseTable responseTable) {
+		this.responseTable = responseTable;
+	}
+	
+	public ResponseTable getResponseTable() {
+		return responseTable;
+	}
+	
+	/**
+	 * Adds an ECU behind the gateway. As soon as an ECU has been added the
+	 * gateway forwards diagnostic messages to the ECU with the target
+	 * address of the message, messages for other addresses will be
+	 * answered with the negative acknowledge 'unknown target address'.
+	 * 
+	 * @param ecu The ECU
+	 */
+	public synchronized void addVirtualEcu(VirtualEcu ecu) {
+		VirtualEcu[] byAddress = virtualEcusByAddress;
+		if (byAddress == null) {
+			byAddress = new VirtualEcu[0x10000];
+		}
+		if (byAddress[ecu.getAddress()] != null) {
+			throw new IllegalArgumentException("There is already an ECU with address " + String.format("0x%04X", ecu.getAddress()));
+		}
+		byAddress[ecu.getAddress()] = ecu;
+		virtualEcus.add(ecu);
+		virtualEcusByAddress = byAddress;
+	}
+	
+	/**
+	 * Returns the ECU with the given address, null if there is no
+	 * such ECU.
+	 */
+	public VirtualEcu getVirtualEcu(int address) {
+		VirtualEcu[] byAddress = virtualEcusByAddress;
+		return byAddress == null ? null : byAddress[address & 0xFFFF];
+	}
+	
+	public List<VirtualEcu> getVirtualEcus() {
+		return new ArrayList<VirtualEcu>(virtualEcus);
+	}
+	
+	/**
+	 * Sets the faults which will be injected by the gateway.
+	 * 
+	 * @param faultInjection The faults, null to disable fault injection
+	 */
+	public void setFaultInjection(FaultInjection faultInjection) {
+		this.faultInjection = faultInjection;
+	}
+	
+	public FaultInjection getFaultInjection() {
+		return faultInjection;
+	}
+	
+	/**
+	 * Sets the number of threads which process the requests of all
+	 * virtual ECUs and send delayed messages. It must be set before the
+	 * gateway will be started.
+	 */
+	public void setEcuThreadCount(int ecuThreadCount) {
+		this.ecuThreadCount = ecuThreadCount;
+	}
+	
+	/**
+	 * Sets how TCP connections will be handled. It must be set before
+	 * the gateway will be started.
+	 */
+	public void setTcpMode(TcpMode tcpMode) {
+		this.tcpMode = tcpMode;
+	}
+	
+	public TcpMode getTcpMode() {
+		return tcpMode;
+	}
+	
+	/**
+	 * Sets if the threads of the gateway will be platform threads or
+	 * virtual threads. It must be set before the gateway will be started.
+	 * The receiver thread of the UDP message handler is created by the
+	 * DoIP library and is always a platform thread.
+	 */
+	public void setThreadMode(TesterThreadFactory.ThreadMode threadMode) {
+		this.threadMode = threadMode;
+	}
+	
+	public TesterThreadFactory.ThreadMode getThreadMode() {
+		return threadMode;
+	}
+	
+	/**
+	 * Sets the number of selector threads for the mode
+	 * {@link TcpMode#SELECTOR}. It must be set before the gateway will
+	 * be started.
+	 */
+	public void setSelectorThreadCount(int selectorThreadCount) {
+		if (selectorThreadCount <= 0) {
+			throw new IllegalArgumentException(
+					"Number of selector threads must be greater than 0, but it was " + selectorThreadCount);
+		}
+		this.selectorThreadCount = selectorThreadCount;
+	}
+	
 	public int getConnectionCount() {
-		return tcpConnectionList.size();
+		return tcpConnections.size();
+	}
+	
+	/**
+	 * Runs the gateway until the process will be terminated. It can be
+	 * used as gateway for load tests of the tester.
+	 * 
+	 * @param args Optional path of a file with a response table,
+	 *             see {@link ResponseTable}. It can be followed by the
+	 *             definition of virtual ECUs: first address, number of
+	 *             ECUs, queue capacity, minimum and maximum processing
+	 *             time in milliseconds. The TCP mode can be set with the
+	 *             system property {@link #TCP_MODE_PROPERTY} and the
+	 *             thread mode with the system property
+	 *             {@link TesterThreadFactory#THREAD_MODE_PROPERTY}.
+	 */
+	public static void main(String[] args) {
+		try {
+			DoipServer4UnitTest server = new DoipServer4UnitTest();
+			String mode = System.getProperty(TCP_MODE_PROPERTY);
+			if (mode != null) {
+				server.setTcpMode(TcpMode.valueOf(mode.trim().toUpperCase()));
+			}
+			String threadMode = System.getProperty(TesterThreadFactory.THREAD_MODE_PROPERTY);
+			if (threadMode != null) {
+				server.setThreadMode(TesterThreadFactory.ThreadMode.valueOf(threadMode.trim().toUpperCase()));
+			}
+			if (args.length > 0) {
+				server.setResponseTable(ResponseTable.load(Paths.get(args[0])));
+				logger.info("Response table with " + server.getResponseTable().size() + " entries has been loaded");
+			}
+			if (args.length >= 6) {
+				int firstAddress = Integer.decode(args[1]);
+				int count = Integer.parseInt(args[2]);
+				int queueCapacity = Integer.parseInt(args[3]);
+				long minProcessingTime = Long.parseLong(args[4]);
+				long maxProcessingTime = Long.parseLong(args[5]);
+				for (int i = 0; i < count; i++) {
+					server.addVirtualEcu(new VirtualEcu(firstAddress + i, server.getResponseTable(),
+							queueCapacity, minProcessingTime, maxProcessingTime));
+				}
+				logger.info(count + " virtual ECUs have been added, first address is " + String.format("0x%04X", firstAddress));
+			}
+			server.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+			Thread.currentThread().join();
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in gateway");
+			logger.error(Helper.getExceptionAsString(e));
+			System.exit(1);
+		}
 	}
 	
 	public DoipUdpMessageHandler createDoipUdpMessageHandler(String udpReceiverThreadName, LookupTable lookupTable) {
@@ -104,6 +413,10 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 		
 		try {
 			this.isSilent = false;
+			threadFactory = new TesterThreadFactory("GW", threadMode, true);
+			scheduler = new ScheduledThreadPoolExecutor(ecuThreadCount,
+					new TesterThreadFactory("GW-SCHED", threadFactory.getMode(), true));
+			scheduler.setRemoveOnCancelPolicy(true);
 			logger.info("Create UDP socket");
 			this.udpSocket = Helper.createUdpSocket(null, 13400, null); 
 			udpMessageHandler = createDoipUdpMessageHandler("GW-UDP", null);
@@ -111,13 +424,16 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 			logger.info("Start UDP message handler");
 			udpMessageHandler.start(this.udpSocket);
 			
-			logger.info("Create new TcpServerThread with name 'TCP-SERV'");
-			tcpServerThread = new TcpServerThread("TCP-SERV");
-			tcpServerThread.addListener(this);
-			logger.info("Create TCP server socket on port 13400");
-			tcpSocket = Helper.createTcpServerSocket(null, 13400);
-			logger.info("Start TcpServerThread");
-			tcpServerThread.start(tcpSocket);
+			if (tcpMode == TcpMode.SELECTOR) {
+				startSelectorLoops();
+			} else {
+				logger.info("Create TCP server socket on port 13400");
+				ServerSocket serverSocket = Helper.createTcpServerSocket(null, 13400);
+				tcpSocket = serverSocket;
+				logger.info("Start thread 'TCP-SERV' which accepts connections");
+				acceptThread = threadFactory.newThread("TCP-SERV", () -> acceptConnections(serverSocket));
+				acceptThread.start();
+			}
 		} catch (IOException e) {
 			logger.fatal("Unexpected " + e.getClass().getName() + " in start()");
 			logger.fatal(Helper.getExceptionAsString(e));
@@ -127,18 +443,112 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 		}
 	}
 	
+	/**
+	 * Opens the server socket channel and starts the selector threads.
+	 * The first selector thread accepts the connections.
+	 */
+	private void startSelectorLoops() throws IOException {
+		logger.info("Create TCP server socket channel on port 13400");
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			serverChannel.bind(new InetSocketAddress(13400), SELECTOR_ACCEPT_BACKLOG);
+			serverChannel.configureBlocking(false);
+			NioServerLoop[] loops = new NioServerLoop[selectorThreadCount];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new NioServerLoop(this, i == 0 ? serverChannel : null);
+			}
+			nextSelectorLoop = 0;
+			selectorLoops = loops;
+			logger.info("Start " + loops.length + " selector threads");
+			for (int i = 0; i < loops.length; i++) {
+				loops[i].start(threadFactory.newThread("GW-NIO-" + i, loops[i]));
+			}
+		} catch (IOException e) {
+			serverChannel.close();
+			serverChannel = null;
+			throw e;
+		}
+	}
+	
+	/**
+	 * Will be called by the selector thread which accepts connections.
+	 * The connections will be distributed round robin over the selector
+	 * threads.
+	 */
+	void onChannelAccepted(SocketChannel channel) {
+		NioServerLoop[] loops = selectorLoops;
+		try {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		} catch (IOException e) {
+			logger.warn(e.getClass().getName() + " while configuring accepted channel: " + e.getMessage());
+			try {
+				channel.close();
+			} catch (IOException e2) {
+				// Nothing more can be done
+			}
+			return;
+		}
+		NioServerLoop loop = loops[nextSelectorLoop];
+		nextSelectorLoop = (nextSelectorLoop + 1) % loops.length;
+		int number = connectionCounter.getAndIncrement();
+		NioDoipTcpConnection conn = new NioDoipTcpConnection("TCP-NIO-GW-" + number,
+				loop, this, SELECTOR_MAX_PAYLOAD_LENGTH);
+		tcpConnections.put(conn, number);
+		conn.start(channel.socket());
+		logger.debug("New TCP connection " + conn.getName() + " has been accepted");
+	}
+	
 	public void stop() {
 		try {
 			logger.trace(">>> public void stop()");
-			if (tcpServerThread != null) {
-				logger.info("Stop TCP server thread");
-				tcpServerThread.stop();
-				tcpServerThread = null;
+			if (acceptThread != null) {
+				logger.info("Stop thread which accepts connections");
+				try {
+					tcpSocket.close();
+				} catch (IOException e) {
+					logger.warn(e.getClass().getName() + " while closing server socket: " + e.getMessage());
+				}
+				try {
+					acceptThread.join(ACCEPT_THREAD_STOP_TIMEOUT);
+				} catch (InterruptedException e) {
+					logger.fatal(TextBuilder.unexpectedException(e), e);
+					Thread.currentThread().interrupt();
+				}
+				acceptThread = null;
+				tcpSocket = null;
+			}
+			if (selectorLoops != null) {
+				logger.info("Stop selector threads");
+				for (NioServerLoop loop : selectorLoops) {
+					try {
+						loop.stop();
+					} catch (InterruptedException e) {
+						logger.fatal(TextBuilder.unexpectedException(e), e);
+						Thread.currentThread().interrupt();
+					}
+				}
+				selectorLoops = null;
+				try {
+					serverChannel.close();
+				} catch (IOException e) {
+					logger.warn(e.getClass().getName() + " while closing server socket channel: " + e.getMessage());
+				}
+				serverChannel = null;
 			}
 			
 			closeAllConnections();
-		
 			
+			if (scheduler != null) {
+				logger.info("Stop scheduler for virtual ECUs and delayed messages");
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+			for (VirtualEcu ecu : virtualEcus) {
+				ecu.clear();
+			}
+			
+
 			if (udpMessageHandler != null) {
 				logger.info("Stop UDP message handler");
 				udpMessageHandler.stop();
@@ -153,21 +563,20 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 	public void closeAllConnections() {
 		try {
 			logger.trace(markerEnter, ">>> public void closeAllConnections()");
-			// We need to create a copy of this list, because when
+			// We need to create a copy of the connections, because when
 			// calling stop on a connection it will be automatically
-			// removed from the list, that means list will be modified
-			// while iterate over all connections
-			LinkedList<DoipTcpConnection4UnitTest> copy = new LinkedList<DoipTcpConnection4UnitTest>();
-			
-			for (DoipTcpConnection4UnitTest conn : tcpConnectionList) {
-				copy.add(conn);
-			}
+			// removed from the registry
+			List<DoipTcpConnection4UnitTest> copy = new ArrayList<DoipTcpConnection4UnitTest>(tcpConnections.keySet());
 			
 			for (DoipTcpConnection4UnitTest conn : copy) {
 				conn.stop();
 			}
 			
-			Thread.sleep(10);
+			// Connections in selector mode will be closed asynchronously
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+			do {
+				Thread.sleep(10);
+			} while (getConnectionCount() > 0 && System.nanoTime() - deadline < 0);
 			if (getConnectionCount() > 0) {
 				logger.fatal("It was not possible to close all connections in the DoipServer4UnitTest");
 			} else {
@@ -185,6 +594,32 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 		this.nextUdpResponse = msg;
 	}
 
+	/**
+	 * Accepts connections until the server socket will be closed. Will be
+	 * called by the accept thread in the mode
+	 * {@link TcpMode#THREAD_PER_CONNECTION}.
+	 */
+	private void acceptConnections(ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
+			try {
+				onConnectionAccepted(null, serverSocket.accept());
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					logger.error("Unexpected " + e.getClass().getName() + " while accepting connection: " + e.getMessage());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates and starts the connection for an accepted socket. The
+	 * receiver thread of the connection will be created by the thread
+	 * factory of the gateway.
+	 * 
+	 * @param tcpServer Not used, it will be null if the connection has
+	 *                  been accepted by the accept thread of the gateway
+	 * @param socket The accepted socket
+	 */
 	@Override
 	public void onConnectionAccepted(TcpServer tcpServer, Socket socket) {
 		logger.trace(">>> public void onConnectionAccepted(TcpServer tcpServer, Socket socket)");
@@ -193,10 +628,11 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 			logger.info("Set TCP no delay on connection socket");
 			socket.setTcpNoDelay(true);
 			logger.info("Create new instance of DoipTcpConnection4UnitTest for TCP connection");
-			DoipTcpConnection4UnitTest conn = new DoipTcpConnection4UnitTest("TCP-RECV-GW-" + connectionCounter, 64);
-			connectionCounter++;
+			int number = connectionCounter.getAndIncrement();
+			DoipTcpConnection4UnitTest conn = new DoipTcpConnection4UnitTest("TCP-RECV-GW-" + number, 64);
 			conn.addListener(this);
-			this.tcpConnectionList.add(conn);
+			conn.setThreadFactory(threadFactory);
+			this.tcpConnections.put(conn, number);
 			logger.info("Start thread for new TCP connection");
 			conn.start(socket);
 			
@@ -207,8 +643,17 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 		}
 	}
 	
+	/**
+	 * Returns an open connection.
+	 * 
+	 * @param index Index of the connection in the order in which the
+	 *              open connections have been accepted
+	 */
 	public DoipTcpConnection4UnitTest getConnection(int index) {
-		return this.tcpConnectionList.get(index);
+		List<Map.Entry<DoipTcpConnection4UnitTest, Integer>> entries =
+				new ArrayList<Map.Entry<DoipTcpConnection4UnitTest, Integer>>(tcpConnections.entrySet());
+		entries.sort(Comparator.comparing(Map.Entry::getValue));
+		return entries.get(index).getKey();
 	}
 
 	
@@ -216,7 +661,11 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 	public void onConnectionClosed(DoipTcpConnection doipTcpConnection) {
 		logger.trace(">>> public void onConnectionClosed(DoipTcpConnection doipTcpConnection)");
 		logger.info("TCP connection has been closed");
-		tcpConnectionList.remove(doipTcpConnection);
+		tcpConnections.remove(doipTcpConnection);
+		delayedMessages.remove(doipTcpConnection);
+		for (VirtualEcu ecu : virtualEcus) {
+			ecu.removeRequests(doipTcpConnection);
+		}
 		logger.trace("<<< public void onConnectionClosed(DoipTcpConnection doipTcpConnection)");
 	}
 
@@ -232,30 +681,168 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 			int targetAddress = doipMessage.getTargetAddress();
 			byte[] request = doipMessage.getDiagnosticMessage();
 			
-			DoipTcpDiagnosticMessagePosAck posAck =
-					new DoipTcpDiagnosticMessagePosAck(targetAddress, sourceAddress, 0, request);
-			doipTcpConnection.send(posAck);
+			FaultInjection injection = faultInjection;
+			if (injection != null) {
+				long closeDelay = injection.nextCloseDelay();
+				if (closeDelay >= 0) {
+					logger.debug("Connection will be closed without response by fault injection");
+					schedule(doipTcpConnection::stop, closeDelay);
+					return;
+				}
+			}
 			
-			byte[] response = null;
-			switch (request[0]) {
-			case 0x10:
-				response = new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4};
-				break;
-			default:
-				response = new byte[] {0x7F, request[0], 0x10};
-				break;
+			VirtualEcu[] byAddress = virtualEcusByAddress;
+			if (byAddress != null) {
+				forwardToVirtualEcu(byAddress[targetAddress & 0xFFFF], doipTcpConnection, sourceAddress, targetAddress, request);
+				return;
 			}
 			
-			DoipTcpDiagnosticMessage doipResponse = 
-					new DoipTcpDiagnosticMessage(
-							targetAddress, sourceAddress, response);
+			if (injection != null) {
+				// Positive acknowledge and response can have different faults
+				sendTcp(MessageType.DIAGNOSTIC_MESSAGE_POS_ACK, doipTcpConnection,
+						ResponseTable.encodeAck(targetAddress, sourceAddress, request));
+				byte[] response = responseTable.encodeResponse(targetAddress, sourceAddress, request);
+				if (response != null) {
+					sendTcp(MessageType.DIAGNOSTIC_MESSAGE, doipTcpConnection, response);
+				}
+				return;
+			}
 			
-			doipTcpConnection.send(doipResponse);
+			// Positive acknowledge and response will be sent with one write
+			byte[] frame = responseTable.encodeAckAndResponse(targetAddress, sourceAddress, request);
+			doipTcpConnection.send(frame);
 		} finally {
 			logger.trace(markerExit, "<<< public void onDoipTcpDiagnosticMessage(DoipTcpConnection doipTcpConnection, DoipTcpDiagnosticMessage doipMessage)");
 		}
 	}
 
+	/**
+	 * Adds the request to the queue of the ECU and sends the positive
+	 * acknowledge. If there is no ECU with the target address or if its
+	 * queue is full a negative acknowledge will be sent.
+	 */
+	private void forwardToVirtualEcu(VirtualEcu ecu, DoipTcpConnection doipTcpConnection,
+			int sourceAddress, int targetAddress, byte[] request) {
+		// The ECU sends its response synchronized on the connection, so the
+		// response can not overtake the positive acknowledge.
+		synchronized (doipTcpConnection) {
+			if (ecu == null) {
+				logger.debug("There is no ECU with address " + String.format("0x%04X", targetAddress));
+				doipTcpConnection.send(new DoipTcpDiagnosticMessageNegAck(
+						targetAddress, sourceAddress, NACK_UNKNOWN_TARGET_ADDRESS, request));
+			} else if (!ecu.offer(this, doipTcpConnection, sourceAddress, request)) {
+				logger.debug("Queue of ECU " + String.format("0x%04X", targetAddress) + " is full");
+				doipTcpConnection.send(new DoipTcpDiagnosticMessageNegAck(
+						targetAddress, sourceAddress, NACK_OUT_OF_MEMORY, request));
+			} else {
+				sendTcp(MessageType.DIAGNOSTIC_MESSAGE_POS_ACK, doipTcpConnection,
+						ResponseTable.encodeAck(targetAddress, sourceAddress, request));
+			}
+		}
+	}
+	
+	/**
+	 * Sends a message on a TCP connection. If faults shall be injected the
+	 * message will be dropped or sent later by the scheduler. Messages of
+	 * a connection will be sent in the order of the calls, like on a real
+	 * TCP connection. A message with a shorter delay will be sent together
+	 * with the previous message if it would overtake it, for example a
+	 * response will never come before its positive acknowledge.
+	 */
+	void sendTcp(MessageType type, DoipTcpConnection doipTcpConnection, byte[] message) {
+		long delay = 0;
+		FaultInjection injection = faultInjection;
+		if (injection != null) {
+			if (injection.drop(type)) {
+				logger.debug("Message of type " + type + " has been dropped by fault injection");
+				return;
+			}
+			delay = injection.nextDelay(type);
+		}
+		long now = System.nanoTime();
+		synchronized (doipTcpConnection) {
+			DelayedMessages delayed = delayedMessages.get(doipTcpConnection);
+			boolean queued = delayed != null && !delayed.messages.isEmpty();
+			if (!queued && delay <= 0) {
+				doipTcpConnection.send(message);
+				return;
+			}
+			if (delayed == null) {
+				delayed = new DelayedMessages();
+				delayedMessages.put(doipTcpConnection, delayed);
+			}
+			long sendTime = now + Math.max(delay, 0);
+			delayed.lastSendTime = queued ? Math.max(delayed.lastSendTime, sendTime) : sendTime;
+			delayed.messages.add(message);
+			DelayedMessages queue = delayed;
+			schedule(() -> sendDelayed(doipTcpConnection, queue), delayed.lastSendTime - now);
+		}
+	}
+	
+	/**
+	 * Sends the oldest delayed message of the connection. Every delayed
+	 * message has its own task, the task sends the head of the queue,
+	 * so the order will be kept even if the tasks of two messages with
+	 * the same time are executed by different threads of the scheduler.
+	 */
+	private static void sendDelayed(DoipTcpConnection doipTcpConnection, DelayedMessages delayed) {
+		synchronized (doipTcpConnection) {
+			byte[] message = delayed.messages.poll();
+			if (message != null) {
+				doipTcpConnection.send(message);
+			}
+		}
+	}
+	
+	/**
+	 * Sends a UDP message. If faults shall be injected the message will
+	 * be dropped or sent later by the scheduler.
+	 */
+	private void sendUdp(MessageType type, byte[] message, InetAddress address, int port) throws IOException {
+		long delay = 0;
+		FaultInjection injection = faultInjection;
+		if (injection != null) {
+			if (injection.drop(type)) {
+				logger.debug("Message of type " + type + " has been dropped by fault injection");
+				return;
+			}
+			delay = injection.nextDelay(type);
+		}
+		DoipUdpMessageHandler handler = this.udpMessageHandler;
+		if (delay > 0) {
+			schedule(() -> {
+				try {
+					handler.sendDatagramPacket(message, message.length, address, port);
+				} catch (IOException e) {
+					logger.error("Unexpected " + e.getClass().getName() + " while sending delayed UDP message");
+					logger.error(Helper.getExceptionAsString(e));
+				}
+			}, delay);
+		} else {
+			handler.sendDatagramPacket(message, message.length, address, port);
+		}
+	}
+	
+	/**
+	 * Executes the task after the delay. If the gateway has already been
+	 * stopped the task will be discarded.
+	 * 
+	 * @param task The task
+	 * @param delay Delay in nanoseconds
+	 */
+	void schedule(Runnable task, long delay) {
+		ScheduledExecutorService executor = this.scheduler;
+		if (executor == null) {
+			logger.debug("Gateway has been stopped, task will be discarded");
+			return;
+		}
+		try {
+			executor.schedule(task, delay, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			logger.debug("Gateway has been stopped, task will be discarded");
+		}
+	}
+
 	@Override
 	public void onDoipTcpDiagnosticMessageNegAck(DoipTcpConnection doipTcpConnection,
 			DoipTcpDiagnosticMessageNegAck doipMessage) {
@@ -283,7 +870,7 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 			int testerAddress = doipMessage.getSourceAddress();
 		
 			DoipTcpRoutingActivationResponse resp = new DoipTcpRoutingActivationResponse(testerAddress, entityAddress, 0x10, -1);
-			doipTcpConnection.send(resp);
+			sendTcp(MessageType.ROUTING_ACTIVATION_RESPONSE, doipTcpConnection, resp.getMessage());
 		} finally {
 			logger.trace("<<< " + funcion);
 			 
@@ -369,7 +956,7 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 			logger.trace(markerEnter, ">>> private void sendDoipUdpVehicleIdentResponse(DoipUdpVehicleIdentRequestWithEid doipRequest, DatagramPacket packet)");
 			DoipUdpVehicleAnnouncementMessage doipResponse =
 					new DoipUdpVehicleAnnouncementMessage(vin, entityAddress, eid, gid, 0, 0);					
-			this.udpMessageHandler.send(doipResponse, address, port);
+			sendUdp(MessageType.VEHICLE_ANNOUNCEMENT, doipResponse.getMessage(), address, port);
 		} catch (IOException e) {
 			logger.catching(Level.FATAL, e);
 			logger.trace(markerExit, "<<< private void sendDoipUdpVehicleIdentResponse(DoipUdpVehicleIdentRequestWithEid doipRequest, DatagramPacket packet)");
@@ -380,8 +967,8 @@ public class DoipServer4UnitTest implements TcpServerListener, DoipTcpConnection
 		try {
 			logger.trace(markerEnter, ">>> private void sendDoipEntityStatusResponse(DoipUdpEntityStatusRequest request, DatagramPacket packet)");
 			DoipUdpEntityStatusResponse response =
-					new DoipUdpEntityStatusResponse(0, 8, this.tcpConnectionList.size(), 0x1000000);
-			this.udpMessageHandler.send(response, address, port);
+					new DoipUdpEntityStatusResponse(0, 8, this.tcpConnections.size(), 0x1000000);
+			sendUdp(MessageType.ENTITY_STATUS_RESPONSE, response.getMessage(), address, port);
 		} catch (IOException e) {
 			logger.catching(Level.FATAL, e);
 		} finally {
@@ -4,13 +4,18 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import doip.library.comm.DoipTcpConnection;
+import doip.tester.toolkit.DoipTcpConnectionWithThreadFactory;
 import doip.library.message.DoipMessage;
 import doip.library.util.Conversion;
 import doip.library.util.Helper;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-public class DoipTcpConnection4UnitTest extends DoipTcpConnection {
+/**
+ * Connection of the {@link DoipServer4UnitTest}. The receiver thread will
+ * be created by the thread factory of the gateway.
+ */
+public class DoipTcpConnection4UnitTest extends DoipTcpConnectionWithThreadFactory {
 
 	private static Logger logger = LogManager.getLogger(DoipTcpConnection.class);
 
@@ -20,6 +25,10 @@ public class DoipTcpConnection4UnitTest extends DoipTcpConnection {
 		this.isSilent = value;
 	}
 
+	public boolean isSilent() {
+		return isSilent;
+	}
+
 	public DoipTcpConnection4UnitTest(String tcpReceiverThreadName, int maxByteArraySizeLogging) {
 		super(tcpReceiverThreadName, maxByteArraySizeLogging);
 	}
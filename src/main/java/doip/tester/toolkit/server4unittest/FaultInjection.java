@@ -0,0 +1,158 @@
+package doip.tester.toolkit.server4unittest;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Faults which will be injected by the {@link DoipServer4UnitTest}: latency
+ * and loss of messages per message type and the delayed close of the TCP
+ * connection. The delays will be executed by the scheduler of the gateway,
+ * so the receiver threads will never be blocked.
+ * <p>
+ * The settings can be changed while the gateway is running.
+ */
+public class FaultInjection {
+
+	/**
+	 * Types of the messages which will be sent by the gateway
+	 */
+	public enum MessageType {
+		ROUTING_ACTIVATION_RESPONSE,
+		DIAGNOSTIC_MESSAGE_POS_ACK,
+		DIAGNOSTIC_MESSAGE,
+		VEHICLE_ANNOUNCEMENT,
+		ENTITY_STATUS_RESPONSE
+	}
+
+	private final LatencyDistribution[] latencies = new LatencyDistribution[MessageType.values().length];
+
+	private final double[] dropProbabilities = new double[MessageType.values().length];
+
+	private volatile double closeProbability = 0;
+
+	private volatile LatencyDistribution closeDelay = null;
+
+	private final AtomicLong delayedCount = new AtomicLong();
+
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private final AtomicLong closedCount = new AtomicLong();
+
+	/**
+	 * Sets the latency for all messages of the given type.
+	 *
+	 * @param type The message type
+	 * @param latency The distribution of the latency, null for no latency
+	 */
+	public synchronized void setLatency(MessageType type, LatencyDistribution latency) {
+		latencies[type.ordinal()] = latency;
+	}
+
+	public synchronized LatencyDistribution getLatency(MessageType type) {
+		return latencies[type.ordinal()];
+	}
+
+	/**
+	 * Sets the probability that a message of the given type will not
+	 * be sent.
+	 *
+	 * @param type The message type
+	 * @param probability Value between 0 (never) and 1 (always)
+	 */
+	public synchronized void setDropProbability(MessageType type, double probability) {
+		checkProbability(probability);
+		dropProbabilities[type.ordinal()] = probability;
+	}
+
+	public synchronized double getDropProbability(MessageType type) {
+		return dropProbabilities[type.ordinal()];
+	}
+
+	/**
+	 * Sets the probability that the gateway does not answer a diagnostic
+	 * message and closes the TCP connection after a delay instead, like
+	 * a gateway which performs a reset.
+	 *
+	 * @param probability Value between 0 (never) and 1 (always)
+	 * @param delay Time between the diagnostic message and the close of
+	 *              the connection
+	 */
+	public void setDelayedClose(double probability, LatencyDistribution delay) {
+		checkProbability(probability);
+		this.closeDelay = delay;
+		this.closeProbability = probability;
+	}
+
+	/**
+	 * Returns the number of messages which have been delayed.
+	 */
+	public long getDelayedCount() {
+		return delayedCount.get();
+	}
+
+	/**
+	 * Returns the number of messages which have been dropped.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Returns the number of connections which have been closed.
+	 */
+	public long getClosedCount() {
+		return closedCount.get();
+	}
+
+	/**
+	 * Decides if the message shall be dropped.
+	 */
+	boolean drop(MessageType type) {
+		double probability;
+		synchronized (this) {
+			probability = dropProbabilities[type.ordinal()];
+		}
+		if (probability > 0 && ThreadLocalRandom.current().nextDouble() < probability) {
+			droppedCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the delay for the message in nanoseconds.
+	 */
+	long nextDelay(MessageType type) {
+		LatencyDistribution latency = getLatency(type);
+		if (latency == null) {
+			return 0;
+		}
+		long delay = latency.nextDelay();
+		if (delay > 0) {
+			delayedCount.incrementAndGet();
+		}
+		return delay;
+	}
+
+	/**
+	 * Decides if the connection shall be closed.
+	 *
+	 * @return The delay in nanoseconds after which the connection shall be
+	 *         closed, -1 if it shall not be closed.
+	 */
+	long nextCloseDelay() {
+		double probability = closeProbability;
+		if (probability > 0 && ThreadLocalRandom.current().nextDouble() < probability) {
+			closedCount.incrementAndGet();
+			LatencyDistribution delay = closeDelay;
+			return delay == null ? 0 : delay.nextDelay();
+		}
+		return -1;
+	}
+
+	private static void checkProbability(double probability) {
+		if (probability < 0 || probability > 1) {
+			throw new IllegalArgumentException("The probability must be between 0 and 1");
+		}
+	}
+}
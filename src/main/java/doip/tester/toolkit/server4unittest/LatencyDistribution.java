@@ -0,0 +1,120 @@
+package doip.tester.toolkit.server4unittest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distribution of the latency which will be added by the
+ * {@link DoipServer4UnitTest} before a message will be sent. All
+ * parameters are given in milliseconds, negative samples (which can
+ * occur with the normal distribution) will be treated as 0.
+ */
+public class LatencyDistribution {
+
+	private enum Kind {
+		FIXED, UNIFORM, NORMAL, LOG_NORMAL
+	}
+
+	private static final double NANOS_PER_MILLISECOND = 1000000.0;
+
+	private final Kind kind;
+
+	private final double first;
+
+	private final double second;
+
+	private LatencyDistribution(Kind kind, double first, double second) {
+		this.kind = kind;
+		this.first = first;
+		this.second = second;
+	}
+
+	/**
+	 * Every message will be delayed by the same time.
+	 *
+	 * @param latency Latency in milliseconds
+	 */
+	public static LatencyDistribution fixed(double latency) {
+		if (latency < 0) {
+			throw new IllegalArgumentException("The latency must not be negative");
+		}
+		return new LatencyDistribution(Kind.FIXED, latency, 0);
+	}
+
+	/**
+	 * The latency is uniformly distributed between minimum and maximum.
+	 *
+	 * @param min Minimum latency in milliseconds
+	 * @param max Maximum latency in milliseconds
+	 */
+	public static LatencyDistribution uniform(double min, double max) {
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException("Invalid range " + min + " to " + max + " ms");
+		}
+		return new LatencyDistribution(Kind.UNIFORM, min, max);
+	}
+
+	/**
+	 * The latency is normally distributed.
+	 *
+	 * @param mean Mean latency in milliseconds
+	 * @param standardDeviation Standard deviation in milliseconds
+	 */
+	public static LatencyDistribution normal(double mean, double standardDeviation) {
+		if (standardDeviation < 0) {
+			throw new IllegalArgumentException("The standard deviation must not be negative");
+		}
+		return new LatencyDistribution(Kind.NORMAL, mean, standardDeviation);
+	}
+
+	/**
+	 * The logarithm of the latency is normally distributed. This gives the
+	 * long tail which can be observed in real networks.
+	 *
+	 * @param median Median latency in milliseconds
+	 * @param sigma Standard deviation of the logarithm of the latency, a
+	 *              larger value gives a longer tail
+	 */
+	public static LatencyDistribution logNormal(double median, double sigma) {
+		if (median <= 0 || sigma < 0) {
+			throw new IllegalArgumentException("Invalid log-normal distribution with median " + median + " ms and sigma " + sigma);
+		}
+		return new LatencyDistribution(Kind.LOG_NORMAL, Math.log(median), sigma);
+	}
+
+	/**
+	 * Returns the next random latency in nanoseconds.
+	 */
+	public long nextDelay() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double latency;
+		switch (kind) {
+		case UNIFORM:
+			latency = first + random.nextDouble() * (second - first);
+			break;
+		case NORMAL:
+			latency = first + random.nextGaussian() * second;
+			break;
+		case LOG_NORMAL:
+			latency = Math.exp(first + random.nextGaussian() * second);
+			break;
+		default:
+			latency = first;
+			break;
+		}
+		return latency <= 0 ? 0 : (long) (latency * NANOS_PER_MILLISECOND);
+	}
+
+	@Override
+	public String toString() {
+		switch (kind) {
+		case UNIFORM:
+			return "uniform(" + first + " ms, " + second + " ms)";
+		case NORMAL:
+			return "normal(" + first + " ms, " + second + " ms)";
+		case LOG_NORMAL:
+			return "logNormal(" + Math.exp(first) + " ms, " + second + ")";
+		default:
+			return "fixed(" + first + " ms)";
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package doip.tester.toolkit.server4unittest;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.comm.DoipTcpConnectionListener;
+import doip.library.message.DoipMessage;
+import doip.library.message.DoipTcpMessage;
+import doip.tester.toolkit.DoipTcpStreamDecoder;
+
+/**
+ * Connection of the {@link DoipServer4UnitTest} in the mode
+ * {@link DoipServer4UnitTest.TcpMode#SELECTOR}. There is no receiver thread
+ * for the connection, {@link #start(Socket)} registers the channel of the
+ * socket at a {@link NioServerLoop} which does the I/O. Received messages
+ * will be split and decoded by the same {@link DoipTcpStreamDecoder} as in
+ * the mode with a thread for each connection and passed to the same
+ * listener functions of the gateway. Errors in the generic header will be
+ * answered with the same negative acknowledges.
+ * <p>
+ * The functions for sending messages and for closing the connection can
+ * be called from any thread, they do not block.
+ */
+class NioDoipTcpConnection extends DoipTcpConnection4UnitTest {
+
+	private static Logger logger = LogManager.getLogger(NioDoipTcpConnection.class);
+
+	private final String name;
+
+	private final NioServerLoop loop;
+
+	private final DoipTcpConnectionListener listener;
+
+	/**
+	 * Encoded messages which have not yet been written to the channel
+	 */
+	private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Will be true while the connection is in the list of connections with
+	 * pending writes of the selector thread.
+	 */
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+	private volatile SocketChannel channel = null;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Will be true if the connection shall be closed as soon as the
+	 * pending data has been written, no more data will be accepted
+	 */
+	private volatile boolean closing = false;
+
+	// The following fields will only be accessed by the selector thread
+
+	private SelectionKey key = null;
+
+	private final DoipTcpStreamDecoder decoder;
+
+	private final DoipTcpStreamDecoder.Handler handler = new DoipTcpStreamDecoder.Handler() {
+		@Override
+		public boolean onMessage(int payloadType, DoipTcpMessage message) {
+			DoipTcpStreamDecoder.dispatch(NioDoipTcpConnection.this, listener, message);
+			return !closed && !closing;
+		}
+
+		@Override
+		public boolean onInvalidMessage(int code, int payloadType, long payloadLength) {
+			NioDoipTcpConnection.this.onInvalidMessage(code);
+			return !closed && !closing;
+		}
+	};
+
+	NioDoipTcpConnection(String name, NioServerLoop loop, DoipTcpConnectionListener listener, int maxPayloadLength) {
+		super(name, 64);
+		this.name = name;
+		this.loop = loop;
+		this.listener = listener;
+		this.decoder = new DoipTcpStreamDecoder(name, maxPayloadLength);
+	}
+
+	/**
+	 * Starts the connection for a socket which has been created by a
+	 * {@link SocketChannel}. The channel will be switched to non-blocking
+	 * mode and registered at the {@link NioServerLoop} of this connection.
+	 *
+	 * @throws IllegalArgumentException If the socket has no channel
+	 */
+	@Override
+	public void start(Socket socket) {
+		SocketChannel socketChannel = socket.getChannel();
+		if (socketChannel == null) {
+			throw logger.throwing(new IllegalArgumentException("Socket has not been created by a SocketChannel"));
+		}
+		this.channel = socketChannel;
+		try {
+			socketChannel.configureBlocking(false);
+		} catch (IOException e) {
+			logger.warn("Connection " + name + ": " + e.getClass().getName() + " while configuring channel: " + e.getMessage());
+			loop.scheduleClose(this);
+			return;
+		}
+		loop.register(this);
+	}
+
+	@Override
+	public void send(DoipMessage message) {
+		send(message.getMessage());
+	}
+
+	/**
+	 * Sends an encoded DoIP message. The data will be written by the
+	 * selector thread.
+	 */
+	@Override
+	public void send(byte[] data) {
+		if (isSilent()) {
+			logger.info("No message will be sent because flag <isSilent> is true");
+			return;
+		}
+		if (closed || closing) {
+			logger.debug("Connection " + name + " has already been closed, message will not be sent");
+			return;
+		}
+		logSend(data, data.length);
+		writeQueue.add(ByteBuffer.wrap(data));
+		if (writeScheduled.compareAndSet(false, true)) {
+			loop.scheduleWrite(this);
+		}
+	}
+
+	/**
+	 * Closes the connection. It will be closed by the selector thread.
+	 */
+	@Override
+	public void stop() {
+		loop.scheduleClose(this);
+	}
+
+	String getName() {
+		return name;
+	}
+
+	// ------------------------------------------------------------------------
+	// Functions which will be called by the selector thread only
+	// ------------------------------------------------------------------------
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	void onReadable() {
+		if (closing) {
+			return;
+		}
+		int count;
+		try {
+			count = channel.read(decoder.getBuffer());
+		} catch (IOException e) {
+			logger.debug("Connection " + name + ": " + e.getClass().getName() + " while reading from channel: " + e.getMessage());
+			closeNow();
+			return;
+		}
+		if (count < 0) {
+			closeNow();
+			return;
+		}
+		if (!decoder.decode(handler)) {
+			logger.warn("Connection " + name + ": Connection will be closed");
+			onHeaderIncorrectPatternFormat();
+			closing = true;
+			flush();
+		}
+	}
+
+	/**
+	 * Writes as much of the pending data as possible to the channel. If the
+	 * connection shall be closed it will be closed when all data has been
+	 * written.
+	 */
+	void flush() {
+		writeScheduled.set(false);
+		if (closed || key == null) {
+			return;
+		}
+		try {
+			ByteBuffer buffer;
+			while ((buffer = writeQueue.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					key.interestOps(closing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				writeQueue.poll();
+			}
+			if (closing) {
+				closeNow();
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException e) {
+			logger.debug("Connection " + name + ": " + e.getClass().getName() + " while writing to channel: " + e.getMessage());
+			closeNow();
+		}
+	}
+
+	/**
+	 * Closes the connection immediately and informs the gateway.
+	 */
+	void closeNow() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		SocketChannel current = channel;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				logger.warn("Connection " + name + ": " + e.getClass().getName() + " while closing channel: " + e.getMessage());
+			}
+		}
+		writeQueue.clear();
+		listener.onConnectionClosed(this);
+	}
+}
@@ -0,0 +1,209 @@
+package doip.tester.toolkit.server4unittest;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.util.Helper;
+
+/**
+ * Selector thread of the {@link DoipServer4UnitTest} in the mode
+ * {@link DoipServer4UnitTest.TcpMode#SELECTOR}. It handles all I/O of the
+ * connections which have been assigned to it. The first loop of the
+ * gateway also accepts new connections. Other threads communicate with the
+ * selector thread only by task queues and {@link Selector#wakeup()}.
+ */
+class NioServerLoop implements Runnable {
+
+	private static Logger logger = LogManager.getLogger(NioServerLoop.class);
+
+	private final Selector selector;
+
+	private final DoipServer4UnitTest gateway;
+
+	/**
+	 * Channel on which new connections will be accepted, null if this
+	 * loop does not accept connections
+	 */
+	private final ServerSocketChannel serverChannel;
+
+	private final ConcurrentLinkedQueue<NioDoipTcpConnection> registrations = new ConcurrentLinkedQueue<NioDoipTcpConnection>();
+
+	private final ConcurrentLinkedQueue<NioDoipTcpConnection> writes = new ConcurrentLinkedQueue<NioDoipTcpConnection>();
+
+	private final ConcurrentLinkedQueue<NioDoipTcpConnection> closes = new ConcurrentLinkedQueue<NioDoipTcpConnection>();
+
+	private volatile boolean running = true;
+
+	private Thread thread = null;
+
+	NioServerLoop(DoipServer4UnitTest gateway, ServerSocketChannel serverChannel) throws IOException {
+		this.selector = Selector.open();
+		this.gateway = gateway;
+		this.serverChannel = serverChannel;
+		if (serverChannel != null) {
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+	}
+
+	/**
+	 * Starts the selector thread.
+	 *
+	 * @param thread Unstarted thread which runs this loop
+	 */
+	void start(Thread thread) {
+		this.thread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stops the thread, all connections of this loop will be closed.
+	 */
+	void stop() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	void register(NioDoipTcpConnection connection) {
+		registrations.add(connection);
+		selector.wakeup();
+	}
+
+	void scheduleWrite(NioDoipTcpConnection connection) {
+		writes.add(connection);
+		selector.wakeup();
+	}
+
+	void scheduleClose(NioDoipTcpConnection connection) {
+		closes.add(connection);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				processRegistrations();
+				processWrites();
+				processCloses();
+				Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+				while (iter.hasNext()) {
+					SelectionKey key = iter.next();
+					iter.remove();
+					if (key.attachment() == null) {
+						accept();
+						continue;
+					}
+					NioDoipTcpConnection connection = (NioDoipTcpConnection) key.attachment();
+					try {
+						processKey(key, connection);
+					} catch (RuntimeException e) {
+						// Only the connection which caused the exception will be
+						// closed, all other connections of this thread continue.
+						logger.error("Unexpected " + e.getClass().getName() + " on connection " + connection.getName());
+						logger.error(Helper.getExceptionAsString(e));
+						connection.closeNow();
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in selector thread");
+			logger.error(Helper.getExceptionAsString(e));
+		} finally {
+			// The list is needed because closing a connection cancels its key
+			ArrayList<NioDoipTcpConnection> open = new ArrayList<NioDoipTcpConnection>();
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) {
+					open.add((NioDoipTcpConnection) key.attachment());
+				}
+			}
+			NioDoipTcpConnection connection;
+			while ((connection = registrations.poll()) != null) {
+				open.add(connection);
+			}
+			for (NioDoipTcpConnection conn : open) {
+				conn.closeNow();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.warn(e.getClass().getName() + " while closing selector: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Accepts all pending connections.
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				// For example too many open files, the connection stays in
+				// the backlog and will be accepted with the next select.
+				logger.warn(e.getClass().getName() + " while accepting connection: " + e.getMessage());
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			gateway.onChannelAccepted(channel);
+		}
+	}
+
+	private void processRegistrations() {
+		NioDoipTcpConnection connection;
+		while ((connection = registrations.poll()) != null) {
+			try {
+				connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+				// Messages might have been sent before the registration
+				connection.flush();
+			} catch (IOException e) {
+				logger.warn("Connection " + connection.getName() + ": " + e.getClass().getName()
+						+ " while registering channel: " + e.getMessage());
+				connection.closeNow();
+			}
+		}
+	}
+
+	private void processWrites() {
+		NioDoipTcpConnection connection;
+		while ((connection = writes.poll()) != null) {
+			connection.flush();
+		}
+	}
+
+	private void processCloses() {
+		NioDoipTcpConnection connection;
+		while ((connection = closes.poll()) != null) {
+			connection.closeNow();
+		}
+	}
+
+	private void processKey(SelectionKey key, NioDoipTcpConnection connection) {
+		if (!key.isValid()) {
+			return;
+		}
+		if (key.isReadable()) {
+			connection.onReadable();
+		}
+		if (key.isValid() && key.isWritable()) {
+			connection.flush();
+		}
+	}
+}
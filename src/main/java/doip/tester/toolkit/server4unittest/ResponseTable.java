@@ -0,0 +1,335 @@
+package doip.tester.toolkit.server4unittest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+
+/**
+ * Table which gives the UDS response of the {@link DoipServer4UnitTest}
+ * for a UDS request. The table can be loaded from a text file in which
+ * every line contains a request pattern and the response:
+ * <pre>
+ * # Comment
+ * 10 03       -&gt; 50 03 00 32 01 F4
+ * 22 F1 90    -&gt; 62 F1 90 57 30 4C 30 30 30 30 34 33 4D 42 35 34 31 33 32 36
+ * 31 01 ?? ?? -&gt; 71 01 00 00
+ * 3E 8?       -&gt;
+ * </pre>
+ * A pattern matches if the request starts with it, a '?' in the pattern
+ * matches any nibble. If the pattern ends with '$' the request must have
+ * exactly the length of the pattern. An empty response means that only
+ * the positive acknowledge will be sent. The first line which matches
+ * will be used. Requests without a matching line get the negative response
+ * 'serviceNotSupported'.
+ * <p>
+ * The responses are encoded as DoIP diagnostic messages when the table is
+ * created, only the addresses will be inserted when the response is sent.
+ */
+public class ResponseTable {
+
+	/**
+	 * UDS negative response code 'serviceNotSupported'
+	 */
+	private static final int NRC_SERVICE_NOT_SUPPORTED = 0x11;
+
+	/**
+	 * UDS negative response code 'generalReject' which is used by the
+	 * default table
+	 */
+	private static final int NRC_GENERAL_REJECT = 0x10;
+
+	/**
+	 * Offset of the source address in an encoded diagnostic message
+	 */
+	private static final int OFFSET_SOURCE_ADDRESS = 8;
+
+	/**
+	 * Offset of the diagnostic data in an encoded diagnostic message
+	 */
+	private static final int OFFSET_USER_DATA = 12;
+
+	/**
+	 * Encoded positive acknowledge without previous diagnostic message
+	 */
+	private static final byte[] POS_ACK_TEMPLATE =
+			new DoipTcpDiagnosticMessagePosAck(0, 0, 0, new byte[0]).getMessage();
+
+	private final Entry[] entries;
+
+	/**
+	 * Entries for every possible first byte of the request in the order
+	 * of the table, so only the entries for the service have to be checked
+	 */
+	private final Entry[][] entriesByService = new Entry[256][];
+
+	/**
+	 * Encoded negative responses for every service identifier
+	 */
+	private final byte[][] negativeResponses = new byte[256][];
+
+	private ResponseTable(List<Entry> entries, int negativeResponseCode) {
+		this.entries = entries.toArray(new Entry[entries.size()]);
+		for (int service = 0; service < 256; service++) {
+			List<Entry> list = new ArrayList<Entry>();
+			for (Entry entry : entries) {
+				if (entry.pattern.length == 0 || (service & entry.mask[0]) == (entry.pattern[0] & 0xFF)) {
+					list.add(entry);
+				}
+			}
+			entriesByService[service] = list.toArray(new Entry[list.size()]);
+			negativeResponses[service] = encode(
+					new byte[] {0x7F, (byte) service, (byte) negativeResponseCode});
+		}
+	}
+
+	/**
+	 * Loads the table from a text file.
+	 *
+	 * @throws IllegalArgumentException If a line has an invalid format
+	 */
+	public static ResponseTable load(Path file) throws IOException {
+		return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Creates the table from the lines of a table file.
+	 *
+	 * @throws IllegalArgumentException If a line has an invalid format
+	 */
+	public static ResponseTable parse(List<String> lines) {
+		List<Entry> entries = new ArrayList<Entry>();
+		int number = 0;
+		for (String line : lines) {
+			number++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			int arrow = line.indexOf("->");
+			if (arrow < 0) {
+				throw new IllegalArgumentException("Missing '->' in line " + number + " of response table");
+			}
+			try {
+				entries.add(new Entry(line.substring(0, arrow), line.substring(arrow + 2)));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(e.getMessage() + " in line " + number + " of response table", e);
+			}
+		}
+		return new ResponseTable(entries, NRC_SERVICE_NOT_SUPPORTED);
+	}
+
+	/**
+	 * Creates the table which is used by the {@link DoipServer4UnitTest}
+	 * if no other table has been set. It answers the service 0x10 with
+	 * a positive response and all other services with the negative
+	 * response code 0x10.
+	 */
+	public static ResponseTable createDefault() {
+		List<Entry> entries = new ArrayList<Entry>();
+		entries.add(new Entry("10", "50 03 00 32 01 F4"));
+		return new ResponseTable(entries, NRC_GENERAL_REJECT);
+	}
+
+	/**
+	 * Returns the number of lines in the table.
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * Returns the UDS response for the request.
+	 *
+	 * @return The response, an empty array if no response shall be sent
+	 */
+	public byte[] getResponse(byte[] request) {
+		byte[] encoded = getEncodedResponse(request);
+		return Arrays.copyOfRange(encoded, OFFSET_USER_DATA, encoded.length);
+	}
+
+	/**
+	 * Encodes the positive acknowledge and the response in one array
+	 * which can be sent with a single write.
+	 *
+	 * @param sourceAddress Source address of the response, which is the
+	 *                      target address of the request
+	 * @param targetAddress Target address of the response
+	 * @param request The UDS request which will be copied into the
+	 *                positive acknowledge
+	 */
+	byte[] encodeAckAndResponse(int sourceAddress, int targetAddress, byte[] request) {
+		byte[] response = getEncodedResponse(request);
+		int ackLength = POS_ACK_TEMPLATE.length + request.length;
+		boolean hasResponse = response.length > OFFSET_USER_DATA;
+		byte[] frame = new byte[hasResponse ? ackLength + response.length : ackLength];
+
+		putAck(frame, sourceAddress, targetAddress, request);
+		if (hasResponse) {
+			System.arraycopy(response, 0, frame, ackLength, response.length);
+			putAddresses(frame, ackLength, sourceAddress, targetAddress);
+		}
+		return frame;
+	}
+
+	/**
+	 * Encodes the positive acknowledge for the request.
+	 *
+	 * @param sourceAddress Source address of the acknowledge
+	 * @param targetAddress Target address of the acknowledge
+	 * @param request The UDS request which will be copied into the
+	 *                positive acknowledge
+	 */
+	static byte[] encodeAck(int sourceAddress, int targetAddress, byte[] request) {
+		byte[] frame = new byte[POS_ACK_TEMPLATE.length + request.length];
+		putAck(frame, sourceAddress, targetAddress, request);
+		return frame;
+	}
+
+	/**
+	 * Encodes the diagnostic message with the response.
+	 *
+	 * @param sourceAddress Source address of the response
+	 * @param targetAddress Target address of the response
+	 * @param request The UDS request
+	 * @return The encoded message, null if no response shall be sent
+	 */
+	byte[] encodeResponse(int sourceAddress, int targetAddress, byte[] request) {
+		byte[] response = getEncodedResponse(request);
+		if (response.length == OFFSET_USER_DATA) {
+			return null;
+		}
+		byte[] frame = response.clone();
+		putAddresses(frame, 0, sourceAddress, targetAddress);
+		return frame;
+	}
+
+	/**
+	 * Returns the encoded diagnostic message with the response. The
+	 * addresses in the message are 0.
+	 */
+	private byte[] getEncodedResponse(byte[] request) {
+		if (request.length == 0) {
+			return encode(new byte[0]);
+		}
+		int service = request[0] & 0xFF;
+		for (Entry entry : entriesByService[service]) {
+			if (entry.matches(request)) {
+				return entry.encodedResponse;
+			}
+		}
+		return negativeResponses[service];
+	}
+
+	private static byte[] encode(byte[] response) {
+		return new DoipTcpDiagnosticMessage(0, 0, response).getMessage();
+	}
+
+	private static void putAck(byte[] frame, int sourceAddress, int targetAddress, byte[] request) {
+		System.arraycopy(POS_ACK_TEMPLATE, 0, frame, 0, POS_ACK_TEMPLATE.length);
+		putInt(frame, 4, POS_ACK_TEMPLATE.length + request.length - 8);
+		putAddresses(frame, 0, sourceAddress, targetAddress);
+		System.arraycopy(request, 0, frame, POS_ACK_TEMPLATE.length, request.length);
+	}
+
+	private static void putAddresses(byte[] frame, int offset, int sourceAddress, int targetAddress) {
+		int position = offset + OFFSET_SOURCE_ADDRESS;
+		frame[position] = (byte) (sourceAddress >> 8);
+		frame[position + 1] = (byte) sourceAddress;
+		frame[position + 2] = (byte) (targetAddress >> 8);
+		frame[position + 3] = (byte) targetAddress;
+	}
+
+	private static void putInt(byte[] frame, int offset, int value) {
+		frame[offset] = (byte) (value >> 24);
+		frame[offset + 1] = (byte) (value >> 16);
+		frame[offset + 2] = (byte) (value >> 8);
+		frame[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * One line of the table
+	 */
+	private static class Entry {
+
+		private final byte[] pattern;
+
+		private final byte[] mask;
+
+		private final boolean exactLength;
+
+		private final byte[] encodedResponse;
+
+		private Entry(String pattern, String response) {
+			pattern = pattern.trim();
+			this.exactLength = pattern.endsWith("$");
+			if (exactLength) {
+				pattern = pattern.substring(0, pattern.length() - 1).trim();
+			}
+			String[] tokens = split(pattern);
+			this.pattern = new byte[tokens.length];
+			this.mask = new byte[tokens.length];
+			for (int i = 0; i < tokens.length; i++) {
+				int value = 0;
+				int maskValue = 0;
+				for (char c : tokens[i].toCharArray()) {
+					value <<= 4;
+					maskValue <<= 4;
+					if (c != '?') {
+						value |= parseNibble(c);
+						maskValue |= 0xF;
+					}
+				}
+				this.pattern[i] = (byte) value;
+				this.mask[i] = (byte) maskValue;
+			}
+
+			tokens = split(response);
+			byte[] data = new byte[tokens.length];
+			for (int i = 0; i < tokens.length; i++) {
+				data[i] = (byte) ((parseNibble(tokens[i].charAt(0)) << 4) | parseNibble(tokens[i].charAt(1)));
+			}
+			this.encodedResponse = encode(data);
+		}
+
+		private boolean matches(byte[] request) {
+			if (request.length < pattern.length || (exactLength && request.length != pattern.length)) {
+				return false;
+			}
+			for (int i = 0; i < pattern.length; i++) {
+				if ((request[i] & mask[i]) != pattern[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static String[] split(String text) {
+			text = text.trim();
+			if (text.isEmpty()) {
+				return new String[0];
+			}
+			String[] tokens = text.split("\\s+");
+			for (String token : tokens) {
+				if (token.length() != 2) {
+					throw new IllegalArgumentException("Invalid byte '" + token + "'");
+				}
+			}
+			return tokens;
+		}
+
+		private static int parseNibble(char c) {
+			int value = Character.digit(c, 16);
+			if (value < 0) {
+				throw new IllegalArgumentException("Invalid hex digit '" + c + "'");
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package doip.tester.toolkit.server4unittest;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import doip.library.comm.DoipTcpConnection;
+import doip.library.util.Helper;
+import doip.tester.toolkit.server4unittest.FaultInjection.MessageType;
+
+/**
+ * ECU behind the {@link DoipServer4UnitTest} with its own logical address.
+ * Like a real ECU it processes one request after the other. Requests which
+ * arrive while the ECU is busy will be stored in a bounded queue, if the
+ * queue is full the gateway rejects the request with a negative
+ * acknowledge. The processing time of every request is a random value
+ * between the minimum and the maximum processing time.
+ * <p>
+ * All ECUs of a gateway share the scheduler of the gateway, so hundreds
+ * of ECUs can respond in parallel without a thread for every ECU. The
+ * responses are subject to the fault injection of the gateway.
+ */
+public class VirtualEcu {
+
+	private static Logger logger = LogManager.getLogger(VirtualEcu.class);
+
+	private final int address;
+
+	private final ResponseTable responseTable;
+
+	private final int queueCapacity;
+
+	private final long minProcessingTime;
+
+	private final long maxProcessingTime;
+
+	/**
+	 * Requests which have been accepted and not yet been answered. The
+	 * first request is the one which will be processed at the moment.
+	 * Access is guarded by this object.
+	 */
+	private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+
+	private DoipServer4UnitTest gateway = null;
+
+	private long processedCount = 0;
+
+	private long rejectedCount = 0;
+
+	private int maxQueueLength = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param address Logical address of the ECU
+	 * @param responseTable Table with the responses of the ECU
+	 * @param queueCapacity Maximum number of requests which can be
+	 *                      accepted by the ECU, including the request
+	 *                      which will be processed at the moment
+	 * @param minProcessingTime Minimum processing time in milliseconds
+	 * @param maxProcessingTime Maximum processing time in milliseconds
+	 */
+	public VirtualEcu(int address, ResponseTable responseTable, int queueCapacity,
+			long minProcessingTime, long maxProcessingTime) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("The queue capacity must be at least 1");
+		}
+		if (minProcessingTime < 0 || maxProcessingTime < minProcessingTime) {
+			throw new IllegalArgumentException("Invalid processing time " + minProcessingTime + " to " + maxProcessingTime + " ms");
+		}
+		this.address = address;
+		this.responseTable = responseTable;
+		this.queueCapacity = queueCapacity;
+		this.minProcessingTime = TimeUnit.MILLISECONDS.toNanos(minProcessingTime);
+		this.maxProcessingTime = TimeUnit.MILLISECONDS.toNanos(maxProcessingTime);
+	}
+
+	public int getAddress() {
+		return address;
+	}
+
+	public ResponseTable getResponseTable() {
+		return responseTable;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Returns the number of requests which have been answered.
+	 */
+	public synchronized long getProcessedCount() {
+		return processedCount;
+	}
+
+	/**
+	 * Returns the number of requests which have been rejected because
+	 * the queue was full.
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Returns the maximum number of requests which have been in the
+	 * queue at the same time.
+	 */
+	public synchronized int getMaxQueueLength() {
+		return maxQueueLength;
+	}
+
+	/**
+	 * Returns the number of requests which are waiting or will be
+	 * processed at the moment.
+	 */
+	public synchronized int getQueueLength() {
+		return queue.size();
+	}
+
+	/**
+	 * Adds a request to the queue of the ECU.
+	 *
+	 * @param gateway The gateway which received the request
+	 * @param connection Connection on which the response will be sent
+	 * @param testerAddress Logical address of the tester
+	 * @param request The UDS request
+	 * @return False if the queue is full and the request has not been
+	 *         accepted
+	 */
+	synchronized boolean offer(DoipServer4UnitTest gateway, DoipTcpConnection connection,
+			int testerAddress, byte[] request) {
+		if (queue.size() >= queueCapacity) {
+			rejectedCount++;
+			return false;
+		}
+		queue.add(new Request(connection, testerAddress, request));
+		if (queue.size() > maxQueueLength) {
+			maxQueueLength = queue.size();
+		}
+		if (queue.size() == 1) {
+			this.gateway = gateway;
+			schedule();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all requests which have been received on the connection,
+	 * except the request which will be processed at the moment. This
+	 * one will be dropped when its processing time has elapsed.
+	 */
+	synchronized void removeRequests(DoipTcpConnection connection) {
+		Iterator<Request> iterator = queue.iterator();
+		if (iterator.hasNext()) {
+			Request current = iterator.next();
+			if (current.connection == connection) {
+				current.closed = true;
+			}
+		}
+		while (iterator.hasNext()) {
+			if (iterator.next().connection == connection) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all requests from the queue. Will be called when the
+	 * gateway stops.
+	 */
+	synchronized void clear() {
+		queue.clear();
+	}
+
+	private void schedule() {
+		long time = minProcessingTime;
+		if (maxProcessingTime > minProcessingTime) {
+			time += ThreadLocalRandom.current().nextLong(maxProcessingTime - minProcessingTime + 1);
+		}
+		gateway.schedule(this::process, time);
+	}
+
+	/**
+	 * Sends the response for the first request in the queue and starts
+	 * processing of the next request.
+	 */
+	private void process() {
+		Request request;
+		synchronized (this) {
+			request = queue.peek();
+			if (request == null) {
+				return;
+			}
+		}
+		if (!request.closed) {
+			byte[] frame = responseTable.encodeResponse(address, request.testerAddress, request.request);
+			if (frame != null) {
+				try {
+					gateway.sendTcp(MessageType.DIAGNOSTIC_MESSAGE, request.connection, frame);
+				} catch (RuntimeException e) {
+					logger.error("Unexpected " + e.getClass().getName() + " while sending response of ECU " + String.format("0x%04X", address));
+					logger.error(Helper.getExceptionAsString(e));
+				}
+			}
+		}
+		synchronized (this) {
+			processedCount++;
+			queue.poll();
+			if (!queue.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+
+	/**
+	 * Request which has been accepted by the ECU
+	 */
+	private static class Request {
+
+		private final DoipTcpConnection connection;
+
+		private final int testerAddress;
+
+		private final byte[] request;
+
+		/**
+		 * True if the connection has been closed while the request
+		 * was processed
+		 */
+		private volatile boolean closed = false;
+
+		private Request(DoipTcpConnection connection, int testerAddress, byte[] request) {
+			this.connection = connection;
+			this.testerAddress = testerAddress;
+			this.request = request;
+		}
+	}
+}
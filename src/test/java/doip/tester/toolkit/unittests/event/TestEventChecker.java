@@ -0,0 +1,65 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.CheckResult;
+import doip.tester.toolkit.EventChecker;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+
+class TestEventChecker {
+
+	private static Logger logger = LogManager.getLogger(TestEventChecker.class);
+
+	@Test
+	public void testResults() {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testResults()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			DoipEventTcpDiagnosticMessage event = new DoipEventTcpDiagnosticMessage(0,
+					new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x50, 0x03}));
+
+			CheckResult result = EventChecker.checkEvent(event, DoipEventTcpDiagnosticMessage.class);
+			assertEquals(CheckResult.NO_ERROR, result.getCode());
+			// Results without error will be shared
+			assertSame(result, EventChecker.checkEvent(event, DoipEventTcpDiagnosticMessage.class));
+			assertSame(EventChecker.checkEvent(null, null), EventChecker.checkEvent(null, null));
+			assertEquals(CheckResult.NO_ERROR, EventChecker.checkEvent(null, null).getCode());
+
+			result = EventChecker.checkEvent(event, DoipEventTcpDiagnosticMessagePosAck.class);
+			assertEquals(CheckResult.WRONG_EVENT, result.getCode());
+
+			result = EventChecker.checkEvent(new DoipEventConnectionClosed(0), DoipEventTcpDiagnosticMessage.class);
+			assertEquals(CheckResult.WRONG_EVENT, result.getCode());
+			assertTrue(result.getText().endsWith(", but the connection has been closed."));
+
+			assertEquals(CheckResult.NO_TCP_RESPONSE_RECEIVED,
+					EventChecker.checkEvent(null, DoipEventTcpDiagnosticMessage.class).getCode());
+			assertEquals(CheckResult.NO_UDP_RESPONSE_RECEIVED,
+					EventChecker.checkEvent(null, DoipEventUdpEntityStatusResponse.class).getCode());
+			assertEquals(CheckResult.SOCKET_NOT_CLOSED,
+					EventChecker.checkEvent(null, DoipEventConnectionClosed.class).getCode());
+			assertEquals(CheckResult.UNEXPECTED_SOCKET_CLOSED,
+					EventChecker.checkEvent(new DoipEventConnectionClosed(0), null).getCode());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testResults()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
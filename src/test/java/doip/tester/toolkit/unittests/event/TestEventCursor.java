@@ -0,0 +1,91 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.EventCursor;
+import doip.tester.toolkit.EventQueue;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+
+class TestEventCursor {
+
+	private static Logger logger = LogManager.getLogger(TestEventCursor.class);
+
+	@Test
+	public void testIndependentCursors() throws InterruptedException {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testIndependentCursors()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventQueue queue = new EventQueue(16, EventQueue.OverflowPolicy.DROP_OLDEST);
+			queue.add(new DoipEventConnectionClosed(System.nanoTime()));
+
+			EventCursor first = queue.createCursor();
+			EventCursor second = queue.createCursor();
+			DoipEvent[] events = new DoipEvent[3];
+			for (int i = 0; i < events.length; i++) {
+				events[i] = new DoipEventConnectionClosed(System.nanoTime());
+				queue.add(events[i]);
+			}
+
+			assertSame(events[0], first.next(100));
+			assertEquals(2, first.available());
+			assertEquals(3, second.available());
+
+			List<DoipEvent> drained = new ArrayList<DoipEvent>();
+			assertEquals(3, second.drain(drained::add));
+			assertSame(events[2], drained.get(2));
+			assertNull(second.poll());
+
+			assertSame(events[1], first.poll());
+			first.skipToEnd();
+			assertNull(first.next(10));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testIndependentCursors()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testMissedEvents() {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testMissedEvents()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventQueue queue = new EventQueue(4, EventQueue.OverflowPolicy.DROP_OLDEST);
+			EventCursor cursor = queue.createCursor();
+			DoipEvent[] events = new DoipEvent[6];
+			for (int i = 0; i < events.length; i++) {
+				events[i] = new DoipEventConnectionClosed(System.nanoTime());
+				queue.add(events[i]);
+			}
+			assertSame(events[2], cursor.poll());
+			assertEquals(2, cursor.getMissedCount());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testMissedEvents()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.library.message.DoipUdpEntityStatusResponse;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+import doip.tester.toolkit.journal.EventJournal;
+import doip.tester.toolkit.journal.EventJournalReader;
+
+class TestEventJournal {
+
+	private static Logger logger = LogManager.getLogger(TestEventJournal.class);
+
+	private static final int EVENT_COUNT = 1000;
+
+	@Test
+	public void testWriteAndRead() throws Exception {
+		Path directory = Files.createTempDirectory("journal");
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testWriteAndRead()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			// Small segments, so there will be several rollovers
+			EventJournal journal = new EventJournal(directory, "test", 4096, 4 * EVENT_COUNT);
+			for (int i = 0; i < EVENT_COUNT; i++) {
+				byte[] request = new byte[] {0x22, (byte) 0xF1, (byte) i};
+				journal.append(1, new DoipEventTcpDiagnosticMessagePosAck(3 * i,
+						new DoipTcpDiagnosticMessagePosAck(0x1001, 0x0E00, 0, request)));
+				journal.append(1, new DoipEventTcpDiagnosticMessage(3 * i + 1,
+						new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x62, (byte) 0xF1, (byte) i})));
+				journal.append(0, new DoipEventUdpEntityStatusResponse(3 * i + 2,
+						new DoipUdpEntityStatusResponse(0, 16, 1, 0x4000)));
+			}
+			journal.append(1, new DoipEventConnectionClosed(3 * EVENT_COUNT));
+			assertTrue(journal.flush(10000));
+			journal.close();
+			assertEquals(3 * EVENT_COUNT + 1, journal.getWrittenCount());
+			assertEquals(0, journal.getDroppedCount());
+			assertTrue(journal.getSegmentCount() > 1);
+
+			EventJournalReader reader = new EventJournalReader(directory, "test");
+			for (int i = 0; i < EVENT_COUNT; i++) {
+				DoipEvent event = reader.next();
+				assertTrue(event instanceof DoipEventTcpDiagnosticMessagePosAck);
+				assertEquals(3 * i, event.getTimestamp());
+				assertEquals(1, reader.getChannel());
+				assertEquals(0x1001, reader.getSourceAddress());
+				assertEquals(0x0E00, reader.getTargetAddress());
+
+				event = reader.next();
+				assertTrue(event instanceof DoipEventTcpDiagnosticMessage);
+				DoipTcpDiagnosticMessage message = (DoipTcpDiagnosticMessage)
+						((DoipEventTcpDiagnosticMessage) event).getDoipMessage();
+				assertEquals((byte) i, message.getDiagnosticMessage()[2]);
+
+				event = reader.next();
+				assertTrue(event instanceof DoipEventUdpEntityStatusResponse);
+				assertEquals(0, reader.getChannel());
+			}
+			DoipEvent event = reader.next();
+			assertTrue(event instanceof DoipEventConnectionClosed);
+			assertEquals(EventJournal.TYPE_CONNECTION_CLOSED, reader.getEventType());
+			assertFalse(reader.hasNext());
+			assertEquals(0, reader.getSkippedCount());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			deleteDirectory(directory);
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testWriteAndRead()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testCloseWritesQueuedEvents() throws Exception {
+		Path directory = Files.createTempDirectory("journal");
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testCloseWritesQueuedEvents()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			// Close without flush while the writer thread is still busy
+			// with rollovers, no event in the queue must get lost
+			EventJournal journal = new EventJournal(directory, "test", 4096, EVENT_COUNT);
+			for (int i = 0; i < EVENT_COUNT; i++) {
+				assertTrue(journal.append(1, new DoipEventTcpDiagnosticMessage(i,
+						new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x62, (byte) 0xF1, (byte) i}))));
+			}
+			journal.close();
+			assertEquals(EVENT_COUNT, journal.getWrittenCount());
+			assertEquals(0, journal.getDroppedCount());
+			assertFalse(journal.append(1, new DoipEventConnectionClosed(EVENT_COUNT)));
+
+			EventJournalReader reader = new EventJournalReader(directory, "test");
+			for (int i = 0; i < EVENT_COUNT; i++) {
+				assertEquals(i, reader.next().getTimestamp());
+			}
+			assertFalse(reader.hasNext());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			deleteDirectory(directory);
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testCloseWritesQueuedEvents()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.EventCursor;
+import doip.tester.toolkit.EventQueue;
+import doip.tester.toolkit.event.DoipEvent;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+
+class TestEventQueue {
+
+	private static Logger logger = LogManager.getLogger(TestEventQueue.class);
+
+	@Test
+	public void testWakeUpOnNewEvent() throws InterruptedException {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testWakeUpOnNewEvent()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventQueue queue = new EventQueue();
+			AtomicLong addTime = new AtomicLong();
+			Thread producer = new Thread(() -> {
+				try {
+					Thread.sleep(50);
+					addTime.set(System.nanoTime());
+					queue.add(new DoipEventConnectionClosed(System.nanoTime()));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "PRODUCER");
+			producer.start();
+
+			DoipEvent event = queue.waitForEvents(1, 2000);
+			long wakeUpTime = System.nanoTime();
+			producer.join();
+
+			assertNotNull(event, "No event has been received");
+			assertTrue(event instanceof DoipEventConnectionClosed);
+			logger.info("Wake-up latency: " + (wakeUpTime - addTime.get()) + " ns");
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testWakeUpOnNewEvent()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testTimeout() throws InterruptedException {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testTimeout()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventQueue queue = new EventQueue();
+			queue.add(new DoipEventConnectionClosed(System.nanoTime()));
+			long before = System.nanoTime();
+			DoipEvent event = queue.waitForEvents(2, 100);
+			long duration = System.nanoTime() - before;
+			assertNull(event, "Expected no event at position 2");
+			assertTrue(duration >= 100 * 1000000L, "Function returned before timeout elapsed");
+			assertEquals(1, queue.size());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testTimeout()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testOverflowDropOldest() {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testOverflowDropOldest()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventQueue queue = new EventQueue(4, EventQueue.OverflowPolicy.DROP_OLDEST);
+			DoipEvent[] events = new DoipEvent[6];
+			for (int i = 0; i < events.length; i++) {
+				events[i] = new DoipEventConnectionClosed(System.nanoTime());
+				queue.add(events[i]);
+			}
+			assertEquals(6, queue.size());
+			assertEquals(2, queue.getOverflowCount());
+			assertNull(queue.get(1), "Event at position 1 should have been overwritten");
+			assertSame(events[2], queue.get(2));
+			assertSame(events[5], queue.get(5));
+			queue.clear();
+			assertEquals(0, queue.size());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testOverflowDropOldest()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testOverflowDropNewest() {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testOverflowDropNewest()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventQueue queue = new EventQueue(2, EventQueue.OverflowPolicy.DROP_NEWEST);
+			DoipEvent first = new DoipEventConnectionClosed(System.nanoTime());
+			queue.add(first);
+			queue.add(new DoipEventConnectionClosed(System.nanoTime()));
+			queue.add(new DoipEventConnectionClosed(System.nanoTime()));
+			assertEquals(2, queue.size());
+			assertEquals(1, queue.getOverflowCount());
+			assertSame(first, queue.get(0));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testOverflowDropNewest()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testOverflowBlock() throws InterruptedException {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testOverflowBlock()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventQueue queue = new EventQueue(4, EventQueue.OverflowPolicy.BLOCK);
+			Thread producer = startProducer(queue, 6);
+			waitForBlockCount(queue, 1);
+			assertEquals(4, queue.size());
+			assertTrue(producer.isAlive(), "Producer should wait for free space");
+
+			// Clearing the queue releases the producer
+			queue.clear();
+			producer.join(2000);
+			assertFalse(producer.isAlive(), "Producer is still waiting");
+			assertEquals(2, queue.size());
+			assertEquals(0, queue.getOverflowCount());
+
+			// A gating cursor which reads the events releases the producer
+			queue = new EventQueue(4, EventQueue.OverflowPolicy.BLOCK);
+			EventCursor cursor = queue.createCursor(true);
+			producer = startProducer(queue, 5);
+			waitForBlockCount(queue, 1);
+			assertNotNull(cursor.poll());
+			producer.join(2000);
+			assertFalse(producer.isAlive(), "Producer is still waiting");
+			assertEquals(4, cursor.available());
+			cursor.close();
+
+			// An interrupted producer drops the event
+			queue = new EventQueue(4, EventQueue.OverflowPolicy.BLOCK);
+			producer = startProducer(queue, 5);
+			waitForBlockCount(queue, 1);
+			producer.interrupt();
+			producer.join(2000);
+			assertFalse(producer.isAlive(), "Producer is still waiting");
+			assertEquals(4, queue.size());
+			assertEquals(1, queue.getOverflowCount());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testOverflowBlock()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	private static Thread startProducer(EventQueue queue, int numberOfEvents) {
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < numberOfEvents; i++) {
+				queue.add(new DoipEventConnectionClosed(System.nanoTime()));
+			}
+		}, "PRODUCER");
+		producer.start();
+		return producer;
+	}
+
+	private static void waitForBlockCount(EventQueue queue, long blockCount) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 2000;
+		while (queue.getBlockCount() < blockCount) {
+			assertTrue(System.currentTimeMillis() < deadline, "Producer has not been blocked");
+			Thread.sleep(1);
+		}
+	}
+}
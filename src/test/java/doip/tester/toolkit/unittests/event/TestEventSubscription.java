@@ -0,0 +1,63 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpAliveCheckRequest;
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.DoipTcpConnectionWithEventCollection;
+import doip.tester.toolkit.DoipTcpConnectionWithEventCollection.EventType;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+
+class TestEventSubscription {
+
+	private static Logger logger = LogManager.getLogger(TestEventSubscription.class);
+
+	@Test
+	public void testFilteredTypesAreOnlyCounted() throws InterruptedException {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testFilteredTypesAreOnlyCounted()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			DoipTcpConnectionWithEventCollection conn = new DoipTcpConnectionWithEventCollection("TCP-SUBSCRIPTION", 64);
+			conn.unsubscribe(EventType.ALIVE_CHECK_REQUEST);
+			conn.unsubscribe(EventType.DIAGNOSTIC_MESSAGE_POS_ACK);
+			assertFalse(conn.isSubscribed(EventType.ALIVE_CHECK_REQUEST));
+			assertTrue(conn.isSubscribed(EventType.DIAGNOSTIC_MESSAGE));
+
+			// The callbacks will be called directly as the receiver thread would do
+			for (int i = 0; i < 3; i++) {
+				conn.onDoipTcpAliveCheckRequest(conn, new DoipTcpAliveCheckRequest());
+				conn.onDoipTcpDiagnosticMessagePosAck(conn, new DoipTcpDiagnosticMessagePosAck(0x1001, 0x0E00, 0x00, new byte[0]));
+			}
+			conn.onDoipTcpDiagnosticMessage(conn, new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x50, 0x01}));
+
+			assertEquals(1, conn.getEventCount());
+			assertNotNull(conn.waitForEvent(DoipEventTcpDiagnosticMessage.class, 100));
+			assertEquals(3L, conn.getFilteredCount(EventType.ALIVE_CHECK_REQUEST));
+			assertEquals(3L, conn.getFilteredCount(EventType.DIAGNOSTIC_MESSAGE_POS_ACK));
+			assertEquals(0L, conn.getFilteredCount(EventType.DIAGNOSTIC_MESSAGE));
+
+			// The subscription can be changed while messages are received
+			conn.subscribe(EventType.ALIVE_CHECK_REQUEST);
+			conn.onDoipTcpAliveCheckRequest(conn, new DoipTcpAliveCheckRequest());
+			assertEquals(2, conn.getEventCount());
+			assertEquals(3L, conn.getFilteredCount(EventType.ALIVE_CHECK_REQUEST));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testFilteredTypesAreOnlyCounted()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
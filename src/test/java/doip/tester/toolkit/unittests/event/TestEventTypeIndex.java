@@ -0,0 +1,85 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpAliveCheckRequest;
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.EventTypeIndex;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventTcpAliveCheckRequest;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+
+class TestEventTypeIndex {
+
+	private static Logger logger = LogManager.getLogger(TestEventTypeIndex.class);
+
+	@Test
+	public void testWaitForEventOfType() throws InterruptedException {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testWaitForEventOfType()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventTypeIndex index = new EventTypeIndex(16);
+			DoipEventTcpDiagnosticMessage first = new DoipEventTcpDiagnosticMessage(System.nanoTime(),
+					new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x50, 0x01}));
+			DoipEventTcpDiagnosticMessage second = new DoipEventTcpDiagnosticMessage(System.nanoTime(),
+					new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x62, (byte) 0xF1, (byte) 0x90}));
+
+			index.add(new DoipEventTcpAliveCheckRequest(System.nanoTime(), new DoipTcpAliveCheckRequest()));
+			index.add(first);
+			index.add(new DoipEventTcpAliveCheckRequest(System.nanoTime(), new DoipTcpAliveCheckRequest()));
+			index.add(second);
+
+			assertEquals(2, index.getPendingCount(DoipEventTcpDiagnosticMessage.class));
+			assertSame(first, index.waitForEvent(DoipEventTcpDiagnosticMessage.class, 100));
+			assertSame(second, index.waitForEvent(DoipEventTcpDiagnosticMessage.class, 100));
+			assertNull(index.waitForEvent(DoipEventTcpDiagnosticMessage.class, 10));
+			assertNull(index.waitForEvent(DoipEventConnectionClosed.class, 10));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testWaitForEventOfType()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testWaitForEventWithPredicate() throws InterruptedException {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testWaitForEventWithPredicate()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			EventTypeIndex index = new EventTypeIndex(16);
+			DoipEventTcpDiagnosticMessage first = new DoipEventTcpDiagnosticMessage(System.nanoTime(),
+					new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x50, 0x01}));
+			DoipEventTcpDiagnosticMessage second = new DoipEventTcpDiagnosticMessage(System.nanoTime(),
+					new DoipTcpDiagnosticMessage(0x1002, 0x0E00, new byte[] {0x50, 0x01}));
+			index.add(first);
+			index.add(second);
+
+			DoipEventTcpDiagnosticMessage event = index.waitForEvent(DoipEventTcpDiagnosticMessage.class,
+					e -> ((DoipTcpDiagnosticMessage) e.getDoipMessage()).getSourceAddress() == 0x1002, 100);
+			assertSame(second, event);
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testWaitForEventWithPredicate()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
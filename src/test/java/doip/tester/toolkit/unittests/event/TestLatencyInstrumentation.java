@@ -0,0 +1,142 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.library.message.DoipTcpRoutingActivationResponse;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.LatencyInstrumentation;
+import doip.tester.toolkit.LatencyInstrumentation.LatencyType;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+import doip.tester.toolkit.event.DoipEventTcpRoutingActivationResponse;
+
+class TestLatencyInstrumentation {
+
+	private static Logger logger = LogManager.getLogger(TestLatencyInstrumentation.class);
+
+	private static final long MS = 1000000L;
+
+	@Test
+	public void testDiagnosticMessageLatencies() {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testDiagnosticMessageLatencies()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			LatencyInstrumentation latencies = new LatencyInstrumentation();
+			byte[] request = new byte[] {0x22, (byte) 0xF1, (byte) 0x90};
+
+			latencies.onDiagnosticMessageSent(0x0E00, 0x1001, 0);
+			latencies.onEvent(new DoipEventTcpDiagnosticMessagePosAck(2 * MS,
+					new DoipTcpDiagnosticMessagePosAck(0x1001, 0x0E00, 0, request)));
+			// Response pending will not be counted as response
+			latencies.onEvent(new DoipEventTcpDiagnosticMessage(5 * MS,
+					new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x7F, 0x22, 0x78})));
+			latencies.onEvent(new DoipEventTcpDiagnosticMessage(12 * MS,
+					new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x62, (byte) 0xF1, (byte) 0x90})));
+
+			assertEquals(1, latencies.getCount(LatencyType.DIAGNOSTIC_MESSAGE_POS_ACK));
+			assertEquals(1, latencies.getCount(LatencyType.DIAGNOSTIC_MESSAGE_RESPONSE));
+			assertEquals(1, latencies.getCount(LatencyType.DIAGNOSTIC_MESSAGE_ROUND_TRIP));
+			assertEquals(2000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_POS_ACK, 100.0), 20);
+			assertEquals(10000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_RESPONSE, 100.0), 100);
+			assertEquals(12000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_ROUND_TRIP, 100.0), 100);
+			assertEquals(0, latencies.getUnmatchedCount());
+
+			// Response without request
+			latencies.onEvent(new DoipEventTcpDiagnosticMessage(20 * MS,
+					new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x50, 0x03})));
+			assertEquals(1, latencies.getUnmatchedCount());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testDiagnosticMessageLatencies()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testEcusAnswerOutOfOrder() {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testEcusAnswerOutOfOrder()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			LatencyInstrumentation latencies = new LatencyInstrumentation();
+			byte[] request = new byte[] {0x22, (byte) 0xF1, (byte) 0x90};
+
+			// ECU 0x1002 answers before ECU 0x1001 which got its request first
+			latencies.onDiagnosticMessageSent(0x0E00, 0x1001, 0);
+			latencies.onDiagnosticMessageSent(0x0E00, 0x1002, 1 * MS);
+			latencies.onEvent(new DoipEventTcpDiagnosticMessagePosAck(2 * MS,
+					new DoipTcpDiagnosticMessagePosAck(0x1002, 0x0E00, 0, request)));
+			latencies.onEvent(new DoipEventTcpDiagnosticMessagePosAck(3 * MS,
+					new DoipTcpDiagnosticMessagePosAck(0x1001, 0x0E00, 0, request)));
+			latencies.onEvent(new DoipEventTcpDiagnosticMessage(5 * MS,
+					new DoipTcpDiagnosticMessage(0x1002, 0x0E00, new byte[] {0x62, (byte) 0xF1, (byte) 0x90})));
+			latencies.onEvent(new DoipEventTcpDiagnosticMessage(10 * MS,
+					new DoipTcpDiagnosticMessage(0x1001, 0x0E00, new byte[] {0x62, (byte) 0xF1, (byte) 0x90})));
+
+			assertEquals(2, latencies.getCount(LatencyType.DIAGNOSTIC_MESSAGE_POS_ACK));
+			assertEquals(2, latencies.getCount(LatencyType.DIAGNOSTIC_MESSAGE_ROUND_TRIP));
+			assertEquals(1000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_POS_ACK, 0.0), 10);
+			assertEquals(3000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_POS_ACK, 100.0), 30);
+			assertEquals(3000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_RESPONSE, 0.0), 30);
+			assertEquals(7000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_RESPONSE, 100.0), 70);
+			assertEquals(4000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_ROUND_TRIP, 0.0), 40);
+			assertEquals(10000, latencies.getValueAtPercentile(LatencyType.DIAGNOSTIC_MESSAGE_ROUND_TRIP, 100.0), 100);
+			assertEquals(0, latencies.getUnmatchedCount());
+
+			// Acknowledge of an ECU which did not get a request
+			latencies.onEvent(new DoipEventTcpDiagnosticMessagePosAck(20 * MS,
+					new DoipTcpDiagnosticMessagePosAck(0x1003, 0x0E00, 0, request)));
+			assertEquals(1, latencies.getUnmatchedCount());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testEcusAnswerOutOfOrder()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testRoutingActivationLatency() {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testRoutingActivationLatency()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			LatencyInstrumentation latencies = new LatencyInstrumentation();
+			latencies.onRoutingActivationRequestSent(100 * MS);
+			latencies.onEvent(new DoipEventTcpRoutingActivationResponse(103 * MS,
+					new DoipTcpRoutingActivationResponse(0x0E00, 0x1001, 0x10, -1)));
+
+			assertEquals(1, latencies.getCount(LatencyType.ROUTING_ACTIVATION));
+			assertEquals(3000, latencies.getValueAtPercentile(LatencyType.ROUTING_ACTIVATION, 50.0), 30);
+			assertEquals(0, latencies.getCount(LatencyType.DIAGNOSTIC_MESSAGE_POS_ACK));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testRoutingActivationLatency()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
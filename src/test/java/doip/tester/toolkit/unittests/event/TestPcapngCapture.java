@@ -0,0 +1,216 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.capture.PcapngCapture;
+import doip.tester.toolkit.capture.TcpFlow;
+import doip.tester.toolkit.capture.UdpFlow;
+
+class TestPcapngCapture {
+
+	private static Logger logger = LogManager.getLogger(TestPcapngCapture.class);
+
+	private static final int MESSAGE_COUNT = 100;
+
+	private static final InetSocketAddress TESTER =
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), 50000);
+
+	private static final InetSocketAddress GATEWAY =
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), 13400);
+
+	@Test
+	public void testTcpAndUdp() throws Exception {
+		Path directory = Files.createTempDirectory("capture");
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testTcpAndUdp()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			// Small files, so there will be several files
+			PcapngCapture capture = new PcapngCapture(directory, "test", 4096);
+			TcpFlow tcp = capture.createTcpFlow(TESTER, GATEWAY, 0);
+			UdpFlow udp = capture.createUdpFlow(TESTER);
+			for (int i = 0; i < MESSAGE_COUNT; i++) {
+				tcp.onSent(1000 * i, message(i, 10));
+				tcp.onReceived(1000 * i + 1, message(i, 20));
+			}
+			byte[] datagram = message(0, 8);
+			udp.onSent(MESSAGE_COUNT * 1000, datagram, 0, datagram.length, GATEWAY);
+			tcp.onClosed(MESSAGE_COUNT * 1000 + 1, false);
+			capture.close();
+			assertEquals(3 + 2 * MESSAGE_COUNT + 2, capture.getPacketCount());
+			assertTrue(capture.getFileCount() > 1);
+
+			List<ByteBuffer> packets = new ArrayList<ByteBuffer>();
+			List<Long> timestamps = new ArrayList<Long>();
+			for (int i = 0; i < capture.getFileCount(); i++) {
+				Path file = capture.getFile(i);
+				assertTrue(Files.size(file) <= 4096);
+				readPackets(file, packets, timestamps);
+			}
+			assertEquals(capture.getPacketCount(), packets.size());
+
+			// Handshake
+			assertEquals(0x02, getTcpFlags(packets.get(0)));
+			assertEquals(0x12, getTcpFlags(packets.get(1)));
+			assertEquals(0x10, getTcpFlags(packets.get(2)));
+
+			// Sequence numbers continue with the length of the previous data
+			ByteBuffer first = packets.get(3);
+			ByteBuffer second = packets.get(5);
+			assertEquals(0x45, first.get(0) & 0xFF);
+			assertEquals(20 + 20 + 10, first.getShort(2) & 0xFFFF);
+			assertEquals(6, first.get(9));
+			assertEquals(50000, first.getShort(20) & 0xFFFF);
+			assertEquals(13400, first.getShort(22) & 0xFFFF);
+			assertEquals(first.getInt(24) + 10, second.getInt(24));
+			assertArrayEquals(message(0, 10), getPayload(first, 40));
+			assertArrayEquals(message(1, 10), getPayload(second, 40));
+
+			ByteBuffer response = packets.get(4);
+			assertEquals(13400, response.getShort(20) & 0xFFFF);
+			assertEquals(second.getInt(28), response.getInt(24) + 20);
+			assertEquals(timestamps.get(3) + 1, (long) timestamps.get(4));
+
+			ByteBuffer udpPacket = packets.get(packets.size() - 2);
+			assertEquals(17, udpPacket.get(9));
+			assertEquals(8 + 8, udpPacket.getShort(24) & 0xFFFF);
+			assertArrayEquals(datagram, getPayload(udpPacket, 28));
+
+			assertEquals(0x11, getTcpFlags(packets.get(packets.size() - 1)));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			deleteDirectory(directory);
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testTcpAndUdp()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+
+	@Test
+	public void testFlushBeforeClose() throws Exception {
+		Path directory = Files.createTempDirectory("capture");
+		PcapngCapture immediate = null;
+		PcapngCapture periodic = null;
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testFlushBeforeClose()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			// Flush interval 0 writes every packet immediately
+			immediate = new PcapngCapture(directory, "immediate", PcapngCapture.DEFAULT_MAX_FILE_SIZE, 0);
+			TcpFlow tcp = immediate.createTcpFlow(TESTER, GATEWAY, 0);
+			long size = Files.size(immediate.getFile(0));
+			// Only a part of the array will be captured, like a read from the socket
+			byte[] received = message(1, 30);
+			tcp.onReceived(1000, received, 10, 20);
+			assertTrue(Files.size(immediate.getFile(0)) > size, "Packet has not been written immediately");
+
+			List<ByteBuffer> packets = new ArrayList<ByteBuffer>();
+			readPackets(immediate.getFile(0), packets, new ArrayList<Long>());
+			assertEquals(4, packets.size());
+			assertArrayEquals(Arrays.copyOfRange(received, 10, 30), getPayload(packets.get(3), 40));
+
+			// Periodic flush writes the buffer without further packets
+			periodic = new PcapngCapture(directory, "periodic", PcapngCapture.DEFAULT_MAX_FILE_SIZE, 50);
+			periodic.createTcpFlow(TESTER, GATEWAY, 0).onSent(1000, message(2, 10));
+			long deadline = System.currentTimeMillis() + 2000;
+			while (Files.size(periodic.getFile(0)) == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			packets.clear();
+			readPackets(periodic.getFile(0), packets, new ArrayList<Long>());
+			assertEquals(4, packets.size(), "Buffer has not been flushed periodically");
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (immediate != null) {
+				immediate.close();
+			}
+			if (periodic != null) {
+				periodic.close();
+			}
+			deleteDirectory(directory);
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testFlushBeforeClose()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	private static byte[] message(int index, int length) {
+		byte[] data = new byte[length];
+		Arrays.fill(data, (byte) index);
+		return data;
+	}
+
+	private static int getTcpFlags(ByteBuffer packet) {
+		return packet.get(20 + 13) & 0xFF;
+	}
+
+	private static byte[] getPayload(ByteBuffer packet, int offset) {
+		byte[] payload = new byte[packet.limit() - offset];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = packet.get(offset + i);
+		}
+		return payload;
+	}
+
+	/**
+	 * Reads the enhanced packet blocks of a file, the file must start with
+	 * a section header block and an interface description block.
+	 */
+	private static void readPackets(Path file, List<ByteBuffer> packets, List<Long> timestamps) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		assertEquals(0x0A0D0D0A, buffer.getInt(0));
+		assertEquals(0x1A2B3C4D, buffer.getInt(8));
+		buffer.position(buffer.getInt(4));
+		assertEquals(1, buffer.getInt(buffer.position()));
+		buffer.position(buffer.position() + buffer.getInt(buffer.position() + 4));
+		while (buffer.hasRemaining()) {
+			int start = buffer.position();
+			assertEquals(6, buffer.getInt());
+			int blockLength = buffer.getInt();
+			buffer.getInt();
+			long timestamp = ((long) buffer.getInt() << 32) | (buffer.getInt() & 0xFFFFFFFFL);
+			int capturedLength = buffer.getInt();
+			buffer.getInt();
+			ByteBuffer packet = buffer.slice();
+			packet.limit(capturedLength);
+			packets.add(packet);
+			timestamps.add(timestamp);
+			assertEquals(blockLength, buffer.getInt(start + blockLength - 4));
+			buffer.position(start + blockLength);
+		}
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+}
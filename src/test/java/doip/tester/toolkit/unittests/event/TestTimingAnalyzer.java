@@ -0,0 +1,227 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.library.message.DoipUdpEntityStatusRequest;
+import doip.library.message.DoipUdpEntityStatusResponse;
+import doip.library.message.DoipUdpVehicleAnnouncementMessage;
+import doip.library.message.DoipUdpVehicleIdentRequest;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.TestConfig;
+import doip.tester.toolkit.TimingAnalyzer;
+import doip.tester.toolkit.TimingAnalyzer.TimingRule;
+import doip.tester.toolkit.TimingViolation;
+import doip.tester.toolkit.event.DoipEventConnectionClosed;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+import doip.tester.toolkit.event.DoipEventUdpVehicleAnnouncementMessage;
+
+class TestTimingAnalyzer {
+
+	private static Logger logger = LogManager.getLogger(TestTimingAnalyzer.class);
+
+	private static final long MS = 1000000L;
+
+	private static final byte[] REQUEST = new byte[] {0x22, (byte) 0xF1, (byte) 0x90};
+
+	private static final int TESTER = 0x0E00;
+
+	private static final int ECU = 0x1001;
+
+	@Test
+	public void testDiagnosticMessageTiming() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testDiagnosticMessageTiming()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TimingAnalyzer analyzer = new TimingAnalyzer(new TestConfig());
+			TimingAnalyzer.TcpChannel channel = analyzer.createTcpChannel("TCP-1");
+			channel.onConnected(0);
+
+			// Second response pending comes 500 ms after A_Processing_Time
+			channel.onDiagnosticMessageSent(TESTER, ECU, 0);
+			channel.onEvent(posAck(10 * MS));
+			channel.onEvent(response(1500 * MS, 0x7F, 0x22, 0x78));
+			channel.onEvent(response(4000 * MS, 0x7F, 0x22, 0x78));
+			channel.onEvent(response(5000 * MS, 0x62, 0xF1, 0x90));
+
+			// Positive acknowledge comes 500 ms after A_DoIP_Diagnostic_Message
+			channel.onDiagnosticMessageSent(TESTER, ECU, 6000 * MS);
+			channel.onEvent(posAck(8500 * MS));
+			channel.onEvent(response(8600 * MS, 0x62, 0xF1, 0x90));
+
+			assertEquals(2, analyzer.getCheckCount(TimingRule.DIAGNOSTIC_MESSAGE_ACK));
+			assertEquals(2, analyzer.getCheckCount(TimingRule.DIAGNOSTIC_MESSAGE_RESPONSE));
+			assertEquals(2, analyzer.getCheckCount(TimingRule.RESPONSE_PENDING));
+			assertEquals(2, analyzer.getViolationCount());
+
+			List<TimingViolation> violations = analyzer.getViolations();
+			assertEquals(2, violations.size());
+			assertEquals(TimingRule.RESPONSE_PENDING, violations.get(0).getRule());
+			assertEquals(-500 * MS, violations.get(0).getMargin());
+			assertEquals("TCP-1", violations.get(0).getChannel());
+			assertEquals(TimingRule.DIAGNOSTIC_MESSAGE_ACK, violations.get(1).getRule());
+			assertEquals(-500 * MS, violations.get(1).getMargin());
+			assertEquals(-500 * MS, analyzer.getMinimumMargin(TimingRule.DIAGNOSTIC_MESSAGE_ACK));
+			assertEquals(510 * MS, analyzer.getMinimumMargin(TimingRule.DIAGNOSTIC_MESSAGE_RESPONSE));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testDiagnosticMessageTiming()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testResponsesOfDifferentEcus() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testResponsesOfDifferentEcus()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TimingAnalyzer analyzer = new TimingAnalyzer(new TestConfig());
+			TimingAnalyzer.TcpChannel channel = analyzer.createTcpChannel("TCP-1");
+			channel.onConnected(0);
+
+			// The second ECU answers before the first one
+			int otherEcu = 0x1002;
+			channel.onDiagnosticMessageSent(TESTER, ECU, 0);
+			channel.onDiagnosticMessageSent(TESTER, otherEcu, 100 * MS);
+			channel.onEvent(posAck(otherEcu, 110 * MS));
+			channel.onEvent(response(otherEcu, 200 * MS, 0x62, 0xF1, 0x90));
+			channel.onEvent(posAck(ECU, 1000 * MS));
+			channel.onEvent(response(ECU, 1500 * MS, 0x62, 0xF1, 0x90));
+
+			assertEquals(2, analyzer.getCheckCount(TimingRule.DIAGNOSTIC_MESSAGE_ACK));
+			assertEquals(2, analyzer.getCheckCount(TimingRule.DIAGNOSTIC_MESSAGE_RESPONSE));
+			assertEquals(0, analyzer.getViolationCount());
+			// Acknowledge of the first ECU is measured from its own request
+			assertEquals(1000 * MS, analyzer.getMinimumMargin(TimingRule.DIAGNOSTIC_MESSAGE_ACK));
+			assertEquals(1500 * MS, analyzer.getMinimumMargin(TimingRule.DIAGNOSTIC_MESSAGE_RESPONSE));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testResponsesOfDifferentEcus()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testInactivity() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testInactivity()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TimingAnalyzer analyzer = new TimingAnalyzer(new TestConfig());
+
+			// Gateway closes 1000 ms before T_TCP_Initial_Inactivity
+			TimingAnalyzer.TcpChannel channel = analyzer.createTcpChannel("TCP-1");
+			channel.onConnected(0);
+			channel.onEvent(new DoipEventConnectionClosed(1000 * MS));
+
+			// Connection closed by the tester will not be checked
+			TimingAnalyzer.TcpChannel closedByTester = analyzer.createTcpChannel("TCP-2");
+			closedByTester.onConnected(0);
+			closedByTester.onClose();
+			closedByTester.onEvent(new DoipEventConnectionClosed(10 * MS));
+
+			assertEquals(1, analyzer.getCheckCount(TimingRule.INITIAL_INACTIVITY));
+			assertEquals(1, analyzer.getViolationCount(TimingRule.INITIAL_INACTIVITY));
+			assertEquals(-1000 * MS, analyzer.getMinimumMargin(TimingRule.INITIAL_INACTIVITY));
+			assertEquals(0, analyzer.getCheckCount(TimingRule.GENERAL_INACTIVITY));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testInactivity()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testUdpResponseTiming() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testUdpResponseTiming()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TimingAnalyzer analyzer = new TimingAnalyzer(new TestConfig());
+			TimingAnalyzer.UdpChannel channel = analyzer.createUdpChannel("UDP");
+
+			channel.onMessageSent(new DoipUdpEntityStatusRequest(), 0);
+			channel.onEvent(new DoipEventUdpEntityStatusResponse(100 * MS,
+					new DoipUdpEntityStatusResponse(0, 16, 1, 0x4000)));
+
+			// Two gateways answer within A_DoIP_Ctrl
+			channel.onMessageSent(new DoipUdpVehicleIdentRequest(), 1000 * MS);
+			channel.onEvent(announcement(1050 * MS));
+			channel.onEvent(announcement(2900 * MS));
+			// Announcements after A_DoIP_Ctrl can not be distinguished
+			// from unsolicited announcements and will not be checked
+			channel.onEvent(announcement(3100 * MS));
+			channel.onEvent(announcement(3200 * MS));
+
+			assertEquals(3, analyzer.getCheckCount(TimingRule.UDP_RESPONSE));
+			assertEquals(0, analyzer.getViolationCount(TimingRule.UDP_RESPONSE));
+			assertEquals(100 * MS, analyzer.getMinimumMargin(TimingRule.UDP_RESPONSE));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testUdpResponseTiming()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	private static DoipEventTcpDiagnosticMessagePosAck posAck(long timestamp) {
+		return posAck(ECU, timestamp);
+	}
+
+	private static DoipEventTcpDiagnosticMessagePosAck posAck(int ecuAddress, long timestamp) {
+		return new DoipEventTcpDiagnosticMessagePosAck(timestamp,
+				new DoipTcpDiagnosticMessagePosAck(ecuAddress, TESTER, 0, REQUEST));
+	}
+
+	private static DoipEventTcpDiagnosticMessage response(long timestamp, int... bytes) {
+		return response(ECU, timestamp, bytes);
+	}
+
+	private static DoipEventTcpDiagnosticMessage response(int ecuAddress, long timestamp, int... bytes) {
+		byte[] response = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			response[i] = (byte) bytes[i];
+		}
+		return new DoipEventTcpDiagnosticMessage(timestamp,
+				new DoipTcpDiagnosticMessage(ecuAddress, TESTER, response));
+	}
+
+	private static DoipEventUdpVehicleAnnouncementMessage announcement(long timestamp) {
+		return new DoipEventUdpVehicleAnnouncementMessage(timestamp,
+				new DoipUdpVehicleAnnouncementMessage(new byte[17], 0x1001, new byte[6], new byte[6], 0, -1));
+	}
+}
@@ -0,0 +1,142 @@
+package doip.tester.toolkit.unittests.event;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipUdpEntityStatusResponse;
+import doip.library.message.DoipUdpVehicleAnnouncementMessage;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.UdpEventIndex;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+import doip.tester.toolkit.event.DoipEventUdpVehicleAnnouncementMessage;
+
+class TestUdpEventIndex {
+
+	private static Logger logger = LogManager.getLogger(TestUdpEventIndex.class);
+
+	private static final byte[] VIN = "WVWZZZ1JZXW000001".getBytes();
+
+	@Test
+	public void testLookupBySenderAndIdentity() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testLookupBySenderAndIdentity()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			UdpEventIndex index = new UdpEventIndex(60000, 16);
+			InetAddress gateway1 = InetAddress.getByName("192.168.1.10");
+			InetAddress gateway2 = InetAddress.getByName("192.168.1.20");
+			long now = System.nanoTime();
+
+			DoipEventUdpVehicleAnnouncementMessage first = announcement(now, 0x1010, 1);
+			DoipEventUdpEntityStatusResponse status = new DoipEventUdpEntityStatusResponse(now,
+					new DoipUdpEntityStatusResponse(0, 16, 1, 4096));
+			DoipEventUdpVehicleAnnouncementMessage second = announcement(now, 0x1020, 2);
+			index.add(first, gateway1, 13400);
+			index.add(status, gateway1, 13400);
+			index.add(second, gateway2, 13400);
+
+			assertSame(status, index.getLatestEvent(gateway1));
+			assertSame(first, index.getLatestEvent(gateway1, DoipEventUdpVehicleAnnouncementMessage.class));
+			assertNull(index.getLatestEvent(gateway2, DoipEventUdpEntityStatusResponse.class));
+			assertEquals(2, index.getSenders().size());
+
+			assertSame(first.getDoipMessage(), index.getAnnouncement(gateway1).getMessage());
+			assertSame(second.getDoipMessage(), index.getAnnouncementByLogicalAddress(0x1020).getMessage());
+			assertSame(first.getDoipMessage(), index.getAnnouncementByEid(eid(1)).getMessage());
+			// Both entities have the same VIN, the latest one wins
+			assertSame(second.getDoipMessage(), index.getAnnouncementByVin(VIN).getMessage());
+			assertNull(index.getAnnouncementByLogicalAddress(0x1030));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testLookupBySenderAndIdentity()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testDuplicateAnnouncements() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testDuplicateAnnouncements()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			UdpEventIndex index = new UdpEventIndex(60000, 16);
+			InetAddress gateway = InetAddress.getByName("192.168.1.10");
+			long now = System.nanoTime();
+			for (int i = 0; i < 3; i++) {
+				index.add(announcement(now + i, 0x1010, 1), gateway, 13400);
+			}
+
+			assertEquals(1, index.getAnnouncements().size());
+			UdpEventIndex.Announcement announcement = index.getAnnouncement(gateway);
+			assertEquals(3L, announcement.getCount());
+			assertEquals(now, announcement.getFirstTimestamp());
+			assertEquals(now + 2, announcement.getLastTimestamp());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testDuplicateAnnouncements()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testExpiryAndCapacity() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testExpiryAndCapacity()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			UdpEventIndex index = new UdpEventIndex(1000, 4);
+			InetAddress old = InetAddress.getByName("10.0.0.1");
+			long now = System.nanoTime();
+			index.add(announcement(now - TimeUnit.SECONDS.toNanos(2), 0x2000, 0), old, 13400);
+			assertNull(index.getAnnouncement(old));
+			assertNull(index.getAnnouncementByLogicalAddress(0x2000));
+			assertNull(index.getLatestEvent(old));
+
+			for (int i = 1; i <= 10; i++) {
+				index.add(announcement(now + i, 0x2000 + i, i), InetAddress.getByName("10.0.0." + i), 13400);
+			}
+			assertEquals(4, index.getSenders().size());
+			assertEquals(4, index.getAnnouncements().size());
+			assertNull(index.getAnnouncementByLogicalAddress(0x2006));
+			assertNotNull(index.getAnnouncementByLogicalAddress(0x2007));
+			assertNull(index.getLatestEvent(InetAddress.getByName("10.0.0.6")));
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testExpiryAndCapacity()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	private static DoipEventUdpVehicleAnnouncementMessage announcement(long timestamp, int logicalAddress, int eid) {
+		return new DoipEventUdpVehicleAnnouncementMessage(timestamp,
+				new DoipUdpVehicleAnnouncementMessage(VIN, logicalAddress, eid(eid), new byte[6], 0, 0));
+	}
+
+	private static byte[] eid(int value) {
+		return new byte[] {0x00, 0x1A, 0x2B, 0x3C, 0x4D, (byte) value};
+	}
+}
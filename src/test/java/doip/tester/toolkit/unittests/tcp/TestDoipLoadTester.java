@@ -0,0 +1,207 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.TestConfig;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.load.DoipLoadTester;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+import doip.tester.toolkit.server4unittest.FaultInjection;
+import doip.tester.toolkit.server4unittest.FaultInjection.MessageType;
+import doip.tester.toolkit.server4unittest.LatencyDistribution;
+
+class TestDoipLoadTester {
+
+	private static Logger logger = LogManager.getLogger(TestDoipLoadTester.class);
+
+	private static DoipServer4UnitTest gateway = null;
+
+	private static TestSetup testerSetup = null;
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass()");
+			}
+
+			gateway = new DoipServer4UnitTest();
+			gateway.start();
+
+			testerSetup = new TestSetup();
+			testerSetup.initialize();
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass()");
+			}
+
+			if (testerSetup != null) {
+				testerSetup.uninitialize();
+				testerSetup = null;
+			}
+
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testLoadTestRecordsLatencies() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testLoadTestRecordsLatencies()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			List<byte[]> requests = new ArrayList<byte[]>();
+			requests.add(new byte[] {0x10, 0x03});
+			requests.add(new byte[] {0x22, (byte) 0xF1, (byte) 0x90});
+			DoipLoadTester tester = new DoipLoadTester(testerSetup.getConfig(), 4, 40, 1, requests);
+			tester.run();
+			logResults(tester);
+
+			assertTrue(tester.getSentCount() > 0, "No requests have been sent");
+			assertEquals(0, tester.getTimeoutCount(), "Requests timed out");
+			// Skipped requests will also be recorded with the time they have waited
+			long total = tester.getSentCount() + tester.getSkippedCount();
+			long posAcks = tester.getPosAckLatencies(0).getTotalCount() + tester.getPosAckLatencies(1).getTotalCount();
+			long responses = tester.getResponseLatencies(0).getTotalCount() + tester.getResponseLatencies(1).getTotalCount();
+			assertEquals(total, posAcks, "Number of positive acknowledges does not match");
+			assertEquals(total, responses, "Number of responses does not match");
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testLoadTestRecordsLatencies()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testLoadTestRecordsLatencies()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	/**
+	 * The response will be sent 200 ms after the timeout. The late
+	 * response must not be recorded as response on the next request.
+	 */
+	@Test
+	public void testLateResponseIsNotRecordedForNextRequest() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testLateResponseIsNotRecordedForNextRequest()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TestConfig config = new ShortTimeoutConfig();
+			long timeout = config.get_A_DoIP_Diagnostic_Message() + config.get_A_Processing_Time();
+			FaultInjection injection = new FaultInjection();
+			injection.setLatency(MessageType.DIAGNOSTIC_MESSAGE, LatencyDistribution.fixed(timeout + 200));
+			gateway.setFaultInjection(injection);
+
+			// Every response is late, the next request will be sent when
+			// the late response of the previous one has been received and
+			// the remaining ones will be skipped after the run
+			List<byte[]> requests = new ArrayList<byte[]>();
+			requests.add(new byte[] {0x10, 0x03});
+			DoipLoadTester tester = new DoipLoadTester(config, 1, 4, 1, requests);
+			tester.run();
+			logResults(tester);
+
+			assertTrue(tester.getTimeoutCount() > 0, "No request timed out");
+			assertTrue(tester.getLateCount() > 0, "No late response has been counted");
+			long minLatency = tester.getResponseLatencies(0).getMinValue();
+			assertTrue(minLatency >= TimeUnit.MILLISECONDS.toNanos(timeout),
+					"Late response has been recorded for the next request");
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testLateResponseIsNotRecordedForNextRequest()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			gateway.setFaultInjection(null);
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testLateResponseIsNotRecordedForNextRequest()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	/**
+	 * Writes the results of the load test to the log instead of the console.
+	 */
+	private static void logResults(DoipLoadTester tester) {
+		ByteArrayOutputStream results = new ByteArrayOutputStream();
+		tester.printResults(new PrintStream(results, true));
+		logger.info(results.toString());
+	}
+
+	/**
+	 * Configuration with a timeout of 400 ms for diagnostic messages, so
+	 * the test does not have to wait for the timeouts of the tester
+	 * configuration.
+	 */
+	private static class ShortTimeoutConfig extends TestConfig {
+
+		private ShortTimeoutConfig() throws Exception {
+			super();
+		}
+
+		@Override
+		public int get_A_DoIP_Diagnostic_Message() {
+			return 200;
+		}
+
+		@Override
+		public int get_A_Processing_Time() {
+			return 200;
+		}
+	}
+}
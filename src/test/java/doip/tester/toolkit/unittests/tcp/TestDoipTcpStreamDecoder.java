@@ -0,0 +1,196 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpMessage;
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.DoipMessageDecoder;
+import doip.tester.toolkit.DoipTcpStreamDecoder;
+
+class TestDoipTcpStreamDecoder {
+
+	private static Logger logger = LogManager.getLogger(TestDoipTcpStreamDecoder.class);
+
+	private static final int MAX_PAYLOAD_LENGTH = 64;
+
+	/**
+	 * Routing activation request which will be sent after an invalid
+	 * message to check that the decoder continues
+	 */
+	private static final byte[] ROUTING_ACTIVATION_REQUEST = message(
+			DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST, 7, new byte[] {0x0E, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+
+	/**
+	 * Collects everything which the decoder passes to the handler. Messages
+	 * will be stored by their payload type, discarded messages by
+	 * their negative acknowledge code.
+	 */
+	private static class Recorder implements DoipTcpStreamDecoder.Handler {
+
+		private final List<Integer> messages = new ArrayList<Integer>();
+
+		private final List<Integer> codes = new ArrayList<Integer>();
+
+		@Override
+		public boolean onMessage(int payloadType, DoipTcpMessage message) {
+			assertNotNull(message);
+			messages.add(payloadType);
+			return true;
+		}
+
+		@Override
+		public boolean onInvalidMessage(int code, int payloadType, long payloadLength) {
+			codes.add(code);
+			return true;
+		}
+	}
+
+	@Test
+	public void testUnknownPayloadType() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testUnknownPayloadType()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			Recorder recorder = decode(message(0x1234, 3, new byte[] {1, 2, 3}), ROUTING_ACTIVATION_REQUEST);
+			assertEquals(List.of(DoipTcpStreamDecoder.NACK_UNKNOWN_PAYLOAD_TYPE), recorder.codes);
+			assertEquals(List.of(DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST), recorder.messages);
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testUnknownPayloadType()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testUnknownPayloadType()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testMessageTooLarge() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testMessageTooLarge()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			// The payload is larger than the buffer of the decoder, it will
+			// be received in several parts and must be skipped
+			int length = DoipTcpStreamDecoder.INITIAL_BUFFER_SIZE * 3;
+			byte[] large = message(DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE, length, new byte[length]);
+			Recorder recorder = decode(large, ROUTING_ACTIVATION_REQUEST);
+			assertEquals(List.of(DoipTcpStreamDecoder.NACK_MESSAGE_TOO_LARGE), recorder.codes);
+			assertEquals(List.of(DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST), recorder.messages);
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testMessageTooLarge()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testMessageTooLarge()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidPayloadLength() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testInvalidPayloadLength()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			byte[] tooShort = message(DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST, 3, new byte[] {0x0E, 0x00, 0x00});
+			Recorder recorder = decode(tooShort, ROUTING_ACTIVATION_REQUEST);
+			assertEquals(List.of(DoipTcpStreamDecoder.NACK_INVALID_PAYLOAD_LENGTH), recorder.codes);
+			assertEquals(List.of(DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST), recorder.messages);
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testInvalidPayloadLength()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testInvalidPayloadLength()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testIncorrectPatternFormat() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testIncorrectPatternFormat()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			byte[] invalid = ROUTING_ACTIVATION_REQUEST.clone();
+			invalid[1] = 0x00;
+			DoipTcpStreamDecoder decoder = new DoipTcpStreamDecoder("TEST", MAX_PAYLOAD_LENGTH);
+			Recorder recorder = new Recorder();
+			decoder.getBuffer().put(invalid);
+			assertFalse(decoder.decode(recorder), "Incorrect pattern has not been detected");
+			assertTrue(recorder.codes.isEmpty());
+			assertTrue(recorder.messages.isEmpty());
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testIncorrectPatternFormat()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testIncorrectPatternFormat()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	/**
+	 * Passes the messages to a new decoder in parts of at most 100 bytes
+	 * like they would be read from a socket.
+	 */
+	private static Recorder decode(byte[]... messages) {
+		DoipTcpStreamDecoder decoder = new DoipTcpStreamDecoder("TEST", MAX_PAYLOAD_LENGTH);
+		Recorder recorder = new Recorder();
+		for (byte[] message : messages) {
+			int offset = 0;
+			while (offset < message.length) {
+				ByteBuffer buffer = decoder.getBuffer();
+				int count = Math.min(Math.min(100, buffer.remaining()), message.length - offset);
+				buffer.put(message, offset, count);
+				offset += count;
+				assertTrue(decoder.decode(recorder), "Decoder reported an incorrect pattern");
+			}
+		}
+		return recorder;
+	}
+
+	private static byte[] message(int payloadType, int payloadLength, byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.allocate(DoipMessageDecoder.HEADER_LENGTH + payload.length);
+		buffer.put((byte) 0x02).put((byte) 0xFD).putShort((short) payloadType).putInt(payloadLength).put(payload);
+		return buffer.array();
+	}
+}
@@ -0,0 +1,346 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static com.starcode88.jtest.Assertions.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import doip.tester.toolkit.DiagnosticServiceFuture;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.TesterTcpConnection;
+import doip.tester.toolkit.exception.DiagnosticServiceExecutionFailed;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+import doip.tester.toolkit.server4unittest.FaultInjection;
+import doip.tester.toolkit.server4unittest.FaultInjection.MessageType;
+import doip.tester.toolkit.server4unittest.LatencyDistribution;
+
+public class TestFaultInjection {
+
+	private static Logger logger = LogManager.getLogger(TestFaultInjection.class);
+	
+	private static DoipServer4UnitTest gateway = null;
+	
+	private TestSetup testSetup = null;
+	
+	private TesterTcpConnection tcpConn = null; 
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass() throws Exception");
+			}
+
+			// --- SET UP BEFORE CLASS BEGIN --------------------------------
+			gateway = new DoipServer4UnitTest();
+			gateway.start();
+			// --- SET UP BEFORE CLASS END ----------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass() throws Exception");
+			}
+			
+			// --- TEAR DOWN AFTER CLASS BEGIN ------------------------------
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+			// --- TEAR DOWN AFTER CLASS END --------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void setUp() throws Exception");
+			}
+			
+			// --- SET UP CODE BEGIN ----------------------------------------
+			testSetup = new TestSetup();
+			testSetup.initialize();
+			tcpConn = testSetup.createTesterTcpConnection();
+			// --- SET UP CODE END ------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUp()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void setUp() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}	
+		}
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void tearDown() throws Exception");
+			}
+			
+			// --- TEAR DOWN CODE BEGIN --------------------------------------
+			gateway.setFaultInjection(null);
+			if (tcpConn != null) {
+				testSetup.removeDoipTcpConnectionTest(tcpConn);
+				tcpConn = null;
+			}
+			
+			if (testSetup != null) {
+				testSetup.uninitialize();
+				testSetup = null;
+			}
+			// --- TEAR DOWN CODE END ----------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDown()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void tearDown() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testDelayedResponse() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testDelayedResponse()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			FaultInjection injection = new FaultInjection();
+			injection.setLatency(MessageType.DIAGNOSTIC_MESSAGE, LatencyDistribution.fixed(300));
+			gateway.setFaultInjection(injection);
+
+			long start = System.nanoTime();
+			DiagnosticServiceFuture future = tcpConn.executeDiagnosticServiceAsync(new byte[] {0x10, 0x03});
+			assertNotNull(future.getPosAck().get(2, TimeUnit.SECONDS), "No positive acknowledge received");
+			long ackTime = System.nanoTime() - start;
+			assertNotNull(future.get(2, TimeUnit.SECONDS), "No response received");
+			long responseTime = System.nanoTime() - start;
+
+			assertTrue(ackTime < TimeUnit.MILLISECONDS.toNanos(300), "Positive acknowledge has been delayed");
+			assertTrue(responseTime >= TimeUnit.MILLISECONDS.toNanos(300), "Response has not been delayed");
+			assertEquals(1L, injection.getDelayedCount());
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testDelayedResponse()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testDelayedResponse()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testResponseDoesNotOvertakeDelayedAck() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testResponseDoesNotOvertakeDelayedAck()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			// Only the positive acknowledge will be delayed, the response
+			// must still come after it like on a real TCP connection
+			FaultInjection injection = new FaultInjection();
+			injection.setLatency(MessageType.DIAGNOSTIC_MESSAGE_POS_ACK, LatencyDistribution.fixed(300));
+			gateway.setFaultInjection(injection);
+
+			long start = System.nanoTime();
+			DiagnosticServiceFuture future = tcpConn.executeDiagnosticServiceAsync(new byte[] {0x10, 0x03});
+			assertNotNull(future.getPosAck().get(2, TimeUnit.SECONDS), "No positive acknowledge received");
+			assertNotNull(future.get(2, TimeUnit.SECONDS), "No response received");
+			long responseTime = System.nanoTime() - start;
+
+			assertTrue(responseTime >= TimeUnit.MILLISECONDS.toNanos(300), "Response has overtaken the positive acknowledge");
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testResponseDoesNotOvertakeDelayedAck()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testResponseDoesNotOvertakeDelayedAck()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testDroppedResponse() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testDroppedResponse()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			FaultInjection injection = new FaultInjection();
+			injection.setDropProbability(MessageType.DIAGNOSTIC_MESSAGE, 1.0);
+			gateway.setFaultInjection(injection);
+
+			DiagnosticServiceFuture future = tcpConn.executeDiagnosticServiceAsync(new byte[] {0x10, 0x03});
+			assertNotNull(future.getPosAck().get(2, TimeUnit.SECONDS), "No positive acknowledge received");
+			assertErrorCode(DiagnosticServiceExecutionFailed.NO_DIAG_MESSAGE_RECEIVED, future);
+			assertEquals(1L, injection.getDroppedCount());
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testDroppedResponse()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testDroppedResponse()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testDelayedClose() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testDelayedClose()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			FaultInjection injection = new FaultInjection();
+			injection.setDelayedClose(1.0, LatencyDistribution.fixed(100));
+			gateway.setFaultInjection(injection);
+
+			DiagnosticServiceFuture future = tcpConn.executeDiagnosticServiceAsync(new byte[] {0x10, 0x03});
+			assertErrorCode(DiagnosticServiceExecutionFailed.CONNECTION_CLOSED, future);
+			assertEquals(1L, injection.getClosedCount());
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testDelayedClose()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testDelayedClose()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testLatencyDistributions() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testLatencyDistributions()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			assertEquals(TimeUnit.MILLISECONDS.toNanos(5), LatencyDistribution.fixed(5).nextDelay());
+
+			long[] samples = sample(LatencyDistribution.uniform(10, 20));
+			assertTrue(samples[0] >= TimeUnit.MILLISECONDS.toNanos(10), "Uniform sample below minimum");
+			assertTrue(samples[samples.length - 1] <= TimeUnit.MILLISECONDS.toNanos(20), "Uniform sample above maximum");
+			assertMedian(15, samples);
+
+			samples = sample(LatencyDistribution.normal(50, 10));
+			assertMedian(50, samples);
+			assertTrue(samples[0] >= 0, "Negative latency");
+
+			samples = sample(LatencyDistribution.logNormal(20, 1.0));
+			assertMedian(20, samples);
+			// The 99th percentile of a log-normal distribution with sigma 1
+			// is about ten times the median
+			assertTrue(samples[samples.length * 99 / 100] > TimeUnit.MILLISECONDS.toNanos(150), "No long tail");
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testLatencyDistributions()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testLatencyDistributions()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	private static long[] sample(LatencyDistribution distribution) {
+		long[] samples = new long[20000];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = distribution.nextDelay();
+		}
+		Arrays.sort(samples);
+		return samples;
+	}
+
+	private static void assertMedian(double expected, long[] samples) {
+		double median = samples[samples.length / 2] / 1000000.0;
+		assertTrue(Math.abs(median - expected) < expected * 0.05, "Median " + median + " ms, expected " + expected + " ms");
+	}
+
+	private static void assertErrorCode(int expected, DiagnosticServiceFuture future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Request has been answered");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DiagnosticServiceExecutionFailed, "Unexpected exception");
+			assertEquals(expected, ((DiagnosticServiceExecutionFailed) e.getCause()).getErrorCode());
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.DoipMessageDecoder;
+import doip.tester.toolkit.DoipTcpStreamDecoder;
+import doip.tester.toolkit.TestConfig;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+
+/**
+ * Sends messages with errors in the generic header to the gateway in both
+ * TCP modes and checks the negative acknowledges. The messages will be
+ * sent through a plain socket because the tester itself can not send
+ * invalid messages.
+ */
+class TestHeaderNegAck {
+
+	private static Logger logger = LogManager.getLogger(TestHeaderNegAck.class);
+
+	/**
+	 * Timeout for reading from the socket in milliseconds
+	 */
+	private static final int READ_TIMEOUT = 2000;
+
+	/**
+	 * Payload length which exceeds the maximum of the gateway in both modes
+	 */
+	private static final int TOO_LARGE_PAYLOAD_LENGTH = 0x1000001;
+
+	private static TestConfig config = null;
+
+	private DoipServer4UnitTest gateway = null;
+
+	private Socket socket = null;
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass()");
+			}
+
+			config = new TestConfig();
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void tearDown()");
+			}
+
+			closeGateway();
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDown()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void tearDown()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testUnknownPayloadType() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testUnknownPayloadType()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			for (DoipServer4UnitTest.TcpMode mode : DoipServer4UnitTest.TcpMode.values()) {
+				openGateway(mode);
+				send(message(0x1234, 3, new byte[3]));
+				assertNegAck(DoipTcpStreamDecoder.NACK_UNKNOWN_PAYLOAD_TYPE, mode);
+				assertConnectionIsOpen(mode);
+				closeGateway();
+			}
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testUnknownPayloadType()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testUnknownPayloadType()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testMessageTooLarge() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testMessageTooLarge()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			for (DoipServer4UnitTest.TcpMode mode : DoipServer4UnitTest.TcpMode.values()) {
+				openGateway(mode);
+				// The gateway shall discard the payload, the next message
+				// will only be answered if it has been skipped completely
+				send(message(DoipMessageDecoder.TYPE_DIAGNOSTIC_MESSAGE, TOO_LARGE_PAYLOAD_LENGTH,
+						new byte[TOO_LARGE_PAYLOAD_LENGTH]));
+				assertNegAck(DoipTcpStreamDecoder.NACK_MESSAGE_TOO_LARGE, mode);
+				assertConnectionIsOpen(mode);
+				closeGateway();
+			}
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testMessageTooLarge()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testMessageTooLarge()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidPayloadLength() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testInvalidPayloadLength()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			for (DoipServer4UnitTest.TcpMode mode : DoipServer4UnitTest.TcpMode.values()) {
+				openGateway(mode);
+				send(message(DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST, 3, new byte[3]));
+				assertNegAck(DoipTcpStreamDecoder.NACK_INVALID_PAYLOAD_LENGTH, mode);
+				assertConnectionIsOpen(mode);
+				closeGateway();
+			}
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testInvalidPayloadLength()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testInvalidPayloadLength()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testIncorrectPatternFormat() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testIncorrectPatternFormat()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			for (DoipServer4UnitTest.TcpMode mode : DoipServer4UnitTest.TcpMode.values()) {
+				openGateway(mode);
+				byte[] invalid = routingActivationRequest();
+				invalid[1] = 0x00;
+				send(invalid);
+				assertNegAck(DoipTcpStreamDecoder.NACK_INCORRECT_PATTERN_FORMAT, mode);
+				assertEquals(-1, socket.getInputStream().read(),
+						"Gateway in mode " + mode + " did not close the connection");
+				closeGateway();
+			}
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testIncorrectPatternFormat()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testIncorrectPatternFormat()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	private void openGateway(DoipServer4UnitTest.TcpMode mode) throws IOException {
+		gateway = new DoipServer4UnitTest();
+		gateway.setTcpMode(mode);
+		gateway.start();
+		socket = new Socket(config.getTargetAddress(), config.getTargetPort());
+		socket.setSoTimeout(READ_TIMEOUT);
+	}
+
+	private void closeGateway() throws IOException {
+		if (socket != null) {
+			socket.close();
+			socket = null;
+		}
+		if (gateway != null) {
+			gateway.stop();
+			gateway = null;
+		}
+	}
+
+	private void send(byte[] data) throws IOException {
+		OutputStream output = socket.getOutputStream();
+		output.write(data);
+		output.flush();
+	}
+
+	/**
+	 * Reads the next message and checks that it is a generic header
+	 * negative acknowledge with the given code.
+	 */
+	private void assertNegAck(int code, DoipServer4UnitTest.TcpMode mode) throws IOException {
+		byte[] message = readMessage();
+		assertEquals(DoipMessageDecoder.TYPE_HEADER_NEG_ACK, DoipMessageDecoder.getPayloadType(ByteBuffer.wrap(message), 0),
+				"Gateway in mode " + mode + " did not send a negative acknowledge");
+		assertEquals(code, message[DoipMessageDecoder.HEADER_LENGTH] & 0xFF,
+				"Gateway in mode " + mode + " sent a wrong negative acknowledge code");
+	}
+
+	/**
+	 * Sends a routing activation request and checks that the gateway
+	 * answers it, so the connection is still open and the previous
+	 * message has been discarded completely.
+	 */
+	private void assertConnectionIsOpen(DoipServer4UnitTest.TcpMode mode) throws IOException {
+		send(routingActivationRequest());
+		byte[] message = readMessage();
+		assertEquals(DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_RESPONSE,
+				DoipMessageDecoder.getPayloadType(ByteBuffer.wrap(message), 0),
+				"Gateway in mode " + mode + " did not answer the routing activation request");
+	}
+
+	private byte[] readMessage() throws IOException {
+		DataInputStream input = new DataInputStream(socket.getInputStream());
+		byte[] header = new byte[DoipMessageDecoder.HEADER_LENGTH];
+		input.readFully(header);
+		int payloadLength = (int) DoipMessageDecoder.getPayloadLength(ByteBuffer.wrap(header), 0);
+		byte[] message = new byte[DoipMessageDecoder.HEADER_LENGTH + payloadLength];
+		System.arraycopy(header, 0, message, 0, header.length);
+		input.readFully(message, header.length, payloadLength);
+		return message;
+	}
+
+	private byte[] routingActivationRequest() {
+		byte[] payload = new byte[7];
+		payload[0] = (byte) (config.getTesterAddress() >> 8);
+		payload[1] = (byte) config.getTesterAddress();
+		return message(DoipMessageDecoder.TYPE_ROUTING_ACTIVATION_REQUEST, payload.length, payload);
+	}
+
+	private static byte[] message(int payloadType, int payloadLength, byte[] payload) {
+		ByteBuffer buffer = ByteBuffer.allocate(DoipMessageDecoder.HEADER_LENGTH + payload.length);
+		buffer.put((byte) 0x02).put((byte) 0xFD).putShort((short) payloadType).putInt(payloadLength).put(payload);
+		return buffer.array();
+	}
+}
@@ -0,0 +1,126 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.load.LoadSession;
+import doip.tester.toolkit.load.NioLoadGenerator;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+
+class TestNioLoadGenerator {
+
+	private static Logger logger = LogManager.getLogger(TestNioLoadGenerator.class);
+
+	private static DoipServer4UnitTest gateway = null;
+
+	private static TestSetup testerSetup = null;
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass()");
+			}
+
+			gateway = new DoipServer4UnitTest();
+			gateway.start();
+
+			testerSetup = new TestSetup();
+			testerSetup.initialize();
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass()");
+			}
+
+			if (testerSetup != null) {
+				testerSetup.uninitialize();
+				testerSetup = null;
+			}
+
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testActivateAndDriveSessions() throws Exception {
+		NioLoadGenerator generator = null;
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testActivateAndDriveSessions()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			int count = 20;
+			generator = new NioLoadGenerator(testerSetup.getConfig(), 2);
+			generator.start();
+			List<LoadSession> sessions = generator.openSessions(count);
+			assertTrue(generator.waitForActivatedSessions(count, 5000),
+					"Not all sessions have been activated");
+
+			int ecuAddress = testerSetup.getConfig().getEcuAddressPhysical();
+			for (LoadSession session : sessions) {
+				session.sendDiagnosticMessage(ecuAddress, new byte[] {0x10, 0x03});
+			}
+			for (LoadSession session : sessions) {
+				DoipEventTcpDiagnosticMessage event = session.waitForEvent(DoipEventTcpDiagnosticMessage.class, 1000);
+				assertNotNull(event, "No diagnostic message received on session " + session.getId());
+			}
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testActivateAndDriveSessions()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (generator != null) {
+				generator.stop();
+			}
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testActivateAndDriveSessions()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static com.starcode88.jtest.Assertions.*;
+
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.server4unittest.ResponseTable;
+
+public class TestResponseTable {
+
+	private static Logger logger = LogManager.getLogger(TestResponseTable.class);
+
+	@Test
+	public void testMatching() {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testMatching()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			ResponseTable table = ResponseTable.parse(Arrays.asList(
+					"# Session control",
+					"10 03 $   -> 50 03 00 32 01 F4",
+					"",
+					"22 F1 90  -> 62 F1 90 41",
+					"22 F1 ??  -> 7F 22 31",
+					"3E 8?     ->",
+					"31 01 ?F  -> 71 01"));
+			assertEquals(5, table.size());
+
+			assertArrayEquals(new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4},
+					table.getResponse(new byte[] {0x10, 0x03}), "Exact match");
+			assertArrayEquals(new byte[] {0x7F, 0x10, 0x11},
+					table.getResponse(new byte[] {0x10, 0x03, 0x00}), "Request longer than exact pattern");
+			assertArrayEquals(new byte[] {0x62, (byte) 0xF1, (byte) 0x90, 0x41},
+					table.getResponse(new byte[] {0x22, (byte) 0xF1, (byte) 0x90}), "First matching line");
+			assertArrayEquals(new byte[] {0x7F, 0x22, 0x31},
+					table.getResponse(new byte[] {0x22, (byte) 0xF1, (byte) 0x86}), "Byte wildcard");
+			assertArrayEquals(new byte[0],
+					table.getResponse(new byte[] {0x3E, (byte) 0x80}), "Empty response");
+			assertArrayEquals(new byte[] {0x7F, 0x3E, 0x11},
+					table.getResponse(new byte[] {0x3E, 0x00}), "Nibble wildcard");
+			assertArrayEquals(new byte[] {0x71, 0x01},
+					table.getResponse(new byte[] {0x31, 0x01, (byte) 0xFF, 0x00}), "Prefix with nibble wildcard");
+			assertArrayEquals(new byte[] {0x7F, 0x31, 0x11},
+					table.getResponse(new byte[] {0x31, 0x01, (byte) 0xF0}), "Nibble does not match");
+			assertArrayEquals(new byte[] {0x7F, 0x19, 0x11},
+					table.getResponse(new byte[] {0x19, 0x02}), "Unknown service");
+
+			ResponseTable defaultTable = ResponseTable.createDefault();
+			assertArrayEquals(new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4},
+					defaultTable.getResponse(new byte[] {0x10, 0x01}), "Default table");
+			assertArrayEquals(new byte[] {0x7F, 0x22, 0x10},
+					defaultTable.getResponse(new byte[] {0x22, (byte) 0xF1, (byte) 0x90}), "Default table");
+
+			try {
+				ResponseTable.parse(Arrays.asList("22 F1 -> 62 F"));
+				fail("Invalid response has been accepted");
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage().contains("line 1"), "Line number in message");
+			}
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testMatching()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.TesterTcpConnection;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.load.LoadSession;
+import doip.tester.toolkit.load.NioLoadGenerator;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+
+class TestSelectorServer {
+
+	private static Logger logger = LogManager.getLogger(TestSelectorServer.class);
+
+	private static DoipServer4UnitTest gateway = null;
+
+	private static TestSetup testerSetup = null;
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass()");
+			}
+
+			gateway = new DoipServer4UnitTest();
+			gateway.setTcpMode(DoipServer4UnitTest.TcpMode.SELECTOR);
+			gateway.start();
+
+			testerSetup = new TestSetup();
+			testerSetup.initialize();
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass()");
+			}
+
+			if (testerSetup != null) {
+				testerSetup.uninitialize();
+				testerSetup = null;
+			}
+
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testExecuteDiagnosticService() throws Exception {
+		TesterTcpConnection tcpConn = null;
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testExecuteDiagnosticService()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			tcpConn = testerSetup.createTesterTcpConnection();
+			DoipEventTcpDiagnosticMessage event = tcpConn.executeDiagnosticServicePosAck(new byte[] {0x10, 0x03});
+			DoipTcpDiagnosticMessage response = (DoipTcpDiagnosticMessage) event.getDoipMessage();
+			assertArrayEquals(new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4}, response.getDiagnosticMessage(),
+					"Response does not match expected value");
+			assertEquals(1, gateway.getConnectionCount());
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testExecuteDiagnosticService()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (tcpConn != null) {
+				testerSetup.removeDoipTcpConnectionTest(tcpConn);
+			}
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testExecuteDiagnosticService()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testManyConnections() throws Exception {
+		NioLoadGenerator generator = null;
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testManyConnections()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			int count = 1000;
+			generator = new NioLoadGenerator(testerSetup.getConfig(), 2);
+			generator.start();
+			List<LoadSession> sessions = generator.openSessions(count);
+			assertTrue(generator.waitForActivatedSessions(count, 10000),
+					"Not all sessions have been activated");
+			assertEquals(count, gateway.getConnectionCount());
+
+			int ecuAddress = testerSetup.getConfig().getEcuAddressPhysical();
+			for (LoadSession session : sessions) {
+				session.sendDiagnosticMessage(ecuAddress, new byte[] {0x10, 0x03});
+			}
+			for (LoadSession session : sessions) {
+				DoipEventTcpDiagnosticMessage event = session.waitForEvent(DoipEventTcpDiagnosticMessage.class, 2000);
+				assertNotNull(event, "No diagnostic message received on session " + session.getId());
+			}
+
+			generator.stop();
+			generator = null;
+			for (int i = 0; i < 100 && gateway.getConnectionCount() > 0; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(0, gateway.getConnectionCount(), "Gateway did not remove closed connections");
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testManyConnections()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (generator != null) {
+				generator.stop();
+			}
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testManyConnections()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static com.starcode88.jtest.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.message.DoipTcpDiagnosticMessagePosAck;
+import doip.library.message.DoipTcpRoutingActivationRequest;
+import doip.library.message.DoipTcpRoutingActivationResponse;
+import doip.library.message.DoipUdpVehicleAnnouncementMessage;
+import doip.library.message.DoipUdpVehicleIdentRequest;
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.capture.PcapngCapture;
+import doip.tester.toolkit.capture.PcapngReader;
+import doip.tester.toolkit.capture.TcpFlow;
+import doip.tester.toolkit.capture.UdpFlow;
+import doip.tester.toolkit.replay.SessionReplay;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+
+public class TestSessionReplay {
+
+	private static Logger logger = LogManager.getLogger(TestSessionReplay.class);
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static DoipServer4UnitTest gateway = null;
+
+	private TestSetup testSetup = null;
+
+	private Path directory = null;
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass() throws Exception");
+			}
+
+			// --- SET UP BEFORE CLASS BEGIN --------------------------------
+			gateway = new DoipServer4UnitTest();
+			gateway.start();
+			// --- SET UP BEFORE CLASS END ----------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass() throws Exception");
+			}
+
+			// --- TEAR DOWN AFTER CLASS BEGIN ------------------------------
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+			// --- TEAR DOWN AFTER CLASS END --------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void setUp() throws Exception");
+			}
+
+			// --- SET UP CODE BEGIN ----------------------------------------
+			testSetup = new TestSetup();
+			testSetup.initialize();
+			directory = Files.createTempDirectory("replay");
+			// --- SET UP CODE END ------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUp()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void setUp() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void tearDown() throws Exception");
+			}
+
+			// --- TEAR DOWN CODE BEGIN --------------------------------------
+			if (testSetup != null) {
+				testSetup.uninitialize();
+				testSetup = null;
+			}
+			if (directory != null) {
+				try (Stream<Path> files = Files.walk(directory)) {
+					files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+				}
+				directory = null;
+			}
+			// --- TEAR DOWN CODE END ----------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDown()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void tearDown() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testReplay()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			record();
+			SessionReplay replay = new SessionReplay(testSetup, 10.0);
+			try (PcapngReader reader = new PcapngReader(directory, "field")) {
+				replay.replay(reader);
+			}
+			logReport(replay);
+
+			assertEquals(1, replay.getConnectionCount());
+			assertEquals(4, replay.getSentCount());
+			// Routing activation response, two positive acknowledges, one
+			// diagnostic response and the vehicle announcement
+			assertEquals(5, replay.getMatchedCount());
+			// The gateway for unit tests does not support service 0x22
+			assertEquals(1, replay.getMismatchCount());
+			assertEquals(0, replay.getMissingCount());
+			assertEquals(0, replay.getUnexpectedCount());
+			assertEquals(0, replay.getGapCount());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testReplay()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testReplayWithLostResponse() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testReplayWithLostResponse()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			// The positive acknowledge of the first request is not in the
+			// recording, the comparison must continue with the next response
+			record(false);
+			SessionReplay replay = new SessionReplay(testSetup, 10.0);
+			try (PcapngReader reader = new PcapngReader(directory, "field")) {
+				replay.replay(reader);
+			}
+			logReport(replay);
+
+			assertEquals(4, replay.getSentCount());
+			assertEquals(4, replay.getMatchedCount());
+			assertEquals(1, replay.getMismatchCount());
+			assertEquals(0, replay.getMissingCount());
+			assertEquals(1, replay.getUnexpectedCount());
+			// --- TEST CODE END ----------------------------------------------
+
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testReplayWithLostResponse()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	/**
+	 * Writes the report of the replay to the log instead of the console.
+	 */
+	private static void logReport(SessionReplay replay) {
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		replay.printReport(new PrintStream(report, true));
+		logger.info(report.toString());
+	}
+
+	private void record() throws IOException {
+		record(true);
+	}
+
+	/**
+	 * Writes a recording of a session with a gateway which supports
+	 * the service 0x22.
+	 *
+	 * @param complete If false the positive acknowledge of the first
+	 *                 diagnostic request will not be recorded
+	 */
+	private void record(boolean complete) throws IOException {
+		int testerAddress = testSetup.getConfig().getTesterAddress();
+		int entityAddress = 0xE000;
+		InetSocketAddress tester = new InetSocketAddress(InetAddress.getByName("10.0.0.2"), 50000);
+		InetSocketAddress gatewayAddress = new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 13400);
+		byte[] sessionControl = new byte[] {0x10, 0x03};
+		byte[] readData = new byte[] {0x22, (byte) 0xF1, (byte) 0x90};
+
+		PcapngCapture capture = new PcapngCapture(directory, "field", PcapngCapture.DEFAULT_MAX_FILE_SIZE);
+		UdpFlow udp = capture.createUdpFlow(tester);
+		byte[] request = new DoipUdpVehicleIdentRequest().getMessage();
+		udp.onSent(0, request, 0, request.length, gatewayAddress);
+		byte[] announcement = new DoipUdpVehicleAnnouncementMessage(
+				new byte[17], entityAddress, new byte[6], new byte[6], 0, 0).getMessage();
+		udp.onReceived(5 * MS, announcement, 0, announcement.length, gatewayAddress);
+
+		TcpFlow tcp = capture.createTcpFlow(tester, gatewayAddress, 10 * MS);
+		tcp.onSent(20 * MS, new DoipTcpRoutingActivationRequest(testerAddress, 0, -1).getMessage());
+		tcp.onReceived(25 * MS, new DoipTcpRoutingActivationResponse(testerAddress, entityAddress, 0x10, -1).getMessage());
+		tcp.onSent(100 * MS, new DoipTcpDiagnosticMessage(testerAddress, entityAddress, sessionControl).getMessage());
+		if (complete) {
+			tcp.onReceived(105 * MS, new DoipTcpDiagnosticMessagePosAck(entityAddress, testerAddress, 0, sessionControl).getMessage());
+		}
+		tcp.onReceived(110 * MS, new DoipTcpDiagnosticMessage(entityAddress, testerAddress,
+				new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4}).getMessage());
+		tcp.onSent(200 * MS, new DoipTcpDiagnosticMessage(testerAddress, entityAddress, readData).getMessage());
+		tcp.onReceived(205 * MS, new DoipTcpDiagnosticMessagePosAck(entityAddress, testerAddress, 0, readData).getMessage());
+		tcp.onReceived(210 * MS, new DoipTcpDiagnosticMessage(entityAddress, testerAddress,
+				new byte[] {0x62, (byte) 0xF1, (byte) 0x90, 0x41}).getMessage());
+		tcp.onClosed(300 * MS, true);
+		capture.close();
+	}
+}
@@ -0,0 +1,215 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.DiagnosticServiceFuture;
+import doip.tester.toolkit.DoipTcpConnectionWithEventCollection.EventType;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.TesterTcpConnection;
+import doip.tester.toolkit.TesterTcpConnectionPool;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.exception.DiagnosticServiceExecutionFailed;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+
+class TestTcpConnectionPool {
+
+	private static Logger logger = LogManager.getLogger(TestTcpConnectionPool.class);
+
+	private static DoipServer4UnitTest gateway = null;
+
+	private static TestSetup testerSetup = null;
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass()");
+			}
+
+			gateway = new DoipServer4UnitTest();
+			gateway.start();
+
+			testerSetup = new TestSetup();
+			testerSetup.initialize();
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass()");
+			}
+
+			if (testerSetup != null) {
+				testerSetup.uninitialize();
+				testerSetup = null;
+			}
+
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testReuseOfConnection() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testReuseOfConnection()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TesterTcpConnectionPool pool = testerSetup.getConnectionPool();
+			assertTrue(pool.getSize() >= 1, "Size of connection pool shall be at least 1");
+
+			TesterTcpConnection first = pool.acquire(1000);
+			assertNotNull(first, "No connection has been acquired from the pool");
+			pool.release(first);
+
+			TesterTcpConnection second = pool.acquire(1000);
+			assertSame(first, second, "Released connection has not been reused");
+			assertEquals(1, pool.getConnectionCount());
+			pool.release(second);
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testReuseOfConnection()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testReuseOfConnection()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testReleaseResetsConnection() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testReleaseResetsConnection()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TesterTcpConnectionPool pool = testerSetup.getConnectionPool();
+			TesterTcpConnection first = pool.acquire(1000);
+			assertNotNull(first, "No connection has been acquired from the pool");
+			// Leave a response, a changed subscription and a pending service behind
+			first.executeDiagnosticServicePosAck(new byte[] {0x10, 0x03});
+			first.unsubscribe(EventType.ALIVE_CHECK_REQUEST);
+			DiagnosticServiceFuture pending;
+			gateway.setSilent(true);
+			try {
+				pending = first.executeDiagnosticServiceAsync(new byte[] {0x22, (byte) 0xF1, (byte) 0x90});
+				assertTrue(first.getEventCount() > 0, "No stale event in the event queue");
+				pool.release(first);
+			} finally {
+				gateway.setSilent(false);
+			}
+
+			assertTrue(pending.isCompletedExceptionally(), "Pending service has not been completed");
+			ExecutionException ex = assertThrows(ExecutionException.class, () -> pending.get());
+			assertEquals(DiagnosticServiceExecutionFailed.CONNECTION_RELEASED,
+					((DiagnosticServiceExecutionFailed) ex.getCause()).getErrorCode());
+
+			TesterTcpConnection second = pool.acquire(1000);
+			assertSame(first, second, "Released connection has not been reused");
+			assertEquals(0, second.getEventCount());
+			assertNull(second.waitForEvent(DoipEventTcpDiagnosticMessage.class, 100), "Next test sees stale response");
+			assertTrue(second.isSubscribed(EventType.ALIVE_CHECK_REQUEST));
+			assertNotNull(second.executeDiagnosticServicePosAck(new byte[] {0x10, 0x03}));
+			pool.release(second);
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testReleaseResetsConnection()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testReleaseResetsConnection()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testSizeFromEntityStatus() throws Exception {
+		TestSetup setup = null;
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testSizeFromEntityStatus()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			setup = new TestSetup();
+			setup.initialize();
+			int before = gateway.getConnectionCount();
+			for (int i = 0; i < 3; i++) {
+				setup.createTesterTcpConnection();
+			}
+			long deadline = System.currentTimeMillis() + 2000;
+			while (gateway.getConnectionCount() < before + 3) {
+				assertTrue(System.currentTimeMillis() < deadline, "Gateway did not accept the connections");
+				Thread.sleep(10);
+			}
+
+			// The gateway accepts 8 sockets, the pool gets the remaining ones
+			int available = 8 - gateway.getConnectionCount();
+			int expected = Math.max(1, Math.min(setup.getConfig().getConnectionPoolMaxSize(), available));
+			assertEquals(expected, setup.getConnectionPool().getSize());
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testSizeFromEntityStatus()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (setup != null) {
+				setup.uninitialize();
+			}
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testSizeFromEntityStatus()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}
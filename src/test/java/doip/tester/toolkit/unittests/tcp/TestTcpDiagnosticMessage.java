@@ -2,6 +2,10 @@ package doip.tester.toolkit.unittests.tcp;
 
 import static com.starcode88.jtest.Assertions.*;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
@@ -13,9 +17,12 @@ import doip.library.util.Helper;
 import doip.library.util.StringConstants;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import doip.tester.toolkit.DiagnosticServiceFuture;
+import doip.tester.toolkit.EventQueue;
 import doip.tester.toolkit.TestSetup;
 import doip.tester.toolkit.TesterTcpConnection;
 import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessage;
+import doip.tester.toolkit.event.DoipEventTcpDiagnosticMessagePosAck;
 import doip.tester.toolkit.exception.DiagnosticServiceExecutionFailed;
 import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
 
@@ -171,4 +178,188 @@ public class TestTcpDiagnosticMessage {
 			}
 		}
 	}
+
+	@Test
+	public void testPipelinedExecuteDiagnosticServiceAsync() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testPipelinedExecuteDiagnosticServiceAsync()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			DiagnosticServiceFuture sessionControl = tcpConn.executeDiagnosticServiceAsync(new byte[] {0x10, 0x03});
+			DiagnosticServiceFuture readData = tcpConn.executeDiagnosticServiceAsync(new byte[] {0x22, (byte) 0xF1, (byte) 0x90});
+			DiagnosticServiceFuture testerPresent = tcpConn.executeDiagnosticServiceAsync(new byte[] {0x3E, 0x00});
+
+			DoipEventTcpDiagnosticMessagePosAck posAck = sessionControl.getPosAck().get(2, TimeUnit.SECONDS);
+			assertNotNull(posAck, "No positive acknowledge received");
+			// The future gets the same event which has been added to the event queue
+			assertSame(posAck, tcpConn.waitForEvent(DoipEventTcpDiagnosticMessagePosAck.class, 0));
+			DoipTcpDiagnosticMessage response = (DoipTcpDiagnosticMessage) sessionControl.get(2, TimeUnit.SECONDS).getDoipMessage();
+			assertArrayEquals(new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4}, response.getDiagnosticMessage(), "Response does not match expected value");
+
+			response = (DoipTcpDiagnosticMessage) readData.get(2, TimeUnit.SECONDS).getDoipMessage();
+			assertArrayEquals(new byte[] {0x7F, 0x22, 0x10}, response.getDiagnosticMessage(), "Response does not match expected value");
+
+			response = (DoipTcpDiagnosticMessage) testerPresent.get(2, TimeUnit.SECONDS).getDoipMessage();
+			assertArrayEquals(new byte[] {0x7F, 0x3E, 0x10}, response.getDiagnosticMessage(), "Response does not match expected value");
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testPipelinedExecuteDiagnosticServiceAsync()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testPipelinedExecuteDiagnosticServiceAsync()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testSendDiagnosticMessageFromBufferSlice() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testSendDiagnosticMessageFromBufferSlice()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			// The request is a part of a larger buffer
+			ByteBuffer block = ByteBuffer.wrap(new byte[] {0x00, 0x00, 0x10, 0x03, 0x00});
+			block.position(2);
+			block.limit(4);
+			ByteBuffer request = block.slice();
+			tcpConn.sendDiagnosticMessage(testSetup.getConfig().getTesterAddress(),
+					testSetup.getConfig().getEcuAddressPhysical(), request);
+			assertFalse(request.hasRemaining(), "Request has not been consumed");
+
+			DoipEventTcpDiagnosticMessage event = tcpConn.waitForEvent(DoipEventTcpDiagnosticMessage.class, 2000);
+			assertNotNull(event, "No response received");
+			DoipTcpDiagnosticMessage response = (DoipTcpDiagnosticMessage) event.getDoipMessage();
+			assertArrayEquals(new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4}, response.getDiagnosticMessage(), "Response does not match expected value");
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testSendDiagnosticMessageFromBufferSlice()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testSendDiagnosticMessageFromBufferSlice()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testExecuteDiagnosticServiceOnStoppedConnection() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testExecuteDiagnosticServiceOnStoppedConnection()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			tcpConn.stop();
+			try {
+				tcpConn.executeDiagnosticServicePosAck(new byte[] {0x10, 0x03});
+				fail("Diagnostic service has been executed on a stopped connection");
+			} catch (DiagnosticServiceExecutionFailed e) {
+				assertEquals(DiagnosticServiceExecutionFailed.SEND_FAILED, e.getErrorCode());
+			}
+
+			DiagnosticServiceFuture future = tcpConn.executeDiagnosticServiceAsync(new byte[] {0x10, 0x03});
+			assertTrue(future.isCompletedExceptionally(), "Future has not been completed after the send failed");
+			try {
+				future.get(0, TimeUnit.MILLISECONDS);
+				fail("Future of a diagnostic service which could not be sent has been completed normally");
+			} catch (ExecutionException e) {
+				DiagnosticServiceExecutionFailed cause = (DiagnosticServiceExecutionFailed) e.getCause();
+				assertEquals(DiagnosticServiceExecutionFailed.SEND_FAILED, cause.getErrorCode());
+			}
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testExecuteDiagnosticServiceOnStoppedConnection()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testExecuteDiagnosticServiceOnStoppedConnection()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testExecuteDiagnosticServiceWithBlockingEventQueue() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testExecuteDiagnosticServiceWithBlockingEventQueue()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			executeMoreServicesThanEventQueueCapacity(EventQueue.OverflowPolicy.BLOCK);
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testExecuteDiagnosticServiceWithBlockingEventQueue()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testExecuteDiagnosticServiceWithBlockingEventQueue()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testExecuteDiagnosticServiceWithDropNewestEventQueue() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testExecuteDiagnosticServiceWithDropNewestEventQueue()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			executeMoreServicesThanEventQueueCapacity(EventQueue.OverflowPolicy.DROP_NEWEST);
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testExecuteDiagnosticServiceWithDropNewestEventQueue()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testExecuteDiagnosticServiceWithDropNewestEventQueue()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	/**
+	 * Executes more diagnostic services on a connection with a small
+	 * event queue than the queue can hold. Every service gives two events
+	 * (acknowledge and response), none of them shall be lost and the
+	 * receiver thread shall never wait.
+	 */
+	private void executeMoreServicesThanEventQueueCapacity(EventQueue.OverflowPolicy policy) throws Exception {
+		TesterTcpConnection conn = testSetup.createTesterTcpConnection(4, policy);
+		try {
+			for (int i = 0; i < 6; i++) {
+				DoipEventTcpDiagnosticMessage event = conn.executeDiagnosticServicePosAck(new byte[] {0x10, 0x03});
+				DoipTcpDiagnosticMessage response = (DoipTcpDiagnosticMessage) event.getDoipMessage();
+				assertArrayEquals(new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4}, response.getDiagnosticMessage(), "Response does not match expected value");
+			}
+			assertEquals(0L, conn.getEventOverflowCount());
+			assertEquals(0L, conn.getEventBlockCount());
+		} finally {
+			testSetup.removeDoipTcpConnectionTest(conn);
+		}
+	}
 }
@@ -0,0 +1,221 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.reflect.Method;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.TesterTcpConnection;
+import doip.tester.toolkit.TesterThreadFactory;
+import doip.tester.toolkit.TesterUdpCommModule;
+import doip.tester.toolkit.event.DoipEventUdpEntityStatusResponse;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+import doip.tester.toolkit.server4unittest.DoipTcpConnection4UnitTest;
+
+class TestThreadMode {
+
+	private static Logger logger = LogManager.getLogger(TestThreadMode.class);
+
+	private static DoipServer4UnitTest gateway = null;
+
+	private static TestSetup testerSetup = null;
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass()");
+			}
+
+			// The gateway uses virtual threads if the JVM supports them,
+			// the tester uses the thread mode from the configuration
+			gateway = new DoipServer4UnitTest();
+			gateway.setThreadMode(TesterThreadFactory.ThreadMode.VIRTUAL);
+			gateway.start();
+
+			testerSetup = new TestSetup();
+			testerSetup.initialize();
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass()");
+			}
+
+			if (testerSetup != null) {
+				testerSetup.uninitialize();
+				testerSetup = null;
+			}
+
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass()");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testTesterReceiverThread() throws Exception {
+		TesterTcpConnection tcpConn = null;
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testTesterReceiverThread()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TesterThreadFactory factory = testerSetup.getThreadFactory();
+			tcpConn = testerSetup.createTesterTcpConnection();
+			assertSame(factory, tcpConn.getThreadFactory(),
+					"Connection does not use the thread factory of the test setup");
+			Thread receiver = tcpConn.getReceiverThread();
+			assertNotNull(receiver, "Connection has no receiver thread");
+			assertEquals(factory.getMode() == TesterThreadFactory.ThreadMode.VIRTUAL, isVirtual(receiver),
+					"Receiver thread does not match the thread mode " + factory.getMode());
+
+			tcpConn.executeDiagnosticServicePosAck(new byte[] {0x10, 0x03});
+			assertTrue(receiver.isAlive(), "Receiver thread is not running");
+
+			testerSetup.removeDoipTcpConnectionTest(tcpConn);
+			tcpConn = null;
+			assertFalse(receiver.isAlive(), "Receiver thread has not been terminated by stop()");
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testTesterReceiverThread()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (tcpConn != null) {
+				testerSetup.removeDoipTcpConnectionTest(tcpConn);
+			}
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testTesterReceiverThread()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testTesterUdpReceiverThread() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testTesterUdpReceiverThread()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			TesterThreadFactory factory = testerSetup.getThreadFactory();
+			TesterUdpCommModule udp = testerSetup.getTesterUdpCommModule();
+			assertSame(factory, udp.getThreadFactory(),
+					"UDP module does not use the thread factory of the test setup");
+			Thread receiver = udp.getReceiverThread();
+			assertNotNull(receiver, "UDP module has no receiver thread");
+			assertTrue(receiver.isAlive(), "Receiver thread of the UDP module is not running");
+			assertEquals(factory.getMode() == TesterThreadFactory.ThreadMode.VIRTUAL, isVirtual(receiver),
+					"Receiver thread does not match the thread mode " + factory.getMode());
+
+			udp.sendDoipUdpEntityStatusRequest(testerSetup.getConfig().getTargetAddress());
+			assertNotNull(udp.waitForEvent(DoipEventUdpEntityStatusResponse.class, testerSetup.getConfig().get_A_DoIP_Ctrl()),
+					"No entity status response has been received by the receiver thread");
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testTesterUdpReceiverThread()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testTesterUdpReceiverThread()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testGatewayReceiverThread() throws Exception {
+		TesterTcpConnection tcpConn = null;
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testGatewayReceiverThread()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			// Connections of other tests will be removed asynchronously
+			long deadline = System.currentTimeMillis() + 1000;
+			while (gateway.getConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, gateway.getConnectionCount(), "Connections of other tests are still open");
+			tcpConn = testerSetup.createTesterTcpConnection();
+			tcpConn.executeDiagnosticServicePosAck(new byte[] {0x10, 0x03});
+			DoipTcpConnection4UnitTest gatewayConn = gateway.getConnection(0);
+			Thread receiver = gatewayConn.getReceiverThread();
+			assertNotNull(receiver, "Gateway connection has no receiver thread");
+			assertTrue(receiver.isAlive(), "Receiver thread of the gateway is not running");
+			assertEquals(TesterThreadFactory.isVirtualThreadSupported(), isVirtual(receiver),
+					"Receiver thread of the gateway does not match the thread mode of the gateway");
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testGatewayReceiverThread()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (tcpConn != null) {
+				testerSetup.removeDoipTcpConnectionTest(tcpConn);
+			}
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testGatewayReceiverThread()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	/**
+	 * Calls Thread.isVirtual() which is only available since JDK 21.
+	 */
+	private static boolean isVirtual(Thread thread) throws Exception {
+		Method method;
+		try {
+			method = Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+		return (Boolean) method.invoke(thread);
+	}
+}
@@ -0,0 +1,263 @@
+package doip.tester.toolkit.unittests.tcp;
+
+import static com.starcode88.jtest.Assertions.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import doip.library.message.DoipTcpDiagnosticMessage;
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import doip.tester.toolkit.DiagnosticServiceFuture;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.TesterTcpConnection;
+import doip.tester.toolkit.exception.DiagnosticServiceExecutionFailed;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+import doip.tester.toolkit.server4unittest.ResponseTable;
+import doip.tester.toolkit.server4unittest.VirtualEcu;
+
+public class TestVirtualEcus {
+
+	private static Logger logger = LogManager.getLogger(TestVirtualEcus.class);
+	
+	private static final int ECU_1 = 0x1001;
+
+	private static final int ECU_2 = 0x1002;
+
+	private static final int ECU_SLOW = 0x1003;
+
+	private static DoipServer4UnitTest gateway = null;
+	
+	private TestSetup testSetup = null;
+	
+	private TesterTcpConnection tcpConn = null; 
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+		
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass() throws Exception");
+			}
+
+			// --- SET UP BEFORE CLASS BEGIN --------------------------------
+			gateway = new DoipServer4UnitTest();
+			ResponseTable table = ResponseTable.createDefault();
+			gateway.addVirtualEcu(new VirtualEcu(ECU_1, table, 4, 20, 50));
+			gateway.addVirtualEcu(new VirtualEcu(ECU_2, table, 4, 20, 50));
+			gateway.addVirtualEcu(new VirtualEcu(ECU_SLOW, table, 2, 300, 300));
+			gateway.start();
+			// --- SET UP BEFORE CLASS END ----------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass() throws Exception");
+			}
+			
+			// --- TEAR DOWN AFTER CLASS BEGIN ------------------------------
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+			// --- TEAR DOWN AFTER CLASS END --------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void setUp() throws Exception");
+			}
+			
+			// --- SET UP CODE BEGIN ----------------------------------------
+			testSetup = new TestSetup();
+			testSetup.initialize();
+			tcpConn = testSetup.createTesterTcpConnection();
+			// --- SET UP CODE END ------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUp()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void setUp() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}	
+		}
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void tearDown() throws Exception");
+			}
+			
+			// --- TEAR DOWN CODE BEGIN --------------------------------------
+			if (tcpConn != null) {
+				testSetup.removeDoipTcpConnectionTest(tcpConn);
+				tcpConn = null;
+			}
+			
+			if (testSetup != null) {
+				testSetup.uninitialize();
+				testSetup = null;
+			}
+			// --- TEAR DOWN CODE END ----------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDown()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void tearDown() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testParallelEcus() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testParallelEcus()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			DiagnosticServiceFuture ecu1 = tcpConn.executeDiagnosticServiceAsync(ECU_1, new byte[] {0x10, 0x03});
+			DiagnosticServiceFuture ecu2 = tcpConn.executeDiagnosticServiceAsync(ECU_2, new byte[] {0x10, 0x03});
+			DiagnosticServiceFuture ecu1Next = tcpConn.executeDiagnosticServiceAsync(ECU_1, new byte[] {0x22, (byte) 0xF1, (byte) 0x90});
+
+			DoipTcpDiagnosticMessage response = (DoipTcpDiagnosticMessage) ecu1.get(2, TimeUnit.SECONDS).getDoipMessage();
+			assertEquals(ECU_1, response.getSourceAddress(), "Response from wrong ECU");
+			assertArrayEquals(new byte[] {0x50, 0x03, 0x00, 0x32, 0x01, (byte) 0xF4}, response.getDiagnosticMessage(), "Response does not match expected value");
+
+			response = (DoipTcpDiagnosticMessage) ecu2.get(2, TimeUnit.SECONDS).getDoipMessage();
+			assertEquals(ECU_2, response.getSourceAddress(), "Response from wrong ECU");
+
+			response = (DoipTcpDiagnosticMessage) ecu1Next.get(2, TimeUnit.SECONDS).getDoipMessage();
+			assertArrayEquals(new byte[] {0x7F, 0x22, 0x10}, response.getDiagnosticMessage(), "Response does not match expected value");
+			assertTrue(gateway.getVirtualEcu(ECU_1).getMaxQueueLength() >= 1, "Requests have not been queued");
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testParallelEcus()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testParallelEcus()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testUnknownTargetAddress() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testUnknownTargetAddress()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			DiagnosticServiceFuture future = tcpConn.executeDiagnosticServiceAsync(0x2000, new byte[] {0x10, 0x03});
+			assertNegativeAcknowledge(future);
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testUnknownTargetAddress()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testUnknownTargetAddress()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testQueueFull()");
+			}
+			
+			// --- TEST CODE BEGIN --------------------------------------------
+			VirtualEcu ecu = gateway.getVirtualEcu(ECU_SLOW);
+			long rejected = ecu.getRejectedCount();
+			DiagnosticServiceFuture first = tcpConn.executeDiagnosticServiceAsync(ECU_SLOW, new byte[] {0x10, 0x03});
+			DiagnosticServiceFuture second = tcpConn.executeDiagnosticServiceAsync(ECU_SLOW, new byte[] {0x10, 0x01});
+			DiagnosticServiceFuture third = tcpConn.executeDiagnosticServiceAsync(ECU_SLOW, new byte[] {0x10, 0x02});
+
+			assertNegativeAcknowledge(third);
+			assertEquals(rejected + 1, ecu.getRejectedCount(), "Request has not been rejected");
+			assertNotNull(first.get(2, TimeUnit.SECONDS), "No response for first request");
+			assertNotNull(second.get(2, TimeUnit.SECONDS), "No response for second request");
+			// --- TEST CODE END ----------------------------------------------
+			
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testQueueFull()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testQueueFull()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	private void assertNegativeAcknowledge(DiagnosticServiceFuture future) throws Exception {
+		try {
+			future.get(2, TimeUnit.SECONDS);
+			fail("Request has been answered");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DiagnosticServiceExecutionFailed, "Unexpected exception");
+			assertEquals(DiagnosticServiceExecutionFailed.NEG_ACK_RECEIVED,
+					((DiagnosticServiceExecutionFailed) e.getCause()).getErrorCode(), "No negative acknowledge received");
+		}
+	}
+}
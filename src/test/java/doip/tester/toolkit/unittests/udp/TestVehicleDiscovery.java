@@ -0,0 +1,240 @@
+package doip.tester.toolkit.unittests.udp;
+
+import static com.starcode88.jtest.Assertions.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import doip.library.util.Helper;
+import doip.library.util.StringConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import doip.tester.toolkit.TestSetup;
+import doip.tester.toolkit.VehicleDiscovery;
+import doip.tester.toolkit.server4unittest.DoipServer4UnitTest;
+
+public class TestVehicleDiscovery {
+
+	private static Logger logger = LogManager.getLogger(TestVehicleDiscovery.class);
+
+	private static DoipServer4UnitTest gateway = null;
+
+	private TestSetup testSetup = null;
+
+	@BeforeAll
+	public static void setUpBeforeClass() throws Exception {
+
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void setUpBeforeClass() throws Exception");
+			}
+
+			// --- SET UP BEFORE CLASS BEGIN --------------------------------
+			gateway = new DoipServer4UnitTest();
+			gateway.start();
+			// --- SET UP BEFORE CLASS END ----------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUpBeforeClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void setUpBeforeClass() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterAll
+	public static void tearDownAfterClass() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public static void tearDownAfterClass() throws Exception");
+			}
+
+			// --- TEAR DOWN AFTER CLASS BEGIN ------------------------------
+			if (gateway != null) {
+				gateway.stop();
+				gateway = null;
+			}
+			// --- TEAR DOWN AFTER CLASS END --------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDownAfterClass()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public static void tearDownAfterClass() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void setUp() throws Exception");
+			}
+
+			// --- SET UP CODE BEGIN ----------------------------------------
+			testSetup = new TestSetup();
+			testSetup.initialize();
+			// --- SET UP CODE END ------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in setUp()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void setUp() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.SINGLE_LINE);
+				logger.info(">>> public void tearDown() throws Exception");
+			}
+
+			// --- TEAR DOWN CODE BEGIN --------------------------------------
+			if (testSetup != null) {
+				testSetup.uninitialize();
+				testSetup = null;
+			}
+			// --- TEAR DOWN CODE END ----------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in tearDown()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void tearDown() throws Exception");
+				logger.info(StringConstants.SINGLE_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testEarlyTermination() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testEarlyTermination()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			VehicleDiscovery discovery = new VehicleDiscovery(
+					testSetup.getTesterUdpCommModule(), testSetup.getConfig());
+			discovery.addTarget(testSetup.getConfig().getTargetAddress());
+			// The gateway for unit tests uses an EID with all bytes 0
+			discovery.expectEid(new byte[6]);
+
+			VehicleDiscovery.Result result = discovery.discover(5000);
+			assertTrue(result.isComplete(), "Expected EID has not been discovered");
+			assertEquals(1, result.getEntities().size());
+			assertTrue(result.getDuration() < TimeUnit.MILLISECONDS.toNanos(2000), "Discovery did not finish early");
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testEarlyTermination()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testEarlyTermination()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testDuplicateAnnouncements() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testDuplicateAnnouncements()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			VehicleDiscovery discovery = new VehicleDiscovery(
+					testSetup.getTesterUdpCommModule(), testSetup.getConfig());
+			// Without expected entities the discovery waits for the timeout,
+			// so the gateway answers all three requests
+			InetAddress target = testSetup.getConfig().getTargetAddress();
+			discovery.addTarget(target);
+			discovery.addTarget(target);
+			discovery.addTarget(target);
+
+			VehicleDiscovery.Result result = discovery.discover(500);
+			assertFalse(result.isComplete());
+			assertEquals(3, result.getRequestCount());
+			assertEquals(3L, result.getAnnouncementCount());
+			assertEquals(1, result.getEntities().size());
+			assertTrue(result.getDuration() >= TimeUnit.MILLISECONDS.toNanos(500), "Discovery finished too early");
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testDuplicateAnnouncements()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testDuplicateAnnouncements()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+
+	@Test
+	public void testSubnetTargets() throws Exception {
+		try {
+			if (logger.isInfoEnabled()) {
+				logger.info(StringConstants.HASH_LINE);
+				logger.info(">>> public void testSubnetTargets()");
+			}
+
+			// --- TEST CODE BEGIN --------------------------------------------
+			VehicleDiscovery discovery = new VehicleDiscovery(
+					testSetup.getTesterUdpCommModule(), testSetup.getConfig());
+			discovery.addSubnetHosts(InetAddress.getByName("192.168.10.77"), 24);
+			assertEquals(254, discovery.getTargetCount());
+			discovery.addSubnetBroadcast(InetAddress.getByName("10.1.2.3"), 16);
+			assertEquals(255, discovery.getTargetCount());
+			try {
+				discovery.addSubnetHosts(InetAddress.getByName("10.0.0.0"), 8);
+				fail("Subnet with too many hosts has been accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			// --- TEST CODE END ----------------------------------------------
+
+		} catch (Exception e) {
+			logger.error("Unexpected " + e.getClass().getName() + " in testSubnetTargets()");
+			logger.error(Helper.getExceptionAsString(e));
+			throw e;
+		} finally {
+			if (logger.isInfoEnabled()) {
+				logger.info("<<< public void testSubnetTargets()");
+				logger.info(StringConstants.HASH_LINE);
+			}
+		}
+	}
+}